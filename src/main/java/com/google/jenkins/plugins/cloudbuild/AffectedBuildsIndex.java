@@ -0,0 +1,136 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import hudson.XmlFile;
+import hudson.model.Job;
+
+/**
+ * Remembers, for each service built by a {@link CloudBuildAffectedStep} within a job, the digest
+ * of the inputs of its last successful build, so that later runs of the job only build the
+ * services whose inputs have changed since.
+ * <p>
+ * The index of each job is saved in the job's directory, so it is removed along with the job.
+ */
+final class AffectedBuildsIndex {
+  private static final Logger LOGGER = Logger.getLogger(AffectedBuildsIndex.class.getName());
+
+  /** The last successful build of a service. */
+  static final class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String key;
+    private final String projectId;
+    private final String buildId;
+    private final String logUrl;
+    private final long recordedAt;
+
+    Entry(String key, String projectId, String buildId, String logUrl, long recordedAt) {
+      this.key = key;
+      this.projectId = projectId;
+      this.buildId = buildId;
+      this.logUrl = logUrl;
+      this.recordedAt = recordedAt;
+    }
+
+    /** Returns the digest of the inputs of the build. */
+    String getKey() {
+      return key;
+    }
+
+    String getProjectId() {
+      return projectId;
+    }
+
+    String getBuildId() {
+      return buildId;
+    }
+
+    String getLogUrl() {
+      return logUrl;
+    }
+
+    /** Returns when the build was recorded, in milliseconds since the epoch. */
+    long getRecordedAt() {
+      return recordedAt;
+    }
+  }
+
+  private AffectedBuildsIndex() {}
+
+  private static XmlFile getFile(Job<?, ?> job) {
+    return new XmlFile(new File(job.getRootDir(), AffectedBuildsIndex.class.getName() + ".xml"));
+  }
+
+  /**
+   * Returns the last successful build of each service built by {@code job}.
+   *
+   * @param job the job whose index to read
+   * @return the entries by service name, or an empty map if the job has not built any service yet
+   */
+  static synchronized Map<String, Entry> load(Job<?, ?> job) {
+    Map<String, Entry> entries = new LinkedHashMap<>();
+    XmlFile file = getFile(job);
+    if (file.exists()) {
+      try {
+        ((Map<?, ?>) file.read())
+            .forEach((name, entry) -> entries.put((String) name, (Entry) entry));
+      } catch (IOException | ClassCastException e) {
+        LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+      }
+    }
+    return entries;
+  }
+
+  /**
+   * Records the last successful build of a service.
+   *
+   * @param job the job that built the service
+   * @param name the name of the service
+   * @param entry the build to record
+   */
+  static synchronized void record(Job<?, ?> job, String name, Entry entry) {
+    Map<String, Entry> entries = load(job);
+    entries.put(name, entry);
+    try {
+      getFile(job).write(entries);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save the affected builds index of " + job, e);
+    }
+  }
+
+  /**
+   * Returns the entry for {@code name} if its inputs are unchanged.
+   *
+   * @param entries the index of the job, as returned by {@link #load(Job)}
+   * @param name the name of the service
+   * @param key the digest of the current inputs of the service
+   * @return the last successful build of the service, or {@code null} if it has to be built
+   */
+  @CheckForNull
+  static Entry unchanged(Map<String, Entry> entries, String name, String key) {
+    Entry entry = entries.get(name);
+    return entry != null && entry.getKey().equals(key) ? entry : null;
+  }
+}
@@ -0,0 +1,238 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import hudson.Extension;
+import hudson.XmlFile;
+import hudson.model.AsyncPeriodicWork;
+import hudson.model.PeriodicWork;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import jenkins.model.Jenkins;
+
+/**
+ * Polls the Google Cloud Build builds that Jenkins builds submitted without waiting for them (see
+ * {@link CloudBuildBuilder#isAsync()}), and records their status in a
+ * {@link CloudBuildStatusAction} once they complete. The result of the Jenkins build is left as it
+ * was when the Jenkins build finished, since publishers, triggers and permalinks have already acted
+ * on it; the outcome of the Google Cloud Build build is only reported by the action.
+ * <p>
+ * The Jenkins builds being tracked are saved to disk so that tracking survives a restart. The
+ * status of all tracked builds that use the same credentials is fetched in batch requests.
+ */
+@Extension
+public final class AsyncBuildTracker extends AsyncPeriodicWork {
+  private static final Logger LOGGER = Logger.getLogger(AsyncBuildTracker.class.getName());
+
+  static final long RECURRENCE_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  /**
+   * The number of polls in a row that may fail to return a build before it is presumed to be gone
+   * (e.g., because it was deleted, or the credentials lost access to it).
+   */
+  static final int MAX_MISSES = 6;
+
+  /** The {@link Run#getExternalizableId() IDs} of the Jenkins builds being tracked. */
+  private final Set<String> runIds = new LinkedHashSet<>();
+  private boolean loaded;
+
+  /** The number of polls in a row that did not return the build of each Jenkins build. */
+  private final Map<String, Integer> misses = new HashMap<>();
+
+  /**
+   * The permits under which the builds count against the concurrency limits, by Jenkins build.
+   * They are only held in memory, so builds tracked across a restart no longer count.
+   */
+  private final Map<String, SubmissionQueue.Permit> permits = new HashMap<>();
+
+  public AsyncBuildTracker() {
+    super("Google Cloud Build asynchronous build tracker");
+  }
+
+  /** Returns the tracker registered with Jenkins. */
+  public static AsyncBuildTracker get() {
+    return PeriodicWork.all().get(AsyncBuildTracker.class);
+  }
+
+  @Override
+  public long getRecurrencePeriod() {
+    return RECURRENCE_MILLIS;
+  }
+
+  private XmlFile getConfigFile() {
+    return new XmlFile(
+        new File(Jenkins.getInstance().getRootDir(), AsyncBuildTracker.class.getName() + ".xml"));
+  }
+
+  private synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    XmlFile file = getConfigFile();
+    if (file.exists()) {
+      try {
+        for (Object runId : (List<?>) file.read()) {
+          runIds.add((String) runId);
+        }
+      } catch (IOException | ClassCastException e) {
+        LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+      }
+    }
+  }
+
+  private synchronized void save() {
+    try {
+      getConfigFile().write(new ArrayList<>(runIds));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save asynchronous Google Cloud Build builds", e);
+    }
+  }
+
+  /**
+   * Starts tracking the Google Cloud Build build recorded in {@code run}'s
+   * {@link CloudBuildStatusAction}.
+   *
+   * @param run the Jenkins build that submitted the build
+   * @param permit the permit under which the build was submitted, to be released once the build
+   *     completes, or {@code null} if there is none
+   */
+  public synchronized void track(Run<?, ?> run, @CheckForNull SubmissionQueue.Permit permit) {
+    load();
+    runIds.add(run.getExternalizableId());
+    if (permit != null) {
+      permits.put(run.getExternalizableId(), permit);
+    }
+    save();
+  }
+
+  /** Returns the IDs of the Jenkins builds being tracked. */
+  synchronized List<String> getRunIds() {
+    load();
+    return new ArrayList<>(runIds);
+  }
+
+  private synchronized void untrack(String runId) {
+    runIds.remove(runId);
+    misses.remove(runId);
+    SubmissionQueue.Permit permit = permits.remove(runId);
+    if (permit != null) {
+      permit.release();
+    }
+    save();
+  }
+
+  /** Records that a poll did not return the build of {@code runId}, returning the misses so far. */
+  private synchronized int miss(String runId) {
+    return misses.merge(runId, 1, Integer::sum);
+  }
+
+  @Override
+  protected void execute(TaskListener listener) {
+    Map<String, List<Run<?, ?>>> groups = new LinkedHashMap<>();
+    for (String runId : getRunIds()) {
+      Run<?, ?> run = Run.fromExternalizableId(runId);
+      CloudBuildStatusAction action =
+          run == null ? null : run.getAction(CloudBuildStatusAction.class);
+      if (action == null) {
+        // The Jenkins build was deleted.
+        untrack(runId);
+        continue;
+      }
+      if (action.isComplete()) {
+        // The build completed, but the status could not be saved with the Jenkins build.
+        complete(run);
+        continue;
+      }
+      // Credentials may be scoped to a folder, so the same ID may refer to different credentials.
+      String key = String.format(
+          "%s@%s", action.getCredentialsId(), run.getParent().getParent().getFullName());
+      groups.computeIfAbsent(key, k -> new ArrayList<>()).add(run);
+    }
+    for (List<Run<?, ?>> group : groups.values()) {
+      try {
+        poll(group, listener);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to check asynchronous Google Cloud Build builds", e);
+      }
+    }
+  }
+
+  /**
+   * Fetches the status of the builds submitted by {@code runs}, which all use the same credentials.
+   */
+  private void poll(List<Run<?, ?>> runs, TaskListener listener) throws IOException {
+    Map<String, Run<?, ?>> byBuildId = new LinkedHashMap<>();
+    for (Run<?, ?> run : runs) {
+      byBuildId.put(run.getAction(CloudBuildStatusAction.class).getBuildId(), run);
+    }
+    Run<?, ?> first = runs.get(0);
+    ClientFactory clients = new ClientFactory(
+        first, listener, first.getAction(CloudBuildStatusAction.class).getCredentialsId());
+    Map<String, Build> builds = clients.cloudBuild().getBuilds(byBuildId.keySet());
+    for (Map.Entry<String, Run<?, ?>> entry : byBuildId.entrySet()) {
+      Run<?, ?> run = entry.getValue();
+      String runId = run.getExternalizableId();
+      Build build = builds.get(entry.getKey());
+      if (build == null) {
+        if (miss(runId) < MAX_MISSES) {
+          continue;
+        }
+        build = new Build()
+            .setStatus("STATUS_UNKNOWN")
+            .setStatusDetail(Messages.AsyncBuildTracker_NotFound(MAX_MISSES));
+      } else {
+        synchronized (this) {
+          misses.remove(runId);
+        }
+      }
+      CloudBuildStatusAction action = run.getAction(CloudBuildStatusAction.class);
+      action.update(build);
+      if (action.isComplete()) {
+        complete(run);
+      }
+    }
+  }
+
+  /**
+   * Saves the final status of the build submitted by {@code run} and stops tracking it. If the
+   * status cannot be saved, the run stays tracked so that saving it is tried again.
+   */
+  private void complete(Run<?, ?> run) {
+    try {
+      run.save();
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save the Google Cloud Build status of " + run, e);
+      return;
+    }
+    untrack(run.getExternalizableId());
+  }
+}
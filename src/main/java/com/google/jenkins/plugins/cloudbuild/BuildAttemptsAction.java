@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+/**
+ * Records every attempt at a Google Cloud Build build made by a step with a
+ * {@link CloudBuildRetryPolicy}, and shows them on the Jenkins build's page.
+ */
+public class BuildAttemptsAction extends InvisibleAction {
+  /** A single build submitted by a step, and the status with which it ended. */
+  public static final class Attempt {
+    private final String buildId;
+    private final int number;
+    private final String status;
+
+    Attempt(String buildId, int number, String status) {
+      this.buildId = buildId;
+      this.number = number;
+      this.status = status;
+    }
+
+    public String getBuildId() {
+      return buildId;
+    }
+
+    /** Returns the number of the attempt within its step, starting at 1. */
+    public int getNumber() {
+      return number;
+    }
+
+    public String getStatus() {
+      return status;
+    }
+  }
+
+  private final List<Attempt> attempts = new ArrayList<>();
+
+  /** Returns the attempts made so far, in the order in which they ended. */
+  public synchronized List<Attempt> getAttempts() {
+    return Collections.unmodifiableList(new ArrayList<>(attempts));
+  }
+
+  /** Returns the number of attempts that were resubmissions of an earlier, failed build. */
+  public synchronized int getRetries() {
+    int retries = 0;
+    for (Attempt attempt : attempts) {
+      if (attempt.number > 1) {
+        retries++;
+      }
+    }
+    return retries;
+  }
+
+  synchronized void add(Attempt attempt) {
+    attempts.add(attempt);
+  }
+
+  /**
+   * Records the outcome of an attempt in the action of {@code run}, adding the action if needed.
+   *
+   * @param run the Jenkins build that submitted the build
+   * @param buildId the ID of the build
+   * @param number the number of the attempt within its step, starting at 1
+   * @param status the terminal status of the build
+   */
+  static void record(Run<?, ?> run, String buildId, int number, String status) {
+    BuildAttemptsAction action;
+    synchronized (BuildAttemptsAction.class) {
+      action = run.getAction(BuildAttemptsAction.class);
+      if (action == null) {
+        action = new BuildAttemptsAction();
+        run.addAction(action);
+      }
+    }
+    action.add(new Attempt(buildId, number, status));
+  }
+}
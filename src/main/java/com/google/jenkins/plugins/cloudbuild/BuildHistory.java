@@ -0,0 +1,302 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.client.util.DateTime;
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildStep;
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.api.services.cloudbuild.v1.model.StorageSource;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import hudson.Util;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers how long recent successful builds of each build request took, on which machine type,
+ * how long each of their steps took and how large their source was, for
+ * {@link CloudBuildAutoTune} to size later builds of the same request.
+ * <p>
+ * Builds are grouped by a fingerprint of their steps (see {@link #fingerprint(String, String)}),
+ * so that builds of different revisions or with different options share their history. The
+ * history is saved to disk; only the last {@link #MAX_SAMPLES} builds of the most recently used
+ * {@link #MAX_FINGERPRINTS} requests are kept.
+ */
+public final class BuildHistory {
+  private static final Logger LOGGER = Logger.getLogger(BuildHistory.class.getName());
+
+  static final int MAX_FINGERPRINTS = 1000;
+  static final int MAX_SAMPLES = 10;
+
+  /** The fields of a completed build needed to record it. */
+  static final String FIELDS = "status,startTime,finishTime,options,steps(timing)";
+
+  /** The machine type that a build runs on if its request does not name one. */
+  static final String DEFAULT_MACHINE_TYPE = "UNSPECIFIED";
+
+  private static final BuildHistory INSTANCE = new BuildHistory();
+
+  public static BuildHistory get() {
+    return INSTANCE;
+  }
+
+  /** The outcome of a single successful build. */
+  public static final class Sample implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String machineType;
+    private final long durationSeconds;
+    private final ArrayList<Long> stepSeconds;
+    private final long sourceBytes;
+    private final long recordedAt;
+
+    Sample(String machineType, long durationSeconds, List<Long> stepSeconds, long sourceBytes,
+        long recordedAt) {
+      this.machineType = machineType;
+      this.durationSeconds = durationSeconds;
+      this.stepSeconds = new ArrayList<>(stepSeconds);
+      this.sourceBytes = sourceBytes;
+      this.recordedAt = recordedAt;
+    }
+
+    public String getMachineType() {
+      return machineType;
+    }
+
+    /** Returns the time from when the build started until it finished. */
+    public long getDurationSeconds() {
+      return durationSeconds;
+    }
+
+    /** Returns how long each step of the build ran, in the order of the steps. */
+    public List<Long> getStepSeconds() {
+      return Collections.unmodifiableList(stepSeconds);
+    }
+
+    /** Returns the time spent running steps, which is at most the duration of the build. */
+    public long getTotalStepSeconds() {
+      long total = 0;
+      for (long seconds : stepSeconds) {
+        total += seconds;
+      }
+      return Math.min(total, durationSeconds);
+    }
+
+    /** Returns the size of the build's source archive, or -1 if it is not known. */
+    public long getSourceBytes() {
+      return sourceBytes;
+    }
+
+    /** Returns when the build was recorded, in milliseconds since the epoch. */
+    public long getRecordedAt() {
+      return recordedAt;
+    }
+  }
+
+  /** The samples by fingerprint, from least to most recently used. */
+  private final LinkedHashMap<String, ArrayList<Sample>> samples =
+      new LinkedHashMap<>(16, 0.75f, true);
+  private boolean loaded;
+
+  BuildHistory() {}
+
+  private XmlFile getConfigFile() {
+    return new XmlFile(
+        new File(Jenkins.getInstance().getRootDir(), BuildHistory.class.getName() + ".xml"));
+  }
+
+  @SuppressWarnings("unchecked")
+  private synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    XmlFile file = getConfigFile();
+    if (file.exists()) {
+      try {
+        ((Map<?, ?>) file.read()).forEach(
+            (key, list) -> samples.put((String) key, (ArrayList<Sample>) list));
+      } catch (IOException | ClassCastException e) {
+        LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+      }
+    }
+  }
+
+  private synchronized void save() {
+    try {
+      getConfigFile().write(new LinkedHashMap<>(samples));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save the Google Cloud Build history", e);
+    }
+  }
+
+  /**
+   * Computes the fingerprint under which builds of a request are recorded. Only the steps and
+   * other settings that make up the work of the build are included: the options, which
+   * {@link CloudBuildAutoTune} rewrites, as well as the source, substitutions and tags, which
+   * usually change with every revision, are left out.
+   *
+   * @param projectId the project in which the build runs
+   * @param request the YAML or JSON build request
+   * @return a hexadecimal SHA-256 digest of the project and the request
+   * @throws IOException if the request cannot be parsed
+   */
+  static String fingerprint(String projectId, String request) throws IOException {
+    Build build = RequestProcessor.parseBuildRequest(request)
+        .setOptions(null)
+        .setSource(null)
+        .setSubstitutions(null)
+        .setTags(null);
+    String inputs = String.join("\n", projectId, new JacksonFactory().toString(build));
+    try {
+      return Util.toHexString(MessageDigest.getInstance("SHA-256")
+          .digest(inputs.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Returns the machine type that {@code build} runs on. The option is read as a generic field,
+   * since the version of the Cloud Build API client in use may predate it.
+   */
+  static String machineType(Build build) {
+    Object machineType = build.getOptions() != null ? build.getOptions().get("machineType") : null;
+    return machineType != null ? machineType.toString() : DEFAULT_MACHINE_TYPE;
+  }
+
+  /**
+   * Returns the size of a prepared source, if it is an archive in Cloud Storage.
+   *
+   * @param source the source of the build
+   * @param clients the factory to use for accessing Google Cloud Storage
+   * @return the size of the archive in bytes, or -1 if the source is not an archive
+   * @throws IOException if the archive cannot be looked up
+   */
+  static long sourceBytes(@CheckForNull Source source, ClientFactory clients) throws IOException {
+    StorageSource storage = source != null ? source.getStorageSource() : null;
+    if (storage == null) {
+      return -1;
+    }
+    StorageObject object = clients.storage().getObject(storage.getBucket(), storage.getObject());
+    return object != null && object.getSize() != null ? object.getSize().longValue() : -1;
+  }
+
+  /** Returns the time between two RFC 3339 timestamps, or -1 if either is missing. */
+  private static long seconds(@CheckForNull Object start, @CheckForNull Object end) {
+    if (start == null || end == null) {
+      return -1;
+    }
+    long millis = DateTime.parseRfc3339(end.toString()).getValue()
+        - DateTime.parseRfc3339(start.toString()).getValue();
+    return TimeUnit.MILLISECONDS.toSeconds(Math.max(0, millis));
+  }
+
+  /**
+   * Extracts the sample recorded for a completed build.
+   *
+   * @param build the build, with at least the fields in {@link #FIELDS}
+   * @param sourceBytes the size of the build's source archive, or -1 if it is not known
+   * @return the sample, or {@code null} if the build did not succeed or its timing is unknown
+   */
+  @CheckForNull
+  static Sample sample(Build build, long sourceBytes) {
+    if (!"SUCCESS".equals(build.getStatus())) {
+      return null;
+    }
+    long duration = seconds(build.getStartTime(), build.getFinishTime());
+    if (duration < 0) {
+      return null;
+    }
+    List<Long> stepSeconds = new ArrayList<>();
+    if (build.getSteps() != null) {
+      for (BuildStep step : build.getSteps()) {
+        // Read generically, since the version of the client in use may predate step timings.
+        Object timing = step.get("timing");
+        long seconds = timing instanceof Map
+            ? seconds(((Map<?, ?>) timing).get("startTime"), ((Map<?, ?>) timing).get("endTime"))
+            : -1;
+        stepSeconds.add(Math.max(0, seconds));
+      }
+    }
+    return new Sample(machineType(build), duration, stepSeconds, sourceBytes,
+        System.currentTimeMillis());
+  }
+
+  /**
+   * Returns the samples recorded for a request, from oldest to newest.
+   *
+   * @param fingerprint the fingerprint of the request
+   * @return the samples, which may be empty
+   */
+  public synchronized List<Sample> getSamples(String fingerprint) {
+    load();
+    List<Sample> result = samples.get(fingerprint);
+    return result != null ? new ArrayList<>(result) : Collections.emptyList();
+  }
+
+  /**
+   * Records a completed build, if it succeeded.
+   *
+   * @param fingerprint the fingerprint of the build's request
+   * @param cloudBuild the client for the project in which the build ran
+   * @param buildId the ID of the build
+   * @param sourceBytes the size of the build's source archive, or -1 if it is not known
+   * @return the recorded sample, or {@code null} if the build was not recorded
+   * @throws IOException if an I/O error occurs while fetching the build
+   */
+  @CheckForNull
+  public Sample record(String fingerprint, CloudBuildClient cloudBuild, String buildId,
+      long sourceBytes) throws IOException {
+    Build build = cloudBuild.getBuilds(Collections.singleton(buildId), FIELDS).get(buildId);
+    Sample sample = build != null ? sample(build, sourceBytes) : null;
+    if (sample != null) {
+      put(fingerprint, sample);
+    }
+    return sample;
+  }
+
+  synchronized void put(String fingerprint, Sample sample) {
+    load();
+    ArrayList<Sample> list = samples.computeIfAbsent(fingerprint, key -> new ArrayList<>());
+    list.add(sample);
+    while (list.size() > MAX_SAMPLES) {
+      list.remove(0);
+    }
+    while (samples.size() > MAX_FINGERPRINTS) {
+      samples.remove(samples.keySet().iterator().next());
+    }
+    save();
+  }
+}
@@ -0,0 +1,545 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildStep;
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import hudson.model.Run;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Merges small build requests submitted by different steps at about the same time into a single
+ * Cloud Build build, so that the fixed startup overhead of a build is paid once per pack rather
+ * than once per request.
+ * <p>
+ * Requests are only packed together if they are sent with the same credentials to the same
+ * project, with the same source, substitutions, build options, priority class and candidate worker
+ * pools, and consist of nothing but steps and a timeout. A pack takes a single permit from the
+ * {@link SubmissionQueue} and runs in a single worker pool chosen by {@link WorkerPoolRouter}, both
+ * of which are held until every member of the pack has {@link Packed#release() released} them.
+ * <p>
+ * The steps of each request are given ids prefixed with the request's position in the pack (e.g.,
+ * {@code pack2-}) and only wait for steps of the same request, so the requests run in parallel as
+ * independent step groups. Since all steps of a build share {@code /workspace}, a first step
+ * copies the source into a directory of its own for each request (e.g., {@code pack2}), in which
+ * the steps of that request run. Once the packed
+ * build has completed, each step works out the outcome of its own requests' steps with
+ * {@link #memberStatus(Build, String)}.
+ */
+final class BuildPacker {
+  static final long WINDOW_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  /** The maximum number of steps in a build accepted by Cloud Build. */
+  static final int MAX_STEPS = 100;
+  /** The fields of the {@link Build} resource needed to split the outcome of a pack. */
+  static final String STEP_FIELDS = "steps(id,status)";
+  static final String DEFAULT_TIMEOUT = "600s";
+  /** The ID of the step that copies the source into the directory of each request in a pack. */
+  static final String COPY_STEP_ID = "pack-copy";
+  /** The image of the {@link #COPY_STEP_ID} step. */
+  static final String COPY_IMAGE = "busybox";
+
+  /** The fields that a request may set and still be packed with others. */
+  private static final Set<String> PACKABLE_FIELDS =
+      Collections.unmodifiableSet(new HashSet<>(Arrays.asList("steps", "timeout", "options")));
+
+  private static final BuildPacker INSTANCE = new BuildPacker();
+
+  static BuildPacker get() {
+    return INSTANCE;
+  }
+
+  /** The executor on which the windows of packs are timed. */
+  private static volatile ScheduledExecutorService executorService;
+
+  private static synchronized ScheduledExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newScheduledThreadPool(2,
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), BuildPacker.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  /** The executor on which packs are submitted, which may wait for a submission permit. */
+  private static volatile ExecutorService senderService;
+
+  private static synchronized ExecutorService getSenderService() {
+    if (senderService == null) {
+      senderService = Executors.newCachedThreadPool(
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), BuildPacker.class.getCanonicalName() + ".sender"));
+    }
+    return senderService;
+  }
+
+  /**
+   * The submission permit and worker pool of a build, shared by the members of a pack until each
+   * of them has released it.
+   */
+  private static final class Lease {
+    private final SubmissionQueue.Permit permit;
+    @CheckForNull private final String workerPool;
+    private int holders;
+
+    Lease(SubmissionQueue.Permit permit, @CheckForNull String workerPool, int holders) {
+      this.permit = permit;
+      this.workerPool = workerPool;
+      this.holders = holders;
+    }
+
+    /** Takes {@code count} holders off the lease, releasing it once none are left. */
+    void release(int count) {
+      synchronized (this) {
+        if (holders <= 0) {
+          return;
+        }
+        holders -= count;
+        if (holders > 0) {
+          return;
+        }
+      }
+      permit.release();
+      if (workerPool != null) {
+        WorkerPoolRouter.get().release(workerPool);
+      }
+    }
+  }
+
+  /** The build that a request was submitted as, and the prefix of its steps if it was packed. */
+  static final class Packed {
+    private final Build build;
+    @CheckForNull private final String prefix;
+    private final Lease lease;
+    private boolean released;
+
+    Packed(Build build, @CheckForNull String prefix, Lease lease) {
+      this.build = build;
+      this.prefix = prefix;
+      this.lease = lease;
+    }
+
+    Build getBuild() {
+      return build;
+    }
+
+    /** Returns the prefix of the request's step ids, or {@code null} if it was not packed. */
+    @CheckForNull
+    String getPrefix() {
+      return prefix;
+    }
+
+    /** Returns the worker pool in which the build runs, or {@code null} if none was chosen. */
+    @CheckForNull
+    String getWorkerPool() {
+      return lease.workerPool;
+    }
+
+    /**
+     * Stops counting this request against the permit and worker pool of its build. They are
+     * released once every request in the pack has done so. Releasing more than once has no effect.
+     */
+    void release() {
+      synchronized (this) {
+        if (released) {
+          return;
+        }
+        released = true;
+      }
+      lease.release(1);
+    }
+  }
+
+  /** A request waiting to be packed. */
+  private static final class Member {
+    private final CloudBuildClient cloudBuild;
+    private final Build request;
+    private final String requestText;
+    private final Source source;
+    private final Map<String, String> substitutions;
+    private final String stepId;
+    @CheckForNull private final String priority;
+    private final List<String> workerPools;
+    private final Run<?, ?> run;
+    private final PrintStream logger;
+    private final CompletableFuture<Packed> future = new CompletableFuture<>();
+
+    Member(CloudBuildClient cloudBuild, Build request, String requestText, Source source,
+        Map<String, String> substitutions, String stepId, @CheckForNull String priority,
+        List<String> workerPools, Run<?, ?> run, PrintStream logger) {
+      this.cloudBuild = cloudBuild;
+      this.request = request;
+      this.requestText = requestText;
+      this.source = source;
+      this.substitutions = substitutions;
+      this.stepId = stepId;
+      this.priority = priority;
+      this.workerPools = workerPools;
+      this.run = run;
+      this.logger = logger;
+    }
+  }
+
+  private final JsonFactory json = new JacksonFactory();
+  private final Map<String, List<Member>> pending = new HashMap<>();
+
+  BuildPacker() {}
+
+  /**
+   * Returns whether {@code request} may be packed with others: it must consist of nothing but
+   * steps, a timeout and build options.
+   */
+  static boolean isPackable(Build request) {
+    return request.getSteps() != null && !request.getSteps().isEmpty()
+        && PACKABLE_FIELDS.containsAll(request.keySet());
+  }
+
+  /**
+   * Submits a build request, packing it together with compatible requests submitted by other steps
+   * within {@link #WINDOW_MILLIS}. A request that cannot be packed is submitted right away.
+   * Either way, the build is submitted under a permit from the {@link SubmissionQueue} and, if
+   * worker pools are given, in one of them; the caller must {@link Packed#release()} both once the
+   * build is no longer active.
+   *
+   * @param cloudBuild the client through which the request is submitted
+   * @param clientKey identifies the credentials of {@code cloudBuild}; only requests sent with the
+   *     same credentials are packed together
+   * @param request the YAML or JSON request to send
+   * @param source the prepared source to use for the build
+   * @param substitutions the custom substitutions to apply
+   * @param stepId an identifier of the submitting step, unique within {@code run}
+   * @param priority the priority class of the request, or {@code null} for the default class
+   * @param workerPools the worker pools in which the build may run, or an empty list to leave the
+   *     request's own options alone
+   * @param run the Jenkins build submitting the request
+   * @param logger the log of the submitting step
+   * @return the build that the request was submitted as
+   * @throws IOException if the request cannot be parsed or the build cannot be submitted
+   * @throws InterruptedException if interrupted while waiting for the pack to be submitted
+   */
+  Packed submit(CloudBuildClient cloudBuild, String clientKey, String request,
+      @CheckForNull Source source, Map<String, String> substitutions, String stepId,
+      @CheckForNull String priority, List<String> workerPools, Run<?, ?> run, PrintStream logger)
+      throws IOException, InterruptedException {
+    Build parsed = RequestProcessor.parseBuildRequest(request);
+    Member member = new Member(cloudBuild, parsed, request, source, substitutions, stepId,
+        priority, workerPools, run, logger);
+    if (!isPackable(parsed)) {
+      logger.println(Messages.BuildPacker_NotPackable());
+      send(Collections.singletonList(member));
+      return await(member);
+    }
+    String key = String.join("\n", clientKey, cloudBuild.getProjectId(),
+        source != null ? json.toString(source) : "",
+        parsed.getOptions() != null ? json.toString(parsed.getOptions()) : "",
+        json.toString(new TreeMap<>(substitutions)),
+        priority != null ? priority : "", String.join(",", workerPools));
+    synchronized (this) {
+      List<Member> members = pending.get(key);
+      // A pack has one more step, which copies the source for each request.
+      if (members != null && countSteps(members) + parsed.getSteps().size() + 1 > MAX_STEPS) {
+        List<Member> full = pending.remove(key);
+        getSenderService().execute(() -> send(full));
+        members = null;
+      }
+      if (members == null) {
+        List<Member> window = new ArrayList<>();
+        pending.put(key, window);
+        getExecutorService().schedule(
+            () -> flush(key, window), WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+        members = window;
+      }
+      members.add(member);
+    }
+    try {
+      return await(member);
+    } catch (InterruptedException e) {
+      synchronized (this) {
+        List<Member> members = pending.get(key);
+        if (members != null) {
+          members.remove(member);
+        }
+      }
+      // If the pack was already being sent, give up this member's share of it once it has been.
+      member.future.thenAccept(Packed::release);
+      throw e;
+    }
+  }
+
+  /** Waits for the build that {@code member} is submitted as. */
+  private static Packed await(Member member) throws IOException, InterruptedException {
+    try {
+      return member.future.get();
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof InterruptedException) {
+        InterruptedIOException ex = new InterruptedIOException();
+        ex.initCause(cause);
+        throw ex;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  private static int countSteps(List<Member> members) {
+    return members.stream().mapToInt(m -> m.request.getSteps().size()).sum();
+  }
+
+  /**
+   * Submits the requests collected in {@code members} under {@code key}, unless they have already
+   * been sent because the pack was full. The list is compared by identity, so that the window of a
+   * pack sent early does not cut short the window of the next pack collected under the same key.
+   */
+  private void flush(String key, List<Member> members) {
+    synchronized (this) {
+      if (pending.get(key) != members) {
+        return;
+      }
+      pending.remove(key);
+    }
+    if (!members.isEmpty()) {
+      getSenderService().execute(() -> send(members));
+    }
+  }
+
+  /** Returns the prefix given to the step ids of the request at {@code index} within a pack. */
+  static String prefix(int index) {
+    return directory(index) + "-";
+  }
+
+  /** Returns the directory of {@code /workspace} in which the request at {@code index} runs. */
+  static String directory(int index) {
+    return String.format("pack%d", index);
+  }
+
+  /**
+   * Submits {@code members} as a single build, under a single permit and in a single worker pool.
+   */
+  private void send(List<Member> members) {
+    Member first = members.get(0);
+    Lease lease = null;
+    try {
+      SubmissionQueue.Permit permit = SubmissionQueue.get().acquire(
+          first.cloudBuild.getProjectId(), first.run.getParent().getFullName(), first.priority,
+          first.logger);
+      String workerPool = null;
+      try {
+        if (!first.workerPools.isEmpty()) {
+          workerPool = WorkerPoolRouter.get().acquire(first.workerPools, first.logger);
+        }
+      } catch (IOException | RuntimeException e) {
+        permit.release();
+        throw e;
+      }
+      lease = new Lease(permit, workerPool, members.size());
+      if (members.size() == 1) {
+        String request = workerPool != null
+            ? RequestProcessor.setWorkerPool(first.requestText, workerPool) : first.requestText;
+        first.future.complete(new Packed(first.cloudBuild.submitBuild(
+            request, first.source, first.substitutions, first.stepId), null, lease));
+        return;
+      }
+      Build merged = merge(members.stream().map(m -> m.request).collect(Collectors.toList()));
+      String request = json.toString(merged);
+      if (workerPool != null) {
+        request = RequestProcessor.setWorkerPool(request, workerPool);
+      }
+      // The pack gets its own step ID, so that each member can still resubmit its request alone.
+      Build build = first.cloudBuild.submitBuild(request, first.source,
+          first.substitutions, "pack-" + UUID.randomUUID().toString());
+      for (int i = 0; i < members.size(); i++) {
+        Member member = members.get(i);
+        if (member != first) {
+          member.run.addAction(new BuildLogAction(build.getLogUrl()));
+        }
+        member.logger.println(Messages.BuildPacker_Packed(
+            build.getId(), members.size() - 1, prefix(i)));
+        member.future.complete(new Packed(build, prefix(i), lease));
+      }
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      if (lease != null) {
+        lease.release(members.size());
+      }
+      for (Member member : members) {
+        member.future.completeExceptionally(e);
+      }
+    }
+  }
+
+  /**
+   * Merges build requests into a single build in which the steps of each request only wait for
+   * steps of the same request, and run in a copy of the source of their own.
+   *
+   * @param requests the requests to merge, each of which must be {@link #isPackable(Build)}
+   * @return the merged build, whose timeout is the longest of the requests' timeouts
+   */
+  static Build merge(List<Build> requests) {
+    List<String> directories = new ArrayList<>();
+    for (int i = 0; i < requests.size(); i++) {
+      directories.add(directory(i));
+    }
+    // The source is copied aside first, in case it has a directory with the same name as a copy.
+    List<BuildStep> steps = new ArrayList<>();
+    steps.add(new BuildStep()
+        .setId(COPY_STEP_ID)
+        .setName(COPY_IMAGE)
+        .setEntrypoint("sh")
+        .setArgs(Arrays.asList("-c", String.format(
+            "set -e; cp -a . /tmp/source; for d in %s; do mkdir -p \"$d\"; "
+                + "cp -a /tmp/source/. \"$d\"/; done",
+            String.join(" ", directories)))));
+    double timeoutSeconds = 0;
+    for (int i = 0; i < requests.size(); i++) {
+      Build request = requests.get(i);
+      String prefix = prefix(i);
+      String directory = directories.get(i);
+      Map<String, String> ids = new LinkedHashMap<>();
+      List<String> previous = new ArrayList<>();
+      List<BuildStep> requestSteps = request.getSteps();
+      for (int j = 0; j < requestSteps.size(); j++) {
+        BuildStep step = requestSteps.get(j).clone();
+        String id = prefix + (step.getId() != null ? step.getId() : "step" + j);
+        List<String> waitFor = new ArrayList<>();
+        if (step.getWaitFor() == null || step.getWaitFor().isEmpty()) {
+          // By default a step waits for all earlier steps, which now include other requests'.
+          waitFor.addAll(previous.isEmpty() ? Collections.singletonList(COPY_STEP_ID) : previous);
+        } else {
+          for (String dependency : step.getWaitFor()) {
+            // A step that starts right away still needs the copy of the source.
+            waitFor.add(dependency.equals("-")
+                ? COPY_STEP_ID : ids.getOrDefault(dependency, dependency));
+          }
+        }
+        if (step.getId() != null) {
+          ids.put(step.getId(), id);
+        }
+        String dir = step.getDir();
+        if (dir == null || dir.isEmpty()) {
+          dir = directory;
+        } else if (!dir.startsWith("/")) {
+          dir = directory + "/" + dir;
+        }
+        steps.add(step.setId(id).setWaitFor(waitFor).setDir(dir));
+        previous.add(id);
+      }
+      timeoutSeconds = Math.max(timeoutSeconds,
+          parseSeconds(request.getTimeout() != null ? request.getTimeout() : DEFAULT_TIMEOUT));
+    }
+    return new Build()
+        .setSteps(steps)
+        .setOptions(requests.get(0).getOptions())
+        .setTimeout(String.format("%ds", (long) Math.ceil(timeoutSeconds)));
+  }
+
+  /** Parses a duration such as {@code 600s} or {@code 3.5s}. */
+  private static double parseSeconds(String duration) {
+    String seconds = duration.trim();
+    if (seconds.endsWith("s")) {
+      seconds = seconds.substring(0, seconds.length() - 1);
+    }
+    try {
+      return Double.parseDouble(seconds);
+    } catch (NumberFormatException e) {
+      return parseSeconds(DEFAULT_TIMEOUT);
+    }
+  }
+
+  /**
+   * Works out the outcome of one request within a packed build.
+   *
+   * @param build the packed build, with at least {@link #STEP_FIELDS} set
+   * @param prefix the prefix of the request's step ids
+   * @return {@code SUCCESS} if all of the request's steps succeeded, the status of the first of its
+   *     steps that failed, or {@code CANCELLED} if its steps were stopped because another request
+   *     in the pack failed
+   */
+  static String memberStatus(Build build, String prefix) {
+    boolean succeeded = true;
+    for (BuildStep step : build.getSteps() != null
+        ? build.getSteps() : Collections.<BuildStep>emptyList()) {
+      if (step.getId() == null || !step.getId().startsWith(prefix)) {
+        continue;
+      }
+      String status = step.getStatus();
+      if (isFailed(status)) {
+        return status;
+      }
+      succeeded &= "SUCCESS".equals(status);
+    }
+    return succeeded ? "SUCCESS" : "CANCELLED";
+  }
+
+  /**
+   * Determines whether one request within a packed build was stopped only because another request
+   * in the pack failed, so that it may be resubmitted on its own without using up an attempt.
+   *
+   * @param build the packed build, with at least {@link #STEP_FIELDS} set
+   * @param prefix the prefix of the request's step ids
+   * @return {@code true} if the pack failed or timed out because of a step of another request,
+   *     while none of the request's own steps failed
+   */
+  static boolean isCollateral(Build build, String prefix) {
+    if (!"FAILURE".equals(build.getStatus()) && !"TIMEOUT".equals(build.getStatus())) {
+      // In particular, a pack that was cancelled was stopped on purpose.
+      return false;
+    }
+    if (!"CANCELLED".equals(memberStatus(build, prefix))) {
+      return false;
+    }
+    for (BuildStep step : build.getSteps() != null
+        ? build.getSteps() : Collections.<BuildStep>emptyList()) {
+      if (step.getId() != null && !step.getId().startsWith(prefix)
+          && isFailed(step.getStatus())) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  private static boolean isFailed(@CheckForNull String status) {
+    return "FAILURE".equals(status) || "INTERNAL_ERROR".equals(status)
+        || "TIMEOUT".equals(status) || "EXPIRED".equals(status);
+  }
+}
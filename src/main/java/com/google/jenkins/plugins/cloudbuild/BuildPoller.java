@@ -0,0 +1,110 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Collection;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+
+/**
+ * Polls the status of several builds at once on behalf of a single step, so that steps waiting for
+ * many builds make one batch request per poll rather than one request per build.
+ */
+final class BuildPoller {
+  /**
+   * The number of polls in a row that may fail to return a build before it is presumed to be gone
+   * (e.g., because it was deleted, or the credentials lost access to it) and is given the status
+   * {@link #NOT_FOUND}.
+   */
+  static final int MAX_MISSES = 60;
+
+  /** The status recorded for a build that could not be fetched for {@link #MAX_MISSES} polls. */
+  static final String NOT_FOUND = "STATUS_UNKNOWN";
+
+  private BuildPoller() {}
+
+  /** Returns whether {@code status} is the status of a build that has stopped running. */
+  static boolean isComplete(String status) {
+    return status != null && !status.equals("QUEUED") && !status.equals("WORKING");
+  }
+
+  /**
+   * Fetches the status of {@code buildIds}, records it in {@code statuses} and logs any change.
+   *
+   * @param cloudBuild the client for the project in which the builds run
+   * @param buildIds the IDs of the builds to check
+   * @param statuses the last status seen for each build, by build ID, which is updated in place
+   * @param misses the number of polls in a row that did not return each build, by build ID, which
+   *     is updated in place
+   * @param logger the log to which status changes are written
+   * @return the builds that could be fetched, by ID
+   * @throws IOException if an I/O error occurs while communicating with the Cloud Build API
+   */
+  static Map<String, Build> poll(CloudBuildClient cloudBuild, Collection<String> buildIds,
+      Map<String, String> statuses, Map<String, Integer> misses, PrintStream logger)
+      throws IOException {
+    return poll(cloudBuild, buildIds, null, statuses, misses, logger);
+  }
+
+  /**
+   * Fetches the status and some additional fields of {@code buildIds}, records the status in
+   * {@code statuses} and logs any change. A build that is not returned for {@link #MAX_MISSES}
+   * polls in a row while the API is available is recorded as {@link #NOT_FOUND}, so that callers
+   * waiting for it to complete stop waiting.
+   *
+   * @param cloudBuild the client for the project in which the builds run
+   * @param buildIds the IDs of the builds to check
+   * @param fields the fields to fetch in addition to the status, or {@code null} for none
+   * @param statuses the last status seen for each build, by build ID, which is updated in place
+   * @param misses the number of polls in a row that did not return each build, by build ID, which
+   *     is updated in place
+   * @param logger the log to which status changes are written
+   * @return the builds that could be fetched, by ID
+   * @throws IOException if an I/O error occurs while communicating with the Cloud Build API
+   */
+  static Map<String, Build> poll(CloudBuildClient cloudBuild, Collection<String> buildIds,
+      @CheckForNull String fields, Map<String, String> statuses, Map<String, Integer> misses,
+      PrintStream logger) throws IOException {
+    Map<String, Build> builds = cloudBuild.getBuilds(buildIds, fields);
+    // While the API is unavailable, no build can be fetched, but none of them is gone either.
+    boolean available = cloudBuild.isAvailable();
+    for (String buildId : buildIds) {
+      if (builds.containsKey(buildId)) {
+        misses.remove(buildId);
+      } else if (available && misses.merge(buildId, 1, Integer::sum) >= MAX_MISSES) {
+        misses.remove(buildId);
+        statuses.put(buildId, NOT_FOUND);
+        logger.println(Messages.BuildPoller_NotFound(buildId, MAX_MISSES));
+      }
+    }
+    for (Build build : builds.values()) {
+      String status = build.getStatus();
+      if (status.equals(statuses.put(build.getId(), status))) {
+        continue;
+      }
+      logger.println(Messages.BuildPoller_StatusChanged(build.getId(), status));
+      if (isComplete(status) && !status.equals("SUCCESS")) {
+        logger.println(" -> " + build.getStatusDetail());
+        logger.println(Messages.BuildPoller_LogUrl(build.getLogUrl()));
+      }
+    }
+    return builds;
+  }
+}
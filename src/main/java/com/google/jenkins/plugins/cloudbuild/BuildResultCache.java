@@ -0,0 +1,212 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuiltImage;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import hudson.XmlFile;
+import jenkins.model.Jenkins;
+
+/**
+ * Remembers the last successful build for each combination of build request, substitutions and
+ * source contents (see {@link CloudBuildClient#cacheKey(String, Map, String)}), so that a step
+ * whose inputs have already been built can return that build's result instead of submitting a new
+ * one.
+ * <p>
+ * The index is saved to disk, and only the most recently used {@link #MAX_ENTRIES} entries are
+ * kept.
+ */
+public final class BuildResultCache {
+  private static final Logger LOGGER = Logger.getLogger(BuildResultCache.class.getName());
+
+  static final int MAX_ENTRIES = 1000;
+
+  private static final BuildResultCache INSTANCE = new BuildResultCache();
+
+  public static BuildResultCache get() {
+    return INSTANCE;
+  }
+
+  /** The result of a successful build. */
+  public static final class Entry implements Serializable {
+    private static final long serialVersionUID = 1L;
+
+    private final String projectId;
+    private final String buildId;
+    private final String logUrl;
+    private final ArrayList<String> images;
+    private final long recordedAt;
+
+    Entry(String projectId, String buildId, String logUrl, List<String> images, long recordedAt) {
+      this.projectId = projectId;
+      this.buildId = buildId;
+      this.logUrl = logUrl;
+      this.images = new ArrayList<>(images);
+      this.recordedAt = recordedAt;
+    }
+
+    public String getProjectId() {
+      return projectId;
+    }
+
+    public String getBuildId() {
+      return buildId;
+    }
+
+    public String getLogUrl() {
+      return logUrl;
+    }
+
+    /** Returns the images pushed by the build, as {@code name@digest}. */
+    public List<String> getImages() {
+      return Collections.unmodifiableList(images);
+    }
+
+    /** Returns when the build was recorded, in milliseconds since the epoch. */
+    public long getRecordedAt() {
+      return recordedAt;
+    }
+  }
+
+  /** The entries by cache key, from least to most recently used. */
+  private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+  private boolean loaded;
+
+  BuildResultCache() {}
+
+  private XmlFile getConfigFile() {
+    return new XmlFile(
+        new File(Jenkins.getInstance().getRootDir(), BuildResultCache.class.getName() + ".xml"));
+  }
+
+  private synchronized void load() {
+    if (loaded) {
+      return;
+    }
+    loaded = true;
+    XmlFile file = getConfigFile();
+    if (file.exists()) {
+      try {
+        ((Map<?, ?>) file.read()).forEach((key, entry) -> entries.put((String) key, (Entry) entry));
+      } catch (IOException | ClassCastException e) {
+        LOGGER.log(Level.WARNING, "Failed to load " + file, e);
+      }
+    }
+  }
+
+  private synchronized void save() {
+    try {
+      getConfigFile().write(new LinkedHashMap<>(entries));
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to save the Google Cloud Build result cache", e);
+    }
+  }
+
+  /**
+   * Computes the cache key for a build request, if its source can be identified.
+   *
+   * @param cloudBuild the client for the project in which the build would run
+   * @param request the expanded build request
+   * @param substitutions the expanded substitutions
+   * @param input the inputs to the step, whose source is identified
+   * @param context the context of the currently running Jenkins build
+   * @param clients the factory to use for accessing Google Cloud services
+   * @return the cache key, or {@code null} if the result of the build cannot be cached
+   * @throws IOException if an I/O error occurs while identifying the source
+   * @throws InterruptedException if interrupted while identifying the source
+   */
+  @CheckForNull
+  public static String key(CloudBuildClient cloudBuild, String request,
+      Map<String, String> substitutions, CloudBuildInput input, BuildContext context,
+      ClientFactory clients) throws IOException, InterruptedException {
+    String identity = input.getSourceOrDefault().identify(context, clients);
+    if (identity == null) {
+      context.getListener().getLogger().println(Messages.BuildResultCache_Unsupported());
+      return null;
+    }
+    return cloudBuild.cacheKey(request, substitutions, identity);
+  }
+
+  /**
+   * Looks up the last successful build for {@code key}.
+   *
+   * @param key the cache key
+   * @param logger the log to which a hit is reported
+   * @return the cached result, or {@code null} if there is none
+   */
+  @CheckForNull
+  public synchronized Entry lookup(String key, PrintStream logger) {
+    load();
+    Entry entry = entries.get(key);
+    if (entry != null) {
+      logger.println(Messages.BuildResultCache_Hit(entry.getBuildId(), entry.getLogUrl()));
+    }
+    return entry;
+  }
+
+  /**
+   * Records the result of a successful build, fetching the images that it pushed.
+   *
+   * @param key the cache key of the build's inputs
+   * @param cloudBuild the client for the project in which the build ran
+   * @param buildId the ID of the build
+   * @return the recorded entry, or {@code null} if the build could not be fetched
+   * @throws IOException if an I/O error occurs while fetching the build
+   */
+  @CheckForNull
+  public Entry record(String key, CloudBuildClient cloudBuild, String buildId)
+      throws IOException {
+    Build build = cloudBuild.getBuilds(
+        Collections.singleton(buildId), CloudBuildClient.IMAGE_FIELDS).get(buildId);
+    if (build == null || !"SUCCESS".equals(build.getStatus())) {
+      return null;
+    }
+    List<String> images = new ArrayList<>();
+    if (build.getResults() != null && build.getResults().getImages() != null) {
+      for (BuiltImage image : build.getResults().getImages()) {
+        images.add(String.format("%s@%s", image.getName(), image.getDigest()));
+      }
+    }
+    Entry entry = new Entry(cloudBuild.getProjectId(), buildId, build.getLogUrl(), images,
+        System.currentTimeMillis());
+    put(key, entry);
+    return entry;
+  }
+
+  synchronized void put(String key, Entry entry) {
+    load();
+    entries.put(key, entry);
+    while (entries.size() > MAX_ENTRIES) {
+      entries.remove(entries.keySet().iterator().next());
+    }
+    save();
+  }
+}
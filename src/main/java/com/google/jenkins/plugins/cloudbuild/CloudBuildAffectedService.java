@@ -0,0 +1,111 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.jenkins.plugins.cloudbuild.request.CloudBuildRequest;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/**
+ * A named build request within a {@link CloudBuildAffectedStep}, along with the paths in the
+ * workspace whose contents it builds.
+ */
+public class CloudBuildAffectedService extends AbstractDescribableImpl<CloudBuildAffectedService>
+    implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Nonnull
+  private final String name;
+  @Nonnull
+  private final List<String> paths;
+  @Nonnull
+  private final CloudBuildRequest request;
+  @CheckForNull
+  private CloudBuildSource source;
+  @Nonnull
+  private Map<String, String> substitutions = Collections.emptyMap();
+
+  @DataBoundConstructor
+  public CloudBuildAffectedService(@Nonnull String name, @Nonnull List<String> paths,
+      @Nonnull CloudBuildRequest request) {
+    this.name = name;
+    this.paths = new ArrayList<>(paths);
+    this.request = request;
+  }
+
+  @Nonnull
+  public String getName() {
+    return name;
+  }
+
+  /**
+   * Returns the Ant-style patterns of the files within the workspace that affect this build (e.g.,
+   * {@code services/api/**}).
+   */
+  @Nonnull
+  public List<String> getPaths() {
+    return paths;
+  }
+
+  @Nonnull
+  public CloudBuildRequest getRequest() {
+    return request;
+  }
+
+  /** Returns the source for this build, or {@code null} to use the step's source. */
+  @CheckForNull
+  public CloudBuildSource getSource() {
+    return source;
+  }
+
+  @DataBoundSetter
+  public void setSource(@CheckForNull CloudBuildSource source) {
+    this.source = source;
+  }
+
+  /** Returns the substitutions for this build, which take precedence over the step's. */
+  @Nonnull
+  public Map<String, String> getSubstitutions() {
+    return substitutions;
+  }
+
+  @DataBoundSetter
+  public void setSubstitutions(@Nonnull Map<String, String> substitutions) {
+    this.substitutions = new LinkedHashMap<>(substitutions);
+  }
+
+  /** Descriptor for {@link CloudBuildAffectedService}. */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<CloudBuildAffectedService> {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildAffectedService_DisplayName();
+    }
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * A Jenkins build step that builds only the services of a monorepo whose files have changed.
+ * <p>
+ * Each service lists the paths within the workspace that it is built from. The step computes a
+ * digest of the files matching those paths, together with the service's build request and
+ * substitutions, and compares it with the digest recorded for the service's last successful build
+ * in this job (see {@link AffectedBuildsIndex}). The services whose digest has changed are
+ * submitted in parallel; the others are skipped, and reported along with their last successful
+ * build. The step returns a map from the name of each service to its result.
+ */
+public final class CloudBuildAffectedStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Nonnull
+  private final String credentialsId;
+  @Nonnull
+  private final List<CloudBuildAffectedService> services;
+  @CheckForNull
+  private CloudBuildSource source;
+  @Nonnull
+  private Map<String, String> substitutions = Collections.emptyMap();
+
+  @DataBoundConstructor
+  public CloudBuildAffectedStep(
+      @Nonnull String credentialsId, @Nonnull List<CloudBuildAffectedService> services) {
+    this.credentialsId = credentialsId;
+    this.services = new ArrayList<>(services);
+  }
+
+  @Nonnull
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  @Nonnull
+  public List<CloudBuildAffectedService> getServices() {
+    return services;
+  }
+
+  /** Returns the source for the services that do not specify their own. */
+  @CheckForNull
+  public CloudBuildSource getSource() {
+    return source;
+  }
+
+  @DataBoundSetter
+  public void setSource(@CheckForNull CloudBuildSource source) {
+    this.source = source;
+  }
+
+  /** Returns the substitutions shared by all services. */
+  @Nonnull
+  public Map<String, String> getSubstitutions() {
+    return substitutions;
+  }
+
+  @DataBoundSetter
+  public void setSubstitutions(@Nonnull Map<String, String> substitutions) {
+    this.substitutions = new LinkedHashMap<>(substitutions);
+  }
+
+  /**
+   * Checks that the services have valid, unique names, and that each lists at least one path.
+   *
+   * @param services the services to build
+   * @throws AbortException if a service is invalid
+   */
+  static void validate(List<CloudBuildAffectedService> services) throws AbortException {
+    if (services.isEmpty()) {
+      throw new AbortException(Messages.CloudBuildAffectedStep_Empty());
+    }
+    Set<String> names = new HashSet<>();
+    for (CloudBuildAffectedService service : services) {
+      if (!CloudBuildGraphNode.VALID_NAME.matcher(service.getName()).matches()) {
+        throw new AbortException(Messages.CloudBuildAffectedStep_InvalidName(service.getName()));
+      }
+      if (!names.add(service.getName())) {
+        throw new AbortException(Messages.CloudBuildAffectedStep_DuplicateName(service.getName()));
+      }
+      if (service.getPaths().isEmpty()) {
+        throw new AbortException(Messages.CloudBuildAffectedStep_NoPaths(service.getName()));
+      }
+    }
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    validate(services);
+    return new CloudBuildAffectedStepExecution(
+        credentialsId, services, source, substitutions, context);
+  }
+
+  /** Descriptor for {@link CloudBuildAffectedStep}. */
+  @Extension
+  public static class Descriptor extends StepDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildAffectedStep_DisplayName();
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "googleCloudBuildAffected";
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return new HashSet<>(
+          Arrays.asList(EnvVars.class, FilePath.class, Run.class, TaskListener.class));
+    }
+  }
+}
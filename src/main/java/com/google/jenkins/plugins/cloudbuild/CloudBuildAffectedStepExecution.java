@@ -0,0 +1,398 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.jenkins.plugins.cloudbuild.client.BuildTags;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import com.google.jenkins.plugins.cloudbuild.context.PipelineBuildContext;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import com.google.jenkins.plugins.cloudbuild.source.LocalCloudBuildSource;
+import hudson.AbortException;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/** Submits and polls the builds of the affected services of a {@link CloudBuildAffectedStep}. */
+final class CloudBuildAffectedStepExecution extends StepExecution {
+  private static final long serialVersionUID = 1L;
+
+  static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  /** The status reported for a service whose inputs are unchanged since its last good build. */
+  static final String SKIPPED = "SKIPPED";
+  /** The status reported for a service whose build request could not be submitted. */
+  static final String NOT_SUBMITTED = "NOT_SUBMITTED";
+
+  private final String credentialsId;
+  private final List<CloudBuildAffectedService> services;
+  @CheckForNull
+  private final CloudBuildSource source;
+  private final Map<String, String> substitutions;
+  private final String stepId;
+  /** The digest of the inputs of each affected service, by service name. */
+  private final Map<String, String> keys = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The last successful build of each unchanged service, by service name. */
+  private final Map<String, AffectedBuildsIndex.Entry> skipped =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The handle of each affected service's build, by service name. */
+  private final Map<String, CloudBuildHandle> handles =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The reason each affected service that could not be submitted failed, by service name. */
+  private final Map<String, String> errors = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The last status seen for each build, by build ID. */
+  private final Map<String, String> statuses = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** Whether an attempt has been made to submit every affected service. */
+  private volatile boolean submitted;
+  private transient volatile Future<?> task;
+  /** The permits under which the builds of the services count against the concurrency limits. */
+  private transient HeldPermits heldPermits;
+
+  CloudBuildAffectedStepExecution(String credentialsId, List<CloudBuildAffectedService> services,
+      @CheckForNull CloudBuildSource source, Map<String, String> substitutions,
+      StepContext context) {
+    super(context);
+    this.credentialsId = credentialsId;
+    this.services = new ArrayList<>(services);
+    this.source = source;
+    this.substitutions = new LinkedHashMap<>(substitutions);
+    this.stepId = UUID.randomUUID().toString();
+  }
+
+  /** API client for Google Cloud Platform. */
+  private transient volatile ClientFactory clients;
+
+  /** Returns the API client for Google Cloud Platform (recreating it if necessary). */
+  private synchronized ClientFactory getClients() throws IOException, InterruptedException {
+    if (clients == null) {
+      clients = new ClientFactory(
+          getContext().get(Run.class), getContext().get(TaskListener.class), credentialsId);
+    }
+    return clients;
+  }
+
+  /**
+   * The prepared or in-flight sources, so that shared sources are uploaded once while the sources
+   * of other services are uploaded alongside them.
+   */
+  private transient Map<CloudBuildSource, CompletableFuture<Source>> preparedSources;
+
+  private synchronized Map<CloudBuildSource, CompletableFuture<Source>> getPreparedSources() {
+    if (preparedSources == null) {
+      preparedSources = Collections.synchronizedMap(new IdentityHashMap<>());
+    }
+    return preparedSources;
+  }
+
+  @CheckForNull
+  private Source prepare(CloudBuildSource serviceSource, BuildContext context)
+      throws IOException, InterruptedException {
+    Map<CloudBuildSource, CompletableFuture<Source>> sources = getPreparedSources();
+    while (true) {
+      CompletableFuture<Source> mine = new CompletableFuture<>();
+      CompletableFuture<Source> existing = sources.putIfAbsent(serviceSource, mine);
+      if (existing == null) {
+        try {
+          Source prepared = serviceSource.prepare(context, getClients());
+          mine.complete(prepared);
+          return prepared != null ? prepared.clone() : null;
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          // Let the next service that needs the source try again.
+          sources.remove(serviceSource, mine);
+          mine.completeExceptionally(e);
+          throw e;
+        }
+      }
+      try {
+        Source prepared = existing.get();
+        return prepared != null ? prepared.clone() : null;
+      } catch (ExecutionException e) {
+        // The service that was preparing the source failed, and has removed its entry; prepare
+        // the source again.
+      }
+    }
+  }
+
+  private synchronized HeldPermits getHeldPermits() {
+    if (heldPermits == null) {
+      heldPermits = new HeldPermits();
+    }
+    return heldPermits;
+  }
+
+  /** The executor on which services are submitted and polled. */
+  private static volatile ExecutorService executorService;
+
+  private static synchronized ExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newCachedThreadPool(
+          new NamingThreadFactory(new DaemonThreadFactory(),
+              CloudBuildAffectedStepExecution.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  /** Returns the identifier used to tag the build for {@code service}. */
+  private String serviceStepId(CloudBuildAffectedService service) {
+    return String.format("%s-%s", stepId, service.getName());
+  }
+
+  /**
+   * Works out which services are affected, and submits their builds concurrently, each under a
+   * permit from the {@link SubmissionQueue}. The source of each build is only prepared once it is
+   * known to be needed.
+   *
+   * @param poll polls the services submitted so far while the others are being submitted
+   */
+  private void submitAll(HeldPermits.Poll poll) throws IOException, InterruptedException {
+    BuildContext context = new PipelineBuildContext(getContext());
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    cloudBuild.awaitAvailable();
+    FilePath workspace = context.getWorkspace();
+    if (workspace == null) {
+      throw new AbortException(Messages.CloudBuildStepExecution_WorkspaceRequired());
+    }
+    PrintStream logger = getContext().get(TaskListener.class).getLogger();
+    Run<?, ?> run = getContext().get(Run.class);
+    Map<String, AffectedBuildsIndex.Entry> index = AffectedBuildsIndex.load(run.getParent());
+
+    List<Future<?>> futures = new ArrayList<>();
+    for (CloudBuildAffectedService service : services) {
+      CloudBuildInput input = new CloudBuildInput(credentialsId, service.getRequest());
+      Map<String, String> merged = new LinkedHashMap<>(substitutions);
+      merged.putAll(service.getSubstitutions());
+      input.setSubstitutions(merged);
+      String request = service.getRequest().expand(context);
+      Map<String, String> serviceSubstitutions = input.getSubstitutionMap(context);
+      String digest =
+          LocalCloudBuildSource.digest(workspace, String.join(",", service.getPaths()));
+      String key = cloudBuild.cacheKey(request, serviceSubstitutions, "paths:" + digest);
+
+      AffectedBuildsIndex.Entry last =
+          AffectedBuildsIndex.unchanged(index, service.getName(), key);
+      if (last != null) {
+        skipped.put(service.getName(), last);
+        logger.println(
+            Messages.CloudBuildAffectedStep_Unchanged(service.getName(), last.getBuildId()));
+        continue;
+      }
+      keys.put(service.getName(), key);
+      CloudBuildSource serviceSource = service.getSource() != null ? service.getSource() : source;
+      futures.add(getExecutorService().submit(() -> {
+        SubmissionQueue.Permit permit = null;
+        try {
+          permit = HeldPermits.acquire(cloudBuild, run, null, logger);
+          Build build = cloudBuild.submitBuild(
+              request,
+              prepare(serviceSource != null ? serviceSource : CloudBuildSource.NULL, context),
+              serviceSubstitutions,
+              serviceStepId(service));
+          getHeldPermits().hold(build.getId(), permit);
+          handles.put(service.getName(), new CloudBuildHandle(
+              credentialsId, cloudBuild.getProjectId(), build.getId(), build.getLogUrl()));
+          logger.println(
+              Messages.CloudBuildAffectedStep_Submitted(service.getName(), build.getId()));
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          if (permit != null) {
+            permit.release();
+          }
+          errors.put(service.getName(), e.getMessage());
+        }
+      }));
+    }
+    HeldPermits.awaitSubmissions(futures, poll, POLL_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Finds the builds for affected services that may have been submitted before Jenkins restarted,
+   * but whose handles were not saved.
+   */
+  private void recoverAll() throws IOException, InterruptedException {
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    Run<?, ?> run = getContext().get(Run.class);
+    for (CloudBuildAffectedService service : services) {
+      String name = service.getName();
+      if (!keys.containsKey(name) || handles.containsKey(name) || errors.containsKey(name)) {
+        continue;
+      }
+      Build existing =
+          cloudBuild.findBuildByTag(BuildTags.submission(run, serviceStepId(service), 1));
+      if (existing == null) {
+        errors.put(name, Messages.CloudBuildStepExecution_NotSubmittedBeforeRestart());
+      } else {
+        handles.put(name, new CloudBuildHandle(
+            credentialsId, cloudBuild.getProjectId(), existing.getId(), existing.getLogUrl()));
+      }
+    }
+  }
+
+  /** Returns the IDs of the builds that have not completed yet. */
+  private List<String> getPendingBuildIds() {
+    synchronized (handles) {
+      return handles.values().stream()
+          .map(CloudBuildHandle::getBuildId)
+          .filter(buildId -> !BuildPoller.isComplete(statuses.get(buildId)))
+          .collect(Collectors.toList());
+    }
+  }
+
+  /** Records the builds of the affected services that succeeded as their last good builds. */
+  private void recordSuccesses() throws IOException, InterruptedException {
+    Run<?, ?> run = getContext().get(Run.class);
+    synchronized (handles) {
+      handles.forEach((name, handle) -> {
+        if ("SUCCESS".equals(statuses.get(handle.getBuildId()))) {
+          AffectedBuildsIndex.record(run.getParent(), name, new AffectedBuildsIndex.Entry(
+              keys.get(name), handle.getProjectId(), handle.getBuildId(), handle.getLogUrl(),
+              System.currentTimeMillis()));
+        }
+      });
+    }
+  }
+
+  /** Returns the result of each service, by service name, in the order in which they were given. */
+  private LinkedHashMap<String, Map<String, Object>> getResults() {
+    LinkedHashMap<String, Map<String, Object>> results = new LinkedHashMap<>();
+    for (CloudBuildAffectedService service : services) {
+      String name = service.getName();
+      AffectedBuildsIndex.Entry last = skipped.get(name);
+      CloudBuildHandle handle = handles.get(name);
+      Map<String, Object> result;
+      if (last != null) {
+        result = new CloudBuildHandle(
+            credentialsId, last.getProjectId(), last.getBuildId(), last.getLogUrl()).toMap();
+        result.put("status", SKIPPED);
+      } else if (handle == null) {
+        result = new LinkedHashMap<>();
+        result.put("status", NOT_SUBMITTED);
+        result.put("error", errors.get(name));
+      } else {
+        result = handle.toMap();
+        result.put("status", statuses.get(handle.getBuildId()));
+      }
+      result.put("skipped", last != null);
+      results.put(name, result);
+    }
+    return results;
+  }
+
+  /**
+   * Starts the thread to submit the affected services (if necessary) and poll Google Cloud Build.
+   *
+   * @param resumed whether this step is being resumed after Jenkins restarted
+   */
+  private void startPolling(boolean resumed) {
+    task = getExecutorService().submit(() -> {
+      try {
+        PrintStream logger = getContext().get(TaskListener.class).getLogger();
+        CloudBuildClient cloudBuild = getClients().cloudBuild();
+        Map<String, Integer> misses = new HashMap<>();
+        HeldPermits.Poll poll = () -> {
+          List<String> buildIds = getPendingBuildIds();
+          if (!buildIds.isEmpty()) {
+            BuildPoller.poll(cloudBuild, buildIds, statuses, misses, logger);
+          }
+          getHeldPermits().releaseCompleted(statuses);
+        };
+        if (!submitted) {
+          if (resumed) {
+            recoverAll();
+          } else {
+            submitAll(poll);
+          }
+          submitted = true;
+        }
+        List<String> pending = getPendingBuildIds();
+        while (!pending.isEmpty()) {
+          poll.poll();
+          pending = getPendingBuildIds();
+          if (!pending.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+          }
+        }
+        recordSuccesses();
+
+        LinkedHashMap<String, Map<String, Object>> results = getResults();
+        List<String> failed = results.entrySet().stream()
+            .filter(entry -> !"SUCCESS".equals(entry.getValue().get("status"))
+                && !SKIPPED.equals(entry.getValue().get("status")))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+        if (!failed.isEmpty()) {
+          throw new AbortException(
+              Messages.CloudBuildAffectedStep_BuildsFailed(String.join(", ", failed)));
+        }
+        getContext().onSuccess(results);
+      } catch (Exception e) {
+        getContext().onFailure(e);
+      } finally {
+        getHeldPermits().releaseAll();
+      }
+    });
+  }
+
+  @Override
+  public boolean start() throws Exception {
+    for (CloudBuildAffectedService service : services) {
+      CloudBuildInput input = new CloudBuildInput(credentialsId, service.getRequest());
+      input.setSource(service.getSource() != null ? service.getSource() : source);
+      CloudBuildStepExecution.checkWorkspace(input, getContext());
+    }
+    startPolling(false);
+    return false;
+  }
+
+  @Override
+  public void stop(@Nonnull Throwable throwable) throws Exception {
+    if (task != null) {
+      task.cancel(true);
+    } else {
+      getContext().onFailure(throwable);
+    }
+  }
+
+  @Override
+  public void onResume() {
+    startPolling(true);
+  }
+}
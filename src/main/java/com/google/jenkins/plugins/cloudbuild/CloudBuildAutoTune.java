@@ -0,0 +1,272 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.math.BigDecimal;
+import java.math.RoundingMode;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildOptions;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Rewrites the machine type and disk size of a build request before it is submitted, based on the
+ * earlier builds of the same request recorded in {@link BuildHistory}: the machine type becomes
+ * the smallest one predicted to finish the build within a target duration, and the disk size one
+ * that fits the source.
+ * <p>
+ * The duration on a machine type that the request has already run on is the median of those
+ * builds. For other machine types, it is extrapolated from the builds on the machine type with the
+ * nearest number of vCPUs, assuming that only the time spent running steps depends on the machine,
+ * and that it shrinks with the square root of the number of vCPUs.
+ */
+public final class CloudBuildAutoTune extends AbstractDescribableImpl<CloudBuildAutoTune>
+    implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final int DEFAULT_TARGET_SECONDS = 600;
+
+  /** The machine types that a build may be moved to, from smallest to largest. */
+  static final List<String> MACHINE_TYPES =
+      Arrays.asList(BuildHistory.DEFAULT_MACHINE_TYPE, "E2_HIGHCPU_8", "E2_HIGHCPU_32");
+
+  /** The number of vCPUs of each machine type that builds may have been recorded on. */
+  private static final Map<String, Integer> VCPUS = new HashMap<>();
+
+  static {
+    VCPUS.put("E2_MEDIUM", 1);
+    VCPUS.put(BuildHistory.DEFAULT_MACHINE_TYPE, 2);
+    VCPUS.put("N1_HIGHCPU_8", 8);
+    VCPUS.put("E2_HIGHCPU_8", 8);
+    VCPUS.put("N1_HIGHCPU_32", 32);
+    VCPUS.put("E2_HIGHCPU_32", 32);
+  }
+
+  /** How the time spent running steps scales with the number of vCPUs. */
+  static final double SCALING = 0.5;
+
+  /** The disk size that builds get if they do not ask for more. */
+  static final long DEFAULT_DISK_GB = 100;
+  static final long MAX_DISK_GB = 2000;
+  /** The disk space allowed for each byte of the source archive, once unpacked and built. */
+  static final long DISK_PER_SOURCE_BYTE = 10;
+  private static final long GB = 1L << 30;
+
+  private int targetSeconds = DEFAULT_TARGET_SECONDS;
+
+  @DataBoundConstructor
+  public CloudBuildAutoTune() {}
+
+  /** Returns the duration that builds should finish within. */
+  public int getTargetSeconds() {
+    return targetSeconds;
+  }
+
+  @DataBoundSetter
+  public void setTargetSeconds(int targetSeconds) {
+    this.targetSeconds = targetSeconds;
+  }
+
+  /** Returns the median of {@code values}, which must not be empty. */
+  private static long median(List<Long> values) {
+    List<Long> sorted = new ArrayList<>(values);
+    Collections.sort(sorted);
+    return sorted.get(sorted.size() / 2);
+  }
+
+  /**
+   * Predicts how long a build will take on {@code machineType}.
+   *
+   * @param samples the earlier builds of the same request
+   * @param machineType the machine type to predict the duration on
+   * @return the predicted duration in seconds, or -1 if there are no builds to predict it from
+   */
+  static long predict(List<BuildHistory.Sample> samples, String machineType) {
+    List<Long> same = new ArrayList<>();
+    for (BuildHistory.Sample sample : samples) {
+      if (sample.getMachineType().equals(machineType)) {
+        same.add(sample.getDurationSeconds());
+      }
+    }
+    if (!same.isEmpty()) {
+      return median(same);
+    }
+    Integer vcpus = VCPUS.get(machineType);
+    if (vcpus == null) {
+      return -1;
+    }
+    // Extrapolate from the builds on the machine type that is closest in size.
+    int nearest = -1;
+    for (BuildHistory.Sample sample : samples) {
+      Integer sampleVcpus = VCPUS.get(sample.getMachineType());
+      if (sampleVcpus != null
+          && (nearest < 0 || Math.abs(sampleVcpus - vcpus) < Math.abs(nearest - vcpus))) {
+        nearest = sampleVcpus;
+      }
+    }
+    List<Long> predicted = new ArrayList<>();
+    for (BuildHistory.Sample sample : samples) {
+      Integer sampleVcpus = VCPUS.get(sample.getMachineType());
+      if (sampleVcpus != null && sampleVcpus == nearest) {
+        long steps = sample.getTotalStepSeconds();
+        double factor = Math.pow((double) sampleVcpus / vcpus, SCALING);
+        predicted.add(sample.getDurationSeconds() - steps + Math.round(steps * factor));
+      }
+    }
+    return predicted.isEmpty() ? -1 : median(predicted);
+  }
+
+  /**
+   * Chooses the smallest machine type predicted to finish a build within {@code targetSeconds},
+   * or the one predicted to be fastest if none does.
+   *
+   * @param samples the earlier builds of the same request
+   * @param targetSeconds the duration that the build should finish within
+   * @return the machine type, or {@code null} if there are no builds to predict from
+   */
+  @CheckForNull
+  static String chooseMachineType(List<BuildHistory.Sample> samples, long targetSeconds) {
+    String fastest = null;
+    long fastestSeconds = Long.MAX_VALUE;
+    for (String machineType : MACHINE_TYPES) {
+      long seconds = predict(samples, machineType);
+      if (seconds < 0) {
+        continue;
+      }
+      if (seconds <= targetSeconds) {
+        return machineType;
+      }
+      if (seconds < fastestSeconds) {
+        fastest = machineType;
+        fastestSeconds = seconds;
+      }
+    }
+    return fastest;
+  }
+
+  /**
+   * Returns the disk size that fits a source of {@code sourceBytes}.
+   *
+   * @param sourceBytes the size of the source archive
+   * @return the disk size in GB, or {@code null} if the default disk size fits the source
+   */
+  @CheckForNull
+  static Long diskSizeGb(long sourceBytes) {
+    long needed = (sourceBytes * DISK_PER_SOURCE_BYTE + GB - 1) / GB;
+    return needed <= DEFAULT_DISK_GB ? null : Math.min(needed, MAX_DISK_GB);
+  }
+
+  /**
+   * Rewrites the machine type and disk size of a build request. The machine type of a build that
+   * runs in a private pool is left alone, since the pool decides it. The disk is only ever grown.
+   *
+   * @param request the YAML or JSON build request
+   * @param samples the earlier builds of the same request
+   * @param sourceBytes the size of the source archive, or -1 if it is not known
+   * @param workerPool whether the build is to run in a worker pool that has yet to be named in
+   *     {@code request}
+   * @param logger the log to which the chosen values are written
+   * @return the rewritten request as JSON, or {@code request} if nothing is known to size it by
+   * @throws IOException if the request cannot be parsed, or asks for a disk size that is not a
+   *     number
+   */
+  String apply(String request, List<BuildHistory.Sample> samples, long sourceBytes,
+      boolean workerPool, PrintStream logger) throws IOException {
+    if (sourceBytes < 0) {
+      // The source is not an archive, or could not be looked up; go by the largest seen before.
+      for (BuildHistory.Sample sample : samples) {
+        sourceBytes = Math.max(sourceBytes, sample.getSourceBytes());
+      }
+    }
+    Build build = RequestProcessor.parseBuildRequest(request);
+    BuildOptions options = build.getOptions() != null ? build.getOptions() : new BuildOptions();
+    // Cloud Build rejects a machine type for a build that names a worker pool.
+    String machineType = !workerPool && RequestProcessor.getWorkerPool(build) == null
+        ? chooseMachineType(samples, targetSeconds) : null;
+    if (machineType == null && sourceBytes < 0) {
+      logger.println(Messages.CloudBuildAutoTune_NoHistory());
+      return request;
+    }
+    // Set generically, since the version of the client in use may predate these options.
+    if (machineType != null) {
+      options.set("machineType", machineType);
+    }
+    Object requested = options.get("diskSizeGb");
+    long diskSizeGb = requested != null ? parseDiskSizeGb(requested) : DEFAULT_DISK_GB;
+    Long needed = sourceBytes >= 0 ? diskSizeGb(sourceBytes) : null;
+    if (needed != null && needed > diskSizeGb) {
+      diskSizeGb = needed;
+      options.set("diskSizeGb", diskSizeGb);
+    }
+    logger.println(Messages.CloudBuildAutoTune_Tuned(samples.size(),
+        machineType != null ? machineType : BuildHistory.machineType(build),
+        diskSizeGb, machineType != null ? predict(samples, machineType) : "?", targetSeconds));
+    return new JacksonFactory().toString(build.setOptions(options));
+  }
+
+  /**
+   * Reads the disk size that a build request asks for. Numbers that are not integers (e.g.,
+   * {@code 100.0}, as some YAML writers emit) and numbers given as strings are accepted, and
+   * rounded up.
+   *
+   * @param requested the value of {@code options.diskSizeGb} in the build request
+   * @return the requested disk size, in GB
+   * @throws AbortException if the value is not a number
+   */
+  static long parseDiskSizeGb(Object requested) throws AbortException {
+    try {
+      return new BigDecimal(requested.toString().trim())
+          .setScale(0, RoundingMode.CEILING).longValueExact();
+    } catch (ArithmeticException | NumberFormatException e) {
+      throw new AbortException(Messages.CloudBuildAutoTune_InvalidDiskSize(requested));
+    }
+  }
+
+  /** Descriptor for {@link CloudBuildAutoTune}. */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<CloudBuildAutoTune> {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildAutoTune_DisplayName();
+    }
+
+    public FormValidation doCheckTargetSeconds(@QueryParameter int value) {
+      if (value < 1) {
+        return FormValidation.error(Messages.CloudBuildGlobalConfiguration_MustBePositive());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
@@ -14,16 +14,27 @@
 package com.google.jenkins.plugins.cloudbuild;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
 
+import javax.annotation.CheckForNull;
 import javax.annotation.Nonnull;
 
 import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
 
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.RepoSource;
 import com.google.api.services.cloudbuild.v1.model.Source;
 import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
 import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
 import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
 import com.google.jenkins.plugins.cloudbuild.context.FreeStyleBuildContext;
+import com.google.jenkins.plugins.cloudbuild.request.TriggerCloudBuildRequest;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.AbortException;
 import hudson.Extension;
 import hudson.Launcher;
 import hudson.model.AbstractBuild;
@@ -36,6 +47,7 @@ import hudson.tasks.Builder;
 public class CloudBuildBuilder extends Builder {
   @Nonnull
   private final CloudBuildInput input;
+  private boolean async;
 
   @DataBoundConstructor
   public CloudBuildBuilder(@Nonnull CloudBuildInput input) {
@@ -47,18 +59,144 @@ public class CloudBuildBuilder extends Builder {
     return input;
   }
 
+  /**
+   * Returns whether the Jenkins build continues as soon as the build request has been submitted,
+   * rather than holding its executor until the Google Cloud Build build completes. The status of
+   * the build is then tracked by {@link AsyncBuildTracker} and shown on the Jenkins build's page.
+   */
+  public boolean isAsync() {
+    return async;
+  }
+
+  @DataBoundSetter
+  public void setAsync(boolean async) {
+    this.async = async;
+  }
+
+  /**
+   * Fails if {@link #input} sets options that only the {@code googleCloudBuild} pipeline step
+   * supports, rather than silently ignoring them. Such options are hidden from the configuration
+   * page of this builder, but may still be set through the job's XML.
+   */
+  private void checkPipelineOnlyOptions() throws AbortException {
+    List<String> options = new ArrayList<>();
+    if (input.isPack()) {
+      options.add("pack");
+    }
+    if (input.getPool() != null) {
+      options.add("pool");
+    }
+    if (!input.getWorkerPoolList().isEmpty()) {
+      options.add("workerPools");
+    }
+    if (input.getAutoTune() != null) {
+      options.add("autoTune");
+    }
+    CloudBuildSource source = input.getSource();
+    if (source != null && source.getDescriptor().isPipelineOnly()) {
+      options.add("source");
+    }
+    if (!options.isEmpty()) {
+      throw new AbortException(
+          Messages.CloudBuildBuilder_PipelineOnlyOptions(String.join(", ", options)));
+    }
+  }
+
   @Override
   public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
       throws IOException, InterruptedException {
+    checkPipelineOnlyOptions();
+    if (async) {
+      input.checkWaitOnlyOptions();
+    }
     BuildContext context = new FreeStyleBuildContext(build, listener);
     ClientFactory clients = new ClientFactory(build, listener, input.getCredentialsId());
-    String finalRequest = input.getRequest().expand(context);
-    Source buildSource = input.getSourceOrDefault().prepare(context, clients);
     CloudBuildClient cloudBuild = clients.cloudBuild();
-    String buildId = cloudBuild.sendBuildRequest(
-        finalRequest, buildSource, input.getSubstitutionMap(context));
-    cloudBuild.waitForSuccess(buildId);
-    return true;
+    cloudBuild.awaitAvailable();
+    TriggerCloudBuildRequest trigger = input.getTrigger();
+    String finalRequest = trigger == null ? input.getRequest().expand(context) : null;
+    Map<String, String> substitutions = input.getSubstitutionMap(context);
+    String key = null;
+    // The inputs of a trigger's build are only known to Cloud Build.
+    if (trigger == null && (input.isCache() || input.isCoalesce())) {
+      key = BuildResultCache.key(cloudBuild, finalRequest, substitutions, input, context, clients);
+    }
+    if (key != null && input.isCache() && !input.isForceRebuild()) {
+      BuildResultCache.Entry cached = BuildResultCache.get().lookup(key, listener.getLogger());
+      if (cached != null) {
+        build.addAction(new BuildLogAction(cached.getLogUrl()));
+        return true;
+      }
+    }
+    String flightKey = null;
+    if (key != null && input.isCoalesce() && !async) {
+      Build shared = InFlightBuilds.get().attachOrClaim(key, build, listener.getLogger());
+      if (shared != null) {
+        build.addAction(new BuildLogAction(shared.getLogUrl()));
+        waitAndCache(cloudBuild, build, shared.getId(), null, input.isCache() ? key : null,
+            listener);
+        return true;
+      }
+      flightKey = key;
+    }
+    SubmissionQueue.Permit permit = null;
+    try {
+      permit = SubmissionQueue.get().acquire(cloudBuild.getProjectId(),
+          build.getParent().getFullName(), input.getPriority(), listener.getLogger());
+      CloudBuildRetryPolicy.Submission submission;
+      if (trigger != null) {
+        RepoSource revision = trigger.getRevision(context, substitutions);
+        submission = n -> cloudBuild.runTrigger(trigger.getTriggerId(), revision);
+      } else {
+        Source buildSource = input.getSourceOrDefault().prepare(context, clients);
+        String stepId = UUID.randomUUID().toString();
+        submission =
+            n -> cloudBuild.submitBuild(finalRequest, buildSource, substitutions, stepId, n);
+      }
+      Build submitted = submission.submit(1);
+      String buildId = submitted.getId();
+      if (async) {
+        build.addAction(new CloudBuildStatusAction(input.getCredentialsId(), buildId));
+        // The tracker releases the permit once it sees the build complete.
+        AsyncBuildTracker.get().track(build, permit);
+        permit = null;
+        listener.getLogger().println(Messages.CloudBuildBuilder_NotWaiting(buildId));
+        return true;
+      }
+      if (flightKey != null) {
+        InFlightBuilds.get().started(flightKey, submitted);
+      }
+      waitAndCache(cloudBuild, build, buildId, submission, input.isCache() ? key : null,
+          listener);
+      return true;
+    } finally {
+      if (permit != null) {
+        permit.release();
+      }
+      if (flightKey != null) {
+        InFlightBuilds.get().finished(flightKey);
+      }
+    }
+  }
+
+  /**
+   * Waits for a build to succeed, resubmitting it through {@code resubmit} as long as the retry
+   * policy allows, and records its result in the cache if {@code cacheKey} is set.
+   */
+  private void waitAndCache(CloudBuildClient cloudBuild, AbstractBuild<?, ?> build,
+      String buildId, @CheckForNull CloudBuildRetryPolicy.Submission resubmit,
+      @CheckForNull String cacheKey, BuildListener listener)
+      throws IOException, InterruptedException {
+    CloudBuildRetryPolicy retry = input.getRetry();
+    if (retry != null) {
+      buildId = retry.waitForSuccess(cloudBuild, build, buildId, 1, resubmit,
+          resubmitted -> { }, listener.getLogger());
+    } else {
+      cloudBuild.waitForSuccess(buildId);
+    }
+    if (cacheKey != null) {
+      BuildResultCache.get().record(cacheKey, cloudBuild, buildId);
+    }
   }
 
   /** Descriptor for {@link CloudBuildBuilder}. */
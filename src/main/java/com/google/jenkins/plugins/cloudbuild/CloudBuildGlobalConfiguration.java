@@ -0,0 +1,254 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+import org.kohsuke.stapler.StaplerRequest;
+
+import hudson.Extension;
+import hudson.util.FormValidation;
+import jenkins.model.GlobalConfiguration;
+import jenkins.model.Jenkins;
+import net.sf.json.JSONObject;
+
+/** Controller-wide settings for the Google Cloud Build plugin. */
+@Extension @Symbol("googleCloudBuild")
+public class CloudBuildGlobalConfiguration extends GlobalConfiguration {
+  public static final int DEFAULT_BREAKER_FAILURE_THRESHOLD = 50;
+  public static final int DEFAULT_BREAKER_OPEN_SECONDS = 60;
+  public static final String DEFAULT_PRIORITY_CLASSES = "release mainline pr";
+  public static final String DEFAULT_PRIORITY_CLASS = "mainline";
+
+  private int breakerFailureThreshold = DEFAULT_BREAKER_FAILURE_THRESHOLD;
+  private int breakerOpenSeconds = DEFAULT_BREAKER_OPEN_SECONDS;
+  private boolean gzipEnabled = true;
+  private int maxConcurrentBuildsPerProject;
+  private List<ConcurrencyLimit> concurrencyLimits = new ArrayList<>();
+  private List<ProjectPool> projectPools = new ArrayList<>();
+  private String priorityClasses = DEFAULT_PRIORITY_CLASSES;
+  private String defaultPriorityClass = DEFAULT_PRIORITY_CLASS;
+
+  public CloudBuildGlobalConfiguration() {
+    load();
+  }
+
+  /**
+   * Returns the global configuration for this plugin.
+   *
+   * @return the global configuration, or {@code null} if Jenkins is not running
+   */
+  @CheckForNull
+  public static CloudBuildGlobalConfiguration get() {
+    Jenkins jenkins = Jenkins.getInstanceOrNull();
+    return jenkins == null
+        ? null
+        : jenkins.getDescriptorByType(CloudBuildGlobalConfiguration.class);
+  }
+
+  public int getBreakerFailureThreshold() {
+    return breakerFailureThreshold;
+  }
+
+  @DataBoundSetter
+  public void setBreakerFailureThreshold(int breakerFailureThreshold) {
+    this.breakerFailureThreshold = breakerFailureThreshold;
+  }
+
+  public int getBreakerOpenSeconds() {
+    return breakerOpenSeconds;
+  }
+
+  @DataBoundSetter
+  public void setBreakerOpenSeconds(int breakerOpenSeconds) {
+    this.breakerOpenSeconds = breakerOpenSeconds;
+  }
+
+  public boolean isGzipEnabled() {
+    return gzipEnabled;
+  }
+
+  @DataBoundSetter
+  public void setGzipEnabled(boolean gzipEnabled) {
+    this.gzipEnabled = gzipEnabled;
+  }
+
+  /**
+   * Returns the maximum number of builds that steps may run at the same time in each Google Cloud
+   * project, or 0 for no limit.
+   *
+   * @see SubmissionQueue
+   */
+  public int getMaxConcurrentBuildsPerProject() {
+    return maxConcurrentBuildsPerProject;
+  }
+
+  @DataBoundSetter
+  public void setMaxConcurrentBuildsPerProject(int maxConcurrentBuildsPerProject) {
+    this.maxConcurrentBuildsPerProject = maxConcurrentBuildsPerProject;
+  }
+
+  /** Returns the limits on the number of builds run at the same time by folders or jobs. */
+  @Nonnull
+  public List<ConcurrencyLimit> getConcurrencyLimits() {
+    return concurrencyLimits == null ? Collections.emptyList() : concurrencyLimits;
+  }
+
+  @DataBoundSetter
+  public void setConcurrencyLimits(@CheckForNull List<ConcurrencyLimit> concurrencyLimits) {
+    this.concurrencyLimits =
+        concurrencyLimits == null ? new ArrayList<>() : new ArrayList<>(concurrencyLimits);
+  }
+
+  /** Returns the pools of credentials across which steps may spread their builds. */
+  @Nonnull
+  public List<ProjectPool> getProjectPools() {
+    return projectPools == null ? Collections.emptyList() : projectPools;
+  }
+
+  @DataBoundSetter
+  public void setProjectPools(@CheckForNull List<ProjectPool> projectPools) {
+    this.projectPools = projectPools == null ? new ArrayList<>() : new ArrayList<>(projectPools);
+  }
+
+  /**
+   * Returns the pool with the given name.
+   *
+   * @param name the name of the pool
+   * @return the pool, or {@code null} if there is no pool with that name
+   */
+  @CheckForNull
+  public ProjectPool getProjectPool(String name) {
+    for (ProjectPool pool : getProjectPools()) {
+      if (pool.getName().equals(name)) {
+        return pool;
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Returns the names of the priority classes that steps may be submitted under, separated by
+   * spaces or commas, from highest to lowest priority.
+   *
+   * @see SubmissionQueue
+   */
+  @Nonnull
+  public String getPriorityClasses() {
+    return priorityClasses == null ? DEFAULT_PRIORITY_CLASSES : priorityClasses;
+  }
+
+  @DataBoundSetter
+  public void setPriorityClasses(@CheckForNull String priorityClasses) {
+    this.priorityClasses = priorityClasses;
+  }
+
+  /** Returns the names of the priority classes, from highest to lowest priority. */
+  @Nonnull
+  public List<String> getPriorityClassList() {
+    return parsePriorityClasses(getPriorityClasses());
+  }
+
+  /**
+   * Parses a list of priority class names separated by spaces or commas.
+   *
+   * @param priorityClasses the list to parse
+   * @return the distinct names in the list, in lower case and in their original order
+   */
+  static List<String> parsePriorityClasses(@CheckForNull String priorityClasses) {
+    List<String> result = new ArrayList<>();
+    if (priorityClasses != null) {
+      for (String name : priorityClasses.toLowerCase(Locale.ROOT).split("[\\s,]+")) {
+        if (!name.isEmpty() && !result.contains(name)) {
+          result.add(name);
+        }
+      }
+    }
+    return result;
+  }
+
+  /** Returns the priority class of steps that do not specify one. */
+  @Nonnull
+  public String getDefaultPriorityClass() {
+    return defaultPriorityClass == null ? DEFAULT_PRIORITY_CLASS : defaultPriorityClass;
+  }
+
+  @DataBoundSetter
+  public void setDefaultPriorityClass(@CheckForNull String defaultPriorityClass) {
+    this.defaultPriorityClass = defaultPriorityClass == null
+        ? null : defaultPriorityClass.trim().toLowerCase(Locale.ROOT);
+  }
+
+  @Override @Nonnull
+  public String getDisplayName() {
+    return Messages.CloudBuildGlobalConfiguration_DisplayName();
+  }
+
+  @Override
+  public boolean configure(StaplerRequest req, JSONObject json) throws FormException {
+    // An empty repeatable list is left out of the form submission altogether.
+    concurrencyLimits = new ArrayList<>();
+    projectPools = new ArrayList<>();
+    req.bindJSON(this, json);
+    save();
+    return true;
+  }
+
+  public FormValidation doCheckBreakerFailureThreshold(@QueryParameter int value) {
+    if (value < 1 || value > 100) {
+      return FormValidation.error(Messages.CloudBuildGlobalConfiguration_InvalidPercentage());
+    }
+    return FormValidation.ok();
+  }
+
+  public FormValidation doCheckMaxConcurrentBuildsPerProject(@QueryParameter int value) {
+    if (value < 0) {
+      return FormValidation.error(Messages.CloudBuildGlobalConfiguration_MustNotBeNegative());
+    }
+    return FormValidation.ok();
+  }
+
+  public FormValidation doCheckPriorityClasses(@QueryParameter String value) {
+    if (parsePriorityClasses(value).isEmpty()) {
+      return FormValidation.error(Messages.CloudBuildGlobalConfiguration_NoPriorityClasses());
+    }
+    return FormValidation.ok();
+  }
+
+  public FormValidation doCheckDefaultPriorityClass(
+      @QueryParameter String value, @QueryParameter String priorityClasses) {
+    List<String> classes = parsePriorityClasses(priorityClasses);
+    if (!classes.contains(value.trim().toLowerCase(Locale.ROOT))) {
+      return FormValidation.error(Messages.CloudBuildGlobalConfiguration_UnknownPriorityClass(
+          String.join(", ", classes)));
+    }
+    return FormValidation.ok();
+  }
+
+  public FormValidation doCheckBreakerOpenSeconds(@QueryParameter int value) {
+    if (value < 1) {
+      return FormValidation.error(Messages.CloudBuildGlobalConfiguration_MustBePositive());
+    }
+    return FormValidation.ok();
+  }
+}
@@ -0,0 +1,121 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.jenkins.plugins.cloudbuild.request.CloudBuildRequest;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+
+/** A named build request within a {@link CloudBuildGraphStep}, along with its dependencies. */
+public class CloudBuildGraphNode extends AbstractDescribableImpl<CloudBuildGraphNode> implements
+    Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** The names that may be given to a node. */
+  static final Pattern VALID_NAME = Pattern.compile("[A-Za-z][A-Za-z0-9_-]*");
+
+  @Nonnull
+  private final String name;
+  @Nonnull
+  private final CloudBuildRequest request;
+  @CheckForNull
+  private CloudBuildSource source;
+  @Nonnull
+  private List<String> dependsOn = Collections.emptyList();
+  @Nonnull
+  private Map<String, String> substitutions = Collections.emptyMap();
+
+  @DataBoundConstructor
+  public CloudBuildGraphNode(@Nonnull String name, @Nonnull CloudBuildRequest request) {
+    this.name = name;
+    this.request = request;
+  }
+
+  @Nonnull
+  public String getName() {
+    return name;
+  }
+
+  @Nonnull
+  public CloudBuildRequest getRequest() {
+    return request;
+  }
+
+  /** Returns the source for this build, or {@code null} to use the step's source. */
+  @CheckForNull
+  public CloudBuildSource getSource() {
+    return source;
+  }
+
+  @DataBoundSetter
+  public void setSource(@CheckForNull CloudBuildSource source) {
+    this.source = source;
+  }
+
+  /** Returns the names of the nodes that must succeed before this build is submitted. */
+  @Nonnull
+  public List<String> getDependsOn() {
+    return dependsOn;
+  }
+
+  @DataBoundSetter
+  public void setDependsOn(@Nonnull List<String> dependsOn) {
+    this.dependsOn = new ArrayList<>(dependsOn);
+  }
+
+  /** Returns the substitutions for this build, which take precedence over the step's. */
+  @Nonnull
+  public Map<String, String> getSubstitutions() {
+    return substitutions;
+  }
+
+  @DataBoundSetter
+  public void setSubstitutions(@Nonnull Map<String, String> substitutions) {
+    this.substitutions = new LinkedHashMap<>(substitutions);
+  }
+
+  /**
+   * Returns the prefix of the substitutions through which the outputs of this node are passed to
+   * the nodes that depend on it (e.g., {@code _BASE_IMAGE} for the node named {@code base-image}).
+   */
+  String getOutputPrefix() {
+    return "_" + name.toUpperCase(Locale.ROOT).replace('-', '_');
+  }
+
+  /** Descriptor for {@link CloudBuildGraphNode}. */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<CloudBuildGraphNode> {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildGraphNode_DisplayName();
+    }
+  }
+}
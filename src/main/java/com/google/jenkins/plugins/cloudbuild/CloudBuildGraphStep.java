@@ -0,0 +1,180 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * A Jenkins build step that runs a graph of named build requests, each of which may depend on
+ * others.
+ * <p>
+ * Each build is submitted as soon as all of its dependencies have succeeded, with their build IDs
+ * and the images they pushed passed to it as substitutions. If a build fails, the builds that
+ * depend on it (directly or not) are never submitted, while unrelated builds keep running. The
+ * step returns a map from the name of each node to its result.
+ */
+public final class CloudBuildGraphStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Nonnull
+  private final String credentialsId;
+  @Nonnull
+  private final List<CloudBuildGraphNode> builds;
+  @CheckForNull
+  private CloudBuildSource source;
+  @Nonnull
+  private Map<String, String> substitutions = Collections.emptyMap();
+
+  @DataBoundConstructor
+  public CloudBuildGraphStep(
+      @Nonnull String credentialsId, @Nonnull List<CloudBuildGraphNode> builds) {
+    this.credentialsId = credentialsId;
+    this.builds = new ArrayList<>(builds);
+  }
+
+  @Nonnull
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  @Nonnull
+  public List<CloudBuildGraphNode> getBuilds() {
+    return builds;
+  }
+
+  /** Returns the source for the nodes that do not specify their own. */
+  @CheckForNull
+  public CloudBuildSource getSource() {
+    return source;
+  }
+
+  @DataBoundSetter
+  public void setSource(@CheckForNull CloudBuildSource source) {
+    this.source = source;
+  }
+
+  /** Returns the substitutions shared by all nodes. */
+  @Nonnull
+  public Map<String, String> getSubstitutions() {
+    return substitutions;
+  }
+
+  @DataBoundSetter
+  public void setSubstitutions(@Nonnull Map<String, String> substitutions) {
+    this.substitutions = new LinkedHashMap<>(substitutions);
+  }
+
+  /**
+   * Checks that the nodes have valid, unique names, that they only depend on nodes in the graph,
+   * and that there are no cycles.
+   *
+   * @param builds the nodes of the graph
+   * @throws AbortException if the graph is invalid
+   */
+  static void validate(List<CloudBuildGraphNode> builds) throws AbortException {
+    if (builds.isEmpty()) {
+      throw new AbortException(Messages.CloudBuildGraphStep_Empty());
+    }
+    Map<String, CloudBuildGraphNode> nodes = new HashMap<>();
+    Set<String> prefixes = new HashSet<>();
+    for (CloudBuildGraphNode node : builds) {
+      if (!CloudBuildGraphNode.VALID_NAME.matcher(node.getName()).matches()) {
+        throw new AbortException(Messages.CloudBuildGraphStep_InvalidName(node.getName()));
+      }
+      if (nodes.put(node.getName(), node) != null || !prefixes.add(node.getOutputPrefix())) {
+        throw new AbortException(Messages.CloudBuildGraphStep_DuplicateName(node.getName()));
+      }
+    }
+    for (CloudBuildGraphNode node : builds) {
+      for (String dependency : node.getDependsOn()) {
+        if (!nodes.containsKey(dependency)) {
+          throw new AbortException(
+              Messages.CloudBuildGraphStep_UnknownDependency(node.getName(), dependency));
+        }
+      }
+    }
+
+    // Repeatedly remove the nodes whose dependencies have all been removed; whatever is left over
+    // is part of a cycle.
+    Set<String> resolved = new HashSet<>();
+    List<CloudBuildGraphNode> remaining = new ArrayList<>(builds);
+    boolean progress = true;
+    while (!remaining.isEmpty() && progress) {
+      progress = remaining.removeIf(node -> {
+        if (resolved.containsAll(node.getDependsOn())) {
+          resolved.add(node.getName());
+          return true;
+        }
+        return false;
+      });
+    }
+    if (!remaining.isEmpty()) {
+      List<String> names = new ArrayList<>();
+      remaining.forEach(node -> names.add(node.getName()));
+      throw new AbortException(Messages.CloudBuildGraphStep_Cycle(String.join(", ", names)));
+    }
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    validate(builds);
+    return new CloudBuildGraphStepExecution(
+        credentialsId, builds, source, substitutions, context);
+  }
+
+  /** Descriptor for {@link CloudBuildGraphStep}. */
+  @Extension
+  public static class Descriptor extends StepDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildGraphStep_DisplayName();
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "googleCloudBuildGraph";
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return new HashSet<>(Arrays.asList(EnvVars.class, Run.class, TaskListener.class));
+    }
+  }
+}
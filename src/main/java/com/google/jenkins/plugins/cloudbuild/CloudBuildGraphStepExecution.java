@@ -0,0 +1,452 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuiltImage;
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.jenkins.plugins.cloudbuild.client.BuildTags;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import com.google.jenkins.plugins.cloudbuild.context.PipelineBuildContext;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.AbortException;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/** Submits and polls the builds of a {@link CloudBuildGraphStep} in dependency order. */
+final class CloudBuildGraphStepExecution extends StepExecution {
+  private static final long serialVersionUID = 1L;
+
+  static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  /** The status reported for a node that was not submitted because a dependency failed. */
+  static final String CANCELLED = "CANCELLED";
+  /** The status reported for a node whose build request could not be submitted. */
+  static final String NOT_SUBMITTED = "NOT_SUBMITTED";
+
+  private final String credentialsId;
+  private final List<CloudBuildGraphNode> nodes;
+  @CheckForNull
+  private final CloudBuildSource source;
+  private final Map<String, String> substitutions;
+  private final String stepId;
+  /** The names of the nodes whose build requests have been (or are being) sent. */
+  private final Set<String> submitted = Collections.synchronizedSet(new HashSet<>());
+  /** The handle of each submitted node's build, by node name. */
+  private final Map<String, CloudBuildHandle> handles =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The status of each node that has no build, by node name. */
+  private final Map<String, String> outcomes = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The reason each node that has no build was not submitted, by node name. */
+  private final Map<String, String> errors = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The substitutions passed on to the dependents of each node that succeeded, by node name. */
+  private final Map<String, Map<String, String>> outputs =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The last status seen for each build, by build ID. */
+  private final Map<String, String> statuses = Collections.synchronizedMap(new LinkedHashMap<>());
+  private transient volatile Future<?> task;
+  /** The permits under which the builds of the nodes count against the concurrency limits. */
+  private transient HeldPermits heldPermits;
+
+  CloudBuildGraphStepExecution(String credentialsId, List<CloudBuildGraphNode> nodes,
+      @CheckForNull CloudBuildSource source, Map<String, String> substitutions,
+      StepContext context) {
+    super(context);
+    this.credentialsId = credentialsId;
+    this.nodes = new ArrayList<>(nodes);
+    this.source = source;
+    this.substitutions = new LinkedHashMap<>(substitutions);
+    this.stepId = UUID.randomUUID().toString();
+  }
+
+  /** API client for Google Cloud Platform. */
+  private transient volatile ClientFactory clients;
+
+  /** Returns the API client for Google Cloud Platform (recreating it if necessary). */
+  private synchronized ClientFactory getClients() throws IOException, InterruptedException {
+    if (clients == null) {
+      clients = new ClientFactory(
+          getContext().get(Run.class), getContext().get(TaskListener.class), credentialsId);
+    }
+    return clients;
+  }
+
+  /** The sources that have already been prepared, so that shared sources are uploaded once. */
+  private transient Map<CloudBuildSource, Source> preparedSources;
+
+  private synchronized Source prepare(CloudBuildSource nodeSource, BuildContext context)
+      throws IOException, InterruptedException {
+    if (preparedSources == null) {
+      preparedSources = new IdentityHashMap<>();
+    }
+    if (!preparedSources.containsKey(nodeSource)) {
+      preparedSources.put(nodeSource, nodeSource.prepare(context, getClients()));
+    }
+    return preparedSources.get(nodeSource);
+  }
+
+  private synchronized HeldPermits getHeldPermits() {
+    if (heldPermits == null) {
+      heldPermits = new HeldPermits();
+    }
+    return heldPermits;
+  }
+
+  /** The executor on which nodes are submitted and polled. */
+  private static volatile ExecutorService executorService;
+
+  private static synchronized ExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newCachedThreadPool(
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), CloudBuildGraphStepExecution.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  /** Returns the identifier used to tag the build for {@code node}. */
+  private String nodeStepId(CloudBuildGraphNode node) {
+    return String.format("%s-%s", stepId, node.getName());
+  }
+
+  /**
+   * Returns the current status of {@code node}: the status of its build, {@link #CANCELLED} or
+   * {@link #NOT_SUBMITTED}, or {@code null} if it has not been submitted yet.
+   */
+  @CheckForNull
+  private String getStatus(CloudBuildGraphNode node) {
+    CloudBuildHandle handle = handles.get(node.getName());
+    if (handle != null) {
+      String status = statuses.get(handle.getBuildId());
+      return status != null ? status : "QUEUED";
+    }
+    return outcomes.get(node.getName());
+  }
+
+  private CloudBuildGraphNode getNode(String name) {
+    for (CloudBuildGraphNode node : nodes) {
+      if (node.getName().equals(name)) {
+        return node;
+      }
+    }
+    throw new IllegalArgumentException(name);
+  }
+
+  /**
+   * Returns the substitutions through which the outputs of {@code build} are passed to the nodes
+   * that depend on {@code node}: its build ID and, if it pushed any images, the name and digest of
+   * the first one.
+   */
+  static Map<String, String> getOutputs(CloudBuildGraphNode node, Build build) {
+    String prefix = node.getOutputPrefix();
+    Map<String, String> result = new LinkedHashMap<>();
+    result.put(prefix + "_BUILD_ID", build.getId());
+    if (build.getResults() != null && build.getResults().getImages() != null
+        && !build.getResults().getImages().isEmpty()) {
+      BuiltImage image = build.getResults().getImages().get(0);
+      result.put(prefix + "_IMAGE", String.format("%s@%s", image.getName(), image.getDigest()));
+      result.put(prefix + "_DIGEST", image.getDigest());
+    }
+    return result;
+  }
+
+  /**
+   * Returns whether {@code request} refers to the substitution {@code key}. Cloud Build rejects
+   * requests that are given substitutions they do not use, so outputs are only passed to the
+   * nodes that refer to them.
+   */
+  static boolean refersTo(String request, String key) {
+    return Pattern.compile("\\$\\{?" + Pattern.quote(key) + "(?![A-Z0-9_])").matcher(request)
+        .find();
+  }
+
+  /**
+   * Submits the build for {@code node} under a permit from the {@link SubmissionQueue}, passing it
+   * the outputs of the nodes it depends on.
+   *
+   * @throws IOException if an error occurs while submitting the build
+   * @throws InterruptedException if interrupted while submitting the build
+   */
+  private void submit(CloudBuildGraphNode node) throws IOException, InterruptedException {
+    BuildContext context = new PipelineBuildContext(getContext());
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    cloudBuild.awaitAvailable();
+
+    CloudBuildInput input = new CloudBuildInput(credentialsId, node.getRequest());
+    Map<String, String> merged = new LinkedHashMap<>(substitutions);
+    merged.putAll(node.getSubstitutions());
+    input.setSubstitutions(merged);
+    String request = node.getRequest().expand(context);
+    Map<String, String> nodeSubstitutions = new LinkedHashMap<>(input.getSubstitutionMap(context));
+    for (String dependency : node.getDependsOn()) {
+      Map<String, String> dependencyOutputs = outputs.get(dependency);
+      if (dependencyOutputs == null) {
+        continue;
+      }
+      dependencyOutputs.forEach((key, value) -> {
+        if (refersTo(request, key)) {
+          nodeSubstitutions.put(key, value);
+        }
+      });
+    }
+    CloudBuildSource nodeSource = node.getSource() != null ? node.getSource() : source;
+    PrintStream logger = getContext().get(TaskListener.class).getLogger();
+    SubmissionQueue.Permit permit =
+        HeldPermits.acquire(cloudBuild, getContext().get(Run.class), null, logger);
+    Build build;
+    try {
+      build = cloudBuild.submitBuild(
+          request,
+          prepare(nodeSource != null ? nodeSource : CloudBuildSource.NULL, context),
+          nodeSubstitutions,
+          nodeStepId(node));
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      permit.release();
+      throw e;
+    }
+    getHeldPermits().hold(build.getId(), permit);
+    handles.put(node.getName(), new CloudBuildHandle(
+        credentialsId, cloudBuild.getProjectId(), build.getId(), build.getLogUrl()));
+    logger.println(Messages.CloudBuildGraphStep_Submitted(node.getName(), build.getId()));
+  }
+
+  /**
+   * Submits the builds for {@code ready} concurrently, recording any failure as the node's outcome.
+   *
+   * @param poll polls the nodes submitted so far while the others are being submitted
+   */
+  private void submitAll(List<CloudBuildGraphNode> ready, HeldPermits.Poll poll)
+      throws IOException, InterruptedException {
+    List<Future<?>> futures = new ArrayList<>();
+    for (CloudBuildGraphNode node : ready) {
+      submitted.add(node.getName());
+      futures.add(getExecutorService().submit(() -> {
+        try {
+          submit(node);
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          errors.put(node.getName(), e.getMessage());
+          outcomes.put(node.getName(), NOT_SUBMITTED);
+        }
+      }));
+    }
+    HeldPermits.awaitSubmissions(futures, poll, POLL_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Finds the builds for nodes that may have been submitted before Jenkins restarted, but whose
+   * handles were not saved.
+   */
+  private void recoverAll() throws IOException, InterruptedException {
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    Run<?, ?> run = getContext().get(Run.class);
+    for (CloudBuildGraphNode node : nodes) {
+      if (!submitted.contains(node.getName()) || getStatus(node) != null) {
+        continue;
+      }
+      Build existing = cloudBuild.findBuildByTag(BuildTags.submission(run, nodeStepId(node), 1));
+      if (existing == null) {
+        errors.put(node.getName(), Messages.CloudBuildStepExecution_NotSubmittedBeforeRestart());
+        outcomes.put(node.getName(), NOT_SUBMITTED);
+      } else {
+        handles.put(node.getName(), new CloudBuildHandle(
+            credentialsId, cloudBuild.getProjectId(), existing.getId(), existing.getLogUrl()));
+      }
+    }
+  }
+
+  /**
+   * Cancels the nodes that depend on a node that did not succeed, and returns the nodes whose
+   * dependencies have all succeeded and that have not been submitted yet.
+   */
+  private List<CloudBuildGraphNode> schedule(PrintStream logger) {
+    List<CloudBuildGraphNode> ready = new ArrayList<>();
+    for (CloudBuildGraphNode node : nodes) {
+      if (submitted.contains(node.getName()) || getStatus(node) != null) {
+        continue;
+      }
+      String failed = null;
+      boolean waiting = false;
+      for (String dependency : node.getDependsOn()) {
+        String status = getStatus(getNode(dependency));
+        if (BuildPoller.isComplete(status) && !"SUCCESS".equals(status)) {
+          failed = dependency;
+          break;
+        }
+        waiting |= !"SUCCESS".equals(status);
+      }
+      if (failed != null) {
+        outcomes.put(node.getName(), CANCELLED);
+        logger.println(Messages.CloudBuildGraphStep_Cancelled(node.getName(), failed));
+      } else if (!waiting) {
+        ready.add(node);
+      }
+    }
+    return ready;
+  }
+
+  /** Returns the result of each node, by node name, in the order in which they were given. */
+  private LinkedHashMap<String, Map<String, Object>> getResults() {
+    LinkedHashMap<String, Map<String, Object>> results = new LinkedHashMap<>();
+    for (CloudBuildGraphNode node : nodes) {
+      CloudBuildHandle handle = handles.get(node.getName());
+      Map<String, Object> result;
+      if (handle == null) {
+        result = new LinkedHashMap<>();
+        result.put("error", errors.get(node.getName()));
+      } else {
+        result = handle.toMap();
+        Map<String, String> nodeOutputs = outputs.get(node.getName());
+        result.put("outputs", nodeOutputs != null
+            ? new LinkedHashMap<>(nodeOutputs) : new LinkedHashMap<String, String>());
+      }
+      result.put("status", getStatus(node));
+      results.put(node.getName(), result);
+    }
+    return results;
+  }
+
+  /**
+   * Polls the builds of the nodes that have not completed yet, records the outputs of those that
+   * succeeded and releases the permits of those that completed.
+   *
+   * @return whether any build is still pending
+   */
+  private boolean pollPending(CloudBuildClient cloudBuild, Map<String, Integer> misses,
+      PrintStream logger) throws IOException {
+    Map<String, CloudBuildGraphNode> pending = new LinkedHashMap<>();
+    for (CloudBuildGraphNode node : nodes) {
+      CloudBuildHandle handle = handles.get(node.getName());
+      if (handle != null && !BuildPoller.isComplete(getStatus(node))) {
+        pending.put(handle.getBuildId(), node);
+      }
+    }
+    if (pending.isEmpty()) {
+      return false;
+    }
+    Map<String, Build> builds = BuildPoller.poll(cloudBuild, pending.keySet(),
+        CloudBuildClient.IMAGE_FIELDS, statuses, misses, logger);
+    for (Build build : builds.values()) {
+      if ("SUCCESS".equals(build.getStatus())) {
+        CloudBuildGraphNode node = pending.get(build.getId());
+        outputs.put(node.getName(), getOutputs(node, build));
+      }
+    }
+    getHeldPermits().releaseCompleted(statuses);
+    return true;
+  }
+
+  /**
+   * Starts the thread to submit the nodes as their dependencies complete and poll Google Cloud
+   * Build.
+   *
+   * @param resumed whether this step is being resumed after Jenkins restarted
+   */
+  private void startPolling(boolean resumed) {
+    task = getExecutorService().submit(() -> {
+      try {
+        if (resumed) {
+          recoverAll();
+        }
+        PrintStream logger = getContext().get(TaskListener.class).getLogger();
+        CloudBuildClient cloudBuild = getClients().cloudBuild();
+        Map<String, Integer> misses = new HashMap<>();
+        HeldPermits.Poll poll = () -> pollPending(cloudBuild, misses, logger);
+        while (true) {
+          List<CloudBuildGraphNode> ready = schedule(logger);
+          if (!ready.isEmpty()) {
+            submitAll(ready, poll);
+            // Failed submissions may cancel further nodes right away.
+            continue;
+          }
+          if (!pollPending(cloudBuild, misses, logger)) {
+            break;
+          }
+          // Submit the dependents of builds that just succeeded without waiting for another poll.
+          if (schedule(logger).isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+          }
+        }
+
+        List<String> failed = new ArrayList<>();
+        for (CloudBuildGraphNode node : nodes) {
+          if (!"SUCCESS".equals(getStatus(node))) {
+            failed.add(node.getName());
+          }
+        }
+        if (!failed.isEmpty()) {
+          throw new AbortException(
+              Messages.CloudBuildGraphStep_BuildsFailed(String.join(", ", failed)));
+        }
+        getContext().onSuccess(getResults());
+      } catch (Exception e) {
+        getContext().onFailure(e);
+      } finally {
+        getHeldPermits().releaseAll();
+      }
+    });
+  }
+
+  @Override
+  public boolean start() throws Exception {
+    for (CloudBuildGraphNode node : nodes) {
+      CloudBuildInput input = new CloudBuildInput(credentialsId, node.getRequest());
+      input.setSource(node.getSource() != null ? node.getSource() : source);
+      CloudBuildStepExecution.checkWorkspace(input, getContext());
+    }
+    startPolling(false);
+    return false;
+  }
+
+  @Override
+  public void stop(@Nonnull Throwable throwable) throws Exception {
+    if (task != null) {
+      task.cancel(true);
+    } else {
+      getContext().onFailure(throwable);
+    }
+  }
+
+  @Override
+  public void onResume() {
+    startPolling(true);
+  }
+}
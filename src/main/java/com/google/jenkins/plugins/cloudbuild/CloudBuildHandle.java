@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import hudson.AbortException;
+
+/**
+ * Identifies a Google Cloud Build build submitted by {@code googleCloudBuildSubmit}, so that it can
+ * later be waited for with {@code googleCloudBuildWait}.
+ * <p>
+ * Pipelines see a handle as a map (see {@link #toMap()}), so that its properties can be read from
+ * sandboxed scripts and the handle can be kept in a variable across restarts.
+ */
+public final class CloudBuildHandle implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final String CREDENTIALS_ID = "credentialsId";
+  static final String PROJECT_ID = "projectId";
+  static final String BUILD_ID = "buildId";
+  static final String LOG_URL = "logUrl";
+
+  @Nonnull
+  private final String credentialsId;
+  @CheckForNull
+  private final String projectId;
+  @Nonnull
+  private final String buildId;
+  @CheckForNull
+  private final String logUrl;
+
+  public CloudBuildHandle(@Nonnull String credentialsId, @CheckForNull String projectId,
+      @Nonnull String buildId, @CheckForNull String logUrl) {
+    this.credentialsId = credentialsId;
+    this.projectId = projectId;
+    this.buildId = buildId;
+    this.logUrl = logUrl;
+  }
+
+  @Nonnull
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  @CheckForNull
+  public String getProjectId() {
+    return projectId;
+  }
+
+  @Nonnull
+  public String getBuildId() {
+    return buildId;
+  }
+
+  @CheckForNull
+  public String getLogUrl() {
+    return logUrl;
+  }
+
+  /** Returns the handle as the map returned to pipelines. */
+  public Map<String, Object> toMap() {
+    Map<String, Object> result = new LinkedHashMap<>();
+    result.put(CREDENTIALS_ID, credentialsId);
+    result.put(PROJECT_ID, projectId);
+    result.put(BUILD_ID, buildId);
+    result.put(LOG_URL, logUrl);
+    return result;
+  }
+
+  /**
+   * Reads a handle from the map returned to a pipeline by {@link #toMap()}.
+   *
+   * @param map the map passed back by the pipeline
+   * @return the handle
+   * @throws AbortException if {@code map} is not a handle
+   */
+  public static CloudBuildHandle fromMap(Map<?, ?> map) throws AbortException {
+    Object credentialsId = map.get(CREDENTIALS_ID);
+    Object buildId = map.get(BUILD_ID);
+    if (!(credentialsId instanceof String) || !(buildId instanceof String)) {
+      throw new AbortException(Messages.CloudBuildHandle_Invalid(map));
+    }
+    Object projectId = map.get(PROJECT_ID);
+    Object logUrl = map.get(LOG_URL);
+    return new CloudBuildHandle(
+        (String) credentialsId,
+        projectId == null ? null : projectId.toString(),
+        (String) buildId,
+        logUrl == null ? null : logUrl.toString());
+  }
+}
@@ -30,11 +30,16 @@ import org.kohsuke.stapler.StaplerRequest;
 
 import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
 import com.google.jenkins.plugins.cloudbuild.request.CloudBuildRequest;
+import com.google.jenkins.plugins.cloudbuild.request.TriggerCloudBuildRequest;
 import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSourceDescriptor;
 import com.google.jenkins.plugins.credentials.domains.RequiresDomain;
+import hudson.AbortException;
 import hudson.Extension;
+import hudson.Util;
 import hudson.model.AbstractDescribableImpl;
 import hudson.model.Descriptor;
+import jenkins.model.Jenkins;
 import net.sf.json.JSONObject;
 
 /** All inputs required to submit a Google Cloud Build build request. */
@@ -55,6 +60,29 @@ public class CloudBuildInput extends AbstractDescribableImpl<CloudBuildInput> im
   @CheckForNull
   private SubstitutionList substitutionList;
 
+  private boolean cache;
+
+  private boolean forceRebuild;
+
+  private boolean coalesce;
+
+  private boolean pack;
+
+  @CheckForNull
+  private String priority;
+
+  @CheckForNull
+  private CloudBuildRetryPolicy retry;
+
+  @CheckForNull
+  private String pool;
+
+  @CheckForNull
+  private String workerPools;
+
+  @CheckForNull
+  private CloudBuildAutoTune autoTune;
+
   @DataBoundConstructor
   public CloudBuildInput(@Nonnull String credentialsId, @Nonnull CloudBuildRequest request) {
     this.credentialsId = credentialsId;
@@ -90,6 +118,11 @@ public class CloudBuildInput extends AbstractDescribableImpl<CloudBuildInput> im
     return source != null ? source : CloudBuildSource.NULL;
   }
 
+  /** Returns whether the request or the source needs to read from the workspace. */
+  public boolean requiresWorkspace() {
+    return request.requiresWorkspace() || getSourceOrDefault().requiresWorkspace();
+  }
+
   @DataBoundSetter
   public void setSubstitutionList(@CheckForNull SubstitutionList substitutionList) {
     this.substitutionList = substitutionList;
@@ -116,6 +149,193 @@ public class CloudBuildInput extends AbstractDescribableImpl<CloudBuildInput> im
     return result;
   }
 
+  /**
+   * Returns whether the result of the last successful build with the same request, substitutions
+   * and source contents is returned instead of submitting a new build.
+   *
+   * @see BuildResultCache
+   */
+  public boolean isCache() {
+    return cache;
+  }
+
+  @DataBoundSetter
+  public void setCache(boolean cache) {
+    this.cache = cache;
+  }
+
+  /** Returns whether a new build is submitted even if a cached result exists, replacing it. */
+  public boolean isForceRebuild() {
+    return forceRebuild;
+  }
+
+  @DataBoundSetter
+  public void setForceRebuild(boolean forceRebuild) {
+    this.forceRebuild = forceRebuild;
+  }
+
+  /**
+   * Returns whether a build with the same request, substitutions and source contents as one that
+   * another Jenkins build is already running on this controller is shared with it, instead of
+   * being submitted again.
+   *
+   * @see InFlightBuilds
+   */
+  public boolean isCoalesce() {
+    return coalesce;
+  }
+
+  @DataBoundSetter
+  public void setCoalesce(boolean coalesce) {
+    this.coalesce = coalesce;
+  }
+
+  /**
+   * Returns whether the build request may be merged with small compatible requests submitted by
+   * other steps at about the same time, and run as part of a single build.
+   *
+   * @see BuildPacker
+   */
+  public boolean isPack() {
+    return pack;
+  }
+
+  @DataBoundSetter
+  public void setPack(boolean pack) {
+    this.pack = pack;
+  }
+
+  /**
+   * Returns the priority class under which the build waits when a concurrency limit is reached, or
+   * {@code null} for the default class.
+   *
+   * @see SubmissionQueue
+   */
+  @CheckForNull
+  public String getPriority() {
+    return priority;
+  }
+
+  @DataBoundSetter
+  public void setPriority(@CheckForNull String priority) {
+    this.priority = Util.fixEmptyAndTrim(priority);
+  }
+
+  /** Returns the policy for resubmitting failed builds, or {@code null} if they are not retried. */
+  @CheckForNull
+  public CloudBuildRetryPolicy getRetry() {
+    return retry;
+  }
+
+  @DataBoundSetter
+  public void setRetry(@CheckForNull CloudBuildRetryPolicy retry) {
+    this.retry = retry;
+  }
+
+  /**
+   * Returns the name of the pool whose credentials the build is routed to in place of
+   * {@link #getCredentialsId()}, or {@code null} if the build always uses the step's credentials.
+   *
+   * @see ProjectRouter
+   */
+  @CheckForNull
+  public String getPool() {
+    return pool;
+  }
+
+  @DataBoundSetter
+  public void setPool(@CheckForNull String pool) {
+    this.pool = Util.fixEmptyAndTrim(pool);
+  }
+
+  /**
+   * Returns the resource names of the private worker pools in which the build may run, separated
+   * by spaces or commas, or {@code null} if the build runs wherever its request says.
+   *
+   * @see WorkerPoolRouter
+   */
+  @CheckForNull
+  public String getWorkerPools() {
+    return workerPools;
+  }
+
+  @DataBoundSetter
+  public void setWorkerPools(@CheckForNull String workerPools) {
+    this.workerPools = Util.fixEmptyAndTrim(workerPools);
+  }
+
+  /**
+   * Returns how the machine type and disk size of the build are chosen from earlier builds of the
+   * same request, or {@code null} if the request's own options are used.
+   */
+  @CheckForNull
+  public CloudBuildAutoTune getAutoTune() {
+    return autoTune;
+  }
+
+  @DataBoundSetter
+  public void setAutoTune(@CheckForNull CloudBuildAutoTune autoTune) {
+    this.autoTune = autoTune;
+  }
+
+  /** Returns the distinct private worker pools in which the build may run, in listed order. */
+  @Nonnull
+  public List<String> getWorkerPoolList() {
+    List<String> result = new ArrayList<>();
+    if (workerPools != null) {
+      for (String name : workerPools.split("[\\s,]+")) {
+        if (!name.isEmpty() && !result.contains(name)) {
+          result.add(name);
+        }
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Fails if options are set that only take effect for a build that is waited for, since a build
+   * that is not waited for can be neither retried, recorded in the cache, shared nor packed.
+   *
+   * @throws AbortException if {@code retry}, {@code cache}, {@code coalesce} or {@code pack} is set
+   */
+  public void checkWaitOnlyOptions() throws AbortException {
+    List<String> options = new ArrayList<>();
+    if (retry != null) {
+      options.add("retry");
+    }
+    if (cache) {
+      options.add("cache");
+    }
+    if (coalesce) {
+      options.add("coalesce");
+    }
+    if (pack) {
+      options.add("pack");
+    }
+    if (!options.isEmpty()) {
+      throw new AbortException(
+          Messages.CloudBuildInput_WaitOnlyOptions(String.join(", ", options)));
+    }
+  }
+
+  /**
+   * Returns the trigger to run, if the request runs an existing trigger rather than sending a
+   * build request.
+   *
+   * @return the trigger request, or {@code null} if a build request is sent
+   * @throws AbortException if a source is attached to a trigger request
+   */
+  @CheckForNull
+  public TriggerCloudBuildRequest getTrigger() throws AbortException {
+    if (!(request instanceof TriggerCloudBuildRequest)) {
+      return null;
+    }
+    if (source != null) {
+      throw new AbortException(Messages.CloudBuildInput_TriggerWithSource());
+    }
+    return (TriggerCloudBuildRequest) request;
+  }
+
   public Map<String, String> getSubstitutionMap(BuildContext context)
       throws IOException, InterruptedException {
     return substitutionList != null ? substitutionList.toMap(context) : Collections.emptyMap();
@@ -129,6 +349,22 @@ public class CloudBuildInput extends AbstractDescribableImpl<CloudBuildInput> im
       return Messages.CloudBuildInput_DisplayName();
     }
 
+    /**
+     * Returns the sources offered on the configuration page, leaving out those that only pipeline
+     * steps can use if {@code freeStyle} is set.
+     */
+    public List<CloudBuildSourceDescriptor> getSourceDescriptors(boolean freeStyle) {
+      List<CloudBuildSourceDescriptor> descriptors = new ArrayList<>();
+      for (Descriptor<CloudBuildSource> d
+          : Jenkins.getInstance().getDescriptorList(CloudBuildSource.class)) {
+        CloudBuildSourceDescriptor descriptor = (CloudBuildSourceDescriptor) d;
+        if (!freeStyle || !descriptor.isPipelineOnly()) {
+          descriptors.add(descriptor);
+        }
+      }
+      return descriptors;
+    }
+
     @Override
     public CloudBuildInput newInstance(StaplerRequest req, @Nonnull JSONObject formData)
         throws FormException {
@@ -0,0 +1,69 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.List;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.google.jenkins.plugins.cloudbuild.client.CircuitBreaker;
+import hudson.Extension;
+import hudson.model.Api;
+import hudson.model.ManagementLink;
+import jenkins.model.Jenkins;
+
+/**
+ * Shows the health of the Google Cloud APIs used by this plugin, and the state of the queue of
+ * build submissions, on the "Manage Jenkins" page. The same information is available as metrics
+ * through the remote API at {@code /google-cloudbuild/api/json}. Both are restricted to
+ * administrators, since they expose project IDs and the state of the circuit breakers.
+ */
+@Extension @ExportedBean
+public class CloudBuildManagementLink extends ManagementLink {
+  @Override
+  public String getIconFileName() {
+    return "/plugin/google-cloudbuild/images/Cloud_Build.svg";
+  }
+
+  @Override
+  public String getDisplayName() {
+    return Messages.CloudBuildManagementLink_DisplayName();
+  }
+
+  @Override
+  public String getDescription() {
+    return Messages.CloudBuildManagementLink_Description();
+  }
+
+  @Override
+  public String getUrlName() {
+    return "google-cloudbuild";
+  }
+
+  @Exported
+  public List<CircuitBreaker> getCircuitBreakers() {
+    return CircuitBreaker.all();
+  }
+
+  @Exported
+  public SubmissionQueue getSubmissionQueue() {
+    return SubmissionQueue.get();
+  }
+
+  public Api getApi() {
+    Jenkins.getInstance().checkPermission(Jenkins.ADMINISTER);
+    return new Api(this);
+  }
+}
@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import com.google.jenkins.plugins.cloudbuild.request.CloudBuildRequest;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * A Jenkins build step that submits one build request for each cell of a matrix of substitutions.
+ * <p>
+ * The request is expanded and the source is prepared (e.g., uploaded) only once for all cells.
+ * The builds are then submitted concurrently, at most {@link #getParallelism()} at a time, and
+ * polled together. The step returns a map from the name of each cell to its result.
+ */
+public final class CloudBuildMatrixStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  static final int DEFAULT_PARALLELISM = 10;
+
+  @Nonnull
+  private final String credentialsId;
+  @Nonnull
+  private final CloudBuildRequest request;
+  @CheckForNull
+  private CloudBuildSource source;
+  @Nonnull
+  private Map<String, String> substitutions = Collections.emptyMap();
+  @Nonnull
+  private List<Map<String, String>> matrix = Collections.emptyList();
+  private int parallelism = DEFAULT_PARALLELISM;
+  private boolean propagateFailure = true;
+
+  @DataBoundConstructor
+  public CloudBuildMatrixStep(@Nonnull String credentialsId, @Nonnull CloudBuildRequest request) {
+    this.credentialsId = credentialsId;
+    this.request = request;
+  }
+
+  @Nonnull
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  @Nonnull
+  public CloudBuildRequest getRequest() {
+    return request;
+  }
+
+  @CheckForNull
+  public CloudBuildSource getSource() {
+    return source;
+  }
+
+  @DataBoundSetter
+  public void setSource(@CheckForNull CloudBuildSource source) {
+    this.source = source;
+  }
+
+  /** Returns the substitutions shared by all cells. */
+  @Nonnull
+  public Map<String, String> getSubstitutions() {
+    return substitutions;
+  }
+
+  @DataBoundSetter
+  public void setSubstitutions(@Nonnull Map<String, String> substitutions) {
+    this.substitutions = new LinkedHashMap<>(substitutions);
+  }
+
+  /** Returns the substitutions for each cell, which take precedence over the shared ones. */
+  @Nonnull
+  public List<Map<String, String>> getMatrix() {
+    return matrix;
+  }
+
+  @DataBoundSetter
+  public void setMatrix(@Nonnull List<Map<String, String>> matrix) {
+    List<Map<String, String>> copy = new ArrayList<>();
+    for (Map<String, String> cell : matrix) {
+      copy.add(new LinkedHashMap<>(cell));
+    }
+    this.matrix = copy;
+  }
+
+  /** Returns the maximum number of build requests sent at the same time. */
+  public int getParallelism() {
+    return parallelism;
+  }
+
+  @DataBoundSetter
+  public void setParallelism(int parallelism) {
+    this.parallelism = parallelism;
+  }
+
+  /** Returns whether the step fails if any cell's build fails. */
+  public boolean isPropagateFailure() {
+    return propagateFailure;
+  }
+
+  @DataBoundSetter
+  public void setPropagateFailure(boolean propagateFailure) {
+    this.propagateFailure = propagateFailure;
+  }
+
+  /**
+   * Returns the name of a cell, which is used as its key in the step's result.
+   *
+   * @param cell the substitutions for the cell
+   * @return the substitutions, formatted as {@code KEY=VALUE} pairs separated by commas
+   */
+  static String cellName(Map<String, String> cell) {
+    List<String> pairs = new ArrayList<>();
+    cell.forEach((key, value) -> pairs.add(String.format("%s=%s", key, value)));
+    return String.join(", ", pairs);
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    if (matrix.isEmpty()) {
+      throw new AbortException(Messages.CloudBuildMatrixStep_EmptyMatrix());
+    }
+    if (parallelism < 1) {
+      throw new AbortException(Messages.CloudBuildMatrixStep_InvalidParallelism());
+    }
+    Set<String> names = new HashSet<>();
+    for (Map<String, String> cell : matrix) {
+      if (!names.add(cellName(cell))) {
+        throw new AbortException(Messages.CloudBuildMatrixStep_DuplicateCell(cellName(cell)));
+      }
+    }
+    CloudBuildInput input = new CloudBuildInput(credentialsId, request);
+    input.setSource(source);
+    input.setSubstitutions(substitutions);
+    return new CloudBuildMatrixStepExecution(
+        input, matrix, parallelism, propagateFailure, context);
+  }
+
+  /** Descriptor for {@link CloudBuildMatrixStep}. */
+  @Extension
+  public static class Descriptor extends StepDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildMatrixStep_DisplayName();
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "googleCloudBuildMatrix";
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return new HashSet<>(Arrays.asList(EnvVars.class, Run.class, TaskListener.class));
+    }
+  }
+}
@@ -0,0 +1,310 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.UUID;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.jenkins.plugins.cloudbuild.client.BuildTags;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import com.google.jenkins.plugins.cloudbuild.context.PipelineBuildContext;
+import com.google.jenkins.plugins.cloudbuild.request.TriggerCloudBuildRequest;
+import hudson.AbortException;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/** Submits and polls the builds for each cell of a {@link CloudBuildMatrixStep}. */
+final class CloudBuildMatrixStepExecution extends StepExecution {
+  private static final long serialVersionUID = 1L;
+
+  static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  /** The status reported for a cell whose build request could not be submitted. */
+  static final String NOT_SUBMITTED = "NOT_SUBMITTED";
+
+  private final CloudBuildInput input;
+  private final List<Map<String, String>> matrix;
+  private final int parallelism;
+  private final boolean propagateFailure;
+  private final String stepId;
+  /** The handle of each cell's build, by cell name. */
+  private final Map<String, CloudBuildHandle> handles =
+      Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The reason each cell that could not be submitted failed, by cell name. */
+  private final Map<String, String> errors = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** The last status seen for each build, by build ID. */
+  private final Map<String, String> statuses = Collections.synchronizedMap(new LinkedHashMap<>());
+  /** Whether an attempt has been made to submit every cell. */
+  private volatile boolean submitted;
+  private transient volatile Future<?> task;
+  /** The permits under which the builds of the cells count against the concurrency limits. */
+  private transient HeldPermits heldPermits;
+
+  CloudBuildMatrixStepExecution(CloudBuildInput input, List<Map<String, String>> matrix,
+      int parallelism, boolean propagateFailure, StepContext context) {
+    super(context);
+    this.input = input;
+    this.matrix = new ArrayList<>(matrix);
+    this.parallelism = parallelism;
+    this.propagateFailure = propagateFailure;
+    this.stepId = UUID.randomUUID().toString();
+  }
+
+  /** API client for Google Cloud Platform. */
+  private transient volatile ClientFactory clients;
+
+  /** Returns the API client for Google Cloud Platform (recreating it if necessary). */
+  private synchronized ClientFactory getClients() throws IOException, InterruptedException {
+    if (clients == null) {
+      clients = new ClientFactory(
+          getContext().get(Run.class), getContext().get(TaskListener.class),
+          input.getCredentialsId());
+    }
+    return clients;
+  }
+
+  private synchronized HeldPermits getHeldPermits() {
+    if (heldPermits == null) {
+      heldPermits = new HeldPermits();
+    }
+    return heldPermits;
+  }
+
+  /** The executor on which cells are submitted and polled. */
+  private static volatile ExecutorService executorService;
+
+  private static synchronized ExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newCachedThreadPool(
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), CloudBuildMatrixStepExecution.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  /** Returns the identifier used to tag the build for the cell at {@code index}. */
+  private String cellStepId(int index) {
+    return String.format("%s-%d", stepId, index);
+  }
+
+  private CloudBuildHandle toHandle(CloudBuildClient cloudBuild, Build build) {
+    return new CloudBuildHandle(
+        input.getCredentialsId(), cloudBuild.getProjectId(), build.getId(), build.getLogUrl());
+  }
+
+  /**
+   * Expands the request and prepares the source once, then submits the build for every cell, at
+   * most {@link #parallelism} at a time and each under a permit from the {@link SubmissionQueue}.
+   *
+   * @param poll polls the cells submitted so far while the others are being submitted
+   */
+  private void submitAll(HeldPermits.Poll poll) throws IOException, InterruptedException {
+    BuildContext context = new PipelineBuildContext(getContext());
+    Run<?, ?> run = getContext().get(Run.class);
+    PrintStream logger = getContext().get(TaskListener.class).getLogger();
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    cloudBuild.awaitAvailable();
+    TriggerCloudBuildRequest trigger = input.getTrigger();
+    String request = trigger == null ? input.getRequest().expand(context) : null;
+    Source source =
+        trigger == null ? input.getSourceOrDefault().prepare(context, getClients()) : null;
+    Map<String, String> shared = input.getSubstitutionMap(context);
+
+    Semaphore slots = new Semaphore(parallelism);
+    List<Future<?>> futures = new ArrayList<>();
+    for (int i = 0; i < matrix.size(); i++) {
+      Map<String, String> cell = matrix.get(i);
+      String name = CloudBuildMatrixStep.cellName(cell);
+      Map<String, String> substitutions = new LinkedHashMap<>(shared);
+      substitutions.putAll(cell);
+      String cellStepId = cellStepId(i);
+      futures.add(getExecutorService().submit(() -> {
+        SubmissionQueue.Permit permit = null;
+        try {
+          slots.acquire();
+          try {
+            permit = HeldPermits.acquire(cloudBuild, run, input.getPriority(), logger);
+            Build build = trigger != null
+                ? cloudBuild.runTrigger(
+                    trigger.getTriggerId(), trigger.getRevision(context, substitutions))
+                : cloudBuild.submitBuild(request, source, substitutions, cellStepId);
+            getHeldPermits().hold(build.getId(), permit);
+            handles.put(name, toHandle(cloudBuild, build));
+          } finally {
+            slots.release();
+          }
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          if (permit != null) {
+            permit.release();
+          }
+          errors.put(name, e.getMessage());
+        }
+      }));
+    }
+    HeldPermits.awaitSubmissions(futures, poll, POLL_INTERVAL_MILLIS);
+  }
+
+  /**
+   * Finds the builds for cells that may have been submitted before Jenkins restarted, but whose
+   * handles were not saved.
+   */
+  private void recoverAll() throws IOException, InterruptedException {
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    Run<?, ?> run = getContext().get(Run.class);
+    for (int i = 0; i < matrix.size(); i++) {
+      String name = CloudBuildMatrixStep.cellName(matrix.get(i));
+      if (handles.containsKey(name) || errors.containsKey(name)) {
+        continue;
+      }
+      Build existing = cloudBuild.findBuildByTag(BuildTags.submission(run, cellStepId(i), 1));
+      if (existing == null) {
+        errors.put(name, Messages.CloudBuildStepExecution_NotSubmittedBeforeRestart());
+      } else {
+        handles.put(name, toHandle(cloudBuild, existing));
+      }
+    }
+  }
+
+  /** Returns the IDs of the builds that have not completed yet. */
+  private List<String> getPendingBuildIds() {
+    synchronized (handles) {
+      return handles.values().stream()
+          .map(CloudBuildHandle::getBuildId)
+          .filter(buildId -> !BuildPoller.isComplete(statuses.get(buildId)))
+          .distinct()
+          .collect(Collectors.toList());
+    }
+  }
+
+  /** Returns the result of each cell, by cell name, in the order of the matrix. */
+  private LinkedHashMap<String, Map<String, Object>> getResults() {
+    LinkedHashMap<String, Map<String, Object>> results = new LinkedHashMap<>();
+    for (Map<String, String> cell : matrix) {
+      String name = CloudBuildMatrixStep.cellName(cell);
+      CloudBuildHandle handle = handles.get(name);
+      Map<String, Object> result;
+      if (handle == null) {
+        result = new LinkedHashMap<>();
+        result.put("status", NOT_SUBMITTED);
+        result.put("error", errors.get(name));
+      } else {
+        result = handle.toMap();
+        result.put("status", statuses.get(handle.getBuildId()));
+      }
+      results.put(name, result);
+    }
+    return results;
+  }
+
+  /**
+   * Starts the thread to submit the cells (if necessary) and poll Google Cloud Build.
+   *
+   * @param resumed whether this step is being resumed after Jenkins restarted
+   */
+  private void startPolling(boolean resumed) {
+    task = getExecutorService().submit(() -> {
+      try {
+        PrintStream logger = getContext().get(TaskListener.class).getLogger();
+        CloudBuildClient cloudBuild = getClients().cloudBuild();
+        Map<String, Integer> misses = new HashMap<>();
+        HeldPermits.Poll poll = () -> {
+          List<String> buildIds = getPendingBuildIds();
+          if (!buildIds.isEmpty()) {
+            BuildPoller.poll(cloudBuild, buildIds, statuses, misses, logger);
+          }
+          getHeldPermits().releaseCompleted(statuses);
+        };
+        if (!submitted) {
+          if (resumed) {
+            recoverAll();
+          } else {
+            submitAll(poll);
+          }
+          submitted = true;
+        }
+        List<String> pending = getPendingBuildIds();
+        while (!pending.isEmpty()) {
+          poll.poll();
+          pending = getPendingBuildIds();
+          if (!pending.isEmpty()) {
+            TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+          }
+        }
+
+        LinkedHashMap<String, Map<String, Object>> results = getResults();
+        List<String> failed = results.entrySet().stream()
+            .filter(entry -> !"SUCCESS".equals(entry.getValue().get("status")))
+            .map(Map.Entry::getKey)
+            .collect(Collectors.toList());
+        if (!failed.isEmpty()) {
+          logger.println(Messages.CloudBuildMatrixStep_CellsFailed(String.join("; ", failed)));
+          if (propagateFailure) {
+            throw new AbortException(
+                Messages.CloudBuildMatrixStep_CellsFailed(String.join("; ", failed)));
+          }
+        }
+        getContext().onSuccess(results);
+      } catch (Exception e) {
+        getContext().onFailure(e);
+      } finally {
+        getHeldPermits().releaseAll();
+      }
+    });
+  }
+
+  @Override
+  public boolean start() throws Exception {
+    CloudBuildStepExecution.checkWorkspace(input, getContext());
+    startPolling(false);
+    return false;
+  }
+
+  @Override
+  public void stop(@Nonnull Throwable throwable) throws Exception {
+    if (task != null) {
+      task.cancel(true);
+    } else {
+      getContext().onFailure(throwable);
+    }
+  }
+
+  @Override
+  public void onResume() {
+    startPolling(true);
+  }
+}
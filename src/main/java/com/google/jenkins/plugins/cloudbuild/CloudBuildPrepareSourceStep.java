@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import com.google.jenkins.plugins.cloudbuild.source.BackgroundSources;
+import com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource;
+import hudson.AbortException;
+import hudson.EnvVars;
+import hudson.Extension;
+import hudson.FilePath;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * A Jenkins build step that starts preparing a source in the background and returns an ID right
+ * away. A later step refers to the source by that ID through
+ * {@link com.google.jenkins.plugins.cloudbuild.source.PreparedCloudBuildSource}, and only waits
+ * for it if it is not ready yet, so that uploading the source does not hold up other stages.
+ */
+public final class CloudBuildPrepareSourceStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Nonnull
+  private final String credentialsId;
+  @Nonnull
+  private final CloudBuildSource source;
+
+  @DataBoundConstructor
+  public CloudBuildPrepareSourceStep(
+      @Nonnull String credentialsId, @Nonnull CloudBuildSource source) {
+    this.credentialsId = credentialsId;
+    this.source = source;
+  }
+
+  @Nonnull
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  @Nonnull
+  public CloudBuildSource getSource() {
+    return source;
+  }
+
+  /**
+   * The context in which a source is prepared. The workspace and log of the step are looked up
+   * before the step returns, since the step's context cannot be used once it has completed.
+   */
+  private static final class BackgroundContext implements BuildContext {
+    @CheckForNull
+    private final FilePath workspace;
+    private final TaskListener listener;
+
+    BackgroundContext(@CheckForNull FilePath workspace, TaskListener listener) {
+      this.workspace = workspace;
+      this.listener = listener;
+    }
+
+    @Override
+    public String expand(String s) {
+      return s;  // Groovy has already expanded any variables.
+    }
+
+    @Override
+    public FilePath getWorkspace() {
+      return workspace;
+    }
+
+    @Override
+    public TaskListener getListener() {
+      return listener;
+    }
+  }
+
+  /** Starts preparing the source and completes with its ID. */
+  private static final class Execution extends StepExecution {
+    private static final long serialVersionUID = 1L;
+
+    private final transient CloudBuildPrepareSourceStep step;
+
+    Execution(CloudBuildPrepareSourceStep step, StepContext context) {
+      super(context);
+      this.step = step;
+    }
+
+    @Override
+    public boolean start() throws Exception {
+      FilePath workspace = getContext().get(FilePath.class);
+      if (step.source.requiresWorkspace() && workspace == null) {
+        throw new AbortException(Messages.CloudBuildStepExecution_WorkspaceRequired());
+      }
+      Run<?, ?> run = getContext().get(Run.class);
+      TaskListener listener = getContext().get(TaskListener.class);
+      BuildContext context = new BackgroundContext(workspace, listener);
+      ClientFactory clients = new ClientFactory(run, listener, step.credentialsId);
+      String id = BackgroundSources.get().start(
+          run, clients.getProjectId(), () -> step.source.prepare(context, clients));
+      listener.getLogger().println(Messages.CloudBuildPrepareSourceStep_Started(id));
+      getContext().onSuccess(id);
+      return true;
+    }
+
+    @Override
+    public void stop(@Nonnull Throwable cause) {
+      // The step completes as soon as it starts.
+    }
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    return new Execution(this, context);
+  }
+
+  /** Descriptor for {@link CloudBuildPrepareSourceStep}. */
+  @Extension
+  public static class Descriptor extends StepDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildPrepareSourceStep_DisplayName();
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "googleCloudBuildPrepareSource";
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return new HashSet<>(Arrays.asList(EnvVars.class, Run.class, TaskListener.class));
+    }
+  }
+}
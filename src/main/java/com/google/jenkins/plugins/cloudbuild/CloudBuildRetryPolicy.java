@@ -0,0 +1,194 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.jenkins.plugins.cloudbuild.client.BuildFailedException;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.model.Run;
+import hudson.util.FormValidation;
+
+/**
+ * Resubmits a build that ended with one of a configurable set of statuses, which usually indicate
+ * a problem with the Cloud Build infrastructure rather than with the build itself. The request and
+ * the prepared source of the first attempt are reused, so a local source is not uploaded again.
+ */
+public final class CloudBuildRetryPolicy extends AbstractDescribableImpl<CloudBuildRetryPolicy>
+    implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  public static final String DEFAULT_STATUSES = "INTERNAL_ERROR TIMEOUT EXPIRED";
+  public static final int DEFAULT_MAX_ATTEMPTS = 3;
+  public static final int DEFAULT_BACKOFF_SECONDS = 30;
+  static final long MAX_BACKOFF_MILLIS = TimeUnit.MINUTES.toMillis(10);
+
+  @Nonnull
+  private String statuses = DEFAULT_STATUSES;
+  private int maxAttempts = DEFAULT_MAX_ATTEMPTS;
+  private int backoffSeconds = DEFAULT_BACKOFF_SECONDS;
+
+  @DataBoundConstructor
+  public CloudBuildRetryPolicy() {}
+
+  /** Returns the statuses after which a build is resubmitted, separated by spaces or commas. */
+  @Nonnull
+  public String getStatuses() {
+    return statuses;
+  }
+
+  @DataBoundSetter
+  public void setStatuses(@CheckForNull String statuses) {
+    this.statuses = statuses == null ? "" : statuses;
+  }
+
+  /** Returns the statuses after which a build is resubmitted, in upper case. */
+  List<String> getStatusList() {
+    List<String> result = new ArrayList<>();
+    for (String status : statuses.toUpperCase(Locale.ROOT).split("[\\s,]+")) {
+      if (!status.isEmpty()) {
+        result.add(status);
+      }
+    }
+    return result;
+  }
+
+  /** Returns the maximum number of builds submitted, including the first. */
+  public int getMaxAttempts() {
+    return maxAttempts;
+  }
+
+  @DataBoundSetter
+  public void setMaxAttempts(int maxAttempts) {
+    this.maxAttempts = maxAttempts;
+  }
+
+  /** Returns how long to wait before the first resubmission; the wait doubles every attempt. */
+  public int getBackoffSeconds() {
+    return backoffSeconds;
+  }
+
+  @DataBoundSetter
+  public void setBackoffSeconds(int backoffSeconds) {
+    this.backoffSeconds = backoffSeconds;
+  }
+
+  /**
+   * Returns whether a build that ended with {@code status} is resubmitted.
+   *
+   * @param status the terminal status of the build
+   * @param attempt the number of the attempt that ended, starting at 1
+   */
+  boolean shouldRetry(String status, int attempt) {
+    return attempt < maxAttempts && getStatusList().contains(status);
+  }
+
+  /** Returns how long to wait after {@code attempt} failed before resubmitting the build. */
+  long getBackoffMillis(int attempt) {
+    long millis = TimeUnit.SECONDS.toMillis(Math.max(0, backoffSeconds));
+    for (int i = 1; i < attempt && millis < MAX_BACKOFF_MILLIS; i++) {
+      millis *= 2;
+    }
+    return Math.min(millis, MAX_BACKOFF_MILLIS);
+  }
+
+  /** Submits one attempt at a build. */
+  @FunctionalInterface
+  interface Submission {
+    Build submit(int attempt) throws IOException, InterruptedException;
+  }
+
+  /**
+   * Waits for a build to succeed, resubmitting it as long as this policy allows. Every attempt is
+   * recorded in the {@link BuildAttemptsAction} of {@code run}.
+   *
+   * @param cloudBuild the client through which the builds are polled
+   * @param run the Jenkins build that submitted the build
+   * @param buildId the ID of the build to wait for
+   * @param attempt the number of the attempt that {@code buildId} is, starting at 1
+   * @param resubmit submits the next attempt, or {@code null} if the build cannot be resubmitted
+   *     (e.g., because Jenkins restarted since it was prepared)
+   * @param resubmitted called with every build resubmitted, before waiting for it
+   * @param logger the log to which resubmissions are reported
+   * @return the ID of the build that succeeded
+   * @throws BuildFailedException if the last attempt failed
+   * @throws IOException if an I/O error occurs while polling or resubmitting
+   * @throws InterruptedException if interrupted while polling or waiting to resubmit
+   */
+  String waitForSuccess(CloudBuildClient cloudBuild, Run<?, ?> run, String buildId, int attempt,
+      @CheckForNull Submission resubmit, Consumer<Build> resubmitted, PrintStream logger)
+      throws IOException, InterruptedException {
+    while (true) {
+      try {
+        cloudBuild.waitForSuccess(buildId);
+        BuildAttemptsAction.record(run, buildId, attempt, "SUCCESS");
+        return buildId;
+      } catch (BuildFailedException e) {
+        BuildAttemptsAction.record(run, buildId, attempt, e.getStatus());
+        if (resubmit == null || !shouldRetry(e.getStatus(), attempt)) {
+          throw e;
+        }
+        long backoffMillis = getBackoffMillis(attempt);
+        logger.println(Messages.CloudBuildRetryPolicy_Retrying(buildId, e.getStatus(),
+            TimeUnit.MILLISECONDS.toSeconds(backoffMillis), attempt + 1, maxAttempts));
+        TimeUnit.MILLISECONDS.sleep(backoffMillis);
+        attempt++;
+        Build build = resubmit.submit(attempt);
+        buildId = build.getId();
+        resubmitted.accept(build);
+      }
+    }
+  }
+
+  /** Descriptor for {@link CloudBuildRetryPolicy}. */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<CloudBuildRetryPolicy> {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildRetryPolicy_DisplayName();
+    }
+
+    public FormValidation doCheckMaxAttempts(@QueryParameter int value) {
+      if (value < 1) {
+        return FormValidation.error(Messages.CloudBuildGlobalConfiguration_MustBePositive());
+      }
+      return FormValidation.ok();
+    }
+
+    public FormValidation doCheckBackoffSeconds(@QueryParameter int value) {
+      if (value < 0) {
+        return FormValidation.error(Messages.CloudBuildGlobalConfiguration_MustNotBeNegative());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
@@ -0,0 +1,75 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import hudson.model.InvisibleAction;
+
+/**
+ * Records the status of a Google Cloud Build build that a Jenkins build did not wait for (see
+ * {@link CloudBuildBuilder#isAsync()}). The status is updated by {@link AsyncBuildTracker} until
+ * the build completes, and is shown on the Jenkins build's page.
+ */
+public class CloudBuildStatusAction extends InvisibleAction {
+  private final String credentialsId;
+  private final String buildId;
+  private String status = "QUEUED";
+  private String statusDetail;
+  private String logUrl;
+
+  public CloudBuildStatusAction(String credentialsId, String buildId) {
+    this.credentialsId = credentialsId;
+    this.buildId = buildId;
+  }
+
+  public String getCredentialsId() {
+    return credentialsId;
+  }
+
+  public String getBuildId() {
+    return buildId;
+  }
+
+  public synchronized String getStatus() {
+    return status;
+  }
+
+  @CheckForNull
+  public synchronized String getStatusDetail() {
+    return statusDetail;
+  }
+
+  @CheckForNull
+  public synchronized String getLogUrl() {
+    return logUrl;
+  }
+
+  /** Returns whether the build has stopped running, whether or not it succeeded. */
+  public synchronized boolean isComplete() {
+    return !status.equals("QUEUED") && !status.equals("WORKING");
+  }
+
+  /**
+   * Updates the recorded status.
+   *
+   * @param build the build, with its status fields set
+   */
+  synchronized void update(Build build) {
+    status = build.getStatus();
+    statusDetail = build.getStatusDetail();
+    logUrl = build.getLogUrl();
+  }
+}
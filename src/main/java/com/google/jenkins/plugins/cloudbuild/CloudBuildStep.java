@@ -30,7 +30,6 @@ import org.kohsuke.stapler.DataBoundConstructor;
 
 import hudson.EnvVars;
 import hudson.Extension;
-import hudson.FilePath;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 
@@ -72,17 +71,25 @@ public final class CloudBuildStep extends Step implements Serializable {
     @Override
     public Set<? extends Class<?>> getRequiredContext() {
       return new HashSet<>(Arrays.asList(
-          EnvVars.class, FilePath.class, Run.class, TaskListener.class));
+          EnvVars.class, Run.class, TaskListener.class));
     }
 
     @Override
     public UninstantiatedDescribable uninstantiate(Step step) throws UnsupportedOperationException {
-      CloudBuildStep s = (CloudBuildStep) step;
+      return uninstantiateInput(((CloudBuildStep) step).input);
+    }
 
+    /**
+     * Uninstantiates a step whose only parameter is {@code input}, for the snippet generator.
+     *
+     * @param input the input to the step
+     * @return the arguments of the step
+     */
+    static UninstantiatedDescribable uninstantiateInput(CloudBuildInput input) {
       // Uninstantiate the input parameter only. Jenkins knows how to handle instantiation when
       // there is exactly one required parameter, and the generated code is much nicer.
       UninstantiatedDescribable result =
-          new DescribableModel<>(CloudBuildInput.class).uninstantiate2(s.input);
+          new DescribableModel<>(CloudBuildInput.class).uninstantiate2(input);
 
       // Remove the substitutionList property, since it duplicates the substitutions property and is
       // more verbose.
@@ -14,34 +14,98 @@
 package com.google.jenkins.plugins.cloudbuild;
 
 import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Map;
+import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Future;
+import java.util.logging.Level;
+import java.util.logging.Logger;
 
 import javax.annotation.Nonnull;
 
 import org.jenkinsci.plugins.workflow.steps.StepContext;
 import org.jenkinsci.plugins.workflow.steps.StepExecution;
 
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.RepoSource;
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.jenkins.plugins.cloudbuild.client.BuildFailedException;
+import com.google.jenkins.plugins.cloudbuild.client.BuildTags;
 import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
 import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
 import com.google.jenkins.plugins.cloudbuild.context.PipelineBuildContext;
+import com.google.jenkins.plugins.cloudbuild.request.TriggerCloudBuildRequest;
+import hudson.AbortException;
+import hudson.FilePath;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.util.DaemonThreadFactory;
 import hudson.util.NamingThreadFactory;
 
-/** Submits a build request to Google Cloud Build. */
+/**
+ * Submits a build request to Google Cloud Build, and either waits for the build to complete or
+ * returns a {@link CloudBuildHandle} for it.
+ */
 public final class CloudBuildStepExecution extends StepExecution {
   private static final long serialVersionUID = 1L;
+  private static final Logger LOGGER = Logger.getLogger(CloudBuildStepExecution.class.getName());
 
   private final CloudBuildInput input;
+  private final String stepId;
+  private final boolean waitForCompletion;
   private transient volatile Future<?> task;
+  private transient volatile boolean stopped;
   private String buildId;
+  private CloudBuildHandle handle;
+  /** The key under which the result of the build is cached, if caching is enabled. */
+  private String cacheKey;
+  /** The cached result returned instead of submitting a build, if any. */
+  private BuildResultCache.Entry cached;
+  /** The key of the build that this step owns in {@link InFlightBuilds}, if any. */
+  private transient volatile String flightKey;
+  /** The permit under which the build of this step counts against the concurrency limits. */
+  private transient volatile SubmissionQueue.Permit permit;
+  /** The number of the attempt that {@link #buildId} is, or 0 before the build is submitted. */
+  private int attempt;
+  /** Submits a further attempt at the build, as long as the prepared inputs are available. */
+  private transient volatile CloudBuildRetryPolicy.Submission resubmit;
+  /** The prefix of the IDs of this step's steps, if its request was packed with others. */
+  private String packPrefix;
+  /** The build submitted by {@link BuildPacker}, while it holds a share of its permit and pool. */
+  private transient volatile BuildPacker.Packed packed;
+  /** The credentials that the build was routed to, if the step uses a {@link ProjectPool}. */
+  private String routedCredentialsId;
+  /** Whether this step counts towards the builds in flight of {@link #routedCredentialsId}. */
+  private transient volatile boolean routeHeld;
+  /** The private worker pool chosen by {@link WorkerPoolRouter}, while the build counts in it. */
+  private transient volatile String workerPool;
+  /** The fingerprint under which the build is recorded in {@link BuildHistory}, if auto-tuned. */
+  private String historyKey;
+  /** The size of the prepared source archive, or -1 if it is not known. */
+  private long sourceBytes = -1;
 
   public CloudBuildStepExecution(CloudBuildInput input, StepContext context) {
+    this(input, context, true);
+  }
+
+  /**
+   * Creates an execution of {@code googleCloudBuild} or {@code googleCloudBuildSubmit}.
+   *
+   * @param input the build request to submit
+   * @param context the context of the step
+   * @param waitForCompletion whether to wait for the build to complete, rather than returning a
+   *     {@link CloudBuildHandle} as soon as the build has been submitted
+   */
+  CloudBuildStepExecution(CloudBuildInput input, StepContext context, boolean waitForCompletion) {
     super(context);
     this.input = input;
+    this.stepId = UUID.randomUUID().toString();
+    this.waitForCompletion = waitForCompletion;
   }
 
   /** API client for Google Cloud Platform. */
@@ -52,11 +116,42 @@ public final class CloudBuildStepExecution extends StepExecution {
     if (clients == null) {
       clients = new ClientFactory(
           getContext().get(Run.class), getContext().get(TaskListener.class),
-          input.getCredentialsId());
+          getCredentialsId());
     }
     return clients;
   }
 
+  /**
+   * Uses the credentials already looked up by {@code shared} instead of looking them up again.
+   *
+   * @param shared a factory for the same credentials, created on behalf of another Jenkins build
+   */
+  synchronized void useClients(ClientFactory shared) throws IOException, InterruptedException {
+    clients = shared.forRun(getContext().get(Run.class), getContext().get(TaskListener.class));
+  }
+
+  /**
+   * Returns the ID of the credentials used to access Google Cloud Build: those the build was routed
+   * to if the step uses a {@link ProjectPool}, or else those of the step.
+   */
+  String getCredentialsId() {
+    return routedCredentialsId != null ? routedCredentialsId : input.getCredentialsId();
+  }
+
+  /** Returns the ID of the submitted build, or {@code null} if it was never submitted. */
+  String getBuildId() {
+    return buildId;
+  }
+
+  /**
+   * Records that the build described by {@code handle} was submitted, as it would have been saved
+   * before Jenkins restarted. This lets tests resume a step without restarting Jenkins.
+   */
+  void setSubmitted(CloudBuildHandle handle) {
+    this.handle = handle;
+    this.buildId = handle.getBuildId();
+  }
+
   /** The executor to be used for polling tasks. */
   private static volatile ExecutorService executorService;
 
@@ -73,38 +168,397 @@ public final class CloudBuildStepExecution extends StepExecution {
     return executorService;
   }
 
-  /** Starts the thread to poll Google Cloud Build. */
-  private void startPolling() {
+  /**
+   * Submits the build request to Google Cloud Build. The submission may be held for a while if the
+   * Cloud Build API is unavailable, so this must not be called from the CPS VM thread.
+   */
+  private Build submit() throws IOException, InterruptedException {
+    BuildContext context = new PipelineBuildContext(getContext());
+    Run<?, ?> run = getContext().get(Run.class);
+    PrintStream logger = getContext().get(TaskListener.class).getLogger();
+    if (input.getPool() != null) {
+      routedCredentialsId =
+          ProjectRouter.get().acquire(input.getPool(), run.getParent().getFullName(), logger);
+      routeHeld = true;
+    }
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    cloudBuild.awaitAvailable();
+    TriggerCloudBuildRequest trigger = input.getTrigger();
+    String request = trigger == null ? input.getRequest().expand(context) : null;
+    Map<String, String> substitutions = input.getSubstitutionMap(context);
+    String key = null;
+    // The inputs of a trigger's build are only known to Cloud Build.
+    if (trigger == null && (input.isCache() || input.isCoalesce())) {
+      key = BuildResultCache.key(
+          cloudBuild, request, substitutions, input, context, getClients());
+    }
+    if (key != null && input.isCache()) {
+      cacheKey = key;
+      if (!input.isForceRebuild()) {
+        cached = BuildResultCache.get().lookup(cacheKey, logger);
+        if (cached != null) {
+          run.addAction(new BuildLogAction(cached.getLogUrl()));
+          return new Build().setId(cached.getBuildId()).setLogUrl(cached.getLogUrl());
+        }
+      }
+    }
+    // Only a step that waits for its build can own it, since the owner releases it on completion.
+    if (key != null && input.isCoalesce() && waitForCompletion) {
+      Build shared = InFlightBuilds.get().attachOrClaim(key, run, logger);
+      if (shared != null) {
+        run.addAction(new BuildLogAction(shared.getLogUrl()));
+        return shared;
+      }
+      flightKey = key;
+    }
+    // Only a step that waits for its build can tell its own steps' outcome from the pack's.
+    boolean packing = input.isPack() && waitForCompletion && trigger == null;
+    try {
+      // Only a step that waits for its build knows when to release its permit. A pack takes a
+      // single permit and worker pool for all of its members.
+      if (waitForCompletion && !packing) {
+        permit = SubmissionQueue.get().acquire(cloudBuild.getProjectId(),
+            run.getParent().getFullName(), input.getPriority(), logger);
+      }
+      CloudBuildRetryPolicy.Submission submission;
+      if (trigger != null) {
+        RepoSource revision = trigger.getRevision(context, substitutions);
+        submission = n -> cloudBuild.runTrigger(trigger.getTriggerId(), revision);
+      } else {
+        Source source = input.getSourceOrDefault().prepare(context, getClients());
+        String pooled = request;
+        if (!packing && !input.getWorkerPoolList().isEmpty()) {
+          workerPool = WorkerPoolRouter.get().acquire(input.getWorkerPoolList(), logger);
+          pooled = RequestProcessor.setWorkerPool(request, workerPool);
+        }
+        String tuned = pooled;
+        if (input.getAutoTune() != null) {
+          historyKey = BuildHistory.fingerprint(cloudBuild.getProjectId(), request);
+          try {
+            sourceBytes = BuildHistory.sourceBytes(source, getClients());
+          } catch (IOException e) {
+            LOGGER.log(Level.WARNING, "Failed to look up the size of the source", e);
+            sourceBytes = -1;
+          }
+          // The machine type of a build in a worker pool is left to the pool.
+          tuned = input.getAutoTune().apply(pooled, BuildHistory.get().getSamples(historyKey),
+              sourceBytes, !input.getWorkerPoolList().isEmpty(), logger);
+        }
+        String sent = tuned;
+        submission = n -> cloudBuild.submitBuild(sent, source, substitutions, stepId, n);
+        if (packing) {
+          packed = BuildPacker.get().submit(cloudBuild,
+              String.format("%s@%s",
+                  getCredentialsId(), run.getParent().getParent().getFullName()),
+              sent, source, substitutions, stepId, input.getPriority(),
+              input.getWorkerPoolList(), run, logger);
+          String packPool = packed.getWorkerPool();
+          if (packPool != null) {
+            // A request resubmitted on its own runs in the pool that its pack was given.
+            submission = n -> cloudBuild.submitBuild(
+                RequestProcessor.setWorkerPool(sent, packPool), source, substitutions, stepId, n);
+          }
+        }
+      }
+      Build build;
+      if (packed != null) {
+        build = packed.getBuild();
+        packPrefix = packed.getPrefix();
+      } else {
+        build = submission.submit(1);
+      }
+      String chosenPool = packed != null ? packed.getWorkerPool() : workerPool;
+      if (chosenPool != null) {
+        WorkerPoolAction.record(
+            run, build.getId(), chosenPool, input.getWorkerPoolList().size());
+      }
+      // Keep the prepared inputs around in case the build has to be resubmitted.
+      resubmit = submission;
+      attempt = 1;
+      if (packed != null) {
+        // Other steps could not tell their outcome from the pack's, so they submit their own.
+        releaseFlight();
+      } else if (flightKey != null) {
+        InFlightBuilds.get().started(flightKey, build);
+      }
+      return build;
+    } catch (IOException | InterruptedException | RuntimeException e) {
+      releasePermit();
+      releaseFlight();
+      throw e;
+    }
+  }
+
+  /** Lets other steps submit the build that this step owned, once it has completed. */
+  private void releaseFlight() {
+    if (flightKey != null) {
+      InFlightBuilds.get().finished(flightKey);
+      flightKey = null;
+    }
+  }
+
+  /**
+   * Takes the build of this step off the builds counted by {@link ProjectRouter} and
+   * {@link WorkerPoolRouter}.
+   */
+  private void releaseRoute() {
+    if (routeHeld) {
+      ProjectRouter.get().release(routedCredentialsId);
+      routeHeld = false;
+    }
+    if (workerPool != null) {
+      WorkerPoolRouter.get().release(workerPool);
+      workerPool = null;
+    }
+  }
+
+  /** Lets the next queued step submit its build, once the build of this step has completed. */
+  private void releasePermit() {
+    if (permit != null) {
+      permit.release();
+      permit = null;
+    }
+    if (packed != null) {
+      packed.release();
+      packed = null;
+    }
+  }
+
+  /**
+   * Finds the build that was submitted before Jenkins restarted. The ID of the build may not have
+   * been saved, but the build can still be found through its submission tag.
+   */
+  private Build recover() throws IOException, InterruptedException {
+    Run<?, ?> run = getContext().get(Run.class);
+    Build existing =
+        getClients().cloudBuild().findBuildByTag(
+            BuildTags.submission(run, stepId, Math.max(1, attempt)));
+    if (existing == null) {
+      // The build request was never sent; the inputs (e.g., the workspace) may no longer be
+      // available, so do not try to submit it again.
+      throw new AbortException(Messages.CloudBuildStepExecution_NotSubmittedBeforeRestart());
+    }
+    return existing;
+  }
+
+  /** Returns whether the request of this step was submitted as part of a packed build. */
+  boolean isPacked() {
+    return packPrefix != null;
+  }
+
+  /**
+   * Completes this step if its build finished while Jenkins was down. If the request of this step
+   * was packed with others, the outcome of its own steps within the pack is what counts.
+   *
+   * @param build the build, with its ID and status fields set, and {@link BuildPacker#STEP_FIELDS}
+   *     if {@link #isPacked()}
+   * @return {@code true} if the step was completed (or was stopped while waiting to be resumed),
+   *     or {@code false} if the build is still running
+   */
+  boolean completeIfFinished(Build build) {
+    if (stopped) {
+      // The step already failed when it was stopped.
+      return true;
+    }
+    try {
+      Build outcome = build;
+      if (packPrefix != null) {
+        if (!BuildPoller.isComplete(build.getStatus())) {
+          return false;
+        }
+        if (build.getSteps() == null) {
+          outcome = getClients().cloudBuild()
+              .getBuilds(Collections.singleton(buildId), BuildPacker.STEP_FIELDS).get(buildId);
+          if (outcome == null) {
+            return false;
+          }
+        }
+        outcome = outcome.clone().setStatus(BuildPacker.memberStatus(outcome, packPrefix));
+      }
+      if (!getClients().cloudBuild().reportStatus(outcome)) {
+        return false;
+      }
+      getContext().onSuccess(getResult());
+    } catch (Exception e) {
+      getContext().onFailure(e);
+    }
+    return true;
+  }
+
+  /**
+   * Returns the result of a step whose build succeeded, recording it in the cache if caching is
+   * enabled and in the build history if auto-tuning is enabled. The images pushed by the build are
+   * only listed when caching is enabled.
+   */
+  private Map<String, Object> getResult() throws IOException, InterruptedException {
+    Map<String, Object> result = handle.toMap();
+    result.put("status", "SUCCESS");
+    result.put("cached", cached != null);
+    BuildResultCache.Entry entry = cached;
+    if (entry == null && cacheKey != null) {
+      entry = BuildResultCache.get().record(cacheKey, getClients().cloudBuild(), buildId);
+    }
+    if (cacheKey != null) {
+      result.put("images",
+          entry != null ? new ArrayList<>(entry.getImages()) : new ArrayList<String>());
+    }
+    // A packed build's timing says little about the request on its own.
+    if (historyKey != null && cached == null && packPrefix == null) {
+      try {
+        BuildHistory.get().record(historyKey, getClients().cloudBuild(), buildId, sourceBytes);
+      } catch (IOException e) {
+        LOGGER.log(Level.WARNING, "Failed to record the history of build " + buildId, e);
+      }
+    }
+    return result;
+  }
+
+  /** Waits for the build to succeed, resubmitting it as long as the retry policy allows. */
+  private void waitForSuccess() throws IOException, InterruptedException {
+    CloudBuildClient cloudBuild = getClients().cloudBuild();
+    CloudBuildRetryPolicy retry = input.getRetry();
+    if (packPrefix != null && !waitForPack(cloudBuild, retry)) {
+      return;
+    }
+    if (retry == null) {
+      cloudBuild.waitForSuccess(buildId);
+      return;
+    }
+    retry.waitForSuccess(cloudBuild, getContext().get(Run.class), buildId, Math.max(1, attempt),
+        resubmit,
+        build -> {
+          attempt = Math.max(1, attempt) + 1;
+          buildId = build.getId();
+          handle = new CloudBuildHandle(getCredentialsId(), cloudBuild.getProjectId(),
+              build.getId(), build.getLogUrl());
+        },
+        getContext().get(TaskListener.class).getLogger());
+  }
+
+  /**
+   * Waits for the packed build that the request of this step was submitted as. If the steps of
+   * this request were stopped because another request in the pack failed, or they failed in a way
+   * that the retry policy allows to be retried, the request is resubmitted on its own.
+   *
+   * @param cloudBuild the client for Cloud Build
+   * @param retry the policy for resubmitting failed builds, if any
+   * @return {@code true} if the request was resubmitted and its build has yet to be waited for
+   * @throws BuildFailedException if the steps of this request failed
+   */
+  private boolean waitForPack(CloudBuildClient cloudBuild, CloudBuildRetryPolicy retry)
+      throws IOException, InterruptedException {
+    try {
+      cloudBuild.waitForSuccess(buildId);
+      return false;
+    } catch (BuildFailedException e) {
+      Build pack = cloudBuild.getBuilds(Collections.singleton(buildId), BuildPacker.STEP_FIELDS)
+          .get(buildId);
+      String status = pack != null ? BuildPacker.memberStatus(pack, packPrefix) : e.getStatus();
+      if (status.equals("SUCCESS")) {
+        return false;
+      }
+      // A pack cancelled by a user must not be rebuilt behind their back.
+      boolean collateral = pack != null && BuildPacker.isCollateral(pack, packPrefix);
+      if (resubmit == null
+          || !collateral && (retry == null || !retry.shouldRetry(status, 1))) {
+        throw new BuildFailedException(buildId, status);
+      }
+      getContext().get(TaskListener.class).getLogger().println(
+          Messages.CloudBuildStepExecution_ResubmittingUnpacked(buildId, status));
+      // A request stopped because of another one has not used up any of its attempts.
+      int next = collateral ? 1 : 2;
+      Build build = resubmit.submit(next);
+      packPrefix = null;
+      attempt = next;
+      buildId = build.getId();
+      handle = new CloudBuildHandle(getCredentialsId(), cloudBuild.getProjectId(),
+          build.getId(), build.getLogUrl());
+      return true;
+    }
+  }
+
+  /**
+   * Starts the thread to submit the build request (if necessary) and poll Google Cloud Build.
+   *
+   * @param resumed whether this step is being resumed after Jenkins restarted
+   */
+  void startPolling(boolean resumed) {
+    if (stopped) {
+      return;
+    }
     task = getExecutorService().submit(() -> {
       try {
-        getClients().cloudBuild().waitForSuccess(buildId);
-        getContext().onSuccess(null);
+        if (buildId == null) {
+          Build build = resumed ? recover() : submit();
+          handle = new CloudBuildHandle(getCredentialsId(),
+              getClients().cloudBuild().getProjectId(), build.getId(), build.getLogUrl());
+          buildId = build.getId();
+        }
+        if (!waitForCompletion) {
+          getContext().onSuccess(handle.toMap());
+          return;
+        }
+        if (cached == null) {
+          try {
+            waitForSuccess();
+          } finally {
+            releasePermit();
+            releaseFlight();
+          }
+        }
+        getContext().onSuccess(getResult());
       } catch (Exception e) {
         getContext().onFailure(e);
+      } finally {
+        releaseRoute();
       }
     });
   }
 
+  /**
+   * Fails fast if {@code input} needs a workspace, but the step is not running within a
+   * {@code node} block.
+   *
+   * @param input the inputs to the step
+   * @param context the context of the step
+   * @throws AbortException if a workspace is needed but not available
+   */
+  static void checkWorkspace(CloudBuildInput input, StepContext context)
+      throws IOException, InterruptedException {
+    // Only a local source or a request read from a file needs the step to run within node {}.
+    if (input.requiresWorkspace() && context.get(FilePath.class) == null) {
+      throw new AbortException(Messages.CloudBuildStepExecution_WorkspaceRequired());
+    }
+  }
+
   @Override
   public boolean start() throws Exception {
-    BuildContext context = new PipelineBuildContext(getContext());
-    buildId = getClients().cloudBuild().sendBuildRequest(
-        input.getRequest().expand(context),
-        input.getSourceOrDefault().prepare(context, getClients()),
-        input.getSubstitutionMap(context));
-    startPolling();
+    if (!waitForCompletion) {
+      input.checkWaitOnlyOptions();
+    }
+    checkWorkspace(input, getContext());
+    startPolling(false);
     return false;
   }
 
   @Override
   public void stop(@Nonnull Throwable throwable) throws Exception {
+    stopped = true;
     if (task != null) {
       task.cancel(true);
+    } else {
+      // Still waiting to be resumed.
+      getContext().onFailure(throwable);
     }
   }
 
   @Override
   public void onResume() {
-    startPolling();
+    if (waitForCompletion) {
+      ResumeCoordinator.get().resume(this);
+    } else {
+      // At most a single lookup is needed to return the handle.
+      startPolling(true);
+    }
   }
 }
@@ -0,0 +1,152 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.Step;
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepDescriptor;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/**
+ * A Jenkins build step that waits for one or more builds submitted with
+ * {@link CloudBuildSubmitStep} to complete.
+ * <p>
+ * The step returns a list containing, for each handle, the handle's properties along with the
+ * {@code status} of the build.
+ */
+public final class CloudBuildWaitStep extends Step implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  /** Which builds must complete before the step returns. */
+  public enum Mode {
+    /** Wait until all builds have succeeded. */
+    ALL,
+    /** Wait until any build has succeeded. */
+    ANY
+  }
+
+  @Nonnull
+  private List<Map<String, Object>> handles = Collections.emptyList();
+  @Nonnull
+  private Mode mode = Mode.ALL;
+  private int timeout;
+  private boolean failFast = true;
+
+  @DataBoundConstructor
+  public CloudBuildWaitStep() {}
+
+  /** Returns {@code null}; a single handle is stored as {@link #getHandles()}. */
+  @CheckForNull
+  public Map<String, Object> getHandle() {
+    return null;
+  }
+
+  @DataBoundSetter
+  public void setHandle(@Nonnull Map<String, Object> handle) {
+    this.handles = Collections.singletonList(handle);
+  }
+
+  @Nonnull
+  public List<Map<String, Object>> getHandles() {
+    return handles;
+  }
+
+  @DataBoundSetter
+  public void setHandles(@Nonnull List<Map<String, Object>> handles) {
+    this.handles = new ArrayList<>(handles);
+  }
+
+  @Nonnull
+  public Mode getMode() {
+    return mode;
+  }
+
+  @DataBoundSetter
+  public void setMode(@Nonnull Mode mode) {
+    this.mode = mode;
+  }
+
+  /** Returns the number of seconds to wait before failing, or 0 to wait indefinitely. */
+  public int getTimeout() {
+    return timeout;
+  }
+
+  @DataBoundSetter
+  public void setTimeout(int timeout) {
+    this.timeout = timeout;
+  }
+
+  /**
+   * Returns whether the step fails as soon as any build fails, rather than once it is certain that
+   * the {@link #getMode() mode} cannot be satisfied.
+   */
+  public boolean isFailFast() {
+    return failFast;
+  }
+
+  @DataBoundSetter
+  public void setFailFast(boolean failFast) {
+    this.failFast = failFast;
+  }
+
+  @Override
+  public StepExecution start(StepContext context) throws Exception {
+    if (handles.isEmpty()) {
+      throw new AbortException(Messages.CloudBuildWaitStep_NoHandles());
+    }
+    List<CloudBuildHandle> parsed = new ArrayList<>();
+    for (Map<String, Object> handle : handles) {
+      parsed.add(CloudBuildHandle.fromMap(handle));
+    }
+    return new CloudBuildWaitStepExecution(parsed, mode, timeout, failFast, context);
+  }
+
+  /** Descriptor for {@link CloudBuildWaitStep}. */
+  @Extension
+  public static class Descriptor extends StepDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.CloudBuildWaitStep_DisplayName();
+    }
+
+    @Override
+    public String getFunctionName() {
+      return "googleCloudBuildWait";
+    }
+
+    @Override
+    public Set<? extends Class<?>> getRequiredContext() {
+      return new HashSet<>(Arrays.asList(Run.class, TaskListener.class));
+    }
+  }
+}
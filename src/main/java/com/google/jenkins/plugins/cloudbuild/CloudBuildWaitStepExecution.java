@@ -0,0 +1,208 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.jenkinsci.plugins.workflow.steps.StepExecution;
+
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import hudson.AbortException;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Waits for builds submitted by {@link CloudBuildSubmitStep} to complete. The status of all
+ * builds is fetched together (see {@link BuildPoller}), and the last status seen for each build is
+ * saved with the pipeline, so waiting resumes where it left off after a restart.
+ */
+final class CloudBuildWaitStepExecution extends StepExecution {
+  private static final long serialVersionUID = 1L;
+
+  static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+
+  private final List<CloudBuildHandle> handles;
+  private final CloudBuildWaitStep.Mode mode;
+  private final boolean failFast;
+  private final int timeout;
+  /** The time at which the step times out, or 0 if it never does. */
+  private final long deadline;
+  /** The last status seen for each build, by build ID. */
+  private final Map<String, String> statuses = Collections.synchronizedMap(new LinkedHashMap<>());
+  private transient volatile Future<?> task;
+  /** The number of polls in a row that did not return each build, by build ID. */
+  private transient Map<String, Integer> misses;
+
+  /** API clients for Google Cloud Platform, by credentials ID. */
+  private transient Map<String, ClientFactory> clients;
+
+  CloudBuildWaitStepExecution(List<CloudBuildHandle> handles, CloudBuildWaitStep.Mode mode,
+      int timeout, boolean failFast, StepContext context) {
+    super(context);
+    this.handles = new ArrayList<>(handles);
+    this.mode = mode;
+    this.failFast = failFast;
+    this.timeout = timeout;
+    this.deadline =
+        timeout > 0 ? System.currentTimeMillis() + TimeUnit.SECONDS.toMillis(timeout) : 0;
+  }
+
+  /** Returns the API client for the given credentials (creating it if necessary). */
+  private synchronized ClientFactory getClients(String credentialsId)
+      throws IOException, InterruptedException {
+    if (clients == null) {
+      clients = new HashMap<>();
+    }
+    ClientFactory result = clients.get(credentialsId);
+    if (result == null) {
+      result = new ClientFactory(
+          getContext().get(Run.class), getContext().get(TaskListener.class), credentialsId);
+      clients.put(credentialsId, result);
+    }
+    return result;
+  }
+
+  /** The executor to be used for polling tasks. */
+  private static volatile ExecutorService executorService;
+
+  private static synchronized ExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newCachedThreadPool(
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), CloudBuildWaitStepExecution.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  private String getStatus(CloudBuildHandle handle) {
+    return statuses.get(handle.getBuildId());
+  }
+
+  /** Fetches the status of every build that has not completed yet, logging any changes. */
+  private void poll(PrintStream logger) throws IOException, InterruptedException {
+    if (misses == null) {
+      misses = new HashMap<>();
+    }
+    Map<String, List<CloudBuildHandle>> pending = handles.stream()
+        .filter(handle -> !BuildPoller.isComplete(getStatus(handle)))
+        .collect(Collectors.groupingBy(
+            CloudBuildHandle::getCredentialsId, LinkedHashMap::new, Collectors.toList()));
+    for (Map.Entry<String, List<CloudBuildHandle>> entry : pending.entrySet()) {
+      BuildPoller.poll(
+          getClients(entry.getKey()).cloudBuild(),
+          entry.getValue().stream().map(CloudBuildHandle::getBuildId).collect(Collectors.toList()),
+          statuses, misses, logger);
+    }
+  }
+
+  /**
+   * Determines whether the step can complete given the statuses seen so far.
+   *
+   * @return {@code true} if the step succeeded, or {@code false} if it must keep waiting
+   * @throws AbortException if the step failed
+   */
+  private boolean evaluate() throws AbortException {
+    List<String> failed = new ArrayList<>();
+    boolean anySucceeded = false;
+    boolean allComplete = true;
+    for (CloudBuildHandle handle : handles) {
+      String status = getStatus(handle);
+      if (!BuildPoller.isComplete(status)) {
+        allComplete = false;
+      } else if (status.equals("SUCCESS")) {
+        anySucceeded = true;
+      } else {
+        failed.add(handle.getBuildId());
+      }
+    }
+    if (mode == CloudBuildWaitStep.Mode.ANY && anySucceeded) {
+      return true;
+    }
+    if (!failed.isEmpty() && (failFast || allComplete)) {
+      throw new AbortException(Messages.CloudBuildWaitStep_BuildsFailed(String.join(", ", failed)));
+    }
+    return allComplete;
+  }
+
+  /** Returns the value returned to the pipeline: each handle along with its build's status. */
+  private ArrayList<Map<String, Object>> getResults() {
+    ArrayList<Map<String, Object>> results = new ArrayList<>();
+    for (CloudBuildHandle handle : handles) {
+      Map<String, Object> result = handle.toMap();
+      result.put("status", getStatus(handle));
+      results.add(result);
+    }
+    return results;
+  }
+
+  /** Starts the thread that polls Google Cloud Build until the step can complete. */
+  private void startPolling() {
+    task = getExecutorService().submit(() -> {
+      try {
+        PrintStream logger = getContext().get(TaskListener.class).getLogger();
+        logger.println(Messages.CloudBuildWaitStep_Waiting(handles.size(), mode));
+        while (true) {
+          poll(logger);
+          if (evaluate()) {
+            break;
+          }
+          if (deadline > 0 && System.currentTimeMillis() >= deadline) {
+            throw new AbortException(Messages.CloudBuildWaitStep_TimedOut(timeout));
+          }
+          TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+        }
+        getContext().onSuccess(getResults());
+      } catch (Exception e) {
+        getContext().onFailure(e);
+      }
+    });
+  }
+
+  @Override
+  public boolean start() throws Exception {
+    startPolling();
+    return false;
+  }
+
+  @Override
+  public void stop(@Nonnull Throwable throwable) throws Exception {
+    if (task != null) {
+      task.cancel(true);
+    } else {
+      getContext().onFailure(throwable);
+    }
+  }
+
+  @Override
+  public void onResume() {
+    startPolling();
+  }
+}
@@ -0,0 +1,74 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * Limits the number of Google Cloud Build builds that the jobs within a folder (or a single job)
+ * may run at the same time.
+ */
+public final class ConcurrencyLimit extends AbstractDescribableImpl<ConcurrencyLimit> {
+  @Nonnull
+  private final String path;
+  private final int maxConcurrentBuilds;
+
+  @DataBoundConstructor
+  public ConcurrencyLimit(@Nonnull String path, int maxConcurrentBuilds) {
+    this.path = path.replaceAll("^/+|/+$", "");
+    this.maxConcurrentBuilds = maxConcurrentBuilds;
+  }
+
+  /** Returns the full name of the folder or job to which this limit applies. */
+  @Nonnull
+  public String getPath() {
+    return path;
+  }
+
+  public int getMaxConcurrentBuilds() {
+    return maxConcurrentBuilds;
+  }
+
+  /**
+   * Returns whether this limit applies to the job named {@code jobFullName}: either the job itself,
+   * or any job within the folder.
+   */
+  boolean appliesTo(String jobFullName) {
+    return jobFullName.equals(path) || jobFullName.startsWith(path + "/");
+  }
+
+  /** Descriptor for {@link ConcurrencyLimit}. */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<ConcurrencyLimit> {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.ConcurrencyLimit_DisplayName();
+    }
+
+    public FormValidation doCheckMaxConcurrentBuilds(@QueryParameter int value) {
+      if (value < 1) {
+        return FormValidation.error(Messages.CloudBuildGlobalConfiguration_MustBePositive());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
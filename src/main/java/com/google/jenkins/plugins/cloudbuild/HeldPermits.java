@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import javax.annotation.CheckForNull;
+
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import hudson.model.Run;
+
+/**
+ * The {@link SubmissionQueue.Permit}s held by a step that runs several builds (a matrix, graph or
+ * affected services step), by build ID. The step acquires a permit before submitting each build
+ * and releases it once it sees the build complete, so that each of its builds counts against the
+ * concurrency limits like the build of a separate step would.
+ * <p>
+ * Permits are only held in memory: the builds of a step resumed after Jenkins restarted no longer
+ * count against the limits.
+ */
+final class HeldPermits {
+  /** Polls the builds of a step while it waits for its remaining submissions. */
+  interface Poll {
+    void poll() throws IOException, InterruptedException;
+  }
+
+  private final Map<String, SubmissionQueue.Permit> permits = new HashMap<>();
+
+  /**
+   * Waits until the limits allow another build to be submitted on behalf of {@code run}.
+   *
+   * @param cloudBuild the client for the project in which the build will run
+   * @param run the Jenkins build submitting the build
+   * @param priority the priority class of the build, or {@code null} for the default class
+   * @param logger the log to which the position in the queue is written while waiting
+   * @return the permit, to be passed to {@link #hold} once the build has been submitted
+   * @throws IOException if the priority class is unknown
+   * @throws InterruptedException if interrupted while waiting
+   */
+  static SubmissionQueue.Permit acquire(CloudBuildClient cloudBuild, Run<?, ?> run,
+      @CheckForNull String priority, PrintStream logger)
+      throws IOException, InterruptedException {
+    return SubmissionQueue.get().acquire(
+        cloudBuild.getProjectId(), run.getParent().getFullName(), priority, logger);
+  }
+
+  /** Holds {@code permit} until the build {@code buildId} is seen to complete. */
+  synchronized void hold(String buildId, SubmissionQueue.Permit permit) {
+    permits.put(buildId, permit);
+  }
+
+  /**
+   * Releases the permits of the builds that have completed.
+   *
+   * @param statuses the last status seen for each build, by build ID
+   */
+  synchronized void releaseCompleted(Map<String, String> statuses) {
+    for (Iterator<Map.Entry<String, SubmissionQueue.Permit>> it = permits.entrySet().iterator();
+        it.hasNext(); ) {
+      Map.Entry<String, SubmissionQueue.Permit> entry = it.next();
+      if (BuildPoller.isComplete(statuses.get(entry.getKey()))) {
+        entry.getValue().release();
+        it.remove();
+      }
+    }
+  }
+
+  /** Releases all permits, once the step no longer waits for its builds. */
+  synchronized void releaseAll() {
+    for (SubmissionQueue.Permit permit : permits.values()) {
+      permit.release();
+    }
+    permits.clear();
+  }
+
+  /**
+   * Waits for the submission of several builds, polling the builds already submitted in the
+   * meantime. Submissions waiting for a permit would otherwise wait forever for builds of the same
+   * step that nobody polls to release their permits.
+   *
+   * @param futures the submissions to wait for
+   * @param poll polls the builds submitted so far and releases the permits of those that completed
+   * @param intervalMillis the time between polls
+   * @throws IOException if a submission or poll fails unexpectedly
+   * @throws InterruptedException if interrupted while waiting
+   */
+  static void awaitSubmissions(List<Future<?>> futures, Poll poll, long intervalMillis)
+      throws IOException, InterruptedException {
+    List<Future<?>> remaining = new ArrayList<>(futures);
+    try {
+      while (true) {
+        remaining.removeIf(Future::isDone);
+        if (remaining.isEmpty()) {
+          break;
+        }
+        poll.poll();
+        TimeUnit.MILLISECONDS.sleep(intervalMillis);
+      }
+      for (Future<?> future : futures) {
+        future.get();
+      }
+    } catch (IOException | InterruptedException e) {
+      futures.forEach(future -> future.cancel(true));
+      throw e;
+    } catch (ExecutionException e) {
+      throw new IOException(e.getCause());
+    }
+  }
+}
@@ -0,0 +1,127 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.CheckForNull;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import hudson.console.ModelHyperlinkNote;
+import hudson.model.Run;
+
+/**
+ * Coalesces concurrent submissions of identical builds on this controller.
+ * <p>
+ * The first step to submit a build with a given cache key (see
+ * {@link com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient#cacheKey}) becomes its
+ * owner. Steps that try to submit a build with the same key while the owner's build is running
+ * attach to that build and share its result instead of starting another one. Steps that arrive
+ * while the owner is still submitting wait for the submission to finish; if it fails, one of them
+ * becomes the new owner.
+ * <p>
+ * Only builds being waited for by their owner are tracked, and only in memory: after a restart,
+ * builds are no longer coalesced with the ones that were running before.
+ */
+final class InFlightBuilds {
+  private static final InFlightBuilds INSTANCE = new InFlightBuilds();
+
+  static InFlightBuilds get() {
+    return INSTANCE;
+  }
+
+  /** A build being submitted or run on behalf of its owner. */
+  static final class Flight {
+    private final String ownerUrl;
+    private final String ownerName;
+    private final CompletableFuture<Build> build = new CompletableFuture<>();
+
+    Flight(Run<?, ?> owner) {
+      this.ownerUrl = owner.getUrl();
+      this.ownerName = owner.getFullDisplayName();
+    }
+  }
+
+  private final Map<String, Flight> flights = new HashMap<>();
+
+  InFlightBuilds() {}
+
+  /**
+   * Attaches to the build in flight for {@code key}, or claims {@code key} if there is none.
+   *
+   * @param key the cache key of the build about to be submitted
+   * @param run the Jenkins build that is about to submit the build
+   * @param logger the log to which the owner of the shared build is reported
+   * @return the shared build (only the ID and log URL are guaranteed to be set), or {@code null}
+   *     if the caller now owns {@code key} and must submit the build and then call either
+   *     {@link #started(String, Build)} or {@link #finished(String)}
+   * @throws InterruptedException if interrupted while waiting for the owner to submit the build
+   */
+  @CheckForNull
+  Build attachOrClaim(String key, Run<?, ?> run, PrintStream logger)
+      throws InterruptedException {
+    while (true) {
+      Flight flight;
+      synchronized (this) {
+        flight = flights.get(key);
+        if (flight == null) {
+          flights.put(key, new Flight(run));
+          return null;
+        }
+      }
+      try {
+        Build build = flight.build.get();
+        logger.println(Messages.InFlightBuilds_Attached(build.getId(),
+            ModelHyperlinkNote.encodeTo("/" + flight.ownerUrl, flight.ownerName)));
+        return build;
+      } catch (ExecutionException e) {
+        // The owner failed to submit the build; try to take over.
+        synchronized (this) {
+          flights.remove(key, flight);
+        }
+      }
+    }
+  }
+
+  /**
+   * Records that the owner of {@code key} submitted {@code build}, letting other steps attach.
+   *
+   * @param key the cache key of the build
+   * @param build the submitted build
+   */
+  synchronized void started(String key, Build build) {
+    Flight flight = flights.get(key);
+    if (flight != null) {
+      flight.build.complete(build);
+    }
+  }
+
+  /**
+   * Releases {@code key}, once the owner's build has completed or the owner failed to submit it.
+   * Steps that are already attached keep polling the shared build.
+   *
+   * @param key the cache key of the build
+   */
+  synchronized void finished(String key) {
+    Flight flight = flights.remove(key);
+    if (flight != null && !flight.build.isDone()) {
+      flight.build.completeExceptionally(new IOException(key));
+    }
+  }
+}
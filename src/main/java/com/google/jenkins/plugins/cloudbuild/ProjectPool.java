@@ -0,0 +1,108 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import javax.annotation.Nonnull;
+
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.QueryParameter;
+
+import hudson.Extension;
+import hudson.model.AbstractDescribableImpl;
+import hudson.model.Descriptor;
+import hudson.util.FormValidation;
+
+/**
+ * A named set of Google credentials, each for a different Google Cloud project, across which the
+ * builds of the steps that use the pool are spread (see {@link ProjectRouter}).
+ */
+public final class ProjectPool extends AbstractDescribableImpl<ProjectPool> {
+  /** How a build is assigned to one of the credentials of a pool. */
+  public enum Routing {
+    /** The credentials with the fewest builds in flight, in the order in which they are listed. */
+    LEAST_LOADED,
+    /** Each of the credentials in turn. */
+    ROUND_ROBIN,
+    /** The same credentials for all builds of a job, unless the pool changes. */
+    STICKY
+  }
+
+  @Nonnull
+  private final String name;
+  @Nonnull
+  private final String credentialsIds;
+  @Nonnull
+  private final Routing routing;
+
+  @DataBoundConstructor
+  public ProjectPool(@Nonnull String name, @Nonnull String credentialsIds, Routing routing) {
+    this.name = name.trim();
+    this.credentialsIds = credentialsIds;
+    this.routing = routing == null ? Routing.LEAST_LOADED : routing;
+  }
+
+  @Nonnull
+  public String getName() {
+    return name;
+  }
+
+  /** Returns the IDs of the credentials in the pool, separated by spaces or commas. */
+  @Nonnull
+  public String getCredentialsIds() {
+    return credentialsIds;
+  }
+
+  /** Returns the IDs of the credentials in the pool, in the order in which they are listed. */
+  @Nonnull
+  public List<String> getCredentialsIdList() {
+    List<String> result = new ArrayList<>();
+    for (String id : credentialsIds.split("[\\s,]+")) {
+      if (!id.isEmpty() && !result.contains(id)) {
+        result.add(id);
+      }
+    }
+    return result;
+  }
+
+  @Nonnull
+  public Routing getRouting() {
+    return routing;
+  }
+
+  /** Descriptor for {@link ProjectPool}. */
+  @Extension
+  public static class DescriptorImpl extends Descriptor<ProjectPool> {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.ProjectPool_DisplayName();
+    }
+
+    public FormValidation doCheckName(@QueryParameter String value) {
+      if (value.trim().isEmpty()) {
+        return FormValidation.error(Messages.ProjectPool_NameRequired());
+      }
+      return FormValidation.ok();
+    }
+
+    public FormValidation doCheckCredentialsIds(@QueryParameter String value) {
+      if (new ProjectPool("", value, null).getCredentialsIdList().isEmpty()) {
+        return FormValidation.error(Messages.ProjectPool_CredentialsRequired());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.PrintStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.AbortException;
+
+/**
+ * Assigns the builds of steps that use a {@link ProjectPool} to one of the pool's credentials,
+ * and thereby to one of its Google Cloud projects, so that the builds are not limited by the
+ * concurrency and API quotas of a single project.
+ * <p>
+ * The number of builds in flight is counted per credentials ID, across all pools, from when a
+ * build is routed until it has completed (or, for steps that do not wait for their builds, until
+ * it has been submitted).
+ */
+final class ProjectRouter {
+  private static final ProjectRouter INSTANCE = new ProjectRouter();
+
+  static ProjectRouter get() {
+    return INSTANCE;
+  }
+
+  /** The number of builds in flight, by credentials ID. */
+  private final Map<String, Integer> inFlight = new HashMap<>();
+  /** The number of builds routed through each pool, by pool name. */
+  private final Map<String, Integer> routed = new HashMap<>();
+
+  ProjectRouter() {}
+
+  /**
+   * Picks one of {@code credentialsIds} for a build.
+   *
+   * @param credentialsIds the credentials of the pool, which must not be empty
+   * @param routing how to pick the credentials
+   * @param inFlight the number of builds in flight, by credentials ID
+   * @param count the number of builds routed through the pool so far
+   * @param jobFullName the full name of the job submitting the build
+   * @return the picked credentials ID
+   */
+  static String choose(List<String> credentialsIds, ProjectPool.Routing routing,
+      Map<String, Integer> inFlight, int count, String jobFullName) {
+    switch (routing) {
+      case ROUND_ROBIN:
+        return credentialsIds.get(count % credentialsIds.size());
+      case STICKY:
+        return credentialsIds.get(Math.floorMod(jobFullName.hashCode(), credentialsIds.size()));
+      case LEAST_LOADED:
+      default:
+        String best = credentialsIds.get(0);
+        for (String id : credentialsIds) {
+          if (inFlight.getOrDefault(id, 0) < inFlight.getOrDefault(best, 0)) {
+            best = id;
+          }
+        }
+        return best;
+    }
+  }
+
+  /**
+   * Routes a build through the pool named {@code poolName}. The caller must
+   * {@link #release(String)} the returned credentials once the build is no longer in flight.
+   *
+   * @param poolName the name of a pool in the global configuration
+   * @param jobFullName the full name of the job submitting the build
+   * @param logger the log to which the chosen credentials are written
+   * @return the ID of the credentials to use for the build
+   * @throws AbortException if there is no such pool
+   */
+  String acquire(String poolName, String jobFullName, PrintStream logger) throws AbortException {
+    CloudBuildGlobalConfiguration config = CloudBuildGlobalConfiguration.get();
+    ProjectPool pool = config != null ? config.getProjectPool(poolName) : null;
+    if (pool == null || pool.getCredentialsIdList().isEmpty()) {
+      throw new AbortException(Messages.ProjectRouter_UnknownPool(poolName));
+    }
+    String credentialsId;
+    synchronized (this) {
+      int count = routed.getOrDefault(pool.getName(), 0);
+      credentialsId = choose(
+          pool.getCredentialsIdList(), pool.getRouting(), inFlight, count, jobFullName);
+      routed.put(pool.getName(), count + 1);
+      inFlight.merge(credentialsId, 1, Integer::sum);
+    }
+    logger.println(
+        Messages.ProjectRouter_Routed(poolName, credentialsId, pool.getRouting()));
+    return credentialsId;
+  }
+
+  /** Records that a build routed to {@code credentialsId} is no longer in flight. */
+  synchronized void release(String credentialsId) {
+    inFlight.computeIfPresent(credentialsId, (id, count) -> count > 1 ? count - 1 : null);
+  }
+
+  /** Returns the number of builds in flight with {@code credentialsId}. */
+  synchronized int getInFlight(String credentialsId) {
+    return inFlight.getOrDefault(credentialsId, 0);
+  }
+}
@@ -14,14 +14,30 @@
 package com.google.jenkins.plugins.cloudbuild;
 
 import java.io.IOException;
+import java.util.Collections;
+import java.util.Map;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import javax.annotation.CheckForNull;
 
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildOptions;
 import hudson.util.FormValidation;
 
-
 /** Helper methods for handling the Build Request */
 public final class RequestProcessor {
+  /** The resource name of a private worker pool, capturing its location. */
+  static final Pattern WORKER_POOL =
+      Pattern.compile("projects/[^/]+/locations/([^/]+)/workerPools/[^/]+");
+
+  /**
+   * The build option naming the private pool to run in. The version of the Cloud Build API client
+   * in use predates private pools, so the option is set as an unknown field of the options.
+   */
+  private static final String POOL_OPTION = "pool";
+
   private RequestProcessor() {}
 
   /**
@@ -60,4 +76,53 @@ public final class RequestProcessor {
     }
     return FormValidation.ok();
   }
+
+  /**
+   * Sets the private worker pool in which a build request runs, replacing any pool it names.
+   *
+   * @param request the YAML or JSON build request
+   * @param workerPool the resource name of the pool (e.g.,
+   *     {@code projects/my-project/locations/us-central1/workerPools/my-pool})
+   * @return the build request as JSON, with its {@code options.pool.name} set to
+   *     {@code workerPool}
+   * @throws IOException if the request cannot be parsed
+   * @see <a href="https://cloud.google.com/build/docs/private-pools/run-builds-in-private-pool">
+   *        Cloud Build - Running builds in a private pool</a>
+   */
+  public static String setWorkerPool(String request, String workerPool) throws IOException {
+    Build build = parseBuildRequest(request);
+    BuildOptions options = build.getOptions() != null ? build.getOptions() : new BuildOptions();
+    options.set(POOL_OPTION, Collections.singletonMap("name", workerPool));
+    return new JacksonFactory().toString(build.setOptions(options));
+  }
+
+  /**
+   * Returns the name of the private worker pool in which {@code build} runs.
+   *
+   * @param build the build request
+   * @return the full resource name of the pool, or {@code null} if the build does not name one
+   */
+  @CheckForNull
+  public static String getWorkerPool(Build build) {
+    if (build.getOptions() == null || !(build.getOptions().get(POOL_OPTION) instanceof Map)) {
+      return null;
+    }
+    Object name = ((Map<?, ?>) build.getOptions().get(POOL_OPTION)).get("name");
+    return name != null ? name.toString() : null;
+  }
+
+  /**
+   * Returns the location of the private worker pool in which {@code build} runs, since such a
+   * build has to be created in the pool's region.
+   *
+   * @param build the build request
+   * @return the location (e.g., {@code us-central1}), or {@code null} if the build does not name a
+   *     private pool
+   */
+  @CheckForNull
+  public static String getWorkerPoolLocation(Build build) {
+    String name = getWorkerPool(build);
+    Matcher matcher = WORKER_POOL.matcher(name != null ? name : "");
+    return matcher.matches() ? matcher.group(1) : null;
+  }
 }
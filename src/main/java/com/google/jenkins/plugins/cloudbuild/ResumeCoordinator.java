@@ -0,0 +1,216 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.RequestBatcher;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Resumes the {@link CloudBuildStepExecution}s that were running when Jenkins restarted.
+ * <p>
+ * Rather than having every step look up its credentials and start polling at once, the steps
+ * resumed within {@link #COLLECT_MILLIS} of each other are handled together: the credentials are
+ * looked up once per credentials ID and folder, the status of all builds is fetched in batch
+ * requests, steps whose builds finished while Jenkins was down are completed right away, and
+ * polling for the remaining builds is started gradually over {@link #STAGGER_MILLIS}.
+ */
+final class ResumeCoordinator {
+  private static final Logger LOGGER = Logger.getLogger(ResumeCoordinator.class.getName());
+
+  static final long COLLECT_MILLIS = TimeUnit.SECONDS.toMillis(2);
+  static final long STAGGER_MILLIS = TimeUnit.SECONDS.toMillis(10);
+
+  private static final ResumeCoordinator INSTANCE = new ResumeCoordinator();
+
+  static ResumeCoordinator get() {
+    return INSTANCE;
+  }
+
+  /** The executor on which resumed steps are processed. */
+  private static volatile ScheduledExecutorService executorService;
+
+  private static synchronized ScheduledExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newSingleThreadScheduledExecutor(
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), ResumeCoordinator.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  private final List<CloudBuildStepExecution> pending = new ArrayList<>();
+  private ScheduledFuture<?> scheduledDrain;
+
+  ResumeCoordinator() {}
+
+  /**
+   * Queues {@code execution} to be resumed together with the other steps resumed at about the same
+   * time.
+   *
+   * @param execution the step being resumed
+   */
+  synchronized void resume(CloudBuildStepExecution execution) {
+    pending.add(execution);
+    if (scheduledDrain == null) {
+      scheduledDrain =
+          getExecutorService().schedule(this::drain, COLLECT_MILLIS, TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Returns the delay before each of {@code count} steps starts polling, spreading them evenly over
+   * {@link #STAGGER_MILLIS} so that their status checks do not all fall at the same time.
+   */
+  static long[] staggerDelays(int count) {
+    long[] delays = new long[count];
+    for (int i = 0; i < count; i++) {
+      delays[i] = STAGGER_MILLIS * i / count;
+    }
+    return delays;
+  }
+
+  /** Resumes all steps queued since the last drain. */
+  void drain() {
+    List<CloudBuildStepExecution> batch;
+    synchronized (this) {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+      scheduledDrain = null;
+    }
+    if (batch.isEmpty()) {
+      return;
+    }
+    long start = System.currentTimeMillis();
+
+    Map<String, List<CloudBuildStepExecution>> groups = new LinkedHashMap<>();
+    for (CloudBuildStepExecution execution : batch) {
+      try {
+        // Credentials may be scoped to a folder, so the same ID may refer to different credentials.
+        Run<?, ?> run = execution.getContext().get(Run.class);
+        String key = String.format("%s@%s",
+            execution.getCredentialsId(), run.getParent().getParent().getFullName());
+        groups.computeIfAbsent(key, k -> new ArrayList<>()).add(execution);
+      } catch (IOException | InterruptedException e) {
+        execution.getContext().onFailure(e);
+      }
+    }
+
+    List<CloudBuildStepExecution> running = new ArrayList<>();
+    int apiRequests = 0;
+    for (List<CloudBuildStepExecution> group : groups.values()) {
+      apiRequests += resumeGroup(group, running);
+    }
+
+    long elapsed = System.currentTimeMillis() - start;
+    LOGGER.log(Level.INFO,
+        "Resumed {0} Google Cloud Build steps in {1} ms using {2} API requests; {3} still running",
+        new Object[] {batch.size(), elapsed, apiRequests, running.size()});
+    String message = Messages.ResumeCoordinator_Resumed(
+        elapsed, String.format("%.2f", (double) apiRequests / batch.size()), batch.size());
+    for (CloudBuildStepExecution execution : batch) {
+      try {
+        execution.getContext().get(TaskListener.class).getLogger().println(message);
+      } catch (IOException | InterruptedException e) {
+        LOGGER.log(Level.FINE, "Could not log to resumed step", e);
+      }
+    }
+
+    long[] delays = staggerDelays(running.size());
+    for (int i = 0; i < running.size(); i++) {
+      CloudBuildStepExecution execution = running.get(i);
+      getExecutorService().schedule(
+          () -> execution.startPolling(true), delays[i], TimeUnit.MILLISECONDS);
+    }
+  }
+
+  /**
+   * Resumes steps that use the same credentials, completing those whose builds have finished.
+   *
+   * @param group the steps to resume
+   * @param running the list to which steps whose builds are still running are added
+   * @return the number of Cloud Build API requests made
+   */
+  private static int resumeGroup(
+      List<CloudBuildStepExecution> group, List<CloudBuildStepExecution> running) {
+    CloudBuildStepExecution first = group.get(0);
+    ClientFactory shared;
+    try {
+      shared = new ClientFactory(
+          first.getContext().get(Run.class), first.getContext().get(TaskListener.class),
+          first.getCredentialsId());
+    } catch (IOException | InterruptedException e) {
+      for (CloudBuildStepExecution execution : group) {
+        execution.getContext().onFailure(e);
+      }
+      return 0;
+    }
+
+    List<CloudBuildStepExecution> submitted = new ArrayList<>();
+    List<String> buildIds = new ArrayList<>();
+    boolean packed = false;
+    for (CloudBuildStepExecution execution : group) {
+      try {
+        execution.useClients(shared);
+      } catch (IOException | InterruptedException e) {
+        execution.getContext().onFailure(e);
+        continue;
+      }
+      if (execution.getBuildId() == null) {
+        // The build will be looked up by its submission tag once polling starts.
+        running.add(execution);
+      } else {
+        submitted.add(execution);
+        buildIds.add(execution.getBuildId());
+        packed |= execution.isPacked();
+      }
+    }
+    if (buildIds.isEmpty()) {
+      return 0;
+    }
+
+    Map<String, Build> builds;
+    try {
+      // Steps whose requests were packed with others need the steps of the pack.
+      builds = shared.cloudBuild().getBuilds(buildIds, packed ? BuildPacker.STEP_FIELDS : null);
+    } catch (IOException e) {
+      LOGGER.log(Level.WARNING, "Failed to fetch the status of resumed builds", e);
+      running.addAll(submitted);
+      return 0;
+    }
+    for (CloudBuildStepExecution execution : submitted) {
+      Build build = builds.get(execution.getBuildId());
+      if (build == null || !execution.completeIfFinished(build)) {
+        running.add(execution);
+      }
+    }
+    return RequestBatcher.batchCount(buildIds.size());
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Predicate;
+
+import javax.annotation.CheckForNull;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import hudson.AbortException;
+
+/**
+ * Limits the number of Google Cloud Build builds that steps on this controller run at the same
+ * time, per Google Cloud project and per folder or job (see
+ * {@link CloudBuildGlobalConfiguration#getMaxConcurrentBuildsPerProject()} and
+ * {@link CloudBuildGlobalConfiguration#getConcurrencyLimits()}).
+ * <p>
+ * A step acquires a {@link Permit} before submitting its build and releases it once it has
+ * finished waiting for the build, so a build only counts against the limits while it is actually
+ * queued or running in Cloud Build. Steps over the limits wait in a queue on the controller.
+ * Whenever a permit becomes available it goes to the waiting step with the highest priority class
+ * (see {@link CloudBuildGlobalConfiguration#getPriorityClassList()}); within a class, it goes to
+ * the step whose job holds the fewest permits, and among those to the one that has waited longest,
+ * so that a job submitting many builds at once cannot starve the others.
+ */
+@ExportedBean
+public final class SubmissionQueue {
+  static final long STATUS_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  private static final SubmissionQueue INSTANCE = new SubmissionQueue();
+
+  public static SubmissionQueue get() {
+    return INSTANCE;
+  }
+
+  /** The right to run one build, held from before it is submitted until it has completed. */
+  public final class Permit {
+    private final long sequence;
+    private final String projectId;
+    private final String jobName;
+    private final String priority;
+    private final int rank;
+    private final long enqueuedAt = System.currentTimeMillis();
+    private boolean admitted;
+
+    Permit(long sequence, String projectId, String jobName, String priority, int rank) {
+      this.sequence = sequence;
+      this.projectId = projectId;
+      this.jobName = jobName;
+      this.priority = priority;
+      this.rank = rank;
+    }
+
+    /** Releases this permit, letting the next waiting step submit its build. */
+    public void release() {
+      SubmissionQueue.this.release(this);
+    }
+  }
+
+  /** Statistics about the time that steps of a priority class waited for their permits. */
+  @ExportedBean
+  public static final class PriorityClassStats {
+    private final String name;
+    private final int waiting;
+    private final long admitted;
+    private final long totalWaitMillis;
+    private final long maxWaitMillis;
+
+    PriorityClassStats(
+        String name, int waiting, long admitted, long totalWaitMillis, long maxWaitMillis) {
+      this.name = name;
+      this.waiting = waiting;
+      this.admitted = admitted;
+      this.totalWaitMillis = totalWaitMillis;
+      this.maxWaitMillis = maxWaitMillis;
+    }
+
+    @Exported
+    public String getName() {
+      return name;
+    }
+
+    /** Returns the number of steps of this class currently waiting for a permit. */
+    @Exported
+    public int getWaiting() {
+      return waiting;
+    }
+
+    /** Returns the number of steps of this class given a permit since Jenkins was started. */
+    @Exported
+    public long getAdmitted() {
+      return admitted;
+    }
+
+    @Exported
+    public long getTotalWaitMillis() {
+      return totalWaitMillis;
+    }
+
+    @Exported
+    public long getAverageWaitMillis() {
+      return admitted == 0 ? 0 : totalWaitMillis / admitted;
+    }
+
+    @Exported
+    public long getMaxWaitMillis() {
+      return maxWaitMillis;
+    }
+  }
+
+  private final List<Permit> waiting = new ArrayList<>();
+  private final List<Permit> running = new ArrayList<>();
+  /** The number of permits handed out and the total and longest wait, by priority class. */
+  private final Map<String, long[]> waitTimes = new HashMap<>();
+  private long nextSequence;
+
+  SubmissionQueue() {}
+
+  /** Returns the number of steps waiting for a permit. */
+  @Exported
+  public synchronized int getWaiting() {
+    return waiting.size();
+  }
+
+  /** Returns the number of steps holding a permit. */
+  @Exported
+  public synchronized int getRunning() {
+    return running.size();
+  }
+
+  /**
+   * Returns the queue wait statistics for each priority class, from highest to lowest priority.
+   * Classes that have been used but are no longer configured are listed last.
+   */
+  @Exported
+  public synchronized List<PriorityClassStats> getPriorityClasses() {
+    Set<String> names = new LinkedHashSet<>(getConfiguredClasses());
+    names.addAll(waitTimes.keySet());
+    List<PriorityClassStats> result = new ArrayList<>();
+    for (String name : names) {
+      long[] times = waitTimes.getOrDefault(name, new long[3]);
+      result.add(new PriorityClassStats(name, count(waiting, p -> p.priority.equals(name)),
+          times[0], times[1], times[2]));
+    }
+    return result;
+  }
+
+  private static List<String> getConfiguredClasses() {
+    CloudBuildGlobalConfiguration config = CloudBuildGlobalConfiguration.get();
+    return config != null
+        ? config.getPriorityClassList()
+        : CloudBuildGlobalConfiguration.parsePriorityClasses(
+            CloudBuildGlobalConfiguration.DEFAULT_PRIORITY_CLASSES);
+  }
+
+  private static String getDefaultClass() {
+    CloudBuildGlobalConfiguration config = CloudBuildGlobalConfiguration.get();
+    return config != null
+        ? config.getDefaultPriorityClass()
+        : CloudBuildGlobalConfiguration.DEFAULT_PRIORITY_CLASS;
+  }
+
+  /**
+   * Waits until the limits allow another build to run on behalf of {@code jobName} in
+   * {@code projectId}.
+   *
+   * @param projectId the project in which the build will run
+   * @param jobName the full name of the job submitting the build
+   * @param priority the priority class of the build, or {@code null} for the default class
+   * @param logger the log to which the step's position in the queue is written while it waits
+   * @return the permit, which must be released once the build has completed
+   * @throws AbortException if {@code priority} is not one of the configured priority classes
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Permit acquire(
+      String projectId, String jobName, @CheckForNull String priority, PrintStream logger)
+      throws IOException, InterruptedException {
+    String name = priority == null ? getDefaultClass() : priority.toLowerCase(Locale.ROOT);
+    List<String> classes = getConfiguredClasses();
+    int rank = classes.indexOf(name);
+    if (rank < 0) {
+      throw new AbortException(
+          Messages.SubmissionQueue_UnknownPriorityClass(name, String.join(", ", classes)));
+    }
+    Permit permit;
+    boolean waited = false;
+    synchronized (this) {
+      permit = new Permit(nextSequence++, projectId, jobName, name, rank);
+      waiting.add(permit);
+      dispatch();
+      int lastPosition = 0;
+      try {
+        while (!permit.admitted) {
+          int position = getPosition(permit);
+          if (position != lastPosition) {
+            logger.println(Messages.SubmissionQueue_Waiting(
+                projectId, position, count(waiting, p -> p.projectId.equals(projectId)), name));
+            lastPosition = position;
+            waited = true;
+          }
+          wait(STATUS_INTERVAL_MILLIS);
+          // The limits may have been raised in the meantime.
+          dispatch();
+        }
+      } catch (InterruptedException e) {
+        if (permit.admitted) {
+          release(permit);
+        } else {
+          waiting.remove(permit);
+          dispatch();
+        }
+        throw e;
+      }
+    }
+    if (waited) {
+      logger.println(Messages.SubmissionQueue_Admitted(
+          TimeUnit.MILLISECONDS.toSeconds(System.currentTimeMillis() - permit.enqueuedAt)));
+    }
+    return permit;
+  }
+
+  synchronized void release(Permit permit) {
+    if (running.remove(permit)) {
+      dispatch();
+    }
+  }
+
+  private static int count(List<Permit> permits, Predicate<Permit> predicate) {
+    int result = 0;
+    for (Permit permit : permits) {
+      if (predicate.test(permit)) {
+        result++;
+      }
+    }
+    return result;
+  }
+
+  /** Returns the order in which waiting steps are given permits. */
+  private Comparator<Permit> order() {
+    Comparator<Permit> byPriority = Comparator.comparingInt(p -> p.rank);
+    return byPriority
+        .thenComparingInt(p -> count(running, r -> r.jobName.equals(p.jobName)))
+        .thenComparingLong(p -> p.sequence);
+  }
+
+  /** Returns the position of {@code permit} among the steps waiting for the same project. */
+  private int getPosition(Permit permit) {
+    Comparator<Permit> order = order();
+    return 1 + count(waiting, p -> p.projectId.equals(permit.projectId)
+        && order.compare(p, permit) < 0);
+  }
+
+  /** Returns whether the limits allow another build to run on behalf of {@code permit}. */
+  private boolean hasCapacity(Permit permit) {
+    CloudBuildGlobalConfiguration config = CloudBuildGlobalConfiguration.get();
+    if (config == null) {
+      return true;
+    }
+    int projectLimit = config.getMaxConcurrentBuildsPerProject();
+    if (projectLimit > 0
+        && count(running, p -> p.projectId.equals(permit.projectId)) >= projectLimit) {
+      return false;
+    }
+    for (ConcurrencyLimit limit : config.getConcurrencyLimits()) {
+      if (limit.appliesTo(permit.jobName)
+          && count(running, p -> limit.appliesTo(p.jobName)) >= limit.getMaxConcurrentBuilds()) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /** Hands out permits to waiting steps for as long as the limits allow. */
+  private void dispatch() {
+    while (true) {
+      Permit next = null;
+      Comparator<Permit> order = order();
+      for (Permit permit : waiting) {
+        if (hasCapacity(permit) && (next == null || order.compare(permit, next) < 0)) {
+          next = permit;
+        }
+      }
+      if (next == null) {
+        break;
+      }
+      waiting.remove(next);
+      running.add(next);
+      next.admitted = true;
+      long waitMillis = System.currentTimeMillis() - next.enqueuedAt;
+      long[] times = waitTimes.computeIfAbsent(next.priority, k -> new long[3]);
+      times[0]++;
+      times[1] += waitMillis;
+      times[2] = Math.max(times[2], waitMillis);
+    }
+    notifyAll();
+  }
+}
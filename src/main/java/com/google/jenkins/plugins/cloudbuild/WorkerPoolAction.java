@@ -0,0 +1,85 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import hudson.model.InvisibleAction;
+import hudson.model.Run;
+
+/**
+ * Records the private worker pool chosen by {@link WorkerPoolRouter} for every build submitted by
+ * a step with several candidate pools, and shows them on the Jenkins build's page.
+ */
+public class WorkerPoolAction extends InvisibleAction {
+  /** The pool chosen for a single build. */
+  public static final class Choice {
+    private final String buildId;
+    private final String workerPool;
+    private final int candidates;
+
+    Choice(String buildId, String workerPool, int candidates) {
+      this.buildId = buildId;
+      this.workerPool = workerPool;
+      this.candidates = candidates;
+    }
+
+    public String getBuildId() {
+      return buildId;
+    }
+
+    /** Returns the resource name of the chosen pool. */
+    public String getWorkerPool() {
+      return workerPool;
+    }
+
+    /** Returns the number of pools the step listed as candidates. */
+    public int getCandidates() {
+      return candidates;
+    }
+  }
+
+  private final List<Choice> choices = new ArrayList<>();
+
+  /** Returns the choices made so far, in the order in which the builds were submitted. */
+  public synchronized List<Choice> getChoices() {
+    return Collections.unmodifiableList(new ArrayList<>(choices));
+  }
+
+  synchronized void add(Choice choice) {
+    choices.add(choice);
+  }
+
+  /**
+   * Records the pool chosen for a build in the action of {@code run}, adding the action if needed.
+   *
+   * @param run the Jenkins build that submitted the build
+   * @param buildId the ID of the build
+   * @param workerPool the resource name of the chosen pool
+   * @param candidates the number of pools the step listed as candidates
+   */
+  static void record(Run<?, ?> run, String buildId, String workerPool, int candidates) {
+    WorkerPoolAction action;
+    synchronized (WorkerPoolAction.class) {
+      action = run.getAction(WorkerPoolAction.class);
+      if (action == null) {
+        action = new WorkerPoolAction();
+        run.addAction(action);
+      }
+    }
+    action.add(new Choice(buildId, workerPool, candidates));
+  }
+}
@@ -0,0 +1,103 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import hudson.AbortException;
+
+/**
+ * Chooses the private worker pool in which a build runs, among the candidate pools listed by its
+ * step, as the one in which the fewest builds submitted by this controller are queued or working.
+ * <p>
+ * A build counts against its pool from when the pool is chosen until the build has completed (or,
+ * for steps that do not wait for their builds, until it has been submitted). Builds submitted by
+ * other Cloud Build clients are not seen, and the counts start from zero again after Jenkins
+ * restarts.
+ */
+final class WorkerPoolRouter {
+  private static final WorkerPoolRouter INSTANCE = new WorkerPoolRouter();
+
+  static WorkerPoolRouter get() {
+    return INSTANCE;
+  }
+
+  /** The number of builds queued or working, by pool. */
+  private final Map<String, Integer> active = new HashMap<>();
+
+  WorkerPoolRouter() {}
+
+  /**
+   * Picks the pool among {@code workerPools} with the fewest active builds, preferring pools
+   * listed earlier when several are equally busy.
+   *
+   * @param workerPools the candidate pools, which must not be empty
+   * @param active the number of builds queued or working, by pool
+   * @return the chosen pool
+   */
+  static String choose(List<String> workerPools, Map<String, Integer> active) {
+    String best = workerPools.get(0);
+    for (String pool : workerPools) {
+      if (active.getOrDefault(pool, 0) < active.getOrDefault(best, 0)) {
+        best = pool;
+      }
+    }
+    return best;
+  }
+
+  /**
+   * Chooses a pool for a build and counts the build against it. The caller must
+   * {@link #release(String)} the returned pool once the build is no longer active.
+   *
+   * @param workerPools the resource names of the candidate pools
+   * @param logger the log to which the choice is written
+   * @return the resource name of the chosen pool
+   * @throws AbortException if no pools are given, or if a name is not that of a worker pool
+   */
+  String acquire(List<String> workerPools, PrintStream logger) throws AbortException {
+    if (workerPools.isEmpty()) {
+      throw new AbortException(Messages.WorkerPoolRouter_NoPools());
+    }
+    for (String pool : workerPools) {
+      if (!RequestProcessor.WORKER_POOL.matcher(pool).matches()) {
+        throw new AbortException(Messages.WorkerPoolRouter_InvalidPool(pool));
+      }
+    }
+    String chosen;
+    List<String> loads = new ArrayList<>();
+    synchronized (this) {
+      chosen = choose(workerPools, active);
+      for (String pool : workerPools) {
+        loads.add(String.format("%s: %d", pool, active.getOrDefault(pool, 0)));
+      }
+      active.merge(chosen, 1, Integer::sum);
+    }
+    logger.println(Messages.WorkerPoolRouter_Chosen(chosen, String.join(", ", loads)));
+    return chosen;
+  }
+
+  /** Records that a build in {@code workerPool} is no longer queued or working. */
+  synchronized void release(String workerPool) {
+    active.computeIfPresent(workerPool, (pool, count) -> count > 1 ? count - 1 : null);
+  }
+
+  /** Returns the number of builds queued or working in {@code workerPool}. */
+  synchronized int getActive(String workerPool) {
+    return active.getOrDefault(workerPool, 0);
+  }
+}
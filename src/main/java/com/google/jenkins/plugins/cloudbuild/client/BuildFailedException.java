@@ -0,0 +1,39 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import hudson.AbortException;
+
+/** Indicates that a Cloud Build build completed without succeeding. */
+public class BuildFailedException extends AbortException {
+  private static final long serialVersionUID = 1L;
+
+  private final String buildId;
+  private final String status;
+
+  public BuildFailedException(String buildId, String status) {
+    super(Messages.CloudBuildClient_BuildFailed());
+    this.buildId = buildId;
+    this.status = status;
+  }
+
+  public String getBuildId() {
+    return buildId;
+  }
+
+  /** Returns the terminal status of the build (e.g., {@code FAILURE} or {@code TIMEOUT}). */
+  public String getStatus() {
+    return status;
+  }
+}
@@ -0,0 +1,50 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import com.google.api.client.json.GenericJson;
+import com.google.api.client.util.Key;
+import com.google.api.services.cloudbuild.v1.model.BuildOperationMetadata;
+
+/**
+ * The long-running operation returned when creating a build, with its metadata typed as
+ * {@link BuildOperationMetadata}.
+ *
+ * @see com.google.api.services.cloudbuild.v1.model.Operation
+ */
+public final class BuildOperation extends GenericJson {
+  @Key
+  private String name;
+
+  @Key
+  private BuildOperationMetadata metadata;
+
+  public String getName() {
+    return name;
+  }
+
+  public BuildOperationMetadata getMetadata() {
+    return metadata;
+  }
+
+  @Override
+  public BuildOperation set(String fieldName, Object value) {
+    return (BuildOperation) super.set(fieldName, value);
+  }
+
+  @Override
+  public BuildOperation clone() {
+    return (BuildOperation) super.clone();
+  }
+}
@@ -0,0 +1,155 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import javax.annotation.CheckForNull;
+
+import hudson.Util;
+import hudson.model.Job;
+import hudson.model.Run;
+import jenkins.model.Jenkins;
+
+/**
+ * Creates the tags attached to builds submitted by this plugin.
+ * <p>
+ * Every build is tagged with the identity of the Jenkins controller, job, run and step that
+ * submitted it, so that the builds belonging to any of them can be found with a tag filter on
+ * {@code builds.list} (e.g., to resume polling after a restart or to find orphaned builds).
+ *
+ * @see <a href="https://cloud.google.com/cloud-build/docs/api/reference/rest/v1/projects.builds">
+ *        Cloud Build - Resource: Build - tags</a>
+ */
+public final class BuildTags {
+  private BuildTags() {}
+
+  static final String CONTROLLER_PREFIX = "jenkins-controller-";
+  static final String JOB_PREFIX = "jenkins-job-";
+  static final String RUN_PREFIX = "jenkins-run-";
+  static final String STEP_PREFIX = "jenkins-step-";
+  static final String SUBMISSION_PREFIX = "jenkins-submission-";
+
+  /** The longest tag accepted by Cloud Build. */
+  static final int MAX_LENGTH = 128;
+
+  /** The characters allowed in a tag after the first one. */
+  private static final Pattern VALID_SUFFIX = Pattern.compile("[\\w.-]+");
+
+  /**
+   * Returns {@code prefix} followed by {@code value}, or by a digest of {@code value} if it would
+   * not make a valid tag (e.g., a job name containing slashes or spaces).
+   */
+  static String tag(String prefix, String value) {
+    if (VALID_SUFFIX.matcher(value).matches() && prefix.length() + value.length() <= MAX_LENGTH) {
+      return prefix + value;
+    }
+    return prefix + Util.getDigestOf(value);
+  }
+
+  /** Returns the tag identifying builds submitted from this Jenkins controller. */
+  public static String controller() {
+    return tag(CONTROLLER_PREFIX, Jenkins.getInstance().getLegacyInstanceId());
+  }
+
+  /**
+   * Returns the tag identifying builds submitted from {@code job}.
+   *
+   * @param job the Jenkins job
+   * @return the job tag
+   */
+  public static String job(Job<?, ?> job) {
+    return tag(JOB_PREFIX, job.getFullName());
+  }
+
+  /**
+   * Returns the tag identifying builds submitted from the run with the given number. Since run
+   * numbers are only unique within a job, this is meant to be combined with {@link #job(Job)}.
+   *
+   * @param run the Jenkins build
+   * @return the run tag
+   */
+  public static String run(Run<?, ?> run) {
+    return RUN_PREFIX + run.getNumber();
+  }
+
+  /**
+   * Returns the tag identifying builds submitted by one step within a run.
+   *
+   * @param stepId an identifier of the step within its run
+   * @return the step tag
+   */
+  public static String step(String stepId) {
+    return tag(STEP_PREFIX, stepId);
+  }
+
+  /**
+   * Returns the tags identifying the controller, job, run and step that submit a build.
+   *
+   * @param run the Jenkins build submitting the request
+   * @param stepId an identifier of the step within {@code run}
+   * @return the identity tags
+   */
+  public static List<String> identity(Run<?, ?> run, String stepId) {
+    return Arrays.asList(controller(), job(run.getParent()), run(run), step(stepId));
+  }
+
+  /**
+   * Returns a {@code builds.list} filter matching the builds that carry all of {@code tags}.
+   *
+   * @param tags the tags to look for
+   * @return the filter expression
+   */
+  public static String filter(String... tags) {
+    return Arrays.stream(tags)
+        .map(tag -> String.format("tags=\"%s\"", tag))
+        .collect(Collectors.joining(" AND "));
+  }
+
+  /**
+   * Returns a tag that is unique to one attempt at submitting a build request from a Jenkins step.
+   * The same inputs always produce the same tag, so that the build can be found again if the
+   * response to the request is lost.
+   *
+   * @param run the Jenkins build submitting the request
+   * @param stepId an identifier of the step within {@code run}
+   * @param attempt the number of the attempt, starting at 1
+   * @return the submission tag
+   */
+  public static String submission(Run<?, ?> run, String stepId, int attempt) {
+    return SUBMISSION_PREFIX
+        + Util.getDigestOf(String.format("%s:%s:%d", run.getExternalizableId(), stepId, attempt));
+  }
+
+  /**
+   * Returns a copy of {@code tags} with {@code added} appended, skipping tags already present.
+   *
+   * @param tags the existing tags, or {@code null} if there are none
+   * @param added the tags to add
+   * @return a new list containing the existing tags and {@code added}
+   */
+  public static List<String> append(@CheckForNull List<String> tags, List<String> added) {
+    List<String> result = tags == null ? new ArrayList<>() : new ArrayList<>(tags);
+    for (String tag : added) {
+      if (!result.contains(tag)) {
+        result.add(tag);
+      }
+    }
+    return result;
+  }
+}
@@ -0,0 +1,399 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.PrintStream;
+import java.net.SocketTimeoutException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.kohsuke.stapler.export.Exported;
+import org.kohsuke.stapler.export.ExportedBean;
+
+import com.google.api.client.googleapis.services.AbstractGoogleClientRequest;
+import com.google.api.client.http.HttpResponseException;
+import com.google.jenkins.plugins.cloudbuild.CloudBuildGlobalConfiguration;
+
+/**
+ * Tracks the outcome of recent calls to a Google Cloud API and stops sending requests to it while
+ * the API appears to be unavailable.
+ * <p>
+ * The breaker starts out {@link State#CLOSED}. Once at least {@link #MINIMUM_CALLS} calls have
+ * been made within the last {@link #WINDOW_MILLIS} milliseconds and the fraction of them that
+ * failed reaches the configured threshold, the breaker is {@link State#OPEN} and requests are
+ * rejected. After the configured open duration a single probe request is let through
+ * ({@link State#HALF_OPEN}): if it succeeds the breaker closes again, otherwise it stays open for
+ * another period.
+ */
+@ExportedBean
+public final class CircuitBreaker {
+  /** The state of a {@link CircuitBreaker}. */
+  public enum State {
+    CLOSED, OPEN, HALF_OPEN
+  }
+
+  static final int MINIMUM_CALLS = 10;
+  static final long WINDOW_MILLIS = TimeUnit.MINUTES.toMillis(1);
+
+  private static final ConcurrentMap<String, CircuitBreaker> BREAKERS = new ConcurrentHashMap<>();
+
+  /**
+   * Returns the breaker guarding calls to {@code service} on behalf of {@code projectId}, applying
+   * the thresholds from the global configuration.
+   *
+   * @param service the short name of the Google Cloud API (e.g., {@code "cloudbuild"})
+   * @param projectId the project on whose behalf calls are made
+   * @return the shared breaker for the given service and project
+   */
+  public static CircuitBreaker forService(String service, String projectId) {
+    CircuitBreaker breaker = BREAKERS.computeIfAbsent(
+        String.format("%s/%s", service, projectId),
+        name -> new CircuitBreaker(name, System::currentTimeMillis));
+    CloudBuildGlobalConfiguration config = CloudBuildGlobalConfiguration.get();
+    if (config != null) {
+      breaker.configure(
+          config.getBreakerFailureThreshold(),
+          TimeUnit.SECONDS.toMillis(config.getBreakerOpenSeconds()));
+    }
+    return breaker;
+  }
+
+  /** Returns all breakers that have been created since Jenkins was started, sorted by name. */
+  public static List<CircuitBreaker> all() {
+    List<CircuitBreaker> result = new ArrayList<>(BREAKERS.values());
+    result.sort((a, b) -> a.name.compareTo(b.name));
+    return result;
+  }
+
+  /** The outcome of a single call, as remembered within the sliding window. */
+  private static final class Outcome {
+    private final long time;
+    private final boolean failed;
+
+    Outcome(long time, boolean failed) {
+      this.time = time;
+      this.failed = failed;
+    }
+  }
+
+  private final String name;
+  private final LongSupplier clock;
+  private final Deque<Outcome> window = new ArrayDeque<>();
+  private int failureThreshold = CloudBuildGlobalConfiguration.DEFAULT_BREAKER_FAILURE_THRESHOLD;
+  private long openMillis =
+      TimeUnit.SECONDS.toMillis(CloudBuildGlobalConfiguration.DEFAULT_BREAKER_OPEN_SECONDS);
+
+  private State state = State.CLOSED;
+  private long openedAt;
+  private long probeStartedAt;
+  private int windowFailures;
+  private long totalCalls;
+  private long totalFailures;
+  private long totalRejected;
+  private long timesOpened;
+
+  CircuitBreaker(String name, LongSupplier clock) {
+    this.name = name;
+    this.clock = clock;
+  }
+
+  /**
+   * Updates the thresholds used by this breaker.
+   *
+   * @param failureThreshold the percentage of failed calls within the window at which the breaker
+   *     opens
+   * @param openMillis how long the breaker stays open before letting a probe request through
+   */
+  synchronized void configure(int failureThreshold, long openMillis) {
+    this.failureThreshold = failureThreshold;
+    this.openMillis = openMillis;
+  }
+
+  @Exported
+  public String getName() {
+    return name;
+  }
+
+  @Exported
+  public synchronized State getState() {
+    return state;
+  }
+
+  /** Returns the percentage of calls within the sliding window that failed. */
+  @Exported
+  public synchronized int getFailureRate() {
+    expireOutcomes();
+    return window.isEmpty() ? 0 : windowFailures * 100 / window.size();
+  }
+
+  @Exported
+  public synchronized long getTotalCalls() {
+    return totalCalls;
+  }
+
+  @Exported
+  public synchronized long getTotalFailures() {
+    return totalFailures;
+  }
+
+  @Exported
+  public synchronized long getTotalRejected() {
+    return totalRejected;
+  }
+
+  @Exported
+  public synchronized long getTimesOpened() {
+    return timesOpened;
+  }
+
+  /** Returns how long callers should wait before trying again while the breaker is open. */
+  public synchronized long getRetryDelayMillis() {
+    if (state == State.CLOSED) {
+      return 0;
+    }
+    long since = state == State.OPEN ? openedAt : probeStartedAt;
+    return Math.max(0, since + openMillis - clock.getAsLong());
+  }
+
+  /**
+   * Determines whether a request may be sent now. While the breaker is open this returns
+   * {@code false}, except for a single probe request once the open duration has elapsed.
+   *
+   * @return {@code true} if the caller may send its request
+   */
+  public synchronized boolean tryAcquire() {
+    long now = clock.getAsLong();
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        if (now - openedAt < openMillis) {
+          totalRejected++;
+          return false;
+        }
+        state = State.HALF_OPEN;
+        probeStartedAt = now;
+        return true;
+      case HALF_OPEN:
+      default:
+        // Let another probe through if the previous one never reported back.
+        if (now - probeStartedAt < openMillis) {
+          totalRejected++;
+          return false;
+        }
+        probeStartedAt = now;
+        return true;
+    }
+  }
+
+  /**
+   * Determines whether a request would be let through now, without taking the probe slot or
+   * counting a rejection. This is used by callers waiting for the breaker to close.
+   *
+   * @return {@code true} if {@link #tryAcquire()} would currently return {@code true}
+   */
+  public synchronized boolean isAvailable() {
+    long now = clock.getAsLong();
+    switch (state) {
+      case CLOSED:
+        return true;
+      case OPEN:
+        return now - openedAt >= openMillis;
+      case HALF_OPEN:
+      default:
+        return now - probeStartedAt >= openMillis;
+    }
+  }
+
+  /**
+   * Takes the probe slot for a call that is going ahead regardless of the breaker's state, if the
+   * breaker is due for a probe.
+   */
+  private synchronized void startCall() {
+    long now = clock.getAsLong();
+    if (state == State.OPEN && now - openedAt >= openMillis) {
+      state = State.HALF_OPEN;
+      probeStartedAt = now;
+    } else if (state == State.HALF_OPEN && now - probeStartedAt >= openMillis) {
+      probeStartedAt = now;
+    }
+  }
+
+  /** Records a call that completed, whether or not the API reported an error for it. */
+  public synchronized void onSuccess() {
+    addOutcome(false);
+    if (state == State.HALF_OPEN) {
+      state = State.CLOSED;
+      window.clear();
+      windowFailures = 0;
+    }
+  }
+
+  /** Records a call that failed because the API was unavailable. */
+  public synchronized void onFailure() {
+    addOutcome(true);
+    long now = clock.getAsLong();
+    if (state == State.HALF_OPEN) {
+      open(now);
+    } else if (state == State.CLOSED
+        && window.size() >= MINIMUM_CALLS
+        && windowFailures * 100 >= failureThreshold * window.size()) {
+      open(now);
+    }
+  }
+
+  private void open(long now) {
+    state = State.OPEN;
+    openedAt = now;
+    timesOpened++;
+  }
+
+  private void addOutcome(boolean failed) {
+    expireOutcomes();
+    window.addLast(new Outcome(clock.getAsLong(), failed));
+    totalCalls++;
+    if (failed) {
+      windowFailures++;
+      totalFailures++;
+    }
+  }
+
+  private void expireOutcomes() {
+    long cutoff = clock.getAsLong() - WINDOW_MILLIS;
+    while (!window.isEmpty() && window.peekFirst().time < cutoff) {
+      if (window.removeFirst().failed) {
+        windowFailures--;
+      }
+    }
+  }
+
+  /** A call to a Google Cloud API whose outcome is tracked by a {@link CircuitBreaker}. */
+  @FunctionalInterface
+  public interface Call<T> {
+    T call() throws IOException;
+  }
+
+  /**
+   * Sends {@code request} if the breaker allows it, and records the outcome.
+   *
+   * @param request the request to send
+   * @param <T> the type of the response
+   * @return the response to the request
+   * @throws CircuitBreakerOpenException if the breaker is open and the request was not sent
+   * @throws IOException if an I/O error occurs while sending the request
+   */
+  public <T> T execute(AbstractGoogleClientRequest<T> request) throws IOException {
+    return execute(request::execute);
+  }
+
+  /**
+   * Makes {@code call} if the breaker allows it, and records the outcome.
+   *
+   * @param call the call to make
+   * @param <T> the type of the response
+   * @return the response to the call
+   * @throws CircuitBreakerOpenException if the breaker is open and the call was not made
+   * @throws IOException if an I/O error occurs while making the call
+   */
+  public <T> T execute(Call<T> call) throws IOException {
+    if (!tryAcquire()) {
+      throw new CircuitBreakerOpenException(name, getRetryDelayMillis());
+    }
+    return call(call);
+  }
+
+  /**
+   * Makes {@code call} without being rejected by the breaker, and records the outcome. This is used
+   * by callers that have already waited through {@link #awaitAvailable(PrintStream)} and must not
+   * fail now (e.g., because the source has been uploaded). If the breaker is due for a probe, this
+   * call is the probe.
+   *
+   * @param call the call to make
+   * @param <T> the type of the response
+   * @return the response to the call
+   * @throws IOException if an I/O error occurs while making the call
+   */
+  public <T> T record(Call<T> call) throws IOException {
+    startCall();
+    return call(call);
+  }
+
+  /** Makes {@code call}, which has been admitted, and records the outcome. */
+  private <T> T call(Call<T> call) throws IOException {
+    T result;
+    try {
+      result = call.call();
+    } catch (IOException e) {
+      if (isUnavailable(e)) {
+        onFailure();
+      } else {
+        onSuccess();
+      }
+      throw e;
+    }
+    onSuccess();
+    return result;
+  }
+
+  /**
+   * Blocks until the breaker would allow a request to be sent. This is used to hold new
+   * submissions before any expensive work (such as uploading the source) is done for them. Waiting
+   * neither takes the probe slot nor counts as a rejection; the request itself, sent through
+   * {@link #record(Call)}, is the probe.
+   *
+   * @param logger the log to which a message is written if the caller has to wait
+   * @throws InterruptedException if the caller is interrupted while waiting
+   */
+  public void awaitAvailable(PrintStream logger) throws InterruptedException {
+    boolean logged = false;
+    while (!isAvailable()) {
+      if (!logged) {
+        logger.println(Messages.CircuitBreaker_HoldingRequest(name));
+        logged = true;
+      }
+      TimeUnit.MILLISECONDS.sleep(Math.max(1000, getRetryDelayMillis()));
+    }
+    if (logged) {
+      logger.println(Messages.CircuitBreaker_ResumingRequest(name));
+    }
+  }
+
+  /**
+   * Determines whether {@code e} indicates that the API is unavailable (as opposed to the request
+   * itself being invalid).
+   *
+   * @param e the exception thrown while sending a request
+   * @return {@code true} if the failure should count against the API's health
+   */
+  static boolean isUnavailable(IOException e) {
+    if (e instanceof HttpResponseException) {
+      int code = ((HttpResponseException) e).getStatusCode();
+      return code == 429 || code >= 500;
+    }
+    if (e instanceof InterruptedIOException && !(e instanceof SocketTimeoutException)) {
+      // The caller was interrupted (e.g., the build was aborted); this says nothing about the API.
+      return false;
+    }
+    // Anything else (timeouts, refused connections, etc.) never reached the API.
+    return !(e instanceof CircuitBreakerOpenException);
+  }
+}
@@ -0,0 +1,33 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.io.IOException;
+
+/** Indicates that a request was not sent because its {@link CircuitBreaker} is open. */
+public class CircuitBreakerOpenException extends IOException {
+  private static final long serialVersionUID = 1L;
+
+  private final long retryDelayMillis;
+
+  public CircuitBreakerOpenException(String name, long retryDelayMillis) {
+    super(Messages.CircuitBreaker_Open(name));
+    this.retryDelayMillis = retryDelayMillis;
+  }
+
+  /** Returns how long the caller should wait before sending another request. */
+  public long getRetryDelayMillis() {
+    return retryDelayMillis;
+  }
+}
@@ -18,12 +18,14 @@ import java.security.GeneralSecurityException;
 
 import com.cloudbees.plugins.credentials.CredentialsProvider;
 import com.google.api.client.googleapis.javanet.GoogleNetHttpTransport;
+import com.google.api.client.googleapis.services.GoogleClientRequestInitializer;
 import com.google.api.client.http.HttpRequestInitializer;
 import com.google.api.client.http.HttpTransport;
 import com.google.api.client.json.JsonFactory;
 import com.google.api.client.json.jackson2.JacksonFactory;
 import com.google.api.services.cloudbuild.v1.CloudBuild;
 import com.google.api.services.storage.Storage;
+import com.google.jenkins.plugins.cloudbuild.CloudBuildGlobalConfiguration;
 import com.google.jenkins.plugins.cloudbuild.CloudBuildScopeRequirement;
 import com.google.jenkins.plugins.credentials.oauth.GoogleRobotCredentials;
 import hudson.AbortException;
@@ -75,6 +77,38 @@ public class ClientFactory {
     }
   }
 
+  private ClientFactory(ClientFactory other, Run<?, ?> run, TaskListener listener) {
+    this.run = run;
+    this.listener = listener;
+    this.transport = other.transport;
+    this.jsonFactory = other.jsonFactory;
+    this.credentials = other.credentials;
+    this.gcred = other.gcred;
+  }
+
+  /**
+   * Returns a factory that uses the same credentials as this one, but reports to a different
+   * Jenkins build. This avoids looking up the credentials again for each of several builds that
+   * use the same credentials (e.g., when resuming builds after a restart).
+   *
+   * @param run the Jenkins build on whose behalf clients will be used
+   * @param listener the listener for {@code run}
+   * @return a factory for clients acting on behalf of {@code run}
+   */
+  public ClientFactory forRun(Run<?, ?> run, TaskListener listener) {
+    return new ClientFactory(this, run, listener);
+  }
+
+  /** Returns the Jenkins build on whose behalf clients are used. */
+  public Run<?, ?> getRun() {
+    return run;
+  }
+
+  /** Returns the project of the credentials, in which builds run and sources are stored. */
+  public String getProjectId() {
+    return credentials.getProjectId();
+  }
+
   private static synchronized HttpTransport getDefaultTransport()
       throws GeneralSecurityException, IOException {
     if (DEFAULT_TRANSPORT == null) {
@@ -87,11 +121,31 @@ public class ClientFactory {
     DEFAULT_TRANSPORT = transport;
   }
 
+  /**
+   * Returns an initializer that enables or disables gzip compression of request bodies and
+   * responses for every request sent through a client.
+   *
+   * @param gzip whether requests and responses should be compressed
+   * @return an initializer to attach to a Google API client
+   */
+  static GoogleClientRequestInitializer compression(boolean gzip) {
+    return request -> {
+      request.setDisableGZipContent(!gzip);
+      request.getRequestHeaders().setAcceptEncoding(gzip ? "gzip" : "identity");
+    };
+  }
+
+  private static boolean isGzipEnabled() {
+    CloudBuildGlobalConfiguration config = CloudBuildGlobalConfiguration.get();
+    return config == null || config.isGzipEnabled();
+  }
+
   public CloudBuildClient cloudBuild() {
     return new CloudBuildClient(
         new CloudBuild.Builder(transport, jsonFactory, gcred)
             .setRootUrl("https://cloudbuild.googleapis.com/")
             .setApplicationName(APPLICATION_NAME)
+            .setGoogleClientRequestInitializer(compression(isGzipEnabled()))
             .build(),
         credentials.getProjectId(), run, listener);
   }
@@ -100,6 +154,7 @@ public class ClientFactory {
     return new CloudStorageClient(
         new Storage.Builder(transport, jsonFactory, gcred)
             .setApplicationName(APPLICATION_NAME)
+            .setGoogleClientRequestInitializer(compression(isGzipEnabled()))
             .build(),
         credentials.getProjectId(), listener);
   }
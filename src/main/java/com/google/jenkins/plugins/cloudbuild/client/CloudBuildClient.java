@@ -14,16 +14,27 @@
 package com.google.jenkins.plugins.cloudbuild.client;
 
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.Objects;
+import java.util.TreeMap;
+import java.util.UUID;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.TimeUnit;
 
-import com.google.api.client.json.JsonFactory;
-import com.google.api.client.json.jackson2.JacksonFactory;
+import javax.annotation.CheckForNull;
+
 import com.google.api.services.cloudbuild.v1.CloudBuild;
 import com.google.api.services.cloudbuild.v1.model.Build;
-import com.google.api.services.cloudbuild.v1.model.BuildOperationMetadata;
-import com.google.api.services.cloudbuild.v1.model.Operation;
+import com.google.api.services.cloudbuild.v1.model.ListBuildsResponse;
 import com.google.api.services.cloudbuild.v1.model.RepoSource;
 import com.google.api.services.cloudbuild.v1.model.Source;
 import com.google.api.services.cloudbuild.v1.model.StorageSource;
@@ -33,6 +44,8 @@ import com.google.jenkins.plugins.cloudbuild.RepoAction;
 import com.google.jenkins.plugins.cloudbuild.RequestProcessor;
 import com.google.jenkins.plugins.cloudbuild.StorageAction;
 import hudson.AbortException;
+import hudson.Util;
+import hudson.model.Action;
 import hudson.model.Run;
 import hudson.model.TaskListener;
 
@@ -42,16 +55,53 @@ import hudson.model.TaskListener;
  * @see <a href="https://cloud.google.com/cloud-build/">Cloud Build</a>
  */
 public class CloudBuildClient {
+  private static final long POLL_INTERVAL_MILLIS = TimeUnit.SECONDS.toMillis(1);
+  private static final int MAX_CREATE_ATTEMPTS = 5;
+  private static final long MAX_LOOKUP_BACKOFF_MILLIS = TimeUnit.SECONDS.toMillis(30);
+
+  /** The fields of the {@link Build} resource needed while waiting for it to complete. */
+  static final String STATUS_FIELDS = "status,statusDetail,logUrl";
+
+  /** The fields of the {@link Build} resource describing the images that it pushed. */
+  public static final String IMAGE_FIELDS = "results(images(name,digest))";
+
   private final CloudBuild cloudBuild;
   private final String projectId;
   private final Run<?, ?> run;
   private final PrintStream logger;
+  private final CircuitBreaker breaker;
+  private final RequestBatcher batcher;
 
   CloudBuildClient(CloudBuild cloudBuild, String projectId, Run<?, ?> run, TaskListener listener) {
     this.cloudBuild = cloudBuild;
     this.projectId = projectId;
     this.run = run;
     this.logger = listener.getLogger();
+    this.breaker = CircuitBreaker.forService("cloudbuild", projectId);
+    this.batcher = RequestBatcher.forClient(cloudBuild);
+  }
+
+  /** Returns the project in which builds are run. */
+  public String getProjectId() {
+    return projectId;
+  }
+
+  /**
+   * Blocks while the Cloud Build API is known to be unavailable. This should be called before any
+   * expensive preparation (such as uploading the source) for a new build request.
+   *
+   * @throws InterruptedException if interrupted while waiting for the API to become available
+   */
+  public void awaitAvailable() throws InterruptedException {
+    breaker.awaitAvailable(logger);
+  }
+
+  /**
+   * Determines whether the Cloud Build API is currently thought to be available, i.e., whether
+   * requests would be sent to it rather than rejected right away.
+   */
+  public boolean isAvailable() {
+    return breaker.isAvailable();
   }
 
   /**
@@ -62,11 +112,81 @@ public class CloudBuildClient {
    * @param substitutions the custom substitutions to apply
    * @return the ID of the newly-submitted build
    * @throws IOException if an I/O error occurs in processing the request
+   * @throws InterruptedException if interrupted while retrying the request
    * @see <a href="https://cloud.google.com/cloud-build/docs/concepts/build-requests">
    *        Cloud Build - Build Requests</a>
    */
   public String sendBuildRequest(String request, Source source, Map<String, String> substitutions)
+      throws IOException, InterruptedException {
+    return submitBuild(request, source, substitutions, UUID.randomUUID().toString()).getId();
+  }
+
+  /**
+   * Computes the key under which the result of a build is cached. Two builds with the same key run
+   * the same steps with the same substitutions on the same source, in the same project.
+   *
+   * @param request the YAML or JSON request to send
+   * @param substitutions the custom substitutions to apply
+   * @param sourceIdentity the identity of the contents of the source (see
+   *     {@link com.google.jenkins.plugins.cloudbuild.source.CloudBuildSource#identify})
+   * @return a hexadecimal SHA-256 digest of the inputs of the build
+   * @throws IOException if the request cannot be parsed
+   */
+  public String cacheKey(String request, Map<String, String> substitutions, String sourceIdentity)
       throws IOException {
+    // Parsing normalizes formatting, comments and YAML versus JSON; the substitutions are sorted.
+    Build buildRequest = RequestProcessor.parseBuildRequest(request)
+        .setSubstitutions(new TreeMap<>(substitutions));
+    String inputs = String.join("\n",
+        projectId, sourceIdentity, cloudBuild.getJsonFactory().toString(buildRequest));
+    try {
+      return Util.toHexString(MessageDigest.getInstance("SHA-256")
+          .digest(inputs.getBytes(StandardCharsets.UTF_8)));
+    } catch (NoSuchAlgorithmException e) {
+      throw new IOException(e);
+    }
+  }
+
+  /**
+   * Sends a build request to Cloud Build on behalf of the step identified by {@code stepId}.
+   * <p>
+   * The build is tagged with the identity of this controller, job, run and step (see
+   * {@link BuildTags#identity(Run, String)}), along with a tag unique to this submission. If the
+   * request fails in a way that leaves it unclear whether the build was created (e.g., the request
+   * timed out), the build carrying the submission tag is looked up before the request is retried,
+   * so that a retry never starts a second build.
+   *
+   * @param request the YAML or JSON request to send
+   * @param source the {@link Source} to use for the build request
+   * @param substitutions the custom substitutions to apply
+   * @param stepId an identifier of the submitting step, unique within the current run
+   * @return the newly-submitted build (only the ID and log URL are guaranteed to be set)
+   * @throws IOException if an I/O error occurs in processing the request
+   * @throws InterruptedException if interrupted while retrying the request
+   * @see BuildTags#submission(Run, String, int)
+   */
+  public Build submitBuild(String request, Source source, Map<String, String> substitutions,
+      String stepId) throws IOException, InterruptedException {
+    return submitBuild(request, source, substitutions, stepId, 1);
+  }
+
+  /**
+   * Sends a build request to Cloud Build as the given attempt of the step identified by
+   * {@code stepId}. Each attempt carries its own submission tag, so that a build resubmitted after
+   * an earlier one failed is not mistaken for it.
+   *
+   * @param request the YAML or JSON request to send
+   * @param source the {@link Source} to use for the build request
+   * @param substitutions the custom substitutions to apply
+   * @param stepId an identifier of the submitting step, unique within the current run
+   * @param attempt the number of the attempt, starting at 1
+   * @return the newly-submitted build (only the ID and log URL are guaranteed to be set)
+   * @throws IOException if an I/O error occurs in processing the request
+   * @throws InterruptedException if interrupted while retrying the request
+   * @see #submitBuild(String, Source, Map, String)
+   */
+  public Build submitBuild(String request, Source source, Map<String, String> substitutions,
+      String stepId, int attempt) throws IOException, InterruptedException {
     logger.println(Messages.CloudBuildClient_StartingBuildRequest());
     logger.println(request);
     logger.println(Messages.CloudBuildClient_ProjectId(projectId));
@@ -77,17 +197,125 @@ public class CloudBuildClient {
     Build buildRequest = RequestProcessor.parseBuildRequest(request)
         .setSource(source)
         .setSubstitutions(substitutions);
+    String submissionTag = BuildTags.submission(run, stepId, attempt);
+    List<String> tags = new ArrayList<>(BuildTags.identity(run, stepId));
+    tags.add(submissionTag);
+    buildRequest.setTags(BuildTags.append(buildRequest.getTags(), tags));
     addSourceActions(source);
 
-    Operation operation = cloudBuild.projects().builds().create(projectId, buildRequest).execute();
+    Build build = create(buildRequest, submissionTag);
+    run.addAction(new BuildLogAction(build.getLogUrl()));
+    return build;
+  }
+
+  /**
+   * Runs an existing build trigger. Cloud Build reads the build configuration and fetches the
+   * source of the trigger's repository itself.
+   * <p>
+   * Unlike {@link #submitBuild}, the build cannot be tagged with the identity of the submitting
+   * step, so the request is not retried if its outcome is ambiguous, and a build started just
+   * before Jenkins restarted cannot be found again.
+   *
+   * @param triggerId the ID of the trigger to run
+   * @param revision the revision to build and the substitutions to apply
+   * @return the newly-started build (only the ID and log URL are guaranteed to be set)
+   * @throws IOException if an I/O error occurs in processing the request
+   * @see <a href="https://cloud.google.com/cloud-build/docs/api/reference/rest/v1/projects.triggers/run">
+   *        Cloud Build - projects.triggers.run</a>
+   */
+  public Build runTrigger(String triggerId, RepoSource revision) throws IOException {
+    logger.println(Messages.CloudBuildClient_RunningTrigger(triggerId));
+    logger.println(Messages.CloudBuildClient_ProjectId(projectId));
+
+    if (projectId == null) {
+      throw new AbortException(Messages.CloudBuildClient_ProjectIdRequired());
+    }
+    CloudBuild.Projects.Triggers.Run runTrigger =
+        cloudBuild.projects().triggers().run(projectId, triggerId, revision);
+    BuildOperation operation =
+        breaker.record(() -> runTrigger.executeUnparsed().parseAs(BuildOperation.class));
     logger.println(Messages.CloudBuildClient_Operation(operation));
+    Build build = operation.getMetadata().getBuild();
+    run.addAction(new BuildLogAction(build.getLogUrl()));
+    return build;
+  }
+
+  /**
+   * Creates a build, retrying if the outcome of the request is ambiguous.
+   *
+   * @param buildRequest the build to create, which must be tagged with {@code submissionTag}
+   * @param submissionTag the tag unique to this submission
+   * @return the created build (only the ID and log URL are guaranteed to be set)
+   * @throws IOException if the build could not be created
+   * @throws InterruptedException if interrupted while waiting to retry
+   */
+  private Build create(Build buildRequest, String submissionTag)
+      throws IOException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        CloudBuild.Projects.Builds.Create create =
+            cloudBuild.projects().builds().create(projectId, buildRequest);
+        String location = RequestProcessor.getWorkerPoolLocation(buildRequest);
+        if (location != null) {
+          // A build that runs in a private pool must be created in the pool's region.
+          create.set("parent", String.format("projects/%s/locations/%s", projectId, location));
+        }
+        // The generated Operation model only exposes the metadata as a generic map, so parse the
+        // response directly into a model that knows the metadata is a BuildOperationMetadata.
+        BuildOperation operation =
+            breaker.record(() -> create.executeUnparsed().parseAs(BuildOperation.class));
+        logger.println(Messages.CloudBuildClient_Operation(operation));
+        return operation.getMetadata().getBuild();
+      } catch (IOException e) {
+        if (!CircuitBreaker.isUnavailable(e) || attempt >= MAX_CREATE_ATTEMPTS) {
+          throw e;
+        }
+        logger.println(Messages.CloudBuildClient_CreateOutcomeUnknown(e.getMessage()));
+      }
+
+      // The server may have accepted the request even though we never saw the response.
+      Build existing = findBuildByTagWithRetry(submissionTag);
+      if (existing != null) {
+        logger.println(Messages.CloudBuildClient_FoundExistingBuild(existing.getId()));
+        return existing;
+      }
+      TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS << attempt);
+    }
+  }
+
+  /**
+   * Looks up the build carrying {@code tag}, retrying until the Cloud Build API answers. Giving up
+   * on the lookup and creating the build again could start a duplicate build.
+   */
+  private Build findBuildByTagWithRetry(String tag) throws IOException, InterruptedException {
+    for (int attempt = 1; ; attempt++) {
+      try {
+        return findBuildByTag(tag);
+      } catch (IOException e) {
+        if (!CircuitBreaker.isUnavailable(e) && !(e instanceof CircuitBreakerOpenException)) {
+          throw e;
+        }
+        logger.println(Messages.CloudBuildClient_LookupFailed(e.getMessage()));
+        TimeUnit.MILLISECONDS.sleep(
+            Math.min(MAX_LOOKUP_BACKOFF_MILLIS, POLL_INTERVAL_MILLIS << attempt));
+      }
+    }
+  }
 
-    JsonFactory jsonFactory = new JacksonFactory();
-    BuildOperationMetadata metadata =
-        jsonFactory.fromString(
-            jsonFactory.toString(operation.getMetadata()), BuildOperationMetadata.class);
-    run.addAction(new BuildLogAction(metadata.getBuild().getLogUrl()));
-    return metadata.getBuild().getId();
+  /**
+   * Finds the most recent build carrying {@code tag}.
+   *
+   * @param tag the tag to look for
+   * @return the most recent build with the given tag, or {@code null} if there is none
+   * @throws IOException if an I/O error occurs while communicating with the Cloud Build API
+   */
+  @CheckForNull
+  public Build findBuildByTag(String tag) throws IOException {
+    ListBuildsResponse response = breaker.execute(cloudBuild.projects().builds().list(projectId)
+        .setFilter(BuildTags.filter(tag))
+        .setPageSize(1));
+    List<Build> builds = response.getBuilds();
+    return builds == null || builds.isEmpty() ? null : builds.get(0);
   }
 
   /**
@@ -95,34 +323,112 @@ public class CloudBuildClient {
    * operation fails.
    *
    * @param buildId the ID of the build to wait for
+   * @throws BuildFailedException if the build failed
    * @throws InterruptedException if polling was interrupted
    * @throws IOException if an I/O error occurs while polling for build completion
    */
   public void waitForSuccess(String buildId) throws InterruptedException, IOException {
     // Wait for the build to complete
     while (true) {
-      Build buildCheck = cloudBuild.projects().builds().get(projectId, buildId).execute();
-      String status = buildCheck.getStatus();
-
-      logger.println(Messages.CloudBuildClient_CurrentBuildStatus(status));
-      if (status.equals("QUEUED") || status.equals("WORKING")) {
-        // Continue iterating
-        TimeUnit.SECONDS.sleep(1);
+      Build buildCheck;
+      try {
+        // Status checks from all running steps are sent together as batch requests.
+        CloudBuild.Projects.Builds.Get get =
+            cloudBuild.projects().builds().get(projectId, buildId).setFields(STATUS_FIELDS);
+        buildCheck = breaker.execute(() -> batcher.execute(get));
+      } catch (CircuitBreakerOpenException e) {
+        // Only probe the API occasionally until it recovers; the build itself keeps running.
+        logger.println(e.getMessage());
+        TimeUnit.MILLISECONDS.sleep(Math.max(POLL_INTERVAL_MILLIS, e.getRetryDelayMillis()));
+        continue;
+      } catch (IOException e) {
+        if (!CircuitBreaker.isUnavailable(e)) {
+          throw e;
+        }
+        logger.println(Messages.CloudBuildClient_StatusCheckFailed(e.getMessage()));
+        TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
         continue;
       }
-
-      if (status.equals("SUCCESS")) {
-        break;
+      // Only the status fields were requested.
+      buildCheck.setId(buildId);
+      if (reportStatus(buildCheck)) {
+        return;
       }
+      TimeUnit.MILLISECONDS.sleep(POLL_INTERVAL_MILLIS);
+    }
+  }
 
+  /**
+   * Reports the status of a build to the log, as observed by {@link #waitForSuccess(String)}.
+   *
+   * @param build the build, with at least its ID and {@link #STATUS_FIELDS} set
+   * @return {@code true} if the build succeeded, or {@code false} if it is still running
+   * @throws BuildFailedException if the build failed
+   */
+  public boolean reportStatus(Build build) throws BuildFailedException {
+    String status = build.getStatus();
+
+    logger.println(Messages.CloudBuildClient_CurrentBuildStatus(status));
+    if (status.equals("QUEUED") || status.equals("WORKING")) {
+      return false;
+    }
+
+    if (!status.equals("SUCCESS")) {
       logger.println(Messages.CloudBuildClient_BuildFailedWithStatus(status));
-      logger.println(" -> " + buildCheck.getStatusDetail());
-      logger.println(Messages.CloudBuildClient_LogUrl(buildCheck.getLogUrl()));
-      throw new AbortException(Messages.CloudBuildClient_BuildFailed());
+      logger.println(" -> " + build.getStatusDetail());
+      logger.println(Messages.CloudBuildClient_LogUrl(build.getLogUrl()));
+      throw new BuildFailedException(build.getId(), status);
     }
 
     logger.println(Messages.CloudBuildClient_BuildSucceeded());
-    logger.println(Messages.CloudBuildClient_BuildId(buildId));
+    logger.println(Messages.CloudBuildClient_BuildId(build.getId()));
+    return true;
+  }
+
+  /**
+   * Fetches the status of several builds at once. The requests are sent together in as few batch
+   * requests as possible (see {@link RequestBatcher#batchCount(int)}).
+   *
+   * @param buildIds the IDs of the builds to look up
+   * @return the builds that could be fetched, by ID, with their ID and {@link #STATUS_FIELDS} set;
+   *     builds whose status could not be fetched are left out
+   * @throws IOException if an I/O error occurs while creating the requests
+   */
+  public Map<String, Build> getBuilds(Collection<String> buildIds) throws IOException {
+    return getBuilds(buildIds, null);
+  }
+
+  /**
+   * Fetches the status of several builds at once, along with some additional fields.
+   *
+   * @param buildIds the IDs of the builds to look up
+   * @param fields the fields to fetch in addition to the ID and {@link #STATUS_FIELDS} (e.g.,
+   *     {@link #IMAGE_FIELDS}), or {@code null} for none
+   * @return the builds that could be fetched, by ID; builds whose status could not be fetched are
+   *     left out
+   * @throws IOException if an I/O error occurs while creating the requests
+   * @see #getBuilds(Collection)
+   */
+  public Map<String, Build> getBuilds(Collection<String> buildIds, @CheckForNull String fields)
+      throws IOException {
+    String mask = "id," + STATUS_FIELDS + (fields == null ? "" : "," + fields);
+    Map<String, CompletableFuture<Build>> futures = new LinkedHashMap<>();
+    for (String buildId : buildIds) {
+      futures.put(buildId, batcher.submit(cloudBuild.projects().builds().get(projectId, buildId)
+          .setFields(mask)));
+    }
+    Map<String, Build> result = new LinkedHashMap<>();
+    for (Map.Entry<String, CompletableFuture<Build>> entry : futures.entrySet()) {
+      try {
+        result.put(entry.getKey(), breaker.record(() -> RequestBatcher.await(entry.getValue())));
+      } catch (InterruptedIOException e) {
+        throw e;
+      } catch (IOException e) {
+        // The build will be polled individually instead.
+        logger.println(Messages.CloudBuildClient_StatusCheckFailed(e.getMessage()));
+      }
+    }
+    return result;
   }
 
   /**
@@ -144,13 +450,26 @@ public class CloudBuildClient {
       if (Strings.isNullOrEmpty(repoName)) {
         repoName = "default";
       }
-      run.addAction(new RepoAction(repoProjectId, repoName, getRepoSourceRevision(rs)));
+      addAction(new RepoAction(repoProjectId, repoName, getRepoSourceRevision(rs)));
     }
 
     StorageSource ss = source.getStorageSource();
     if (ss != null) {
-      run.addAction(new StorageAction(ss.getBucket(), getParentDirectory(ss.getObject())));
+      addAction(new StorageAction(ss.getBucket(), getParentDirectory(ss.getObject())));
+    }
+  }
+
+  /**
+   * Adds {@code action} to the current Jenkins build, unless an action of the same type linking to
+   * the same place was already added (e.g., by another build sharing the same source).
+   */
+  private void addAction(Action action) {
+    for (Action existing : run.getActions(action.getClass())) {
+      if (Objects.equals(existing.getUrlName(), action.getUrlName())) {
+        return;
+      }
     }
+    run.addAction(action);
   }
 
   /**
@@ -39,11 +39,15 @@ public class CloudStorageClient {
   private final Storage storage;
   private final String projectId;
   private final TaskListener listener;
+  private final CircuitBreaker breaker;
+  private final RequestBatcher batcher;
 
   CloudStorageClient(Storage storage, String projectId, TaskListener listener) {
     this.storage = storage;
     this.projectId = projectId;
     this.listener = listener;
+    this.breaker = CircuitBreaker.forService("storage", projectId);
+    this.batcher = RequestBatcher.forClient(storage);
   }
 
   private static final String STORAGE_BROWSE_ROOT = "https://storage.cloud.google.com";
@@ -92,13 +96,29 @@ public class CloudStorageClient {
     InputStreamContent content = new InputStreamContent(type, data);
 
     Storage.Objects.Insert insert = storage.objects().insert(bucket, storageObject, content);
-    insert.execute();
+    // Uploaded sources are already compressed archives, so compressing them again only costs CPU.
+    insert.setDisableGZipContent(true);
+    breaker.execute(insert);
 
     listener.getLogger().printf("%s: ", Messages.CloudStorageClient_FileUploadedTo());
     hyperlinkObject(bucket, object);
     listener.getLogger().println();
   }
 
+  /**
+   * Looks up the metadata of a Cloud Storage object. Lookups from concurrently running steps are
+   * sent together as batch requests.
+   *
+   * @param bucket the bucket containing the object
+   * @param object the path to the object within the bucket
+   * @return the metadata of the object
+   * @throws IOException if an I/O error occurs while processing the request
+   */
+  public StorageObject getObject(String bucket, String object) throws IOException {
+    Storage.Objects.Get get = storage.objects().get(bucket, object);
+    return breaker.execute(() -> batcher.execute(get));
+  }
+
   private static final String TEMP_BUCKET_PREFIX = "jenkins-tmp_";
   private static final int TEMP_BUCKET_TTL_DAYS = 3;
   private String tempBucketName = null;
@@ -121,7 +141,8 @@ public class CloudStorageClient {
 
     logger.println(Messages.CloudStorageClient_LookingForTempBucket());
     List<Bucket> buckets =
-        storage.buckets().list(projectId).setPrefix(TEMP_BUCKET_PREFIX).execute().getItems();
+        breaker.execute(storage.buckets().list(projectId).setPrefix(TEMP_BUCKET_PREFIX))
+            .getItems();
     if (buckets != null && !buckets.isEmpty()) {
       tempBucketName = buckets.get(0).getName();
       logger.printf("%s: ", Messages.CloudStorageClient_FoundExistingTempBucket());
@@ -133,7 +154,7 @@ public class CloudStorageClient {
     logger.println(Messages.CloudStorageClient_CreatingNewTempBucket());
     String name = String.format("%s%s", TEMP_BUCKET_PREFIX, UUID.randomUUID().toString());
     tempBucketName =
-        storage.buckets().insert(projectId,
+        breaker.execute(storage.buckets().insert(projectId,
             new Bucket()
                 .setName(name)
                 .setLifecycle(
@@ -141,8 +162,8 @@ public class CloudStorageClient {
                         .setRule(Collections.singletonList(
                             new Rule()
                                 .setAction(new Action().setType("Delete"))
-                                .setCondition(new Condition().setAge(TEMP_BUCKET_TTL_DAYS))))))
-            .execute().getName();
+                                .setCondition(new Condition().setAge(TEMP_BUCKET_TTL_DAYS)))))))
+            .getName();
     logger.printf("%s: ", Messages.CloudStorageClient_CreatedNewTempBucket());
     hyperlinkBucket(tempBucketName);
     logger.println();
@@ -0,0 +1,255 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import com.google.api.client.googleapis.batch.BatchRequest;
+import com.google.api.client.googleapis.batch.json.JsonBatchCallback;
+import com.google.api.client.googleapis.json.GoogleJsonError;
+import com.google.api.client.googleapis.json.GoogleJsonResponseException;
+import com.google.api.client.googleapis.services.AbstractGoogleClient;
+import com.google.api.client.googleapis.services.json.AbstractGoogleJsonClientRequest;
+import com.google.api.client.http.GenericUrl;
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Collects requests to the same Google API made by concurrently running steps over a short window
+ * and sends them as a single batch HTTP request, dispatching each response back to its caller.
+ * <p>
+ * A window containing a single request is sent as an ordinary request, so a lone caller pays no
+ * batching overhead beyond the window itself.
+ *
+ * @see <a href="https://cloud.google.com/storage/docs/json_api/v1/how-tos/batch">
+ *        Cloud Storage - Sending batch requests</a>
+ */
+public final class RequestBatcher {
+  private static final Logger LOGGER = Logger.getLogger(RequestBatcher.class.getName());
+
+  static final long WINDOW_MILLIS = 100;
+  static final int MAX_BATCH_SIZE = 100;
+
+  private static final ConcurrentMap<String, RequestBatcher> BATCHERS = new ConcurrentHashMap<>();
+
+  /** The executor on which batches are sent. */
+  private static volatile ScheduledExecutorService executorService;
+
+  private static synchronized ScheduledExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newScheduledThreadPool(4,
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), RequestBatcher.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  /**
+   * Returns the batcher for requests sent through {@code client}. Requests sent to the same API
+   * share a batcher regardless of the credentials used, since each part of a batch request carries
+   * its own authorization.
+   *
+   * @param client the client through which requests will be sent
+   * @return the shared batcher for the API that {@code client} talks to
+   */
+  public static RequestBatcher forClient(AbstractGoogleClient client) {
+    return BATCHERS.computeIfAbsent(
+        client.getRootUrl() + client.getServicePath(), name -> new RequestBatcher());
+  }
+
+  /** A request waiting to be sent, along with the future through which its caller is notified. */
+  private static final class Pending<T> {
+    private final AbstractGoogleJsonClientRequest<T> request;
+    private final CompletableFuture<T> future = new CompletableFuture<>();
+
+    Pending(AbstractGoogleJsonClientRequest<T> request) {
+      this.request = request;
+    }
+
+    void execute() {
+      try {
+        future.complete(request.execute());
+      } catch (IOException | RuntimeException e) {
+        future.completeExceptionally(e);
+      }
+    }
+
+    void queue(BatchRequest batch) throws IOException {
+      request.queue(batch, new JsonBatchCallback<T>() {
+        @Override
+        public void onSuccess(T result, HttpHeaders responseHeaders) {
+          future.complete(result);
+        }
+
+        @Override
+        public void onFailure(GoogleJsonError error, HttpHeaders responseHeaders) {
+          future.completeExceptionally(new GoogleJsonResponseException(
+              new HttpResponseException.Builder(
+                  error.getCode(), error.getMessage(), responseHeaders),
+              error));
+        }
+      });
+    }
+  }
+
+  private final List<Pending<?>> pending = new ArrayList<>();
+  private ScheduledFuture<?> scheduledFlush;
+
+  RequestBatcher() {}
+
+  /**
+   * Queues {@code request} to be sent with the next batch.
+   *
+   * @param request the request to send
+   * @param <T> the type of the response
+   * @return a future that completes with the response, or with the error returned for the request
+   */
+  public synchronized <T> CompletableFuture<T> submit(AbstractGoogleJsonClientRequest<T> request) {
+    Pending<T> entry = new Pending<>(request);
+    pending.add(entry);
+    if (pending.size() >= MAX_BATCH_SIZE) {
+      if (scheduledFlush != null) {
+        scheduledFlush.cancel(false);
+      }
+      scheduledFlush = null;
+      List<Pending<?>> batch = new ArrayList<>(pending);
+      pending.clear();
+      getExecutorService().execute(() -> send(batch));
+    } else if (scheduledFlush == null) {
+      scheduledFlush =
+          getExecutorService().schedule(this::flush, WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+    }
+    return entry.future;
+  }
+
+  /**
+   * Sends {@code request} with the next batch and waits for its response.
+   *
+   * @param request the request to send
+   * @param <T> the type of the response
+   * @return the response to the request
+   * @throws IOException if an error was returned for the request, or if interrupted while waiting
+   */
+  public <T> T execute(AbstractGoogleJsonClientRequest<T> request) throws IOException {
+    return await(submit(request));
+  }
+
+  /**
+   * Waits for the response to a request queued with
+   * {@link #submit(AbstractGoogleJsonClientRequest)}.
+   *
+   * @param future the future returned when the request was queued
+   * @param <T> the type of the response
+   * @return the response to the request
+   * @throws IOException if an error was returned for the request, or if interrupted while waiting
+   */
+  public static <T> T await(CompletableFuture<T> future) throws IOException {
+    try {
+      return future.get();
+    } catch (InterruptedException e) {
+      Thread.currentThread().interrupt();
+      InterruptedIOException ex = new InterruptedIOException();
+      ex.initCause(e);
+      throw ex;
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      if (cause instanceof RuntimeException) {
+        throw (RuntimeException) cause;
+      }
+      throw new IOException(cause);
+    }
+  }
+
+  /**
+   * Returns the number of HTTP requests needed to send {@code requests} requests that are queued at
+   * the same time.
+   */
+  public static int batchCount(int requests) {
+    return (requests + MAX_BATCH_SIZE - 1) / MAX_BATCH_SIZE;
+  }
+
+  /** Sends all requests queued since the last flush. */
+  void flush() {
+    List<Pending<?>> batch;
+    synchronized (this) {
+      batch = new ArrayList<>(pending);
+      pending.clear();
+      scheduledFlush = null;
+    }
+    if (!batch.isEmpty()) {
+      send(batch);
+    }
+  }
+
+  /**
+   * Returns the batch endpoint for the API that {@code client} talks to (e.g.,
+   * {@code https://cloudbuild.googleapis.com/batch} or
+   * {@code https://www.googleapis.com/batch/storage/v1}).
+   */
+  static GenericUrl batchUrl(AbstractGoogleClient client) {
+    String servicePath = client.getServicePath();
+    if (servicePath.endsWith("/")) {
+      servicePath = servicePath.substring(0, servicePath.length() - 1);
+    }
+    return new GenericUrl(servicePath.isEmpty()
+        ? client.getRootUrl() + "batch"
+        : String.format("%sbatch/%s", client.getRootUrl(), servicePath));
+  }
+
+  private static void send(List<Pending<?>> batch) {
+    if (batch.size() == 1) {
+      batch.get(0).execute();
+      return;
+    }
+    AbstractGoogleClient client = batch.get(0).request.getAbstractGoogleClient();
+    try {
+      BatchRequest request = client.batch(client.getRequestFactory().getInitializer())
+          .setBatchUrl(batchUrl(client));
+      for (Pending<?> entry : batch) {
+        entry.queue(request);
+      }
+      request.execute();
+    } catch (IOException | RuntimeException e) {
+      LOGGER.log(Level.FINE, "Batch request failed", e);
+      for (Pending<?> entry : batch) {
+        entry.future.completeExceptionally(e);
+      }
+    }
+    // Any request whose response was missing from the batch response must not wait forever.
+    for (Pending<?> entry : batch) {
+      if (!entry.future.isDone()) {
+        entry.future.completeExceptionally(
+            new IOException(Messages.RequestBatcher_MissingResponse()));
+      }
+    }
+  }
+}
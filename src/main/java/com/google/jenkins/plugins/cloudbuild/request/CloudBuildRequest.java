@@ -25,6 +25,14 @@ public abstract class CloudBuildRequest extends AbstractDescribableImpl<CloudBui
     implements ExtensionPoint, Serializable {
   public abstract String expand(BuildContext context) throws IOException, InterruptedException;
 
+  /**
+   * Returns whether {@link #expand(BuildContext)} reads from the workspace. A pipeline step whose
+   * request and source need no workspace may run outside of a {@code node} block.
+   */
+  public boolean requiresWorkspace() {
+    return false;
+  }
+
   @Override
   public CloudBuildRequestDescriptor getDescriptor() {
     return (CloudBuildRequestDescriptor) super.getDescriptor();
@@ -53,6 +53,11 @@ public class FileCloudBuildRequest extends CloudBuildRequest implements Serializ
     return workspace.child(expandedFilename).readToString();
   }
 
+  @Override
+  public boolean requiresWorkspace() {
+    return true;
+  }
+
   /** Descriptor for {@link FileCloudBuildRequest}. */
   @Extension @Symbol("file")
   public static class DescriptorImpl extends CloudBuildRequestDescriptor {
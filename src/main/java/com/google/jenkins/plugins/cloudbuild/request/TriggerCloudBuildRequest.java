@@ -0,0 +1,139 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.request;
+
+import java.io.IOException;
+import java.io.Serializable;
+import java.util.Map;
+
+import javax.annotation.CheckForNull;
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+import org.kohsuke.stapler.DataBoundSetter;
+import org.kohsuke.stapler.QueryParameter;
+
+import com.google.api.services.cloudbuild.v1.model.RepoSource;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.Util;
+import hudson.util.FormValidation;
+
+/**
+ * Runs an existing Cloud Build trigger instead of sending a build request. Cloud Build then reads
+ * the build configuration and fetches the source of the trigger's repository itself, so nothing
+ * needs to be parsed or uploaded by Jenkins.
+ *
+ * @see <a href="https://cloud.google.com/cloud-build/docs/api/reference/rest/v1/projects.triggers/run">
+ *        Cloud Build - projects.triggers.run</a>
+ */
+public class TriggerCloudBuildRequest extends CloudBuildRequest implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Nonnull
+  private final String triggerId;
+  @CheckForNull private String branch;
+  @CheckForNull private String tag;
+  @CheckForNull private String commit;
+
+  @DataBoundConstructor
+  public TriggerCloudBuildRequest(@Nonnull String triggerId) {
+    this.triggerId = triggerId;
+  }
+
+  @Nonnull
+  public String getTriggerId() {
+    return triggerId;
+  }
+
+  @CheckForNull
+  public String getBranch() {
+    return branch;
+  }
+
+  @DataBoundSetter
+  public void setBranch(@CheckForNull String branch) {
+    this.branch = Util.fixEmpty(branch);
+  }
+
+  @CheckForNull
+  public String getTag() {
+    return tag;
+  }
+
+  @DataBoundSetter
+  public void setTag(@CheckForNull String tag) {
+    this.tag = Util.fixEmpty(tag);
+  }
+
+  @CheckForNull
+  public String getCommit() {
+    return commit;
+  }
+
+  @DataBoundSetter
+  public void setCommit(@CheckForNull String commit) {
+    this.commit = Util.fixEmpty(commit);
+  }
+
+  /** A trigger has no build request of its own for Jenkins to send. */
+  @Override
+  public String expand(BuildContext context) throws AbortException {
+    throw new AbortException(Messages.TriggerCloudBuildRequest_NotSupported(triggerId));
+  }
+
+  /**
+   * Returns the revision to build and the substitutions to apply, in the form expected by the
+   * {@code projects.triggers.run} method. If no revision is given, the trigger's own branch or tag
+   * is built.
+   *
+   * @param context the context in which to expand variables in the revision
+   * @param substitutions the custom substitutions to apply, in addition to the trigger's own
+   * @return the source to pass when running the trigger
+   * @throws AbortException if more than one of branch, tag and commit is given
+   */
+  public RepoSource getRevision(BuildContext context, Map<String, String> substitutions)
+      throws IOException, InterruptedException {
+    int revisions = (branch != null ? 1 : 0) + (tag != null ? 1 : 0) + (commit != null ? 1 : 0);
+    if (revisions > 1) {
+      throw new AbortException(Messages.TriggerCloudBuildRequest_OneRevision());
+    }
+    RepoSource revision = new RepoSource()
+        .setBranchName(branch != null ? context.expand(branch) : null)
+        .setTagName(tag != null ? context.expand(tag) : null)
+        .setCommitSha(commit != null ? context.expand(commit) : null);
+    if (!substitutions.isEmpty()) {
+      revision.setSubstitutions(substitutions);
+    }
+    return revision;
+  }
+
+  /** Descriptor for {@link TriggerCloudBuildRequest}. */
+  @Extension @Symbol("trigger")
+  public static class DescriptorImpl extends CloudBuildRequestDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.TriggerCloudBuildRequest_DisplayName();
+    }
+
+    public FormValidation doCheckTriggerId(@QueryParameter String value) {
+      if (value.trim().isEmpty()) {
+        return FormValidation.error(Messages.TriggerCloudBuildRequest_TriggerIdRequired());
+      }
+      return FormValidation.ok();
+    }
+  }
+}
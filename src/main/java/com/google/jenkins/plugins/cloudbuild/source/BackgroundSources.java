@@ -0,0 +1,159 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.source;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.UUID;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import javax.annotation.Nonnull;
+
+import com.google.api.services.cloudbuild.v1.model.Source;
+import hudson.AbortException;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+import hudson.util.DaemonThreadFactory;
+import hudson.util.NamingThreadFactory;
+
+/**
+ * Keeps track of the sources being prepared in the background by
+ * {@code googleCloudBuildPrepareSource}, so that a later step can use them through a
+ * {@link PreparedCloudBuildSource} once they are ready.
+ * <p>
+ * Sources are only kept in memory, until the Jenkins build that started preparing them has
+ * finished; preparation still in progress at that point is cancelled.
+ */
+public final class BackgroundSources {
+  private static final BackgroundSources INSTANCE = new BackgroundSources();
+
+  public static BackgroundSources get() {
+    return INSTANCE;
+  }
+
+  /** The executor on which sources are prepared. */
+  private static volatile ExecutorService executorService;
+
+  private static synchronized ExecutorService getExecutorService() {
+    if (executorService == null) {
+      executorService = Executors.newCachedThreadPool(
+          new NamingThreadFactory(
+              new DaemonThreadFactory(), BackgroundSources.class.getCanonicalName()));
+    }
+    return executorService;
+  }
+
+  /** A source being prepared on behalf of a Jenkins build. */
+  private static final class Entry {
+    private final String runId;
+    /** The project in whose bucket the source is stored. */
+    private final String projectId;
+    private final Future<Source> future;
+
+    Entry(String runId, String projectId, Future<Source> future) {
+      this.runId = runId;
+      this.projectId = projectId;
+      this.future = future;
+    }
+  }
+
+  private final ConcurrentMap<String, Entry> entries = new ConcurrentHashMap<>();
+
+  BackgroundSources() {}
+
+  /**
+   * Starts preparing a source in the background.
+   *
+   * @param run the Jenkins build on whose behalf the source is prepared
+   * @param projectId the project of the credentials with which the source is prepared
+   * @param prepare prepares the source
+   * @return the ID through which the prepared source can be retrieved
+   */
+  public String start(Run<?, ?> run, String projectId, Callable<Source> prepare) {
+    String id = UUID.randomUUID().toString();
+    entries.put(id, new Entry(
+        run.getExternalizableId(), projectId, getExecutorService().submit(prepare)));
+    return id;
+  }
+
+  /**
+   * Waits until the source with the given ID has been prepared.
+   *
+   * @param run the Jenkins build that is to use the source
+   * @param projectId the project of the credentials with which the source is to be used
+   * @param id the ID returned by {@link #start(Run, String, Callable)}
+   * @param logger the log to which a message is written if the caller has to wait
+   * @return a copy of the prepared source
+   * @throws AbortException if no such source is being prepared for {@code run} and
+   *     {@code projectId}, or if preparing it failed or was cancelled
+   * @throws IOException if an I/O error occurred while preparing the source
+   * @throws InterruptedException if interrupted while waiting
+   */
+  public Source await(Run<?, ?> run, String projectId, String id, PrintStream logger)
+      throws IOException, InterruptedException {
+    Entry entry = entries.get(id);
+    if (entry == null || !entry.runId.equals(run.getExternalizableId())) {
+      throw new AbortException(Messages.BackgroundSources_NotAvailable(id));
+    }
+    if (!entry.projectId.equals(projectId)) {
+      throw new AbortException(
+          Messages.BackgroundSources_OtherProject(id, entry.projectId, projectId));
+    }
+    if (!entry.future.isDone()) {
+      logger.println(Messages.BackgroundSources_Waiting(id));
+    }
+    try {
+      // Each step gets its own copy, since steps may modify the source they submit.
+      return entry.future.get().clone();
+    } catch (CancellationException e) {
+      // The Jenkins build that started preparing the source has finished.
+      throw new AbortException(Messages.BackgroundSources_NotAvailable(id));
+    } catch (ExecutionException e) {
+      Throwable cause = e.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException) cause;
+      }
+      throw new AbortException(Messages.BackgroundSources_Failed(id, cause));
+    }
+  }
+
+  /** Forgets the sources prepared on behalf of {@code run}, cancelling any still in progress. */
+  void forget(Run<?, ?> run) {
+    String runId = run.getExternalizableId();
+    entries.values().removeIf(entry -> {
+      if (!entry.runId.equals(runId)) {
+        return false;
+      }
+      entry.future.cancel(true);
+      return true;
+    });
+  }
+
+  /** Forgets the sources prepared on behalf of each Jenkins build once it has finished. */
+  @Extension
+  public static final class Cleanup extends RunListener<Run<?, ?>> {
+    @Override
+    public void onFinalized(@Nonnull Run<?, ?> run) {
+      get().forget(run);
+    }
+  }
+}
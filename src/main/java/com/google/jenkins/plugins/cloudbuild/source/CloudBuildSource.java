@@ -16,6 +16,8 @@ package com.google.jenkins.plugins.cloudbuild.source;
 import java.io.IOException;
 import java.io.Serializable;
 
+import javax.annotation.CheckForNull;
+
 import com.google.api.services.cloudbuild.v1.model.Source;
 import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
 import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
@@ -43,6 +45,39 @@ public abstract class CloudBuildSource extends AbstractDescribableImpl<CloudBuil
   public abstract Source prepare(BuildContext context, ClientFactory clients)
       throws IOException, InterruptedException;
 
+  /**
+   * Returns whether {@link #prepare(BuildContext, ClientFactory)} reads from the workspace. A
+   * pipeline step whose request and source need no workspace may run outside of a {@code node}
+   * block.
+   */
+  public boolean requiresWorkspace() {
+    return false;
+  }
+
+  /**
+   * Returns a string that identifies the contents of this source, without preparing it. Two
+   * builds whose sources have the same identity see the same files, so the result of one may be
+   * reused for the other (see {@code BuildResultCache}).
+   *
+   * @param context the context of the currently running Jenkins build
+   * @param clients the factory to use for accessing Google Cloud services
+   * @return the identity of the contents, or {@code null} if the contents may change without the
+   *     source's configuration changing (e.g., a branch)
+   * @throws IOException if an I/O error occurs while inspecting the source
+   * @throws InterruptedException if an operation involving communicating with another Jenkins node
+   *     is interrupted
+   */
+  @CheckForNull
+  public String identify(BuildContext context, ClientFactory clients)
+      throws IOException, InterruptedException {
+    return null;
+  }
+
+  /**
+   * The absence of a source. It has no identity, since builds without a source usually fetch their
+   * inputs themselves (e.g., by cloning a repository or pulling a {@code latest} image), so their
+   * results are never cached.
+   */
   public static final CloudBuildSource NULL = new CloudBuildSource() {
     @Override
     public Source prepare(BuildContext context, ClientFactory clients)
@@ -17,4 +17,11 @@ import hudson.model.Descriptor;
 
 /** Descriptor for Google Cloud Build sources. */
 public abstract class CloudBuildSourceDescriptor extends Descriptor<CloudBuildSource> {
+  /**
+   * Returns whether the source can only be used by pipeline steps, in which case it is not offered
+   * to freestyle projects.
+   */
+  public boolean isPipelineOnly() {
+    return false;
+  }
 }
@@ -13,9 +13,16 @@
  */
 package com.google.jenkins.plugins.cloudbuild.source;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
+import java.util.TreeMap;
 import java.util.UUID;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -35,14 +42,20 @@ import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
 import hudson.AbortException;
 import hudson.Extension;
 import hudson.FilePath;
+import hudson.Util;
+import hudson.model.Computer;
+import hudson.model.Run;
 import hudson.model.TaskListener;
 import hudson.remoting.FastPipedInputStream;
 import hudson.remoting.FastPipedOutputStream;
+import hudson.remoting.VirtualChannel;
 import hudson.util.DaemonThreadFactory;
 import hudson.util.DirScanner;
+import hudson.util.FileVisitor;
 import hudson.util.FormValidation;
 import hudson.util.NamingThreadFactory;
 import hudson.util.io.ArchiverFactory;
+import jenkins.MasterToSlaveFileCallable;
 
 /**
  * Uploads a file, or a gzipped-tarball of a directory, within the workspace to a temporary Google
@@ -102,6 +115,22 @@ public class LocalCloudBuildSource extends CloudBuildSource implements Serializa
       throw new AbortException(Messages.LocalCloudBuildSource_SourcePathDoesNotExist());
     }
 
+    Run<?, ?> run = clients.getRun();
+    if (run == null) {
+      return upload(root, context, clients);
+    }
+    // Steps on different agents see different files, even at the same path.
+    Computer computer = root.toComputer();
+    String key = String.join("\n", clients.getProjectId(),
+        computer != null ? computer.getName() : "", root.getRemote(),
+        root.act(new TreeFingerprint()));
+    return RunSourceCache.get().prepare(run, key, () -> upload(root, context, clients),
+        context.getListener().getLogger());
+  }
+
+  /** Uploads {@code root} to a new object in a temporary Cloud Storage bucket. */
+  private static Source upload(FilePath root, BuildContext context, ClientFactory clients)
+      throws IOException, InterruptedException {
     CloudStorageClient storage = clients.storage();
     String bucket = storage.createTempBucket();
     String objectBaseName = String.format("source/%d-%s", System.currentTimeMillis(),
@@ -135,6 +164,119 @@ public class LocalCloudBuildSource extends CloudBuildSource implements Serializa
             .setObject(object));
   }
 
+  @Override
+  public boolean requiresWorkspace() {
+    return true;
+  }
+
+  /**
+   * Identifies the source by a digest of the files that would be uploaded, so that the identity
+   * does not depend on timestamps or on the order in which the files are archived.
+   */
+  @Override
+  public String identify(BuildContext context, ClientFactory clients)
+      throws IOException, InterruptedException {
+    FilePath workspace = context.getWorkspace();
+    if (workspace == null) {
+      throw new AbortException(Messages.LocalCloudBuildSource_WorkspaceRequired());
+    }
+    FilePath root = workspace.child(context.expand(path));
+    if (!root.exists()) {
+      throw new AbortException(Messages.LocalCloudBuildSource_SourcePathDoesNotExist());
+    }
+    return "local:" + digest(root, "**");
+  }
+
+  /**
+   * Computes a digest of the names and contents of the files within {@code root} that match
+   * {@code includes}, independent of their timestamps and of the order in which they are listed.
+   *
+   * @param root the file or directory to digest
+   * @param includes comma-separated Ant-style patterns of the files to include (e.g.,
+   *     {@code "services/api/**,lib/**"})
+   * @return a hexadecimal SHA-256 digest
+   * @throws IOException if an I/O error occurs while reading the files
+   * @throws InterruptedException if interrupted while communicating with the agent
+   */
+  public static String digest(FilePath root, String includes)
+      throws IOException, InterruptedException {
+    return root.act(new ContentDigest(includes));
+  }
+
+  /**
+   * Computes a quick fingerprint of the files within a path from their number, total size and
+   * latest modification time, without reading their contents.
+   */
+  private static final class TreeFingerprint extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException {
+      long[] totals = new long[3];
+      FileVisitor visitor = new FileVisitor() {
+        @Override
+        public void visit(File file, String relativePath) {
+          totals[0]++;
+          totals[1] += file.length();
+          totals[2] = Math.max(totals[2], file.lastModified());
+        }
+      };
+      if (f.isDirectory()) {
+        new DirScanner.Glob("**", "").scan(f, visitor);
+      } else {
+        visitor.visit(f, f.getName());
+      }
+      return String.format("%d:%d:%d", totals[0], totals[1], totals[2]);
+    }
+  }
+
+  /** Computes a SHA-256 digest of the names and contents of the files within a path. */
+  private static final class ContentDigest extends MasterToSlaveFileCallable<String> {
+    private static final long serialVersionUID = 1L;
+
+    private final String includes;
+
+    ContentDigest(String includes) {
+      this.includes = includes;
+    }
+
+    @Override
+    public String invoke(File f, VirtualChannel channel) throws IOException {
+      // Visit the same files that are archived by prepare(), in a stable order.
+      Map<String, File> files = new TreeMap<>();
+      if (f.isDirectory()) {
+        new DirScanner.Glob(includes, "").scan(f, new FileVisitor() {
+          @Override
+          public void visit(File file, String relativePath) {
+            files.put(relativePath, file);
+          }
+        });
+      } else {
+        files.put(f.getName(), f);
+      }
+      MessageDigest digest;
+      try {
+        digest = MessageDigest.getInstance("SHA-256");
+      } catch (NoSuchAlgorithmException e) {
+        throw new IOException(e);
+      }
+      for (Map.Entry<String, File> entry : files.entrySet()) {
+        digest.update(entry.getKey().getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+        if (entry.getValue().isFile()) {
+          try (InputStream in = Files.newInputStream(entry.getValue().toPath())) {
+            byte[] buffer = new byte[8192];
+            for (int n; (n = in.read(buffer)) != -1; ) {
+              digest.update(buffer, 0, n);
+            }
+          }
+        }
+        digest.update((byte) 0);
+      }
+      return Util.toHexString(digest.digest());
+    }
+  }
+
   /** Descriptor for {@link LocalCloudBuildSource}. */
   @Extension(ordinal = 3.0) @Symbol("local")
   public static class DescriptorImpl extends CloudBuildSourceDescriptor {
@@ -0,0 +1,73 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.source;
+
+import java.io.IOException;
+import java.io.Serializable;
+
+import javax.annotation.Nonnull;
+
+import org.jenkinsci.Symbol;
+import org.kohsuke.stapler.DataBoundConstructor;
+
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import hudson.Extension;
+
+/**
+ * Uses a source that {@code googleCloudBuildPrepareSource} started preparing in the background,
+ * waiting for it to be ready if necessary.
+ *
+ * @see BackgroundSources
+ */
+public final class PreparedCloudBuildSource extends CloudBuildSource implements Serializable {
+  private static final long serialVersionUID = 1L;
+
+  @Nonnull
+  private final String id;
+
+  @DataBoundConstructor
+  public PreparedCloudBuildSource(@Nonnull String id) {
+    this.id = id;
+  }
+
+  /** Returns the ID returned by {@code googleCloudBuildPrepareSource}. */
+  @Nonnull
+  public String getId() {
+    return id;
+  }
+
+  @Override
+  public Source prepare(BuildContext context, ClientFactory clients)
+      throws IOException, InterruptedException {
+    return BackgroundSources.get().await(
+        clients.getRun(), clients.getProjectId(), id, context.getListener().getLogger());
+  }
+
+  /** Descriptor for {@link PreparedCloudBuildSource}. */
+  @Extension(ordinal = 0.0) @Symbol("prepared")
+  public static class DescriptorImpl extends CloudBuildSourceDescriptor {
+    @Override @Nonnull
+    public String getDisplayName() {
+      return Messages.PreparedCloudBuildSource_DisplayName();
+    }
+
+    /** Only {@code googleCloudBuildPrepareSource}, a pipeline step, can prepare a source. */
+    @Override
+    public boolean isPipelineOnly() {
+      return true;
+    }
+  }
+}
@@ -151,6 +151,17 @@ public class RepoCloudBuildSource extends CloudBuildSource implements Serializab
             .setCommitSha(context.expand(commit)));
   }
 
+  /** Only a commit identifies the contents of the repository; branches and tags may move. */
+  @Override
+  public String identify(BuildContext context, ClientFactory clients)
+      throws IOException, InterruptedException {
+    if (getRevisionType() != RevisionType.COMMIT) {
+      return null;
+    }
+    return String.format("repo:%s/%s@%s",
+        context.expand(projectId), context.expand(repoName), context.expand(commit));
+  }
+
   /** Descriptor for {@link RepoCloudBuildSource}. */
   @Extension(ordinal = 1.0) @Symbol("repo")
   public static class DescriptorImpl extends CloudBuildSourceDescriptor {
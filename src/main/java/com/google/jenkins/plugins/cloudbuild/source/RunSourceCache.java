@@ -0,0 +1,119 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.source;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+
+import javax.annotation.Nonnull;
+
+import com.google.api.services.cloudbuild.v1.model.Source;
+import hudson.Extension;
+import hudson.model.Run;
+import hudson.model.listeners.RunListener;
+
+/**
+ * Remembers the sources prepared within each Jenkins build, so that steps preparing the same
+ * source (e.g., the same directory of the workspace in several {@code parallel} branches) upload
+ * it once, rather than once per step. A step that asks for a source while another step is still
+ * preparing it waits for that step instead of starting its own upload.
+ * <p>
+ * The sources of a Jenkins build are forgotten once it has finished.
+ */
+public final class RunSourceCache {
+  private static final RunSourceCache INSTANCE = new RunSourceCache();
+
+  public static RunSourceCache get() {
+    return INSTANCE;
+  }
+
+  /** Prepares a source that is not in the cache. */
+  @FunctionalInterface
+  interface Preparation {
+    Source prepare() throws IOException, InterruptedException;
+  }
+
+  /** The prepared or in-flight sources, by Jenkins build and key. */
+  private final ConcurrentMap<String, CompletableFuture<Source>> sources =
+      new ConcurrentHashMap<>();
+
+  RunSourceCache() {}
+
+  private static String runPrefix(Run<?, ?> run) {
+    return run.getExternalizableId() + "\n";
+  }
+
+  /**
+   * Returns the source prepared for {@code key} earlier in {@code run}, or prepares it.
+   *
+   * @param run the Jenkins build within which the source may be shared
+   * @param key identifies the source and its contents; it must change whenever the contents do
+   * @param preparation prepares the source if it has not been prepared yet
+   * @param logger the log to which a message is written if an earlier source is reused
+   * @return a copy of the prepared source
+   * @throws IOException if an I/O error occurs while preparing the source
+   * @throws InterruptedException if interrupted while preparing the source, or while waiting for
+   *     another step to prepare it
+   */
+  Source prepare(Run<?, ?> run, String key, Preparation preparation, PrintStream logger)
+      throws IOException, InterruptedException {
+    String runKey = runPrefix(run) + key;
+    while (true) {
+      CompletableFuture<Source> mine = new CompletableFuture<>();
+      CompletableFuture<Source> existing = sources.putIfAbsent(runKey, mine);
+      if (existing == null) {
+        try {
+          Source source = preparation.prepare();
+          mine.complete(source);
+          return source.clone();
+        } catch (IOException | InterruptedException | RuntimeException e) {
+          // Let the next step that needs the source try again.
+          sources.remove(runKey, mine);
+          mine.completeExceptionally(e);
+          throw e;
+        }
+      }
+      if (!existing.isDone()) {
+        logger.println(Messages.RunSourceCache_Waiting());
+      }
+      try {
+        Source source = existing.get();
+        logger.println(Messages.RunSourceCache_Reusing());
+        return source.clone();
+      } catch (ExecutionException e) {
+        // The step that was preparing the source failed (e.g., it was aborted), and has removed
+        // its entry; prepare the source again.
+      }
+    }
+  }
+
+  /** Forgets the sources prepared within {@code run}. */
+  void forget(Run<?, ?> run) {
+    String prefix = runPrefix(run);
+    sources.keySet().removeIf(key -> key.startsWith(prefix));
+  }
+
+  /** Forgets the sources prepared within each Jenkins build once it has finished. */
+  @Extension
+  public static final class Cleanup extends RunListener<Run<?, ?>> {
+    @Override
+    public void onFinalized(@Nonnull Run<?, ?> run) {
+      get().forget(run);
+    }
+  }
+}
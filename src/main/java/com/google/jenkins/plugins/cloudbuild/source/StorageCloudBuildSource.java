@@ -15,6 +15,9 @@ package com.google.jenkins.plugins.cloudbuild.source;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
 
 import javax.annotation.Nonnull;
 
@@ -24,6 +27,7 @@ import org.kohsuke.stapler.QueryParameter;
 
 import com.google.api.services.cloudbuild.v1.model.Source;
 import com.google.api.services.cloudbuild.v1.model.StorageSource;
+import com.google.api.services.storage.model.StorageObject;
 import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
 import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
 import hudson.Extension;
@@ -39,6 +43,13 @@ public final class StorageCloudBuildSource extends CloudBuildSource implements S
   @Nonnull
   private final String object;
 
+  /**
+   * The generation of the object found by {@link #identify}, for each context, so that the build
+   * uses exactly the contents its cache key was computed from even if the object is overwritten in
+   * between.
+   */
+  private transient Map<BuildContext, Long> identified;
+
   @DataBoundConstructor
   public StorageCloudBuildSource(@Nonnull String bucket, @Nonnull String object) {
     this.bucket = bucket;
@@ -65,7 +76,31 @@ public final class StorageCloudBuildSource extends CloudBuildSource implements S
     return new Source().setStorageSource(
         new StorageSource()
             .setBucket(expandedBucket)
-            .setObject(expandedObject));
+            .setObject(expandedObject)
+            .setGeneration(getIdentified().get(context)));
+  }
+
+  private synchronized Map<BuildContext, Long> getIdentified() {
+    if (identified == null) {
+      // Contexts are compared by identity, and forgotten once their Jenkins build is done.
+      identified = Collections.synchronizedMap(new WeakHashMap<>());
+    }
+    return identified;
+  }
+
+  /**
+   * The generation of the object changes whenever the object is overwritten. A later call to
+   * {@link #prepare} with the same {@code context} pins the build to the generation found here.
+   */
+  @Override
+  public String identify(BuildContext context, ClientFactory clients)
+      throws IOException, InterruptedException {
+    String expandedBucket = context.expand(bucket);
+    String expandedObject = context.expand(object);
+    StorageObject metadata = clients.storage().getObject(expandedBucket, expandedObject);
+    getIdentified().put(context, metadata.getGeneration());
+    return String.format(
+        "gs://%s/%s#%s", expandedBucket, expandedObject, metadata.getGeneration());
   }
 
   /** Descriptor for {@link StorageCloudBuildSource}. */
@@ -0,0 +1,66 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.FreeStyleProject;
+
+/** Tests for {@link AffectedBuildsIndex}. */
+public class AffectedBuildsIndexTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static AffectedBuildsIndex.Entry entry(String key, String buildId) {
+    return new AffectedBuildsIndex.Entry(key, "test-project", buildId, "https://logurl", 0);
+  }
+
+  @Test
+  public void entriesArePerJob() throws Exception {
+    FreeStyleProject monorepo = j.createFreeStyleProject("monorepo");
+    FreeStyleProject other = j.createFreeStyleProject("other");
+    assertTrue(AffectedBuildsIndex.load(monorepo).isEmpty());
+
+    AffectedBuildsIndex.record(monorepo, "api", entry("key-1", "41"));
+    AffectedBuildsIndex.record(monorepo, "web", entry("key-2", "42"));
+    AffectedBuildsIndex.record(monorepo, "api", entry("key-3", "43"));
+
+    Map<String, AffectedBuildsIndex.Entry> entries = AffectedBuildsIndex.load(monorepo);
+    assertEquals(2, entries.size());
+    assertEquals("43", entries.get("api").getBuildId());
+    assertTrue(AffectedBuildsIndex.load(other).isEmpty());
+  }
+
+  @Test
+  public void unchangedOnlyIfKeyMatches() throws Exception {
+    FreeStyleProject monorepo = j.createFreeStyleProject("monorepo");
+    AffectedBuildsIndex.record(monorepo, "api", entry("key-1", "41"));
+    Map<String, AffectedBuildsIndex.Entry> entries = AffectedBuildsIndex.load(monorepo);
+
+    AffectedBuildsIndex.Entry unchanged = AffectedBuildsIndex.unchanged(entries, "api", "key-1");
+    assertNotNull(unchanged);
+    assertEquals("41", unchanged.getBuildId());
+    assertNull(AffectedBuildsIndex.unchanged(entries, "api", "key-2"));
+    assertNull(AffectedBuildsIndex.unchanged(entries, "web", "key-1"));
+  }
+}
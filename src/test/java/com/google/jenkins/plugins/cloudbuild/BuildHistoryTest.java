@@ -0,0 +1,101 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.cloudbuild.v1.model.Build;
+
+/** Tests for {@link BuildHistory}. */
+public class BuildHistoryTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static BuildHistory.Sample sample(long durationSeconds) {
+    return new BuildHistory.Sample("UNSPECIFIED", durationSeconds,
+        Collections.singletonList(durationSeconds), 1024, 0);
+  }
+
+  @Test
+  public void samplesSurviveRestart() {
+    new BuildHistory().put("key", sample(42));
+
+    List<BuildHistory.Sample> samples = new BuildHistory().getSamples("key");
+    assertEquals(1, samples.size());
+    assertEquals(42, samples.get(0).getDurationSeconds());
+    assertEquals(1024, samples.get(0).getSourceBytes());
+    assertEquals(Collections.emptyList(), new BuildHistory().getSamples("other"));
+  }
+
+  @Test
+  public void onlyRecentSamplesAreKept() {
+    BuildHistory history = new BuildHistory();
+    for (int i = 0; i < BuildHistory.MAX_SAMPLES + 1; i++) {
+      history.put("key", sample(i));
+    }
+    List<BuildHistory.Sample> samples = history.getSamples("key");
+    assertEquals(BuildHistory.MAX_SAMPLES, samples.size());
+    assertEquals(1, samples.get(0).getDurationSeconds());
+  }
+
+  @Test
+  public void fingerprintIgnoresOptionsAndSubstitutions() throws Exception {
+    String fingerprint =
+        BuildHistory.fingerprint("test-project", "steps: [{name: ubuntu, args: [make]}]");
+    assertEquals(fingerprint, BuildHistory.fingerprint("test-project",
+        "steps: [{name: ubuntu, args: [make]}]\noptions: {machineType: E2_HIGHCPU_8}\n"
+            + "substitutions: {_SHA: abc}"));
+    assertNotEquals(fingerprint,
+        BuildHistory.fingerprint("test-project", "steps: [{name: ubuntu, args: [test]}]"));
+    assertNotEquals(fingerprint,
+        BuildHistory.fingerprint("other-project", "steps: [{name: ubuntu, args: [make]}]"));
+  }
+
+  @Test
+  public void sampleOfCompletedBuild() throws Exception {
+    Build build = new JacksonFactory().fromString("{\"status\": \"SUCCESS\", "
+        + "\"startTime\": \"2017-01-01T00:00:00Z\", \"finishTime\": \"2017-01-01T00:02:00Z\", "
+        + "\"options\": {\"machineType\": \"E2_HIGHCPU_8\"}, \"steps\": ["
+        + "{\"name\": \"ubuntu\", \"timing\": {\"startTime\": \"2017-01-01T00:00:10Z\", "
+        + "\"endTime\": \"2017-01-01T00:01:10Z\"}}, {\"name\": \"busybox\"}]}", Build.class);
+
+    BuildHistory.Sample sample = BuildHistory.sample(build, 2048);
+    assertNotNull(sample);
+    assertEquals("E2_HIGHCPU_8", sample.getMachineType());
+    assertEquals(120, sample.getDurationSeconds());
+    assertEquals(Arrays.asList(60L, 0L), sample.getStepSeconds());
+    assertEquals(60, sample.getTotalStepSeconds());
+    assertEquals(2048, sample.getSourceBytes());
+  }
+
+  @Test
+  public void failedBuildsAreNotSampled() {
+    assertNull(BuildHistory.sample(new Build().setStatus("FAILURE")
+        .setStartTime("2017-01-01T00:00:00Z")
+        .setFinishTime("2017-01-01T00:02:00Z"), -1));
+    assertNull(BuildHistory.sample(new Build().setStatus("SUCCESS"), -1));
+  }
+}
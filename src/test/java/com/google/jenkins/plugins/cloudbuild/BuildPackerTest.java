@@ -0,0 +1,205 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyMap;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildOptions;
+import com.google.api.services.cloudbuild.v1.model.BuildStep;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import hudson.model.FreeStyleBuild;
+import hudson.model.TaskListener;
+
+/** Tests for {@link BuildPacker}. */
+public class BuildPackerTest {
+  private static final String POOL =
+      "projects/test-project/locations/us-central1/workerPools/pool";
+
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static BuildStep step(String id, String... waitFor) {
+    return new BuildStep().setName("ubuntu").setId(id)
+        .setWaitFor(waitFor.length == 0 ? null : Arrays.asList(waitFor));
+  }
+
+  @Test
+  public void onlyStepsTimeoutAndOptionsArePackable() {
+    List<BuildStep> steps = Collections.singletonList(step("a"));
+    assertTrue(BuildPacker.isPackable(new Build().setSteps(steps).setTimeout("60s")
+        .setOptions(new BuildOptions().setMachineType("N1_HIGHCPU_8"))));
+    assertFalse(BuildPacker.isPackable(new Build()));
+    assertFalse(BuildPacker.isPackable(
+        new Build().setSteps(steps).setImages(Collections.singletonList("gcr.io/p/i"))));
+    assertFalse(BuildPacker.isPackable(new Build().setSteps(steps).setTags(
+        Collections.singletonList("tag"))));
+  }
+
+  @Test
+  public void mergeKeepsRequestsIndependent() {
+    Build first = new Build().setSteps(Arrays.asList(step("a"), step(null), step("c", "a")));
+    Build second = new Build().setSteps(Arrays.asList(step("a", "-"), step("b")))
+        .setTimeout("1200s");
+
+    Build merged = BuildPacker.merge(Arrays.asList(first, second));
+
+    List<BuildStep> steps = merged.getSteps();
+    assertEquals(6, steps.size());
+    assertEquals(BuildPacker.COPY_STEP_ID, steps.get(0).getId());
+    assertEquals("pack0-a", steps.get(1).getId());
+    assertEquals(Collections.singletonList(BuildPacker.COPY_STEP_ID), steps.get(1).getWaitFor());
+    assertEquals("pack0-step1", steps.get(2).getId());
+    assertEquals(Collections.singletonList("pack0-a"), steps.get(2).getWaitFor());
+    assertEquals(Collections.singletonList("pack0-a"), steps.get(3).getWaitFor());
+    assertEquals("pack1-a", steps.get(4).getId());
+    assertEquals(Collections.singletonList(BuildPacker.COPY_STEP_ID), steps.get(4).getWaitFor());
+    assertEquals(Collections.singletonList("pack1-a"), steps.get(5).getWaitFor());
+    assertEquals("1200s", merged.getTimeout());
+  }
+
+  @Test
+  public void mergeGivesEachRequestItsOwnDirectory() {
+    Build first = new Build().setSteps(Arrays.asList(step("a"), step("b").setDir("web")));
+    Build second = new Build().setSteps(Collections.singletonList(step("a").setDir("/cache")));
+
+    List<BuildStep> steps = BuildPacker.merge(Arrays.asList(first, second)).getSteps();
+
+    assertTrue(steps.get(0).getArgs().get(1).contains("for d in pack0 pack1;"));
+    assertEquals("pack0", steps.get(1).getDir());
+    assertEquals("pack0/web", steps.get(2).getDir());
+    assertEquals("/cache", steps.get(3).getDir());
+  }
+
+  @Test
+  public void mergeDoesNotModifyRequests() {
+    Build request = new Build().setSteps(Collections.singletonList(step("a")));
+    BuildPacker.merge(Arrays.asList(request, request));
+    assertEquals("a", request.getSteps().get(0).getId());
+  }
+
+  @Test
+  public void memberStatus() {
+    Build pack = new Build().setSteps(Arrays.asList(
+        step("pack0-a").setStatus("SUCCESS"),
+        step("pack0-b").setStatus("SUCCESS"),
+        step("pack1-a").setStatus("FAILURE"),
+        step("pack2-a").setStatus("SUCCESS"),
+        step("pack2-b").setStatus("CANCELLED")));
+    assertEquals("SUCCESS", BuildPacker.memberStatus(pack, "pack0-"));
+    assertEquals("FAILURE", BuildPacker.memberStatus(pack, "pack1-"));
+    assertEquals("CANCELLED", BuildPacker.memberStatus(pack, "pack2-"));
+  }
+
+  @Test
+  public void isCollateral() {
+    Build pack = new Build().setStatus("FAILURE").setSteps(Arrays.asList(
+        step("pack0-a").setStatus("SUCCESS"),
+        step("pack1-a").setStatus("FAILURE"),
+        step("pack2-a").setStatus("CANCELLED")));
+    assertFalse(BuildPacker.isCollateral(pack, "pack0-"));
+    assertFalse(BuildPacker.isCollateral(pack, "pack1-"));
+    assertTrue(BuildPacker.isCollateral(pack, "pack2-"));
+
+    // A pack cancelled by a user is not rebuilt, whatever the state of its steps.
+    pack.setStatus("CANCELLED");
+    assertFalse(BuildPacker.isCollateral(pack, "pack2-"));
+    pack.setStatus("TIMEOUT");
+    assertTrue(BuildPacker.isCollateral(pack, "pack2-"));
+    pack.getSteps().get(1).setStatus("CANCELLED");
+    assertFalse(BuildPacker.isCollateral(pack, "pack2-"));
+  }
+
+  private static CloudBuildClient mockCloudBuild() throws Exception {
+    CloudBuildClient cloudBuild = mock(CloudBuildClient.class);
+    when(cloudBuild.getProjectId()).thenReturn("test-project");
+    when(cloudBuild.submitBuild(anyString(), any(), anyMap(), anyString()))
+        .thenReturn(new Build().setId("42").setLogUrl("https://logurl"));
+    return cloudBuild;
+  }
+
+  private static String request(int steps) {
+    StringBuilder request = new StringBuilder("steps:\n");
+    for (int i = 0; i < steps; i++) {
+      request.append("- name: ubuntu\n");
+    }
+    return request.toString();
+  }
+
+  @Test
+  public void fullPackDoesNotShortenNextWindow() throws Exception {
+    CloudBuildClient cloudBuild = mockCloudBuild();
+    FreeStyleBuild run = j.buildAndAssertSuccess(j.createFreeStyleProject());
+    String request = request(BuildPacker.MAX_STEPS * 3 / 5);
+    BuildPacker packer = new BuildPacker();
+
+    Future<BuildPacker.Packed> first = Executors.newSingleThreadExecutor().submit(
+        () -> packer.submit(cloudBuild, "client", request, null, Collections.emptyMap(),
+            "first", null, Collections.emptyList(), run, TaskListener.NULL.getLogger()));
+    Thread.sleep(BuildPacker.WINDOW_MILLIS / 2);
+    // The second request does not fit in the first pack, which is sent right away.
+    long start = System.currentTimeMillis();
+    BuildPacker.Packed second = packer.submit(cloudBuild, "client", request, null,
+        Collections.emptyMap(), "second", null, Collections.emptyList(), run,
+        TaskListener.NULL.getLogger());
+
+    assertTrue(System.currentTimeMillis() - start >= BuildPacker.WINDOW_MILLIS);
+    first.get().release();
+    second.release();
+  }
+
+  @Test
+  public void packHoldsOnePermitAndPool() throws Exception {
+    CloudBuildClient cloudBuild = mockCloudBuild();
+    FreeStyleBuild run = j.buildAndAssertSuccess(j.createFreeStyleProject());
+    List<String> pools = Arrays.asList(POOL, POOL + "2");
+    BuildPacker packer = new BuildPacker();
+
+    Future<BuildPacker.Packed> first = Executors.newSingleThreadExecutor().submit(
+        () -> packer.submit(cloudBuild, "client", request(1), null, Collections.emptyMap(),
+            "first", null, pools, run, TaskListener.NULL.getLogger()));
+    BuildPacker.Packed second = packer.submit(cloudBuild, "client", request(1), null,
+        Collections.emptyMap(), "second", null, pools, run, TaskListener.NULL.getLogger());
+    BuildPacker.Packed packed = first.get();
+
+    assertEquals(packed.getBuild(), second.getBuild());
+    assertEquals(packed.getWorkerPool(), second.getWorkerPool());
+    assertEquals(1, SubmissionQueue.get().getRunning());
+    assertEquals(1, WorkerPoolRouter.get().getActive(packed.getWorkerPool()));
+
+    packed.release();
+    packed.release();
+    assertEquals(1, SubmissionQueue.get().getRunning());
+    second.release();
+    assertEquals(0, SubmissionQueue.get().getRunning());
+    assertEquals(0, WorkerPoolRouter.get().getActive(packed.getWorkerPool()));
+  }
+}
@@ -0,0 +1,87 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.isNull;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Test;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.jenkins.plugins.cloudbuild.client.CloudBuildClient;
+import hudson.model.TaskListener;
+
+/** Tests for {@link BuildPoller}. */
+public class BuildPollerTest {
+  private final PrintStream logger = TaskListener.NULL.getLogger();
+  private final Map<String, String> statuses = new HashMap<>();
+  private final Map<String, Integer> misses = new HashMap<>();
+
+  @Test
+  public void missingBuildIsEventuallyNotFound() throws Exception {
+    CloudBuildClient cloudBuild = mock(CloudBuildClient.class);
+    when(cloudBuild.isAvailable()).thenReturn(true);
+    when(cloudBuild.getBuilds(any(), isNull())).thenReturn(
+        Collections.singletonMap("found", new Build().setId("found").setStatus("WORKING")));
+    List<String> buildIds = Arrays.asList("found", "missing");
+
+    for (int i = 1; i < BuildPoller.MAX_MISSES; i++) {
+      BuildPoller.poll(cloudBuild, buildIds, statuses, misses, logger);
+      assertNull(statuses.get("missing"));
+    }
+    BuildPoller.poll(cloudBuild, buildIds, statuses, misses, logger);
+    assertEquals(BuildPoller.NOT_FOUND, statuses.get("missing"));
+    assertEquals("WORKING", statuses.get("found"));
+  }
+
+  @Test
+  public void missesWhileUnavailableAreNotCounted() throws Exception {
+    CloudBuildClient cloudBuild = mock(CloudBuildClient.class);
+    when(cloudBuild.isAvailable()).thenReturn(false);
+    when(cloudBuild.getBuilds(any(), isNull())).thenReturn(Collections.emptyMap());
+
+    for (int i = 0; i < 2 * BuildPoller.MAX_MISSES; i++) {
+      BuildPoller.poll(cloudBuild, Collections.singletonList("build"), statuses, misses, logger);
+    }
+    assertNull(statuses.get("build"));
+  }
+
+  @Test
+  public void missesMustBeInARow() throws Exception {
+    CloudBuildClient cloudBuild = mock(CloudBuildClient.class);
+    when(cloudBuild.isAvailable()).thenReturn(true);
+    Map<String, Build> found =
+        Collections.singletonMap("build", new Build().setId("build").setStatus("WORKING"));
+    Map<String, Build> missing = Collections.emptyMap();
+    List<String> buildIds = Collections.singletonList("build");
+
+    for (int i = 0; i < 2 * BuildPoller.MAX_MISSES; i++) {
+      when(cloudBuild.getBuilds(any(), isNull()))
+          .thenReturn(i % BuildPoller.MAX_MISSES == 0 ? found : missing);
+      BuildPoller.poll(cloudBuild, buildIds, statuses, misses, logger);
+    }
+    assertEquals("WORKING", statuses.get("build"));
+  }
+}
@@ -0,0 +1,65 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.TaskListener;
+
+/** Tests for {@link BuildResultCache}. */
+public class BuildResultCacheTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static BuildResultCache.Entry entry(String buildId) {
+    return new BuildResultCache.Entry("test-project", buildId, "https://logurl",
+        Collections.singletonList("gcr.io/test-project/app@sha256:abc"), 0);
+  }
+
+  @Test
+  public void entriesSurviveRestart() {
+    new BuildResultCache().put("key", entry("42"));
+
+    BuildResultCache.Entry entry =
+        new BuildResultCache().lookup("key", TaskListener.NULL.getLogger());
+    assertNotNull(entry);
+    assertEquals("42", entry.getBuildId());
+    assertEquals(
+        Collections.singletonList("gcr.io/test-project/app@sha256:abc"), entry.getImages());
+    assertNull(new BuildResultCache().lookup("other", TaskListener.NULL.getLogger()));
+  }
+
+  @Test
+  public void leastRecentlyUsedEntriesAreEvicted() {
+    BuildResultCache cache = new BuildResultCache();
+    for (int i = 0; i < BuildResultCache.MAX_ENTRIES; i++) {
+      cache.put("key-" + i, entry(String.valueOf(i)));
+    }
+    // Using the oldest entry keeps it from being evicted.
+    assertNotNull(cache.lookup("key-0", TaskListener.NULL.getLogger()));
+    cache.put("new", entry("new"));
+
+    assertNotNull(cache.lookup("key-0", TaskListener.NULL.getLogger()));
+    assertNull(cache.lookup("key-1", TaskListener.NULL.getLogger()));
+    assertNotNull(cache.lookup("new", TaskListener.NULL.getLogger()));
+  }
+}
@@ -0,0 +1,129 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.jenkinsci.plugins.workflow.cps.CpsFlowDefinition;
+import org.jenkinsci.plugins.workflow.job.WorkflowJob;
+import org.jenkinsci.plugins.workflow.job.WorkflowRun;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildOperationMetadata;
+import com.google.api.services.cloudbuild.v1.model.Operation;
+import com.google.common.io.Resources;
+import com.google.jenkins.plugins.cloudbuild.request.InlineCloudBuildRequest;
+import hudson.AbortException;
+
+/** Tests for {@link CloudBuildAffectedStep}. */
+public class CloudBuildAffectedStepTest {
+  private static final String RESOURCE_BASE =
+      "/com/google/jenkins/plugins/cloudbuild/CloudBuildAffectedStepTest/";
+  private static final Pattern BUILD_ID = Pattern.compile("builds/([^?/]+)");
+
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private static CloudBuildAffectedService service(String name, String... paths) {
+    return new CloudBuildAffectedService(
+        name, Arrays.asList(paths), new InlineCloudBuildRequest("steps: []"));
+  }
+
+  @Test
+  public void validateAcceptsServices() throws Exception {
+    CloudBuildAffectedStep.validate(Arrays.asList(
+        service("api", "services/api/**", "lib/**"), service("web", "services/web/**")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsNoServices() throws Exception {
+    CloudBuildAffectedStep.validate(Collections.emptyList());
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsInvalidName() throws Exception {
+    CloudBuildAffectedStep.validate(Collections.singletonList(service("my api", "api/**")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsDuplicateName() throws Exception {
+    CloudBuildAffectedStep.validate(
+        Arrays.asList(service("api", "api/**"), service("api", "lib/**")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsServiceWithoutPaths() throws Exception {
+    CloudBuildAffectedStep.validate(Collections.singletonList(service("api")));
+  }
+
+  @Test
+  public void buildsOnlyChangedServices() throws Exception {
+    MockCloudServices cloud = new MockCloudServices();
+    cloud.prepare(j.jenkins);
+    // The ID of the last build submitted for each service, by the image of its only step.
+    Map<String, String> submitted = new ConcurrentHashMap<>();
+    AtomicInteger lastId = new AtomicInteger();
+    cloud.onStartBuild((build, req, resp) -> {
+      String buildId = String.valueOf(lastId.incrementAndGet());
+      submitted.put(build.getSteps().get(0).getName(), buildId);
+      return new Operation()
+          .setName("build-" + buildId)
+          .setMetadata(new BuildOperationMetadata()
+              .setBuild(build.setId(buildId).setLogUrl("https://logurl/" + buildId)));
+    });
+    cloud.onCheckBuildsInBatch(buildIds -> buildIds.stream()
+        .map(buildId -> new Build().setId(buildId).setStatus("SUCCESS"))
+        .collect(Collectors.toList()));
+    cloud.onCheckBuild((x, req, resp) -> {
+      Matcher matcher = BUILD_ID.matcher(req.getUrl());
+      assertTrue(matcher.find());
+      return new Build().setId(matcher.group(1)).setStatus("SUCCESS");
+    });
+
+    WorkflowJob job = j.createProject(WorkflowJob.class, "test-workflow");
+    job.setDefinition(new CpsFlowDefinition(Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline1.groovy"), Charset.defaultCharset()),
+        false));
+
+    WorkflowRun first = j.buildAndAssertSuccess(job);
+    assertEquals(2, lastId.get());
+    String api = submitted.get("ubuntu");
+    String web = submitted.get("alpine");
+    j.assertLogContains("api: SUCCESS (build " + api + ")", first);
+    j.assertLogContains("web: SUCCESS (build " + web + ")", first);
+
+    WorkflowRun second = j.buildAndAssertSuccess(job);
+    assertEquals(3, lastId.get());
+    assertEquals("3", submitted.get("ubuntu"));
+    j.assertLogContains("api: SUCCESS (build 3)", second);
+    j.assertLogContains("web: SKIPPED (build " + web + ")", second);
+    Map<String, AffectedBuildsIndex.Entry> index = AffectedBuildsIndex.load(job);
+    assertEquals("3", index.get("api").getBuildId());
+    assertEquals(web, index.get("web").getBuildId());
+  }
+}
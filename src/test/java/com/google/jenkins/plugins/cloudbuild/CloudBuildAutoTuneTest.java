@@ -0,0 +1,163 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.math.BigDecimal;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import hudson.AbortException;
+
+/** Tests for {@link CloudBuildAutoTune}. */
+public class CloudBuildAutoTuneTest {
+  private final ByteArrayOutputStream log = new ByteArrayOutputStream();
+  private final PrintStream logger = new PrintStream(log, true);
+
+  private static BuildHistory.Sample sample(
+      String machineType, long durationSeconds, long stepSeconds) {
+    return new BuildHistory.Sample(
+        machineType, durationSeconds, Collections.singletonList(stepSeconds), -1, 0);
+  }
+
+  @Test
+  public void predictUsesMedianOnSameMachineType() {
+    List<BuildHistory.Sample> samples = Arrays.asList(
+        sample("E2_HIGHCPU_8", 100, 90),
+        sample("E2_HIGHCPU_8", 300, 290),
+        sample("E2_HIGHCPU_8", 200, 190));
+    assertEquals(200, CloudBuildAutoTune.predict(samples, "E2_HIGHCPU_8"));
+  }
+
+  @Test
+  public void predictScalesStepTimeFromNearestMachineType() {
+    // 100s of overhead plus 800s of steps on 2 vCPUs; 8 vCPUs halve the step time.
+    List<BuildHistory.Sample> samples =
+        Collections.singletonList(sample(BuildHistory.DEFAULT_MACHINE_TYPE, 900, 800));
+    assertEquals(500, CloudBuildAutoTune.predict(samples, "E2_HIGHCPU_8"));
+    assertEquals(300, CloudBuildAutoTune.predict(samples, "E2_HIGHCPU_32"));
+  }
+
+  @Test
+  public void predictWithoutHistory() {
+    assertEquals(-1,
+        CloudBuildAutoTune.predict(Collections.emptyList(), BuildHistory.DEFAULT_MACHINE_TYPE));
+    assertEquals(-1, CloudBuildAutoTune.predict(
+        Collections.singletonList(sample("CUSTOM", 100, 50)), "E2_HIGHCPU_8"));
+  }
+
+  @Test
+  public void chooseSmallestMachineTypeMeetingTarget() {
+    List<BuildHistory.Sample> samples =
+        Collections.singletonList(sample(BuildHistory.DEFAULT_MACHINE_TYPE, 900, 800));
+    assertEquals(BuildHistory.DEFAULT_MACHINE_TYPE,
+        CloudBuildAutoTune.chooseMachineType(samples, 1000));
+    assertEquals("E2_HIGHCPU_8", CloudBuildAutoTune.chooseMachineType(samples, 600));
+    assertEquals("E2_HIGHCPU_32", CloudBuildAutoTune.chooseMachineType(samples, 400));
+    // If no machine type is fast enough, the fastest one is used.
+    assertEquals("E2_HIGHCPU_32", CloudBuildAutoTune.chooseMachineType(samples, 60));
+    assertNull(CloudBuildAutoTune.chooseMachineType(Collections.emptyList(), 600));
+  }
+
+  @Test
+  public void diskSizeFitsSource() {
+    assertNull(CloudBuildAutoTune.diskSizeGb(1L << 30));
+    assertEquals(Long.valueOf(200), CloudBuildAutoTune.diskSizeGb(20L << 30));
+    assertEquals(Long.valueOf(CloudBuildAutoTune.MAX_DISK_GB),
+        CloudBuildAutoTune.diskSizeGb(1L << 40));
+  }
+
+  @Test
+  public void applyRewritesOptions() throws Exception {
+    CloudBuildAutoTune autoTune = new CloudBuildAutoTune();
+    autoTune.setTargetSeconds(600);
+    String request = autoTune.apply(
+        "steps: [{name: ubuntu}]\noptions: {machineType: E2_HIGHCPU_32, diskSizeGb: 100}",
+        Collections.singletonList(sample(BuildHistory.DEFAULT_MACHINE_TYPE, 900, 800)),
+        20L << 30, false, logger);
+    Build build = RequestProcessor.parseBuildRequest(request);
+    assertEquals("E2_HIGHCPU_8", build.getOptions().get("machineType"));
+    assertEquals("200", String.valueOf(build.getOptions().get("diskSizeGb")));
+    assertEquals("ubuntu", build.getSteps().get(0).getName());
+    assertTrue(log.toString().contains("E2_HIGHCPU_8"));
+  }
+
+  @Test
+  public void applyOnlyGrowsDisk() throws Exception {
+    CloudBuildAutoTune autoTune = new CloudBuildAutoTune();
+    for (long sourceBytes : new long[] {1L << 30, 20L << 30}) {
+      String request = autoTune.apply("steps: [{name: ubuntu}]\noptions: {diskSizeGb: 500}",
+          Collections.emptyList(), sourceBytes, false, logger);
+      Build build = RequestProcessor.parseBuildRequest(request);
+      assertEquals("500", String.valueOf(build.getOptions().get("diskSizeGb")));
+    }
+  }
+
+  @Test
+  public void parsesRequestedDiskSizeLeniently() throws Exception {
+    assertEquals(100, CloudBuildAutoTune.parseDiskSizeGb(100));
+    assertEquals(100, CloudBuildAutoTune.parseDiskSizeGb(new BigDecimal("100.0")));
+    assertEquals(101, CloudBuildAutoTune.parseDiskSizeGb("100.5"));
+    assertEquals(100, CloudBuildAutoTune.parseDiskSizeGb(" 100 "));
+    String request = new CloudBuildAutoTune().apply(
+        "steps: [{name: ubuntu}]\noptions: {diskSizeGb: 100.0}",
+        Collections.emptyList(), 20L << 30, false, logger);
+    Build build = RequestProcessor.parseBuildRequest(request);
+    assertEquals("200", String.valueOf(build.getOptions().get("diskSizeGb")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void rejectsRequestedDiskSizeThatIsNotANumber() throws Exception {
+    new CloudBuildAutoTune().apply("steps: [{name: ubuntu}]\noptions: {diskSizeGb: lots}",
+        Collections.emptyList(), 20L << 30, false, logger);
+  }
+
+  @Test
+  public void applyLeavesMachineTypeToWorkerPool() throws Exception {
+    CloudBuildAutoTune autoTune = new CloudBuildAutoTune();
+    autoTune.setTargetSeconds(600);
+    String request = autoTune.apply(RequestProcessor.setWorkerPool("steps: [{name: ubuntu}]",
+            "projects/p/locations/us-central1/workerPools/pool"),
+        Collections.singletonList(sample(BuildHistory.DEFAULT_MACHINE_TYPE, 900, 800)),
+        20L << 30, false, logger);
+    Build build = RequestProcessor.parseBuildRequest(request);
+    assertNull(build.getOptions().get("machineType"));
+    assertEquals("200", String.valueOf(build.getOptions().get("diskSizeGb")));
+
+    // A pool that is only chosen later, when a pack is sent, also decides the machine type.
+    request = autoTune.apply("steps: [{name: ubuntu}]",
+        Collections.singletonList(sample(BuildHistory.DEFAULT_MACHINE_TYPE, 900, 800)),
+        20L << 30, true, logger);
+    build = RequestProcessor.parseBuildRequest(request);
+    assertNull(build.getOptions().get("machineType"));
+    assertEquals("200", String.valueOf(build.getOptions().get("diskSizeGb")));
+  }
+
+  @Test
+  public void applyWithoutHistoryLeavesRequestAlone() throws Exception {
+    String request = "steps: [{name: ubuntu}]";
+    assertSame(request,
+        new CloudBuildAutoTune().apply(request, Collections.emptyList(), -1, false, logger));
+  }
+}
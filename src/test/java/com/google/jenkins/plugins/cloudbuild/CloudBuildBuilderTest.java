@@ -17,7 +17,9 @@ import java.util.Arrays;
 
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertThat;
+import static org.junit.Assert.assertTrue;
 
 import org.hamcrest.Matchers;
 import org.junit.Before;
@@ -25,17 +27,20 @@ import org.junit.Rule;
 import org.junit.Test;
 import org.jvnet.hudson.test.JenkinsRule;
 
+import com.google.api.client.http.HttpStatusCodes;
 import com.google.api.services.cloudbuild.v1.model.Build;
 import com.google.api.services.cloudbuild.v1.model.BuildOperationMetadata;
 import com.google.api.services.cloudbuild.v1.model.Operation;
 import com.google.jenkins.plugins.cloudbuild.request.FileCloudBuildRequest;
 import com.google.jenkins.plugins.cloudbuild.request.InlineCloudBuildRequest;
+import com.google.jenkins.plugins.cloudbuild.source.PreparedCloudBuildSource;
 import com.google.jenkins.plugins.cloudbuild.source.RepoCloudBuildSource;
 import com.google.jenkins.plugins.cloudbuild.source.StorageCloudBuildSource;
 import hudson.Functions;
 import hudson.model.FreeStyleBuild;
 import hudson.model.FreeStyleProject;
 import hudson.model.Result;
+import hudson.model.TaskListener;
 import hudson.tasks.BatchFile;
 import hudson.tasks.Shell;
 
@@ -173,4 +178,124 @@ public class CloudBuildBuilderTest {
     assertThat(build.getAction(RepoAction.class).getUrlName(),
         containsString("test-repo/release?project=some-other-project"));
   }
+
+  @Test
+  public void rejectsPipelineOnlyOptions() throws Exception {
+    CloudBuildInput input = new CloudBuildInput(
+        "test-project", new InlineCloudBuildRequest("steps:\n- name: alpine"));
+    input.setPack(true);
+    input.setPool("pool");
+    input.setWorkerPools("projects/p/locations/l/workerPools/a");
+    input.setAutoTune(new CloudBuildAutoTune());
+    input.setSource(new PreparedCloudBuildSource("id"));
+    project.getBuildersList().add(new CloudBuildBuilder(input));
+
+    FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+    j.assertLogContains("only supported by the googleCloudBuild pipeline step: "
+        + "pack, pool, workerPools, autoTune, source", build);
+  }
+
+  @Test
+  public void freeStyleProjectsAreNotOfferedPreparedSources() {
+    CloudBuildInput.DescriptorImpl descriptor =
+        j.jenkins.getDescriptorByType(CloudBuildInput.DescriptorImpl.class);
+    assertFalse(descriptor.getSourceDescriptors(true).contains(
+        j.jenkins.getDescriptorByType(PreparedCloudBuildSource.DescriptorImpl.class)));
+    assertTrue(descriptor.getSourceDescriptors(false).contains(
+        j.jenkins.getDescriptorByType(PreparedCloudBuildSource.DescriptorImpl.class)));
+  }
+
+  @Test
+  public void rejectsWaitOnlyOptionsWhenAsync() throws Exception {
+    CloudBuildInput input = new CloudBuildInput(
+        "test-project", new InlineCloudBuildRequest("steps:\n- name: alpine"));
+    input.setRetry(new CloudBuildRetryPolicy());
+    input.setCache(true);
+    input.setCoalesce(true);
+    CloudBuildBuilder builder = new CloudBuildBuilder(input);
+    builder.setAsync(true);
+    project.getBuildersList().add(builder);
+
+    FreeStyleBuild build = j.assertBuildStatus(Result.FAILURE, project.scheduleBuild2(0));
+    j.assertLogContains(
+        "only take effect when waiting for the build to complete: retry, cache, coalesce", build);
+  }
+
+  @Test
+  public void asyncFreeStyleProject() throws Exception {
+    CloudBuildInput input = new CloudBuildInput(
+        "test-project", new InlineCloudBuildRequest("steps:\n- name: alpine"));
+    CloudBuildBuilder builder = new CloudBuildBuilder(input);
+    builder.setAsync(true);
+    project.getBuildersList().add(builder);
+
+    project = j.configRoundtrip(project);
+    assertTrue(((CloudBuildBuilder) project.getBuildersList().get(0)).isAsync());
+
+    cloud.onStartBuild((build, req, resp) -> new Operation()
+        .setName("build-42")
+        .setMetadata(new BuildOperationMetadata()
+            .setBuild(build
+                .setId("42")
+                .setLogUrl("https://logurl"))));
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setId("42")
+        .setStatus("WORKING")
+        .setLogUrl("https://logurl"));
+
+    FreeStyleBuild build = j.buildAndAssertSuccess(project);
+    CloudBuildStatusAction action = build.getAction(CloudBuildStatusAction.class);
+    assertEquals("42", action.getBuildId());
+    assertFalse(action.isComplete());
+
+    AsyncBuildTracker tracker = AsyncBuildTracker.get();
+    tracker.execute(TaskListener.NULL);
+    assertFalse(action.isComplete());
+    assertThat(tracker.getRunIds(), Matchers.contains(build.getExternalizableId()));
+
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setId("42")
+        .setStatus("FAILURE")
+        .setStatusDetail("step exited with non-zero status")
+        .setLogUrl("https://logurl"));
+    tracker.execute(TaskListener.NULL);
+    assertEquals("FAILURE", action.getStatus());
+    assertTrue(action.isComplete());
+    assertTrue(tracker.getRunIds().isEmpty());
+    // The Jenkins build had already finished, so its result is left alone.
+    assertEquals(Result.SUCCESS, build.getResult());
+  }
+
+  @Test
+  public void asyncBuildThatCannotBeFound() throws Exception {
+    CloudBuildInput input = new CloudBuildInput(
+        "test-project", new InlineCloudBuildRequest("steps:\n- name: alpine"));
+    CloudBuildBuilder builder = new CloudBuildBuilder(input);
+    builder.setAsync(true);
+    project.getBuildersList().add(builder);
+
+    cloud.onStartBuild((build, req, resp) -> new Operation()
+        .setName("build-42")
+        .setMetadata(new BuildOperationMetadata()
+            .setBuild(build
+                .setId("42")
+                .setLogUrl("https://logurl"))));
+    cloud.onCheckBuild((x, req, resp) -> {
+      resp.setStatusCode(HttpStatusCodes.STATUS_CODE_NOT_FOUND);
+      return null;
+    });
+
+    FreeStyleBuild build = j.buildAndAssertSuccess(project);
+    CloudBuildStatusAction action = build.getAction(CloudBuildStatusAction.class);
+    AsyncBuildTracker tracker = AsyncBuildTracker.get();
+    for (int i = 1; i < AsyncBuildTracker.MAX_MISSES; i++) {
+      tracker.execute(TaskListener.NULL);
+      assertFalse(action.isComplete());
+    }
+    tracker.execute(TaskListener.NULL);
+    assertEquals("STATUS_UNKNOWN", action.getStatus());
+    assertTrue(tracker.getRunIds().isEmpty());
+    // The Jenkins build had already finished, so its result is left alone.
+    assertEquals(Result.SUCCESS, build.getResult());
+  }
 }
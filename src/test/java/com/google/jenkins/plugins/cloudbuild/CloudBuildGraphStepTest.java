@@ -0,0 +1,97 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuiltImage;
+import com.google.api.services.cloudbuild.v1.model.Results;
+import com.google.jenkins.plugins.cloudbuild.request.InlineCloudBuildRequest;
+import hudson.AbortException;
+
+/** Tests for {@link CloudBuildGraphStep}. */
+public class CloudBuildGraphStepTest {
+  private static CloudBuildGraphNode node(String name, String... dependsOn) {
+    CloudBuildGraphNode node =
+        new CloudBuildGraphNode(name, new InlineCloudBuildRequest("steps: []"));
+    node.setDependsOn(Arrays.asList(dependsOn));
+    return node;
+  }
+
+  @Test
+  public void validateAcceptsDag() throws Exception {
+    CloudBuildGraphStep.validate(Arrays.asList(
+        node("integration", "services", "base"),
+        node("services", "base"),
+        node("base")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsEmptyGraph() throws Exception {
+    CloudBuildGraphStep.validate(Collections.emptyList());
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsInvalidName() throws Exception {
+    CloudBuildGraphStep.validate(Collections.singletonList(node("base image")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsClashingOutputs() throws Exception {
+    CloudBuildGraphStep.validate(Arrays.asList(node("base-image"), node("base_image")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsUnknownDependency() throws Exception {
+    CloudBuildGraphStep.validate(Collections.singletonList(node("services", "base")));
+  }
+
+  @Test(expected = AbortException.class)
+  public void validateRejectsCycle() throws Exception {
+    CloudBuildGraphStep.validate(Arrays.asList(
+        node("base"), node("a", "base", "c"), node("b", "a"), node("c", "b")));
+  }
+
+  @Test
+  public void getOutputs() {
+    Build build = new Build().setId("42").setResults(new Results().setImages(Arrays.asList(
+        new BuiltImage().setName("gcr.io/p/base").setDigest("sha256:abc"),
+        new BuiltImage().setName("gcr.io/p/other").setDigest("sha256:def"))));
+    Map<String, String> outputs =
+        CloudBuildGraphStepExecution.getOutputs(node("base-image"), build);
+    assertEquals("42", outputs.get("_BASE_IMAGE_BUILD_ID"));
+    assertEquals("gcr.io/p/base@sha256:abc", outputs.get("_BASE_IMAGE_IMAGE"));
+    assertEquals("sha256:abc", outputs.get("_BASE_IMAGE_DIGEST"));
+
+    outputs = CloudBuildGraphStepExecution.getOutputs(node("base"), new Build().setId("43"));
+    assertEquals(Collections.singletonMap("_BASE_BUILD_ID", "43"), outputs);
+  }
+
+  @Test
+  public void refersTo() {
+    assertTrue(CloudBuildGraphStepExecution.refersTo("FROM $_BASE_IMAGE", "_BASE_IMAGE"));
+    assertTrue(CloudBuildGraphStepExecution.refersTo("FROM ${_BASE_IMAGE}", "_BASE_IMAGE"));
+    assertFalse(CloudBuildGraphStepExecution.refersTo("FROM $_BASE_IMAGE_DIGEST", "_BASE_IMAGE"));
+    assertFalse(CloudBuildGraphStepExecution.refersTo("FROM _BASE_IMAGE", "_BASE_IMAGE"));
+  }
+}
@@ -0,0 +1,53 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/** Tests for {@link CloudBuildRetryPolicy}. */
+public class CloudBuildRetryPolicyTest {
+  @Test
+  public void retriesOnlyConfiguredStatusesUpToMaxAttempts() {
+    CloudBuildRetryPolicy policy = new CloudBuildRetryPolicy();
+    assertTrue(policy.shouldRetry("INTERNAL_ERROR", 1));
+    assertTrue(policy.shouldRetry("TIMEOUT", 2));
+    assertFalse("attempts exhausted", policy.shouldRetry("TIMEOUT", 3));
+    assertFalse(policy.shouldRetry("FAILURE", 1));
+
+    policy.setStatuses("failure, internal_error");
+    assertEquals(Arrays.asList("FAILURE", "INTERNAL_ERROR"), policy.getStatusList());
+    assertTrue(policy.shouldRetry("FAILURE", 1));
+    assertFalse(policy.shouldRetry("EXPIRED", 1));
+  }
+
+  @Test
+  public void backoffDoublesUpToTheMaximum() {
+    CloudBuildRetryPolicy policy = new CloudBuildRetryPolicy();
+    policy.setBackoffSeconds(30);
+    assertEquals(TimeUnit.SECONDS.toMillis(30), policy.getBackoffMillis(1));
+    assertEquals(TimeUnit.SECONDS.toMillis(60), policy.getBackoffMillis(2));
+    assertEquals(TimeUnit.SECONDS.toMillis(120), policy.getBackoffMillis(3));
+    assertEquals(CloudBuildRetryPolicy.MAX_BACKOFF_MILLIS, policy.getBackoffMillis(30));
+
+    policy.setBackoffSeconds(0);
+    assertEquals(0, policy.getBackoffMillis(5));
+  }
+}
@@ -15,9 +15,15 @@ package com.google.jenkins.plugins.cloudbuild;
 
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
 
+import static org.hamcrest.Matchers.containsInAnyOrder;
 import static org.hamcrest.Matchers.containsString;
 import static org.junit.Assert.assertEquals;
 import static org.junit.Assert.assertThat;
@@ -33,10 +39,13 @@ import org.jvnet.hudson.test.JenkinsRule;
 
 import com.google.api.services.cloudbuild.v1.model.Build;
 import com.google.api.services.cloudbuild.v1.model.BuildOperationMetadata;
+import com.google.api.services.cloudbuild.v1.model.BuiltImage;
 import com.google.api.services.cloudbuild.v1.model.Operation;
+import com.google.api.services.cloudbuild.v1.model.Results;
 import com.google.api.services.storage.model.Bucket;
 import com.google.api.services.storage.model.Buckets;
 import com.google.api.services.storage.model.StorageObject;
+import com.google.common.base.Strings;
 import com.google.common.io.Resources;
 import hudson.model.Result;
 
@@ -199,4 +208,226 @@ public class CloudBuildStepTest {
     assertThat(run.getAction(StorageAction.class).getUrlName(), containsString("jenkins-tmp_foo"));
     assertEquals("https://logurl", run.getAction(BuildLogAction.class).getUrlName());
   }
+
+  @Test
+  public void pipelineWithoutNode() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline4.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    cloud.onStartBuild((build, req, resp) -> new Operation()
+        .setName("build-42")
+        .setMetadata(new BuildOperationMetadata()
+            .setBuild(build
+                .setId("42")
+                .setLogUrl("https://logurl"))));
+
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setId("42")
+        .setStatus("SUCCESS")
+        .setLogUrl("https://logurl"));
+
+    WorkflowRun run = j.buildAndAssertSuccess(job);
+
+    assertEquals("https://logurl", run.getAction(BuildLogAction.class).getUrlName());
+  }
+
+  @Test
+  public void pipelineWithoutNodeRequiringWorkspace() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline5.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    WorkflowRun run = job.scheduleBuild2(0).get();
+    j.assertBuildStatus(Result.FAILURE, run);
+    j.assertLogContains(Messages.CloudBuildStepExecution_WorkspaceRequired(), run);
+  }
+
+  @Test
+  public void pipelineSubmitAndWait() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline6.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    cloud.onStartBuild((build, req, resp) -> new Operation()
+        .setName("build-42")
+        .setMetadata(new BuildOperationMetadata()
+            .setBuild(build
+                .setId("42")
+                .setLogUrl("https://logurl"))));
+
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setId("42")
+        .setStatus("SUCCESS")
+        .setLogUrl("https://logurl"));
+
+    WorkflowRun run = j.buildAndAssertSuccess(job);
+
+    j.assertLogContains("Submitted build 42", run);
+    j.assertLogContains("Build 42 finished with status SUCCESS", run);
+
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setId("42")
+        .setStatus("FAILURE")
+        .setLogUrl("https://logurl"));
+
+    run = job.scheduleBuild2(0).get();
+    j.assertBuildStatus(Result.FAILURE, run);
+    j.assertLogContains(Messages.CloudBuildWaitStep_BuildsFailed("42"), run);
+  }
+
+  @Test
+  public void pipelineMatrix() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline7.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    List<String> substitutions = Collections.synchronizedList(new ArrayList<>());
+    cloud.onStartBuild((build, req, resp) -> {
+      substitutions.add(build.getSubstitutions().get("_OS"));
+      return new Operation()
+          .setName("build-42")
+          .setMetadata(new BuildOperationMetadata()
+              .setBuild(build
+                  .setId("42")
+                  .setLogUrl("https://logurl")));
+    });
+
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setId("42")
+        .setStatus("SUCCESS")
+        .setLogUrl("https://logurl"));
+
+    WorkflowRun run = j.buildAndAssertSuccess(job);
+
+    assertThat(substitutions, containsInAnyOrder("linux", "windows"));
+    j.assertLogContains("Cell _OS=linux finished with status SUCCESS", run);
+    j.assertLogContains("Cell _OS=windows finished with status SUCCESS", run);
+  }
+
+  @Test
+  public void pipelineGraph() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline8.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    Map<String, Build> submitted = Collections.synchronizedMap(new LinkedHashMap<>());
+    cloud.onStartBuild((build, req, resp) -> {
+      String id = build.getImages() != null ? "base" : "app";
+      submitted.put(id, build);
+      return new Operation()
+          .setName("build-" + id)
+          .setMetadata(new BuildOperationMetadata()
+              .setBuild(build
+                  .setId(id)
+                  .setLogUrl("https://logurl")));
+    });
+
+    cloud.onCheckBuild((x, req, resp) -> {
+      String id = req.getUrl().replaceAll(".*/builds/([^?]*).*", "$1");
+      return new Build()
+          .setId(id)
+          .setStatus("SUCCESS")
+          .setLogUrl("https://logurl")
+          .setResults(new Results().setImages(Collections.singletonList(new BuiltImage()
+              .setName("gcr.io/test-project/" + id)
+              .setDigest("sha256:" + id))));
+    });
+
+    WorkflowRun run = j.buildAndAssertSuccess(job);
+
+    assertEquals(Arrays.asList("base", "app"), new ArrayList<>(submitted.keySet()));
+    assertEquals(Collections.singletonMap("_BASE_IMAGE", "gcr.io/test-project/base@sha256:base"),
+        submitted.get("app").getSubstitutions());
+    j.assertLogContains("base: SUCCESS sha256:base", run);
+    j.assertLogContains("app: SUCCESS", run);
+  }
+
+  @Test
+  public void pipelineTrigger() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline9.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    cloud.onRunTrigger("release-trigger", (revision, req, resp) -> {
+      assertEquals(Strings.repeat("a", 40), revision.getCommitSha());
+      assertEquals(Collections.singletonMap("_CHANNEL", "stable"), revision.getSubstitutions());
+      return new Operation()
+          .setName("build-42")
+          .setMetadata(new BuildOperationMetadata()
+              .setBuild(new Build()
+                  .setId("42")
+                  .setLogUrl("https://logurl")));
+    });
+
+    cloud.onCheckBuild((x, req, resp) -> {
+      assertThat(req.getUrl(), containsString("/builds/42"));
+      return new Build()
+          .setId("42")
+          .setStatus("SUCCESS")
+          .setLogUrl("https://logurl");
+    });
+
+    WorkflowRun run = j.buildAndAssertSuccess(job);
+
+    assertEquals("https://logurl", run.getAction(BuildLogAction.class).getUrlName());
+    j.assertLogContains("Trigger build: 42", run);
+  }
+
+  @Test
+  public void pipelineRetry() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline10.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    AtomicInteger attempts = new AtomicInteger();
+    List<String> submissionTags = Collections.synchronizedList(new ArrayList<>());
+    cloud.onStartBuild((build, req, resp) -> {
+      String id = "build-" + attempts.incrementAndGet();
+      submissionTags.add(build.getTags().get(build.getTags().size() - 1));
+      return new Operation()
+          .setName(id)
+          .setMetadata(new BuildOperationMetadata()
+              .setBuild(build
+                  .setId(id)
+                  .setLogUrl("https://logurl")));
+    });
+
+    cloud.onCheckBuild((x, req, resp) -> new Build()
+        .setStatus(req.getUrl().contains("/builds/build-1") ? "INTERNAL_ERROR" : "SUCCESS")
+        .setLogUrl("https://logurl"));
+
+    WorkflowRun run = j.buildAndAssertSuccess(job);
+
+    assertEquals(2, attempts.get());
+    assertEquals(2, new HashSet<>(submissionTags).size());
+    j.assertLogContains("Succeeded: build-2", run);
+    List<BuildAttemptsAction.Attempt> recorded =
+        run.getAction(BuildAttemptsAction.class).getAttempts();
+    assertEquals(2, recorded.size());
+    assertEquals("build-1", recorded.get(0).getBuildId());
+    assertEquals("INTERNAL_ERROR", recorded.get(0).getStatus());
+    assertEquals("build-2", recorded.get(1).getBuildId());
+    assertEquals(2, recorded.get(1).getNumber());
+    assertEquals("SUCCESS", recorded.get(1).getStatus());
+  }
+
+  @Test
+  public void submitRejectsWaitOnlyOptions() throws Exception {
+    String script = Resources.toString(
+        getClass().getResource(RESOURCE_BASE + "pipeline11.groovy"),
+        Charset.defaultCharset());
+    job.setDefinition(new CpsFlowDefinition(script, false));
+
+    WorkflowRun run = job.scheduleBuild2(0).get();
+    j.assertBuildStatus(Result.FAILURE, run);
+    j.assertLogContains(Messages.CloudBuildInput_WaitOnlyOptions("retry, cache"), run);
+  }
 }
@@ -0,0 +1,95 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.model.TaskListener;
+
+/** Tests for {@link HeldPermits}. */
+public class HeldPermitsTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private final SubmissionQueue queue = SubmissionQueue.get();
+  private final HeldPermits held = new HeldPermits();
+  private final Map<String, String> statuses = new ConcurrentHashMap<>();
+  private ExecutorService executor;
+
+  @Before
+  public void setUp() {
+    CloudBuildGlobalConfiguration.get().setMaxConcurrentBuildsPerProject(1);
+    executor = Executors.newCachedThreadPool();
+  }
+
+  @After
+  public void tearDown() {
+    held.releaseAll();
+    executor.shutdownNow();
+  }
+
+  private Future<?> submitLater(String buildId) {
+    return executor.submit(() -> {
+      SubmissionQueue.Permit permit =
+          queue.acquire("project", "job", null, TaskListener.NULL.getLogger());
+      held.hold(buildId, permit);
+      statuses.put(buildId, "WORKING");
+      return null;
+    });
+  }
+
+  @Test
+  public void releasesOnlyCompletedBuilds() throws Exception {
+    submitLater("1").get();
+    statuses.put("0", "SUCCESS");
+    held.releaseCompleted(statuses);
+    assertEquals(1, queue.getRunning());
+
+    statuses.put("1", "FAILURE");
+    held.releaseCompleted(statuses);
+    assertEquals(0, queue.getRunning());
+  }
+
+  @Test
+  public void pollsWhileSubmissionsWaitForPermits() throws Exception {
+    List<Future<?>> futures = new ArrayList<>();
+    for (String buildId : Arrays.asList("1", "2", "3")) {
+      futures.add(submitLater(buildId));
+    }
+    // Without polling, the submissions after the first would wait forever for a permit.
+    HeldPermits.awaitSubmissions(futures, () -> {
+      statuses.replaceAll((buildId, status) -> "SUCCESS");
+      held.releaseCompleted(statuses);
+    }, 10);
+    assertEquals(3, statuses.size());
+    held.releaseCompleted(statuses);
+    assertEquals(0, queue.getRunning());
+    assertEquals(0, queue.getWaiting());
+  }
+}
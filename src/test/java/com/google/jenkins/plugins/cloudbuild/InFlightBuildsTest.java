@@ -0,0 +1,89 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+
+/** Tests for {@link InFlightBuilds}. */
+public class InFlightBuildsTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private InFlightBuilds flights = new InFlightBuilds();
+  private FreeStyleBuild owner;
+  private FreeStyleBuild other;
+
+  @Before
+  public void setUp() throws Exception {
+    FreeStyleProject project = j.createFreeStyleProject("owner");
+    owner = j.buildAndAssertSuccess(project);
+    other = j.buildAndAssertSuccess(j.createFreeStyleProject("other"));
+  }
+
+  private CompletableFuture<Build> attachLater(PrintStream logger) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return flights.attachOrClaim("key", other, logger);
+      } catch (InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  @Test
+  public void laterSubmissionsShareTheBuild() throws Exception {
+    assertNull(flights.attachOrClaim("key", owner, TaskListener.NULL.getLogger()));
+
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    CompletableFuture<Build> attached = attachLater(new PrintStream(log, true));
+    Thread.sleep(100);
+    assertFalse("waits until the owner has submitted the build", attached.isDone());
+
+    flights.started("key", new Build().setId("42"));
+    assertEquals("42", attached.get(10, TimeUnit.SECONDS).getId());
+    assertThat(log.toString(), containsString(owner.getFullDisplayName()));
+
+    // Once the owner's build has completed, the next submission starts a new build.
+    flights.finished("key");
+    assertNull(flights.attachOrClaim("key", other, TaskListener.NULL.getLogger()));
+  }
+
+  @Test
+  public void waitingSubmissionTakesOverIfOwnerFails() throws Exception {
+    assertNull(flights.attachOrClaim("key", owner, TaskListener.NULL.getLogger()));
+    CompletableFuture<Build> attached = attachLater(TaskListener.NULL.getLogger());
+
+    flights.finished("key");
+    assertNull("now owns the key", attached.get(10, TimeUnit.SECONDS));
+  }
+}
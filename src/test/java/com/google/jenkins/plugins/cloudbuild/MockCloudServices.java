@@ -14,8 +14,13 @@
 package com.google.jenkins.plugins.cloudbuild;
 
 import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.endsWith;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.ArgumentMatchers.matches;
 import static org.mockito.Mockito.when;
@@ -38,6 +43,7 @@ import com.google.api.client.testing.http.MockLowLevelHttpRequest;
 import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.services.cloudbuild.v1.model.Build;
 import com.google.api.services.cloudbuild.v1.model.Operation;
+import com.google.api.services.cloudbuild.v1.model.RepoSource;
 import com.google.api.services.storage.model.Buckets;
 import com.google.api.services.storage.model.StorageObject;
 import com.google.common.io.Resources;
@@ -133,6 +139,21 @@ public class MockCloudServices {
         .thenAnswer(mockRequest(Build.class, handler));
   }
 
+  /**
+   * Calls the provided {@code handler} when a request is made to run the Cloud Build trigger
+   * {@code triggerId}.
+   *
+   * @param triggerId the ID of the trigger
+   * @param handler the handler to call
+   * @throws IOException if an error occurs while setting up the mock
+   */
+  public void onRunTrigger(String triggerId, MockRequestHandler<RepoSource, Operation> handler)
+      throws IOException {
+    when(transport.buildRequest(eq(HttpMethods.POST),
+        contains("/v1/projects/test-project/triggers/" + triggerId + ":run")))
+        .thenAnswer(mockRequest(RepoSource.class, handler));
+  }
+
   /**
    * Calls the provided {@code handler} when a request is made to check the status of a Cloud Build
    * build.
@@ -145,6 +166,49 @@ public class MockCloudServices {
         .thenAnswer(mockRequest(Void.class, handler));
   }
 
+  /** A user-provided handler for the status checks sent together in a batch request. */
+  public interface MockBatchHandler {
+    /**
+     * Handles the status checks of the builds within a single batch request.
+     *
+     * @param buildIds the IDs of the builds whose status is checked, in the order of the request
+     * @return the builds to return, in the same order as {@code buildIds}
+     * @throws IOException if an error occurs while handling the checks
+     */
+    List<Build> handle(List<String> buildIds) throws IOException;
+  }
+
+  /**
+   * Calls the provided {@code handler} for every batch request to Cloud Build that checks the
+   * status of builds, and returns the builds in a multipart batch response.
+   *
+   * @param handler the handler to call
+   * @throws IOException if an error occurs while setting up the mock
+   */
+  public void onCheckBuildsInBatch(MockBatchHandler handler) throws IOException {
+    String boundary = "batch_boundary";
+    when(transport.buildRequest(eq(HttpMethods.POST), endsWith("/batch")))
+        .thenAnswer(mockRequest(Void.class, (in, req, resp) -> {
+          List<String> buildIds = new ArrayList<>();
+          Matcher matcher = Pattern.compile("/v1/projects/test-project/builds/([^?/\\s]+)")
+              .matcher(req.getContentAsString());
+          while (matcher.find()) {
+            buildIds.add(matcher.group(1));
+          }
+          StringBuilder content = new StringBuilder();
+          for (Build build : handler.handle(buildIds)) {
+            content.append(String.format(
+                "--%s\r\nContent-Type: application/http\r\n\r\n"
+                    + "HTTP/1.1 200 OK\r\nContent-Type: %s\r\n\r\n%s\r\n",
+                boundary, Json.MEDIA_TYPE, json.toString(build)));
+          }
+          content.append(String.format("--%s--\r\n", boundary));
+          resp.setContentType(String.format("multipart/mixed; boundary=%s", boundary));
+          resp.setContent(content.toString());
+          return null;
+        }));
+  }
+
   /**
    * Calls the provided {@code handler} when a request is made to get a list of Cloud Storage
    * buckets.
@@ -0,0 +1,80 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import com.google.jenkins.plugins.cloudbuild.ProjectPool.Routing;
+
+/** Tests for {@link ProjectRouter} and {@link ProjectPool}. */
+public class ProjectRouterTest {
+  private static final List<String> IDS = Arrays.asList("a", "b", "c");
+
+  @Test
+  public void leastLoadedPicksFewestInFlight() {
+    Map<String, Integer> inFlight = new HashMap<>();
+    inFlight.put("a", 2);
+    inFlight.put("b", 1);
+    inFlight.put("c", 1);
+    assertEquals("b", ProjectRouter.choose(IDS, Routing.LEAST_LOADED, inFlight, 0, "job"));
+    inFlight.put("a", 0);
+    assertEquals("a", ProjectRouter.choose(IDS, Routing.LEAST_LOADED, inFlight, 0, "job"));
+  }
+
+  @Test
+  public void leastLoadedCountsMissingAsIdle() {
+    Map<String, Integer> inFlight = Collections.singletonMap("a", 1);
+    assertEquals("b", ProjectRouter.choose(IDS, Routing.LEAST_LOADED, inFlight, 0, "job"));
+  }
+
+  @Test
+  public void roundRobinCycles() {
+    Map<String, Integer> inFlight = Collections.emptyMap();
+    assertEquals("a", ProjectRouter.choose(IDS, Routing.ROUND_ROBIN, inFlight, 0, "job"));
+    assertEquals("b", ProjectRouter.choose(IDS, Routing.ROUND_ROBIN, inFlight, 1, "job"));
+    assertEquals("c", ProjectRouter.choose(IDS, Routing.ROUND_ROBIN, inFlight, 2, "job"));
+    assertEquals("a", ProjectRouter.choose(IDS, Routing.ROUND_ROBIN, inFlight, 3, "job"));
+  }
+
+  @Test
+  public void stickyIgnoresLoadAndCount() {
+    Map<String, Integer> inFlight = new HashMap<>();
+    String first = ProjectRouter.choose(IDS, Routing.STICKY, inFlight, 0, "folder/job");
+    inFlight.put(first, 10);
+    assertEquals(first, ProjectRouter.choose(IDS, Routing.STICKY, inFlight, 7, "folder/job"));
+  }
+
+  @Test
+  public void releaseWithNothingInFlight() {
+    ProjectRouter router = new ProjectRouter();
+    router.release("a");
+    assertEquals(0, router.getInFlight("a"));
+  }
+
+  @Test
+  public void credentialsIdsAreSplitAndDeduplicated() {
+    ProjectPool pool = new ProjectPool(" pool ", "a, b\nc a", null);
+    assertEquals("pool", pool.getName());
+    assertEquals(IDS, pool.getCredentialsIdList());
+    assertEquals(Routing.LEAST_LOADED, pool.getRouting());
+  }
+}
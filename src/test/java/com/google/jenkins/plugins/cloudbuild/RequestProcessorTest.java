@@ -16,6 +16,7 @@ package com.google.jenkins.plugins.cloudbuild;
 import org.junit.Assert;
 import org.junit.Test;
 
+import com.google.api.services.cloudbuild.v1.model.Build;
 import hudson.util.FormValidation.Kind;
 
 /** Unit tests for RequestProcessor */
@@ -44,4 +45,28 @@ public class RequestProcessorTest {
     // Unknown keys are okay.
     Assert.assertEquals(Kind.OK, RequestProcessor.validateBuildRequest("{\"foo\": 42}").kind);
   }
+
+  @Test
+  public void setWorkerPool() throws Exception {
+    String pool = "projects/p/locations/us-central1/workerPools/a";
+    String request = RequestProcessor.setWorkerPool(
+        "steps: [{name: ubuntu}]\noptions: {machineType: N1_HIGHCPU_8}", pool);
+    Build build = RequestProcessor.parseBuildRequest(request);
+    Assert.assertEquals("N1_HIGHCPU_8", build.getOptions().get("machineType"));
+    Assert.assertEquals("ubuntu", build.getSteps().get(0).getName());
+    Assert.assertEquals("us-central1", RequestProcessor.getWorkerPoolLocation(build));
+
+    // A pool named in the request is replaced.
+    String other = "projects/p/locations/europe-west1/workerPools/b";
+    Assert.assertEquals("europe-west1", RequestProcessor.getWorkerPoolLocation(
+        RequestProcessor.parseBuildRequest(RequestProcessor.setWorkerPool(request, other))));
+  }
+
+  @Test
+  public void getWorkerPoolLocationWithoutPool() throws Exception {
+    Assert.assertNull(RequestProcessor.getWorkerPoolLocation(
+        RequestProcessor.parseBuildRequest("steps: [{name: ubuntu}]")));
+    Assert.assertNull(RequestProcessor.getWorkerPoolLocation(
+        RequestProcessor.parseBuildRequest("options: {pool: {name: not-a-pool}}")));
+  }
 }
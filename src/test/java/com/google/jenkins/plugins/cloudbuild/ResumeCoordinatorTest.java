@@ -0,0 +1,192 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.jenkinsci.plugins.workflow.steps.StepContext;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.jenkins.plugins.cloudbuild.client.BuildFailedException;
+import com.google.jenkins.plugins.cloudbuild.request.InlineCloudBuildRequest;
+import hudson.model.FreeStyleProject;
+import hudson.model.Run;
+import hudson.model.TaskListener;
+
+/** Tests for {@link ResumeCoordinator}. */
+public class ResumeCoordinatorTest {
+  private static final Pattern BUILD_ID = Pattern.compile("builds/([^?/]+)");
+
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private MockCloudServices cloud = new MockCloudServices();
+
+  /** The status of each build, as returned by the mock Cloud Build API. */
+  private final Map<String, String> statuses = new ConcurrentHashMap<>();
+
+  /** The builds looked up by each batch request, in order. */
+  private final List<Set<String>> batches = Collections.synchronizedList(new ArrayList<>());
+
+  /** When the status of each build was first checked on its own. */
+  private final Map<String, Long> firstChecked = new ConcurrentHashMap<>();
+
+  @Before
+  public void setUp() throws Exception {
+    cloud.prepare(j.jenkins);
+    cloud.onCheckBuildsInBatch(buildIds -> {
+      batches.add(new HashSet<>(buildIds));
+      List<Build> builds = new ArrayList<>();
+      for (String buildId : buildIds) {
+        builds.add(new Build().setId(buildId).setStatus(statuses.get(buildId)));
+      }
+      return builds;
+    });
+    cloud.onCheckBuild((x, req, resp) -> {
+      Matcher matcher = BUILD_ID.matcher(req.getUrl());
+      assertTrue(matcher.find());
+      String buildId = matcher.group(1);
+      firstChecked.putIfAbsent(buildId, System.currentTimeMillis());
+      return new Build().setId(buildId).setStatus(statuses.get(buildId));
+    });
+  }
+
+  @Test
+  public void staggerDelaysSpreadEvenly() {
+    long quarter = ResumeCoordinator.STAGGER_MILLIS / 4;
+    assertArrayEquals(new long[] {0, quarter, 2 * quarter, 3 * quarter},
+        ResumeCoordinator.staggerDelays(4));
+  }
+
+  @Test
+  public void staggerDelaysStayWithinWindow() {
+    long[] delays = ResumeCoordinator.staggerDelays(1000);
+    assertEquals(0, delays[0]);
+    for (int i = 1; i < delays.length; i++) {
+      assertTrue(delays[i] >= delays[i - 1]);
+      assertTrue(delays[i] < ResumeCoordinator.STAGGER_MILLIS);
+    }
+  }
+
+  @Test
+  public void drainWithNothingPending() {
+    new ResumeCoordinator().drain();
+  }
+
+  @Test
+  public void resumesStepsTogether() throws Exception {
+    statuses.put("done", "SUCCESS");
+    statuses.put("failed", "FAILURE");
+    statuses.put("running", "WORKING");
+    statuses.put("done-in-folder", "SUCCESS");
+    statuses.put("running-in-folder", "WORKING");
+    Run<?, ?> run = j.buildAndAssertSuccess(j.createFreeStyleProject());
+    Run<?, ?> runInFolder =
+        j.buildAndAssertSuccess(
+            j.createFolder("folder").createProject(FreeStyleProject.class, "project"));
+
+    ResumeCoordinator coordinator = new ResumeCoordinator();
+    StepContext done = resume(coordinator, run, "done");
+    StepContext failed = resume(coordinator, run, "failed");
+    StepContext running = resume(coordinator, run, "running");
+    StepContext doneInFolder = resume(coordinator, runInFolder, "done-in-folder");
+    StepContext runningInFolder = resume(coordinator, runInFolder, "running-in-folder");
+    coordinator.drain();
+
+    // The same credentials may be different in a folder, so each folder is looked up separately.
+    assertEquals(
+        Arrays.asList(
+            new HashSet<>(Arrays.asList("done", "failed", "running")),
+            new HashSet<>(Arrays.asList("done-in-folder", "running-in-folder"))),
+        batches);
+    verify(done).onSuccess(any());
+    verify(failed).onFailure(any(BuildFailedException.class));
+    verify(doneInFolder).onSuccess(any());
+    verify(running, never()).onSuccess(any());
+    verify(runningInFolder, never()).onSuccess(any());
+
+    statuses.put("running", "SUCCESS");
+    statuses.put("running-in-folder", "SUCCESS");
+    long wait = 2 * ResumeCoordinator.STAGGER_MILLIS;
+    verify(running, timeout(wait)).onSuccess(any());
+    verify(runningInFolder, timeout(wait)).onSuccess(any());
+    // Only the builds still running are polled, and not all at once.
+    assertEquals(
+        new HashSet<>(Arrays.asList("running", "running-in-folder")), firstChecked.keySet());
+    long spread = firstChecked.get("running-in-folder") - firstChecked.get("running");
+    assertTrue(spread >= ResumeCoordinator.STAGGER_MILLIS / 4);
+    assertEquals(2, batches.size());
+  }
+
+  @Test
+  public void skipsStoppedSteps() throws Exception {
+    statuses.put("done", "SUCCESS");
+    Run<?, ?> run = j.buildAndAssertSuccess(j.createFreeStyleProject());
+
+    ResumeCoordinator coordinator = new ResumeCoordinator();
+    StepContext context = mock(StepContext.class);
+    when(context.get(Run.class)).thenReturn(run);
+    when(context.get(TaskListener.class)).thenReturn(TaskListener.NULL);
+    CloudBuildStepExecution execution = execution(context, "done");
+    coordinator.resume(execution);
+    Exception stop = new InterruptedException();
+    execution.stop(stop);
+    coordinator.drain();
+
+    verify(context).onFailure(stop);
+    verify(context, never()).onSuccess(any());
+  }
+
+  /** Queues a step whose build was submitted before Jenkins restarted. */
+  private static StepContext resume(ResumeCoordinator coordinator, Run<?, ?> run, String buildId)
+      throws Exception {
+    StepContext context = mock(StepContext.class);
+    when(context.get(Run.class)).thenReturn(run);
+    when(context.get(TaskListener.class)).thenReturn(TaskListener.NULL);
+    coordinator.resume(execution(context, buildId));
+    return context;
+  }
+
+  private static CloudBuildStepExecution execution(StepContext context, String buildId) {
+    CloudBuildStepExecution execution = new CloudBuildStepExecution(
+        new CloudBuildInput("test-project", new InlineCloudBuildRequest("steps: []")),
+        context, true);
+    execution.setSubmitted(
+        new CloudBuildHandle("test-project", "test-project", buildId, null));
+    return execution;
+  }
+}
@@ -0,0 +1,175 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+import static org.hamcrest.Matchers.containsString;
+import static org.hamcrest.Matchers.greaterThanOrEqualTo;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertThat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import hudson.AbortException;
+import hudson.model.TaskListener;
+
+/** Tests for {@link SubmissionQueue}. */
+public class SubmissionQueueTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private SubmissionQueue queue = new SubmissionQueue();
+  private CloudBuildGlobalConfiguration config;
+
+  @Before
+  public void setUp() {
+    config = CloudBuildGlobalConfiguration.get();
+  }
+
+  private SubmissionQueue.Permit acquire(String projectId, String jobName)
+      throws IOException, InterruptedException {
+    return queue.acquire(projectId, jobName, null, TaskListener.NULL.getLogger());
+  }
+
+  private CompletableFuture<SubmissionQueue.Permit> acquireLater(
+      String projectId, String jobName, PrintStream logger) {
+    return acquireLater(projectId, jobName, null, logger);
+  }
+
+  private CompletableFuture<SubmissionQueue.Permit> acquireLater(
+      String projectId, String jobName, String priority, PrintStream logger) {
+    return CompletableFuture.supplyAsync(() -> {
+      try {
+        return queue.acquire(projectId, jobName, priority, logger);
+      } catch (IOException | InterruptedException e) {
+        throw new IllegalStateException(e);
+      }
+    });
+  }
+
+  @Test
+  public void unlimitedByDefault() throws Exception {
+    for (int i = 0; i < 10; i++) {
+      acquire("project", "job");
+    }
+    assertEquals(10, queue.getRunning());
+    assertEquals(0, queue.getWaiting());
+  }
+
+  @Test
+  public void projectLimitHoldsSubmissionsUntilReleased() throws Exception {
+    config.setMaxConcurrentBuildsPerProject(1);
+    SubmissionQueue.Permit first = acquire("project", "job");
+    // Other projects are not affected.
+    acquire("other-project", "job");
+
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    CompletableFuture<SubmissionQueue.Permit> second =
+        acquireLater("project", "job", new PrintStream(log, true));
+    Thread.sleep(100);
+    assertFalse("waits for the first build to complete", second.isDone());
+    assertEquals(1, queue.getWaiting());
+    assertThat(log.toString(), containsString("position 1 of 1"));
+
+    first.release();
+    // Releasing a permit more than once has no effect.
+    first.release();
+    second.get(10, TimeUnit.SECONDS);
+    assertEquals(2, queue.getRunning());
+    assertEquals(0, queue.getWaiting());
+  }
+
+  @Test
+  public void folderLimitAppliesToJobsWithinTheFolder() throws Exception {
+    config.setConcurrencyLimits(Collections.singletonList(new ConcurrencyLimit("/team/", 1)));
+    SubmissionQueue.Permit first = acquire("project", "team/a");
+    acquire("project", "teammate/b");
+
+    CompletableFuture<SubmissionQueue.Permit> second =
+        acquireLater("project", "team/b", TaskListener.NULL.getLogger());
+    Thread.sleep(100);
+    assertFalse(second.isDone());
+
+    first.release();
+    second.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void permitsGoToTheJobHoldingTheFewest() throws Exception {
+    config.setMaxConcurrentBuildsPerProject(2);
+    SubmissionQueue.Permit busy = acquire("project", "busy");
+    SubmissionQueue.Permit quiet = acquire("project", "quiet");
+
+    CompletableFuture<SubmissionQueue.Permit> busyAgain =
+        acquireLater("project", "busy", TaskListener.NULL.getLogger());
+    Thread.sleep(100);
+    CompletableFuture<SubmissionQueue.Permit> quietAgain =
+        acquireLater("project", "quiet", TaskListener.NULL.getLogger());
+    Thread.sleep(100);
+
+    // "busy" asked first, but would then hold both permits while "quiet" holds none.
+    quiet.release();
+    quietAgain.get(10, TimeUnit.SECONDS);
+    assertFalse(busyAgain.isDone());
+
+    busy.release();
+    busyAgain.get(10, TimeUnit.SECONDS);
+  }
+
+  @Test
+  public void higherPriorityClassesGoFirst() throws Exception {
+    config.setMaxConcurrentBuildsPerProject(1);
+    SubmissionQueue.Permit first = acquire("project", "job");
+
+    CompletableFuture<SubmissionQueue.Permit> pr =
+        acquireLater("project", "pr-job", "pr", TaskListener.NULL.getLogger());
+    Thread.sleep(100);
+    ByteArrayOutputStream log = new ByteArrayOutputStream();
+    CompletableFuture<SubmissionQueue.Permit> release =
+        acquireLater("project", "release-job", "Release", new PrintStream(log, true));
+    Thread.sleep(100);
+    assertThat(log.toString(), containsString("priority release, position 1 of 2"));
+
+    first.release();
+    release.get(10, TimeUnit.SECONDS).release();
+    pr.get(10, TimeUnit.SECONDS);
+
+    List<SubmissionQueue.PriorityClassStats> stats = queue.getPriorityClasses();
+    assertEquals(Arrays.asList("release", "mainline", "pr"),
+        stats.stream().map(SubmissionQueue.PriorityClassStats::getName)
+            .collect(Collectors.toList()));
+    assertEquals(1, stats.get(0).getAdmitted());
+    assertEquals(1, stats.get(1).getAdmitted());
+    assertEquals(1, stats.get(2).getAdmitted());
+    assertThat(stats.get(2).getMaxWaitMillis(), greaterThanOrEqualTo(200L));
+  }
+
+  @Test(expected = AbortException.class)
+  public void unknownPriorityClassFails() throws Exception {
+    queue.acquire("project", "job", "urgent", TaskListener.NULL.getLogger());
+  }
+}
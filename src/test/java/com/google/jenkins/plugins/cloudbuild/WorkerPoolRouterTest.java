@@ -0,0 +1,71 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+
+import org.junit.Test;
+
+import hudson.AbortException;
+
+/** Tests for {@link WorkerPoolRouter}. */
+public class WorkerPoolRouterTest {
+  private static final String A = "projects/p/locations/us-central1/workerPools/a";
+  private static final String B = "projects/p/locations/us-central1/workerPools/b";
+  private static final List<String> POOLS = Arrays.asList(A, B);
+
+  private final PrintStream logger = new PrintStream(new ByteArrayOutputStream());
+
+  @Test
+  public void choosePrefersFewestActiveThenListedOrder() {
+    Map<String, Integer> active = new HashMap<>();
+    assertEquals(A, WorkerPoolRouter.choose(POOLS, active));
+    active.put(A, 1);
+    assertEquals(B, WorkerPoolRouter.choose(POOLS, active));
+    active.put(B, 1);
+    assertEquals(A, WorkerPoolRouter.choose(POOLS, active));
+  }
+
+  @Test
+  public void acquireSpreadsBuildsAndReleaseFreesPool() throws Exception {
+    WorkerPoolRouter router = new WorkerPoolRouter();
+    assertEquals(A, router.acquire(POOLS, logger));
+    assertEquals(B, router.acquire(POOLS, logger));
+    assertEquals(A, router.acquire(POOLS, logger));
+    assertEquals(2, router.getActive(A));
+
+    router.release(A);
+    router.release(A);
+    assertEquals(0, router.getActive(A));
+    assertEquals(A, router.acquire(POOLS, logger));
+  }
+
+  @Test(expected = AbortException.class)
+  public void acquireRejectsInvalidPool() throws Exception {
+    new WorkerPoolRouter().acquire(Arrays.asList(A, "pool-b"), logger);
+  }
+
+  @Test(expected = AbortException.class)
+  public void acquireRejectsEmptyList() throws Exception {
+    new WorkerPoolRouter().acquire(Collections.emptyList(), logger);
+  }
+}
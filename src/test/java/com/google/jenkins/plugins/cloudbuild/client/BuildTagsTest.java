@@ -0,0 +1,61 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import com.google.common.base.Strings;
+
+/** Tests for {@link BuildTags}. */
+public class BuildTagsTest {
+  private static final String VALID_TAG = "^[\\w][\\w.-]{0,127}$";
+
+  @Test
+  public void tagKeepsValidValues() {
+    assertEquals("jenkins-step-build.linux_1", BuildTags.step("build.linux_1"));
+  }
+
+  @Test
+  public void tagDigestsInvalidValues() {
+    String tag = BuildTags.tag(BuildTags.JOB_PREFIX, "my folder/my job");
+    assertTrue(tag, tag.matches(VALID_TAG));
+    assertTrue(tag.startsWith(BuildTags.JOB_PREFIX));
+    assertEquals(tag, BuildTags.tag(BuildTags.JOB_PREFIX, "my folder/my job"));
+  }
+
+  @Test
+  public void tagDigestsLongValues() {
+    String tag = BuildTags.step(Strings.repeat("a", BuildTags.MAX_LENGTH));
+    assertTrue(tag, tag.matches(VALID_TAG));
+  }
+
+  @Test
+  public void filter() {
+    assertEquals("tags=\"a\" AND tags=\"b\"", BuildTags.filter("a", "b"));
+  }
+
+  @Test
+  public void appendSkipsDuplicates() {
+    assertEquals(Arrays.asList("a", "b", "c"),
+        BuildTags.append(Arrays.asList("a", "b"), Arrays.asList("b", "c")));
+    assertEquals(Collections.singletonList("a"),
+        BuildTags.append(null, Collections.singletonList("a")));
+  }
+}
@@ -0,0 +1,151 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.HttpHeaders;
+import com.google.api.client.http.HttpResponseException;
+import com.google.jenkins.plugins.cloudbuild.client.CircuitBreaker.State;
+
+/** Tests for {@link CircuitBreaker}. */
+public class CircuitBreakerTest {
+  private AtomicLong now = new AtomicLong(1000000);
+  private CircuitBreaker breaker;
+
+  @Before
+  public void setUp() {
+    breaker = new CircuitBreaker("test", now::get);
+    breaker.configure(50, 30000);
+  }
+
+  private void recordCalls(int successes, int failures) {
+    for (int i = 0; i < successes; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onSuccess();
+    }
+    for (int i = 0; i < failures; i++) {
+      assertTrue(breaker.tryAcquire());
+      breaker.onFailure();
+    }
+  }
+
+  @Test
+  public void staysClosedBelowMinimumCalls() {
+    recordCalls(0, CircuitBreaker.MINIMUM_CALLS - 1);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void staysClosedBelowThreshold() {
+    recordCalls(6, 4);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(40, breaker.getFailureRate());
+  }
+
+  @Test
+  public void opensAtThreshold() {
+    recordCalls(5, 5);
+    assertEquals(State.OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+    assertEquals(1, breaker.getTotalRejected());
+    assertEquals(1, breaker.getTimesOpened());
+    assertEquals(30000, breaker.getRetryDelayMillis());
+  }
+
+  @Test
+  public void oldOutcomesExpire() {
+    recordCalls(0, 9);
+    now.addAndGet(CircuitBreaker.WINDOW_MILLIS + 1);
+    recordCalls(1, 1);
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(50, breaker.getFailureRate());
+  }
+
+  @Test
+  public void successfulProbeCloses() {
+    recordCalls(0, 10);
+    now.addAndGet(30000);
+    assertTrue(breaker.tryAcquire());
+    assertEquals(State.HALF_OPEN, breaker.getState());
+    assertFalse(breaker.tryAcquire());
+    breaker.onSuccess();
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0, breaker.getFailureRate());
+  }
+
+  @Test
+  public void failedProbeReopens() {
+    recordCalls(0, 10);
+    now.addAndGet(30000);
+    assertTrue(breaker.tryAcquire());
+    breaker.onFailure();
+    assertEquals(State.OPEN, breaker.getState());
+    assertEquals(2, breaker.getTimesOpened());
+    assertFalse(breaker.tryAcquire());
+  }
+
+  @Test
+  public void abandonedProbeIsReplaced() {
+    recordCalls(0, 10);
+    now.addAndGet(30000);
+    assertTrue(breaker.tryAcquire());
+    now.addAndGet(30000);
+    assertTrue(breaker.tryAcquire());
+  }
+
+  @Test
+  public void waitingDoesNotTakeProbeOrCountRejections() {
+    recordCalls(0, 10);
+    assertFalse(breaker.isAvailable());
+    assertFalse(breaker.isAvailable());
+    assertEquals(0, breaker.getTotalRejected());
+    now.addAndGet(30000);
+    assertTrue(breaker.isAvailable());
+    assertEquals(State.OPEN, breaker.getState());
+  }
+
+  @Test
+  public void recordedCallIsTheProbe() throws IOException {
+    recordCalls(0, 10);
+    now.addAndGet(30000);
+    assertEquals("ok", breaker.record(() -> "ok"));
+    assertEquals(State.CLOSED, breaker.getState());
+    assertEquals(0, breaker.getTotalRejected());
+  }
+
+  @Test
+  public void classifiesFailures() {
+    HttpHeaders headers = new HttpHeaders();
+    assertTrue(CircuitBreaker.isUnavailable(
+        new HttpResponseException.Builder(503, "Unavailable", headers).build()));
+    assertTrue(CircuitBreaker.isUnavailable(
+        new HttpResponseException.Builder(429, "Too Many Requests", headers).build()));
+    assertFalse(CircuitBreaker.isUnavailable(
+        new HttpResponseException.Builder(400, "Bad Request", headers).build()));
+    assertTrue(CircuitBreaker.isUnavailable(new SocketTimeoutException()));
+    assertFalse(CircuitBreaker.isUnavailable(new CircuitBreakerOpenException("test", 0)));
+    assertTrue(CircuitBreaker.isUnavailable(new IOException()));
+  }
+}
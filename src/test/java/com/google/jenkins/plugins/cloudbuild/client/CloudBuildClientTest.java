@@ -14,14 +14,20 @@
 package com.google.jenkins.plugins.cloudbuild.client;
 
 import java.io.IOException;
+import java.net.SocketTimeoutException;
 import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
 import static org.junit.Assert.assertTrue;
+import static org.mockito.AdditionalMatchers.not;
 import static org.mockito.ArgumentMatchers.contains;
 import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.atLeast;
 import static org.mockito.Mockito.clearInvocations;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
@@ -47,6 +53,7 @@ import com.google.api.client.testing.http.MockLowLevelHttpResponse;
 import com.google.api.services.cloudbuild.v1.CloudBuild;
 import com.google.api.services.cloudbuild.v1.model.Build;
 import com.google.api.services.cloudbuild.v1.model.BuildOperationMetadata;
+import com.google.api.services.cloudbuild.v1.model.ListBuildsResponse;
 import com.google.api.services.cloudbuild.v1.model.Operation;
 import com.google.jenkins.plugins.cloudbuild.BuildLogAction;
 import hudson.Launcher;
@@ -130,6 +137,56 @@ public class CloudBuildClientTest {
         eq(HttpMethods.POST), contains("/v1/projects/test-project/builds"));
   }
 
+  @Test
+  public void sendBuildRequest_TimeoutFindsExistingBuild() throws Exception {
+    clearInvocations(transport);
+    when(transport.buildRequest(eq(HttpMethods.POST), contains("/v1/projects/test-project/builds")))
+        .thenReturn(new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            // The build is created, but the response never makes it back.
+            throw new SocketTimeoutException("Read timed out");
+          }
+        });
+    when(transport.buildRequest(eq(HttpMethods.GET), contains("filter=tags")))
+        .thenReturn(new MockLowLevelHttpRequest() {
+          @Override
+          public LowLevelHttpResponse execute() throws IOException {
+            MockLowLevelHttpResponse response = new MockLowLevelHttpResponse();
+            response.setStatusCode(HttpStatusCodes.STATUS_CODE_OK);
+            response.setContentType(Json.MEDIA_TYPE);
+            response.setContent(json.toString(new ListBuildsResponse()
+                .setBuilds(Collections.singletonList(new Build()
+                    .setId("build-42")
+                    .setLogUrl("https://logurl")))));
+            return response;
+          }
+        });
+
+    FreeStyleProject project = j.createFreeStyleProject();
+    project.getBuildersList().add(new TestBuilder() {
+      @Override
+      public boolean perform(AbstractBuild<?, ?> build, Launcher launcher, BuildListener listener)
+          throws InterruptedException, IOException {
+        CloudBuildClient cloudBuild = cloudBuild(build);
+        String request =
+            "steps: \n" +
+                "- name: ubuntu\n" +
+                "  args: [echo, hello, world]";
+        assertEquals("build-42", cloudBuild.submitBuild(
+            request, null, Collections.emptyMap(), "test-step").getId());
+        return true;
+      }
+    });
+
+    FreeStyleBuild build = project.scheduleBuild2(0).get();
+    assertTrue(build.getResult().isBetterOrEqualTo(Result.SUCCESS));
+    verify(transport, times(1)).buildRequest(
+        eq(HttpMethods.POST), contains("/v1/projects/test-project/builds"));
+    verify(transport, times(1)).buildRequest(
+        eq(HttpMethods.GET), contains(BuildTags.SUBMISSION_PREFIX));
+  }
+
   /**
    * Gets the status for a simulated Cloud Build operation.
    * <p>
@@ -201,6 +258,8 @@ public class CloudBuildClientTest {
     assertEquals(cloudBuildSucceeds, build.getResult().isBetterOrEqualTo(Result.SUCCESS));
     verify(transport, atLeast(1)).buildRequest(
         eq(HttpMethods.GET), contains("/v1/projects/test-project/builds/build-42"));
+    verify(transport, never()).buildRequest(
+        eq(HttpMethods.GET), not(contains("fields=status")));
   }
 
   @Test
@@ -212,4 +271,22 @@ public class CloudBuildClientTest {
   public void waitForSuccess_BuildFails() throws Exception {
     testWaitForSuccess(false);
   }
+
+  @Test
+  public void cacheKeyIgnoresFormattingAndSubstitutionOrder() throws Exception {
+    CloudBuildClient cloudBuild = cloudBuild(null);
+    Map<String, String> substitutions = new LinkedHashMap<>();
+    substitutions.put("_A", "1");
+    substitutions.put("_B", "2");
+    Map<String, String> reordered = new LinkedHashMap<>();
+    reordered.put("_B", "2");
+    reordered.put("_A", "1");
+
+    String key = cloudBuild.cacheKey("steps:\n- name: alpine\n", substitutions, "none");
+    assertEquals(key, cloudBuild.cacheKey(
+        "# A comment\nsteps: [{name: alpine}]", reordered, "none"));
+    assertNotEquals(key, cloudBuild.cacheKey("steps: [{name: alpine}]", reordered, "local:abc"));
+    assertNotEquals(key, cloudBuild.cacheKey(
+        "steps: [{name: alpine}]", Collections.singletonMap("_A", "1"), "none"));
+  }
 }
@@ -0,0 +1,162 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.GZIPOutputStream;
+
+import static org.hamcrest.Matchers.lessThan;
+import static org.junit.Assert.assertThat;
+import static org.junit.Assume.assumeTrue;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import com.google.api.client.http.javanet.NetHttpTransport;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson2.JacksonFactory;
+import com.google.api.services.cloudbuild.v1.CloudBuild;
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.cloudbuild.v1.model.BuildStep;
+import com.google.common.io.ByteStreams;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Compares the bytes sent over the wire and the client CPU time taken by Cloud Build API calls
+ * with and without gzip compression, against a local stand-in for the API.
+ * <p>
+ * This is a benchmark rather than a unit test, so it only runs when the {@code benchmark} system
+ * property is set (e.g., {@code mvn test -Dbenchmark -Dtest=CompressionBenchmarkTest}).
+ */
+public class CompressionBenchmarkTest {
+  private static final Logger LOGGER = Logger.getLogger(CompressionBenchmarkTest.class.getName());
+
+  private static final int STEPS = 200;
+  private static final int ITERATIONS = 20;
+
+  private JsonFactory json = new JacksonFactory();
+  private HttpServer server;
+  private String build;
+  private AtomicLong bytesReceived = new AtomicLong();
+  private AtomicLong bytesSent = new AtomicLong();
+
+  @Before
+  public void setUp() throws IOException {
+    assumeTrue(System.getProperty("benchmark") != null);
+    build = json.toString(largeBuild());
+    server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+    server.createContext("/", this::handle);
+    server.start();
+  }
+
+  @After
+  public void tearDown() {
+    if (server != null) {
+      server.stop(0);
+    }
+  }
+
+  /** Returns a build request with many steps, similar to a large inline request. */
+  private static Build largeBuild() {
+    List<BuildStep> steps = new ArrayList<>();
+    for (int i = 0; i < STEPS; i++) {
+      steps.add(new BuildStep()
+          .setId(String.format("step-%d", i))
+          .setName("gcr.io/cloud-builders/docker")
+          .setArgs(Arrays.asList(
+              "build", "-t", String.format("gcr.io/my-project/image-%d", i), "."))
+          .setWaitFor(Arrays.asList("-")));
+    }
+    return new Build().setId("build-42").setStatus("SUCCESS").setSteps(steps);
+  }
+
+  /** Echoes a large {@link Build} resource, compressing it if the client accepts gzip. */
+  private void handle(HttpExchange exchange) throws IOException {
+    try (InputStream in = exchange.getRequestBody()) {
+      bytesReceived.addAndGet(ByteStreams.toByteArray(in).length);
+    }
+    byte[] body = build.getBytes(StandardCharsets.UTF_8);
+    String acceptEncoding = exchange.getRequestHeaders().getFirst("Accept-Encoding");
+    if (acceptEncoding != null && acceptEncoding.contains("gzip")) {
+      ByteArrayOutputStream compressed = new ByteArrayOutputStream();
+      try (OutputStream out = new GZIPOutputStream(compressed)) {
+        out.write(body);
+      }
+      body = compressed.toByteArray();
+      exchange.getResponseHeaders().add("Content-Encoding", "gzip");
+    }
+    exchange.getResponseHeaders().add("Content-Type", "application/json; charset=UTF-8");
+    exchange.sendResponseHeaders(200, body.length);
+    try (OutputStream out = exchange.getResponseBody()) {
+      out.write(body);
+    }
+    bytesSent.addAndGet(body.length);
+  }
+
+  /**
+   * Sends {@link #ITERATIONS} create and get requests to the local server.
+   *
+   * @param gzip whether compression is enabled
+   * @return the total number of bytes sent and received by the server
+   * @throws IOException if an error occurs while communicating with the server
+   */
+  private long run(boolean gzip) throws IOException {
+    CloudBuild cloudBuild = new CloudBuild.Builder(new NetHttpTransport(), json, null)
+        .setRootUrl(String.format("http://localhost:%d/", server.getAddress().getPort()))
+        .setApplicationName("google-cloudbuild-plugin-test")
+        .setGoogleClientRequestInitializer(ClientFactory.compression(gzip))
+        .build();
+    bytesReceived.set(0);
+    bytesSent.set(0);
+    // Compression trades bandwidth for CPU time, so measure the CPU time of the calling thread,
+    // which compresses the requests and decompresses the responses.
+    ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    long start = threads.getCurrentThreadCpuTime();
+    for (int i = 0; i < ITERATIONS; i++) {
+      cloudBuild.projects().builds().create("test-project", largeBuild()).executeUnparsed()
+          .disconnect();
+      cloudBuild.projects().builds().get("test-project", "build-42").execute();
+    }
+    long cpuNanos = threads.getCurrentThreadCpuTime() - start;
+    LOGGER.log(Level.INFO, "gzip={0}: {1} bytes sent, {2} bytes received, {3} ms of CPU time",
+        new Object[] {gzip, bytesReceived.get(), bytesSent.get(), cpuNanos / 1000000});
+    return bytesReceived.get() + bytesSent.get();
+  }
+
+  @Test
+  public void compressionReducesBytesOnTheWire() throws IOException {
+    // Warm up both code paths before measuring.
+    run(true);
+    run(false);
+
+    long uncompressed = run(false);
+    long compressed = run(true);
+    assertThat(compressed, lessThan(uncompressed / 4));
+  }
+}
@@ -0,0 +1,117 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.client;
+
+import java.io.IOException;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.ArgumentMatchers.contains;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.mockito.Answers;
+import org.mockito.Mock;
+import org.mockito.MockitoAnnotations;
+
+import com.google.api.client.http.HttpMethods;
+import com.google.api.client.http.HttpStatusCodes;
+import com.google.api.client.json.Json;
+import com.google.api.client.json.JsonFactory;
+import com.google.api.client.json.jackson.JacksonFactory;
+import com.google.api.client.testing.http.MockHttpTransport;
+import com.google.api.client.testing.http.MockLowLevelHttpRequest;
+import com.google.api.client.testing.http.MockLowLevelHttpResponse;
+import com.google.api.services.cloudbuild.v1.CloudBuild;
+import com.google.api.services.cloudbuild.v1.model.Build;
+import com.google.api.services.storage.Storage;
+
+/** Tests for {@link RequestBatcher}. */
+public class RequestBatcherTest {
+  private static final String BOUNDARY = "batch_boundary";
+
+  @Mock(answer = Answers.CALLS_REAL_METHODS)
+  private MockHttpTransport transport;
+
+  private JsonFactory json = new JacksonFactory();
+  private CloudBuild cloudBuild;
+
+  @Before
+  public void setUp() {
+    MockitoAnnotations.initMocks(this);
+    cloudBuild = new CloudBuild.Builder(transport, json, req -> {})
+        .setRootUrl("https://cloudbuild.googleapis.com/")
+        .setApplicationName("google-cloudbuild-plugin-test")
+        .build();
+  }
+
+  /** Returns the body of one part of a multipart batch response. */
+  private String responsePart(Build build) throws IOException {
+    return String.format(
+        "--%s\r\nContent-Type: application/http\r\n\r\n"
+            + "HTTP/1.1 200 OK\r\nContent-Type: %s\r\n\r\n%s\r\n",
+        BOUNDARY, Json.MEDIA_TYPE, json.toString(build));
+  }
+
+  @Test
+  public void singleRequestIsSentDirectly() throws Exception {
+    when(transport.buildRequest(eq(HttpMethods.GET), contains("/v1/projects/p/builds/1")))
+        .thenReturn(new MockLowLevelHttpRequest().setResponse(new MockLowLevelHttpResponse()
+            .setStatusCode(HttpStatusCodes.STATUS_CODE_OK)
+            .setContentType(Json.MEDIA_TYPE)
+            .setContent(json.toString(new Build().setId("1").setStatus("WORKING")))));
+
+    RequestBatcher batcher = new RequestBatcher();
+    Build build = batcher.execute(cloudBuild.projects().builds().get("p", "1"));
+
+    assertEquals("WORKING", build.getStatus());
+    verify(transport, never()).buildRequest(eq(HttpMethods.POST), anyString());
+  }
+
+  @Test
+  public void concurrentRequestsAreBatched() throws Exception {
+    when(transport.buildRequest(
+        eq(HttpMethods.POST), eq("https://cloudbuild.googleapis.com/batch")))
+        .thenReturn(new MockLowLevelHttpRequest().setResponse(new MockLowLevelHttpResponse()
+            .setStatusCode(HttpStatusCodes.STATUS_CODE_OK)
+            .setContentType(String.format("multipart/mixed; boundary=%s", BOUNDARY))
+            .setContent(responsePart(new Build().setId("1").setStatus("WORKING"))
+                + responsePart(new Build().setId("2").setStatus("SUCCESS"))
+                + String.format("--%s--\r\n", BOUNDARY))));
+
+    RequestBatcher batcher = new RequestBatcher();
+    CompletableFuture<Build> first = batcher.submit(cloudBuild.projects().builds().get("p", "1"));
+    CompletableFuture<Build> second = batcher.submit(cloudBuild.projects().builds().get("p", "2"));
+
+    assertEquals("WORKING", first.get().getStatus());
+    assertEquals("SUCCESS", second.get().getStatus());
+    verify(transport, times(1)).buildRequest(eq(HttpMethods.POST), anyString());
+    verify(transport, never()).buildRequest(eq(HttpMethods.GET), anyString());
+  }
+
+  @Test
+  public void batchUrl() {
+    assertEquals("https://cloudbuild.googleapis.com/batch",
+        RequestBatcher.batchUrl(cloudBuild).build());
+    Storage storage = new Storage.Builder(transport, json, req -> {}).build();
+    assertEquals("https://www.googleapis.com/batch/storage/v1",
+        RequestBatcher.batchUrl(storage).build());
+  }
+}
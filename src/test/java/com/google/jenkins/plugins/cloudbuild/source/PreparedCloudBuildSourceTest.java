@@ -0,0 +1,160 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.source;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.api.services.cloudbuild.v1.model.StorageSource;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
+import hudson.AbortException;
+import hudson.model.FreeStyleBuild;
+import hudson.model.TaskListener;
+
+/** Tests for {@link PreparedCloudBuildSource} and {@link BackgroundSources}. */
+public class PreparedCloudBuildSourceTest {
+  private static final String PROJECT = "test-project";
+
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private BuildContext context;
+  private FreeStyleBuild run;
+
+  @Before
+  public void setUp() throws Exception {
+    context = mock(BuildContext.class);
+    when(context.getListener()).thenReturn(TaskListener.NULL);
+    run = j.buildAndAssertSuccess(j.createFreeStyleProject());
+  }
+
+  private static Source storageSource(String object) {
+    return new Source().setStorageSource(
+        new StorageSource().setBucket("bucket").setObject(object));
+  }
+
+  @Test
+  public void waitsForSourceToBePrepared() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    CountDownLatch uploaded = new CountDownLatch(1);
+    String id = sources.start(run, PROJECT, () -> {
+      uploaded.await();
+      return storageSource("source.tgz");
+    });
+    uploaded.countDown();
+
+    assertEquals(storageSource("source.tgz"),
+        sources.await(run, PROJECT, id, TaskListener.NULL.getLogger()));
+  }
+
+  @Test
+  public void preparesThroughSharedInstance() throws Exception {
+    String id = BackgroundSources.get().start(run, PROJECT, () -> storageSource("shared.tgz"));
+
+    ClientFactory clients = mock(ClientFactory.class);
+    doReturn(run).when(clients).getRun();
+    when(clients.getProjectId()).thenReturn(PROJECT);
+    assertEquals(storageSource("shared.tgz"),
+        new PreparedCloudBuildSource(id).prepare(context, clients));
+  }
+
+  @Test(expected = AbortException.class)
+  public void unknownIdFails() throws Exception {
+    new BackgroundSources().await(run, PROJECT, "unknown", TaskListener.NULL.getLogger());
+  }
+
+  @Test(expected = AbortException.class)
+  public void failureIsReported() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    String id = sources.start(run, PROJECT, () -> {
+      throw new IllegalStateException("archiving failed");
+    });
+    sources.await(run, PROJECT, id, TaskListener.NULL.getLogger());
+  }
+
+  @Test(expected = AbortException.class)
+  public void sourcesAreForgottenWithTheirRun() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    String id = sources.start(run, PROJECT, () -> storageSource("source.tgz"));
+    sources.forget(run);
+    sources.await(run, PROJECT, id, TaskListener.NULL.getLogger());
+  }
+
+  @Test
+  public void eachCallerGetsItsOwnCopy() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    String id = sources.start(run, PROJECT, () -> storageSource("source.tgz"));
+    Source first = sources.await(run, PROJECT, id, TaskListener.NULL.getLogger());
+    first.getStorageSource().setGeneration(42L);
+
+    Source second = sources.await(run, PROJECT, id, TaskListener.NULL.getLogger());
+    assertNotSame(first, second);
+    assertEquals(storageSource("source.tgz"), second);
+  }
+
+  @Test(expected = AbortException.class)
+  public void otherRunFails() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    String id = sources.start(run, PROJECT, () -> storageSource("source.tgz"));
+    FreeStyleBuild other = j.buildAndAssertSuccess(run.getParent());
+    sources.await(other, PROJECT, id, TaskListener.NULL.getLogger());
+  }
+
+  @Test(expected = AbortException.class)
+  public void otherProjectFails() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    String id = sources.start(run, PROJECT, () -> storageSource("source.tgz"));
+    sources.await(run, "other-project", id, TaskListener.NULL.getLogger());
+  }
+
+  @Test
+  public void cancelledSourceFails() throws Exception {
+    BackgroundSources sources = new BackgroundSources();
+    CountDownLatch started = new CountDownLatch(1);
+    String id = sources.start(run, PROJECT, () -> {
+      started.countDown();
+      new CountDownLatch(1).await();
+      return storageSource("source.tgz");
+    });
+    started.await();
+    Future<Source> waiting = Executors.newSingleThreadExecutor().submit(
+        () -> sources.await(run, PROJECT, id, TaskListener.NULL.getLogger()));
+    // The run finishes while a step is still waiting for its source.
+    sources.forget(run);
+
+    try {
+      waiting.get();
+      fail("Expected the waiting step to fail");
+    } catch (ExecutionException e) {
+      assertTrue(e.getCause() instanceof AbortException);
+    }
+  }
+}
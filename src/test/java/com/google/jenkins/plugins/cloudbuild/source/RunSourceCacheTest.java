@@ -0,0 +1,120 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.source;
+
+import java.io.IOException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.fail;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.jvnet.hudson.test.JenkinsRule;
+
+import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.api.services.cloudbuild.v1.model.StorageSource;
+import hudson.model.FreeStyleBuild;
+import hudson.model.FreeStyleProject;
+import hudson.model.TaskListener;
+
+/** Tests for {@link RunSourceCache}. */
+public class RunSourceCacheTest {
+  @Rule
+  public JenkinsRule j = new JenkinsRule();
+
+  private final RunSourceCache cache = new RunSourceCache();
+  private final AtomicInteger uploads = new AtomicInteger();
+  private ExecutorService executor;
+  private FreeStyleProject project;
+  private FreeStyleBuild run;
+
+  @Before
+  public void setUp() throws Exception {
+    executor = Executors.newCachedThreadPool();
+    project = j.createFreeStyleProject();
+    run = j.buildAndAssertSuccess(project);
+  }
+
+  @After
+  public void tearDown() {
+    executor.shutdownNow();
+  }
+
+  private Source upload() {
+    return new Source().setStorageSource(new StorageSource()
+        .setBucket("bucket").setObject("source/" + uploads.incrementAndGet() + ".tgz"));
+  }
+
+  private Source prepare(FreeStyleBuild build, String key)
+      throws IOException, InterruptedException {
+    return cache.prepare(build, key, this::upload, TaskListener.NULL.getLogger());
+  }
+
+  @Test
+  public void sameKeyIsUploadedOnce() throws Exception {
+    assertEquals("source/1.tgz", prepare(run, "key").getStorageSource().getObject());
+    assertEquals("source/1.tgz", prepare(run, "key").getStorageSource().getObject());
+    assertEquals("source/2.tgz", prepare(run, "changed").getStorageSource().getObject());
+    assertEquals(2, uploads.get());
+  }
+
+  @Test
+  public void sourcesAreNotSharedAcrossRuns() throws Exception {
+    FreeStyleBuild other = j.buildAndAssertSuccess(project);
+    prepare(run, "key");
+    prepare(other, "key");
+    assertEquals(2, uploads.get());
+
+    cache.forget(run);
+    prepare(run, "key");
+    assertEquals(3, uploads.get());
+  }
+
+  @Test
+  public void concurrentStepsWaitForInFlightUpload() throws Exception {
+    CountDownLatch started = new CountDownLatch(1);
+    CountDownLatch finish = new CountDownLatch(1);
+    Future<Source> first = executor.submit(() -> cache.prepare(run, "key", () -> {
+      started.countDown();
+      finish.await();
+      return upload();
+    }, TaskListener.NULL.getLogger()));
+    started.await();
+    Future<Source> second = executor.submit(() -> prepare(run, "key"));
+    finish.countDown();
+
+    assertEquals(first.get(), second.get());
+    assertEquals(1, uploads.get());
+  }
+
+  @Test
+  public void failedUploadIsRetriedByNextStep() throws Exception {
+    try {
+      cache.prepare(run, "key", () -> {
+        throw new IOException("upload failed");
+      }, TaskListener.NULL.getLogger());
+      fail();
+    } catch (IOException e) {
+      assertEquals("upload failed", e.getMessage());
+    }
+    assertEquals("source/1.tgz", prepare(run, "key").getStorageSource().getObject());
+  }
+}
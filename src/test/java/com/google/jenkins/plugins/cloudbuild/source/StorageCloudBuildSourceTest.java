@@ -16,7 +16,9 @@ package com.google.jenkins.plugins.cloudbuild.source;
 import java.io.IOException;
 
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.when;
 
 import org.junit.Before;
@@ -27,6 +29,9 @@ import org.mockito.Mock;
 import org.mockito.MockitoAnnotations;
 
 import com.google.api.services.cloudbuild.v1.model.Source;
+import com.google.api.services.storage.model.StorageObject;
+import com.google.jenkins.plugins.cloudbuild.client.ClientFactory;
+import com.google.jenkins.plugins.cloudbuild.client.CloudStorageClient;
 import com.google.jenkins.plugins.cloudbuild.context.BuildContext;
 import hudson.EnvVars;
 import hudson.model.TaskListener;
@@ -56,5 +61,21 @@ public class StorageCloudBuildSourceTest {
     Source apiSource = source.prepare(context, null);
     assertEquals("foo", apiSource.getStorageSource().getBucket());
     assertEquals("bar", apiSource.getStorageSource().getObject());
+    assertNull(apiSource.getStorageSource().getGeneration());
   }
-}
\ No newline at end of file
+
+  @Test
+  public void prepareUsesIdentifiedGeneration() throws Exception {
+    CloudStorageClient storage = mock(CloudStorageClient.class);
+    when(storage.getObject("foo", "bar")).thenReturn(new StorageObject().setGeneration(42L));
+    ClientFactory clients = mock(ClientFactory.class);
+    when(clients.storage()).thenReturn(storage);
+    StorageCloudBuildSource source = new StorageCloudBuildSource("foo", "bar");
+
+    assertEquals("gs://foo/bar#42", source.identify(context, clients));
+    // The object is overwritten before the build is submitted.
+    when(storage.getObject("foo", "bar")).thenReturn(new StorageObject().setGeneration(43L));
+    assertEquals(Long.valueOf(42),
+        source.prepare(context, clients).getStorageSource().getGeneration());
+  }
+}
@@ -0,0 +1,28 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.CloudBuildAffectedStepTest
+
+node {
+    // Only the api service changes after the first build.
+    writeFile file: 'api/main.txt', text: "api ${env.BUILD_NUMBER}"
+    writeFile file: 'web/main.txt', text: 'web'
+    def results = googleCloudBuildAffected \
+        credentialsId: 'test-project',
+        services: [
+            [name: 'api', paths: ['api/**'], request: inline('steps: [{name: ubuntu}]')],
+            [name: 'web', paths: ['web/**'], request: inline('steps: [{name: alpine}]')],
+        ]
+    echo "api: ${results.api.status} (build ${results.api.buildId})"
+    echo "web: ${results.web.status} (build ${results.web.buildId})"
+}
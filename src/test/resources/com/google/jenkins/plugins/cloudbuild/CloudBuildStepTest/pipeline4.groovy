@@ -0,0 +1,23 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.CloudBuildStepTest
+
+// Neither the source nor the request needs a workspace, so no node is required.
+googleCloudBuild \
+    credentialsId: 'test-project',
+    source: repo(projectId: 'some-other-project', repoName: 'test-repo', tag: '3.14.159'),
+    request: inline('''
+        steps:
+            - name: alpine
+    ''')
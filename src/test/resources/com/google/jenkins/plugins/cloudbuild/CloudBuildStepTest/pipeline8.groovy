@@ -0,0 +1,32 @@
+/*
+ * Copyright 2017 Google Inc.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not use this file except
+ * in compliance with the License. You may obtain a copy of the License at
+ *
+ *     https://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software distributed under the License
+ * is distributed on an "AS IS" BASIS, WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express
+ * or implied. See the License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.google.jenkins.plugins.cloudbuild.CloudBuildStepTest
+
+def results = googleCloudBuildGraph \
+    credentialsId: 'test-project',
+    builds: [
+        [name: 'app', dependsOn: ['base'], request: inline('''
+            steps:
+                - name: gcr.io/cloud-builders/docker
+                  args: ['build', '--build-arg', 'BASE=$_BASE_IMAGE', '.']
+        ''')],
+        [name: 'base', request: inline('''
+            steps:
+                - name: gcr.io/cloud-builders/docker
+                  args: ['build', '-t', 'gcr.io/test-project/base', '.']
+            images: ['gcr.io/test-project/base']
+        ''')],
+    ]
+echo "base: ${results.base.status} ${results.base.outputs._BASE_DIGEST}"
+echo "app: ${results.app.status}"